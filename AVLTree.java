@@ -1,3 +1,64 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.Threshold;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 /**
  *
@@ -14,14 +75,47 @@ public class AVLTree {
 	private final static int LEAF_NODE = 1;
 	private final static int UNARY_NODE = 2;
 	private final static int INTERNAL_NODE = 3;
-	private final static int LEFT=1;
-	private final static int RIGHT=2;
-
-
-	private IAVLNode root;
-	private int size = 0;
-	private IAVLNode min;
-	private IAVLNode max;
+	final static int LEFT=1;
+	final static int RIGHT=2;
+	// An AVL tree with 2^31 keys is less than 46 levels high
+	final static int MAX_HEIGHT=64;
+	private final static int SNAPSHOT_MAGIC=0x41564C53; // "AVLS"
+	private final static int SNAPSHOT_VERSION=1;
+	private final static int DELTA_MAGIC=0x41564C44; // "AVLD"
+	private final static int DELTA_VERSION=1;
+
+	// eviction policies of a bounded tree, see setCapacity
+	public final static int EVICT_LOWEST_KEY = 1;
+	public final static int EVICT_HIGHEST_KEY = 2;
+	public final static int EVICT_LEAST_RECENT = 3;
+
+
+	IAVLNode root;
+	int size = 0;
+	IAVLNode min;
+	IAVLNode max;
+	// keys changed since the last delta, null while changes aren't tracked
+	private IntHashSet changedKeys;
+	private boolean allChanged;
+	// cache of found nodes in front of search, null if disabled
+	private SearchCache searchCache;
+	// counting Bloom filter of the keys, null if disabled
+	private CountingBloomFilter membershipFilter;
+	// maximum size and eviction policy, 0 while the tree is unbounded
+	int capacity;
+	private int evictionPolicy;
+	private long evictions;
+	// access list of EVICT_LEAST_RECENT, from the least to the most recently accessed node
+	private AVLNode accessHead;
+	private AVLNode accessTail;
+	// operation metrics, null while disabled
+	Metrics metrics;
+	// trace of the calls, null while the workload isn't recorded
+	TraceWriter trace;
+	private int traceId;
+	// joins made by the last split of this tree, and the sum of their costs
+	private int splitJoins;
+	private long splitJoinCost;
 
 	/**
 	 * public AVLTree()
@@ -59,11 +153,55 @@ public class AVLTree {
 	 */
 	public String search(int k)
 	{
+		if(this.trace != null) {
+			this.trace.write(this.traceId, WorkloadReplay.SEARCH, k, null, 0);
+		}
+		if(this.metrics == null) {
+			return searchItem(k);
+		}
+		long start = System.nanoTime();
+		String result = searchItem(k);
+		this.metrics.record(Metrics.SEARCH, System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * private String searchItem(int k)
+	 *
+	 * search(k) without the latency measurement.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private String searchItem(int k)
+	{
+		if(this.searchCache != null) {
+			IAVLNode cached = this.searchCache.get(k);
+			if(cached != null) {
+				touchAccess(cached);
+				recordSearchPath(0);
+				return cached.getValue();
+			}
+		}
+		if(this.membershipFilter != null && !this.membershipFilter.mightContain(k)) {
+			this.membershipFilter.negatives.increment();
+			recordSearchPath(0);
+			return null;
+		}
+
 		// Standard binary search
 		IAVLNode ptr = this.root;
+		int pathLength = 0;
 		while(ptr != null) {
+			pathLength++;
 			int key = ptr.getKey();
-			if(key == k) {
+			// a virtual node has key -1 too
+			if(key == k && ptr.isRealNode()) {
+				if(this.searchCache != null) {
+					this.searchCache.admit(k, ptr);
+				}
+				touchAccess(ptr);
+				recordSearchPath(pathLength);
 				return ptr.getValue();
 			}
 			else {
@@ -75,6 +213,10 @@ public class AVLTree {
 				}
 			}
 		}
+		if(this.membershipFilter != null) {
+			this.membershipFilter.falsePositives.increment();
+		}
+		recordSearchPath(pathLength);
 		return null;
 	}
 
@@ -86,25 +228,57 @@ public class AVLTree {
 	 * Returns the number of re-balancing operations, or 0 if no re-balancing operations were necessary.
 	 * A promotion/rotation counts as one re-balance operation, double-rotation is counted as 2.
 	 * Returns -1 if an item with key k already exists in the tree.
+	 * If the tree is bounded and full, an item is evicted afterwards (possibly the new one).
 	 *
 	 * Complexity - O(log n)
 	 *
 	 */
 	public int insert(int k, String i) {
+		if(this.trace != null) {
+			this.trace.write(this.traceId, WorkloadReplay.INSERT, k, i, 0);
+		}
+		if(this.metrics == null && !updateEventsEnabled()) {
+			return insertItem(k, i);
+		}
+		return measuredUpdate(Metrics.INSERT, k, i);
+	}
+
+	/**
+	 * private int insertItem(int k, String i)
+	 *
+	 * insert(k, i) without the metrics.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private int insertItem(int k, String i) {
 		// If tree is empty, set root as new node with key k and info i
 		if(this.empty()) {
 			this.root = new AVLNode(k, i, true);
 			this.size++;
+			markChanged(k);
+			if(this.membershipFilter != null) {
+				this.membershipFilter.add(k);
+			}
 
 			// update min,max=root
 			this.min=this.root;
 			this.max=this.root;
+			appendAccess(this.root);
+			evictOverCapacity();
 			return 0;
 		}
 
-		// if key exists in the tree return -1
-		if(this.search(k) != null) {
-			return -1;
+		// if key exists in the tree return -1 (search(k) can't tell, the info may be null)
+		if(this.membershipFilter == null || this.membershipFilter.mightContain(k)) {
+			IAVLNode existing = this.findNode(k);
+			if(existing != null && existing.isRealNode()) {
+				return -1;
+			}
+		}
+		markChanged(k);
+		if(this.membershipFilter != null) {
+			this.membershipFilter.add(k);
 		}
 
 		// Perform normal BST insertion
@@ -145,7 +319,10 @@ public class AVLTree {
 		}
 
 		this.size++;
-		return rebalanceAfterInsertion(parent,k);
+		int result = rebalanceAfterInsertion(parent,k);
+		appendAccess(toInsert);
+		evictOverCapacity();
+		return result;
 	}
 
 	/**
@@ -161,13 +338,103 @@ public class AVLTree {
 	 *
 	 */
 	public int delete(int k)
+	{
+		if(this.trace != null) {
+			this.trace.write(this.traceId, WorkloadReplay.DELETE, k, null, 0);
+		}
+		if(this.metrics == null && !updateEventsEnabled()) {
+			return deleteItem(k);
+		}
+		return measuredUpdate(Metrics.DELETE, k, null);
+	}
+
+	/**
+	 * private int measuredUpdate(int operation, int k, String i)
+	 *
+	 * Runs insert(k, i) or delete(k) recording its metrics (if enabled) and its JFR events.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private int measuredUpdate(int operation, int k, String i)
+	{
+		if(this.metrics != null) {
+			this.metrics.rotationsInOperation = 0;
+			this.metrics.heightChangesInOperation = 0;
+		}
+		SlowUpdateEvent slow = new SlowUpdateEvent();
+		LargeRebalanceEvent large = new LargeRebalanceEvent();
+		slow.begin();
+		large.begin();
+		long start = System.nanoTime();
+		int result = operation == Metrics.INSERT ? insertItem(k, i) : deleteItem(k);
+		if(this.metrics != null) {
+			this.metrics.recordRebalancing(operation, System.nanoTime() - start);
+		}
+		commitUpdate(slow, operation, k, result);
+		commitUpdate(large, operation, k, result);
+		return result;
+	}
+
+	private void commitUpdate(UpdateEvent event, int operation, int k, int result)
+	{
+		event.end();
+		event.rebalancing = result;
+		if(event.shouldCommit()) {
+			event.operation = Metrics.OPERATIONS[operation];
+			event.key = k;
+			event.treeSize = this.size;
+			event.treeHeight = this.root == null ? -1 : this.root.getHeight();
+			event.commit();
+		}
+	}
+
+	private static boolean updateEventsEnabled()
+	{
+		// without a recording the events are never enabled, and escape analysis removes them
+		return new SlowUpdateEvent().isEnabled() || new LargeRebalanceEvent().isEnabled();
+	}
+
+	/**
+	 * private int deleteItem(int k)
+	 *
+	 * delete(k) without the metrics.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private int deleteItem(int k)
 	{
 		IAVLNode toDelete = findNode(k);
 
-		if(toDelete == null) { 				// If node not found.
+		if(toDelete == null || !toDelete.isRealNode()) { 	// If node not found.
 			return -1;
 		}
 
+		markChanged(k);
+		return deleteNode(toDelete);
+	}
+
+	/**
+	 * int deleteNode(IAVLNode toDelete)
+	 *
+	 * Deletes the node toDelete from the tree, the rest of delete(k) once the node is found.
+	 * @pre toDelete is a real node of this tree
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	int deleteNode(IAVLNode toDelete)
+	{
+		int k = toDelete.getKey();
+		if(this.searchCache != null) {
+			this.searchCache.remove(k);
+		}
+		if(this.membershipFilter != null) {
+			this.membershipFilter.remove(k);
+		}
+		unlinkAccess(toDelete);
+
 		if(toDelete == this.root) {
 			return removeRootNode();
 		}
@@ -183,8 +450,7 @@ public class AVLTree {
 				removeUnaryNode(toDelete);
 				break;
 			case INTERNAL_NODE:
-				parentOfDeleted = findNodeSuccessor(toDelete);
-				removeInternalNode(toDelete);
+				parentOfDeleted = removeInternalNode(toDelete);
 				break;
 		}
 		if(this.max.getKey() == k) {
@@ -196,6 +462,61 @@ public class AVLTree {
 		return rebalanceAfterDeletion(parentOfDeleted);
 	}
 
+	/**
+	 * public int[] applyBatch(BatchOp[] ops)
+	 *
+	 * Applies a batch of operations sorted by key, in the given order.
+	 * Returns an array with the result of every operation: for INSERT and DELETE the result of
+	 * insert/delete, for UPDATE 0 if the info was replaced and -1 if the key was not found.
+	 *
+	 * A small batch is applied with a finger: each operation starts from the node where the
+	 * previous one ended and only climbs as far as needed, so neighbouring keys share the top of
+	 * their root-to-leaf paths instead of all walking from the root.
+	 * A batch that touches a large part of the tree is merged with the in-order contents instead,
+	 * and the tree is rebuilt balanced once at the end (INSERT and DELETE then report 0
+	 * re-balancing operations). Nodes obtained earlier, e.g. by getRoot(), are then no longer part of the tree.
+	 *
+	 * precondition: ops are sorted by key (equal keys are allowed)
+	 *
+	 * Complexity - O(m log n) for m operations, O(n + m) when rebuilding
+	 *
+	 */
+	public int[] applyBatch(BatchOp[] ops)
+	{
+		for(int j = 1; j < ops.length; j++) {
+			if(ops[j].key < ops[j - 1].key) {
+				throw new IllegalArgumentException("batch is not sorted by key at index " + j);
+			}
+		}
+
+		// a rebuild costs n + m, against about m*log(n) for applying the operations one by one;
+		// the trace gets the effect of the batch below, not the inserts it makes on the way
+		TraceWriter writer = this.trace;
+		this.trace = null;
+		long singleCost = (long) ops.length * (32 - Integer.numberOfLeadingZeros(this.size + 1));
+		int[] results;
+		try {
+			results = singleCost > this.size + ops.length ? applyBatchByRebuild(ops) : applyBatchWithFinger(ops);
+		}
+		finally {
+			this.trace = writer;
+		}
+
+		for(int j = 0; j < ops.length; j++) {
+			if(results[j] != -1) {
+				markChanged(ops[j].key);
+				if(ops[j].type != BatchOp.INSERT) {
+					traceDelete(ops[j].key);
+				}
+				if(ops[j].type != BatchOp.DELETE) {
+					traceInsert(ops[j].key, ops[j].info);
+				}
+			}
+		}
+		evictOverCapacity();
+		return results;
+	}
+
 	/**
 	 * public String min()
 	 *
@@ -214,6 +535,82 @@ public class AVLTree {
 		return min.getValue();
 	}
 
+	/**
+	 * public String pollMin()
+	 *
+	 * Removes the item with the smallest key and returns its info, or null if the tree is empty.
+	 * null is also the info of an item inserted with null, so a drain loops on !empty(), not on
+	 * the returned info.
+	 * Unlike min() + delete(k), it starts from the cached min node instead of searching from the
+	 * root, and the new minimum is found locally: the successor of the minimum is its right child
+	 * (which can only be a leaf) or its parent.
+	 *
+	 * Complexity - O(1) amortized re-balancing, plus the subtree sizes on the path to the root
+	 *
+	 */
+	public String pollMin()
+	{
+		if(this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.min;
+		this.min = node.getRight().isRealNode() ? node.getRight() : node.getParent();
+		traceDelete(node.getKey());
+		markChanged(node.getKey());
+		deleteNode(node);
+		return node.getValue();
+	}
+
+	/**
+	 * public String pollMax()
+	 *
+	 * Removes the item with the biggest key and returns its info, or null if the tree is empty.
+	 * Same as pollMin() on the other side.
+	 *
+	 * Complexity - O(1) amortized re-balancing, plus the subtree sizes on the path to the root
+	 *
+	 */
+	public String pollMax()
+	{
+		if(this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.max;
+		this.max = node.getLeft().isRealNode() ? node.getLeft() : node.getParent();
+		traceDelete(node.getKey());
+		markChanged(node.getKey());
+		deleteNode(node);
+		return node.getValue();
+	}
+
+	/**
+	 * public int peekMinKey()
+	 *
+	 * Returns the smallest key in the tree.
+	 * precondition: !empty()
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public int peekMinKey()
+	{
+		return this.min.getKey();
+	}
+
+	/**
+	 * public int peekMaxKey()
+	 *
+	 * Returns the biggest key in the tree.
+	 * precondition: !empty()
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public int peekMaxKey()
+	{
+		return this.max.getKey();
+	}
+
 	/**
 	 * public String searchMin()
 	 *
@@ -287,9 +684,12 @@ public class AVLTree {
 			return new int[0];
 		}
 
+		ExportEvent event = new ExportEvent();
+		event.begin();
 		int[] retArray = new int[this.size];
 		keysToArrayRec(this.root, 0, retArray);
 
+		commitExport(event, "keysToArray", retArray.length);
 		return retArray;
 	}
 
@@ -309,1489 +709,4716 @@ public class AVLTree {
 			return new String[0];
 		}
 
+		ExportEvent event = new ExportEvent();
+		event.begin();
 		String[] retArray = new String[this.size];
 		infoToArrayRec(this.root, 0, retArray);
 
+		commitExport(event, "infoToArray", retArray.length);
 		return retArray;
 	}
 
 	/**
-	 * public int size()
+	 * public int[] keysInRange(int low, int high)
 	 *
-	 * Returns the number of nodes in the tree.
+	 * Returns a sorted array which contains all keys k in the tree with low <= k <= high,
+	 * or an empty array if there are none.
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(log n + r), r = number of keys returned
 	 *
 	 */
-	public int size()
+	public int[] keysInRange(int low, int high)
 	{
-
-		return this.size;
+		return keysInRange(this.root, low, high, Integer.MAX_VALUE);
 	}
 
 	/**
-	 * public AVLTree[] split(int x)
+	 * public int exportKeys(IntBuffer out)
 	 *
-	 * splits the tree into 2 trees according to the key x.
-	 * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
+	 * Same as exportKeys(out, Integer.MIN_VALUE, Integer.MAX_VALUE)
 	 *
-	 * precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
-	 * postcondition: none
+	 */
+	public int exportKeys(IntBuffer out)
+	{
+		return exportKeys(out, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * public int exportKeys(IntBuffer out, int low, int high)
 	 *
-	 * Complexity - O(log n)
+	 * Puts the sorted keys k with low <= k <= high into out, straight from the tree without
+	 * an intermediate array. The byte order is the one of out, e.g. little-endian for a view made
+	 * by ByteBuffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().
+	 * Stops when out is full, returns the number of keys put. The export is complete when out
+	 * still has room or the last key put is high; otherwise it is resumed with low = last key put + 1,
+	 * which can't overflow since that key is smaller than high.
+	 *
+	 * Complexity - O(log n + r), r = number of keys put
 	 *
 	 */
-	public AVLTree[] split(int x)
+	public int exportKeys(IntBuffer out, int low, int high)
 	{
-		// smaller then x
-		AVLTree T1=new AVLTree();
-
-		// bigger then x
-		AVLTree T2=new AVLTree();
+		ExportEvent event = new ExportEvent();
+		event.begin();
+		int start = out.position();
+		if(!this.empty()) {
+			KeyExport export = new KeyExport(out);
+			if(low <= this.min.getKey() && high >= this.max.getKey()) {
+				exportAllKeysRec(this.root, export);
+			}
+			else {
+				exportKeysRec(this.root, export, low, high);
+			}
+			export.flush();
+		}
+		commitExport(event, "exportKeys", out.position() - start);
+		return out.position() - start;
+	}
 
-		IAVLNode splitNode=findNode(x);
+	/**
+	 * public int exportKeys(ByteBuffer out)
+	 *
+	 * Same as exportKeys(out, Integer.MIN_VALUE, Integer.MAX_VALUE)
+	 *
+	 */
+	public int exportKeys(ByteBuffer out)
+	{
+		return exportKeys(out, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
 
-		// split the node
-		if(splitNode==this.root)
-		{
-			T1.setSubtree(this.root.getLeft());
-			T2.setSubtree(this.root.getRight());
+	/**
+	 * public int exportKeys(ByteBuffer out, int low, int high)
+	 *
+	 * Like exportKeys(IntBuffer, int, int), the keys are little-endian ints whatever the order of out.
+	 *
+	 * Complexity - O(log n + r), r = number of keys put
+	 *
+	 */
+	public int exportKeys(ByteBuffer out, int low, int high)
+	{
+		IntBuffer view = out.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		int count = exportKeys(view, low, high);
+		out.position(out.position() + 4 * count);
+		return count;
+	}
 
-			T1.max=T1.searchMax();
-			T1.min=T1.searchMin();
-			T2.max=T2.searchMax();
-			T2.min=T2.searchMin();
+	/**
+	 * public int exportInfo(ByteBuffer out)
+	 *
+	 * Same as exportInfo(out, Integer.MIN_VALUE, Integer.MAX_VALUE)
+	 *
+	 */
+	public int exportInfo(ByteBuffer out)
+	{
+		return exportInfo(out, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
 
-			AVLTree[] resultArr={T1,T2};
-			return resultArr;
+	/**
+	 * public int exportInfo(ByteBuffer out, int low, int high)
+	 *
+	 * Puts the infos of the keys k with low <= k <= high into out, in key order, each as a
+	 * little-endian int byte length (-1 for null) followed by its UTF-8 bytes. The strings are
+	 * encoded directly into out, not into temporary byte arrays.
+	 * Stops before the first info that doesn't fit completely, returns the number of infos put.
+	 * Resumed like exportKeys: with low = last key put + 1, unless that key is high.
+	 *
+	 * Complexity - O(log n + r + total length of the infos put)
+	 *
+	 */
+	public int exportInfo(ByteBuffer out, int low, int high)
+	{
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ExportEvent event = new ExportEvent();
+		event.begin();
+		int[] count = {0};
+		if(!this.empty()) {
+			exportInfoRec(this.root, out, low, high, out.order() != ByteOrder.LITTLE_ENDIAN, encoder, count);
 		}
+		commitExport(event, "exportInfo", count[0]);
+		return count[0];
+	}
 
-		// set the sub-tree of splitNode
-		if(splitNode.getLeft().isRealNode()){
-			T1.setSubtree(splitNode.getLeft());
-		}
-		if(splitNode.getRight().isRealNode()){
-			T2.setSubtree(splitNode.getRight());
+	private void commitExport(ExportEvent event, String operation, int items)
+	{
+		event.end();
+		if(event.shouldCommit()) {
+			event.operation = operation;
+			event.items = items;
+			event.treeSize = this.size;
+			event.treeHeight = this.root == null ? -1 : this.root.getHeight();
+			event.commit();
 		}
+	}
 
-		IAVLNode nodeToJoin=splitNode.getParent();
+	/**
+	 * public void writeSnapshot(Path path)
+	 *
+	 * Writes all items of the tree to path in a compact binary format:
+	 * a header (magic, version, number of items), the sorted keys as varint deltas
+	 * (the first key zigzag encoded), then every info as a varint length prefix (0 for null,
+	 * otherwise length + 1) followed by its UTF-8 bytes.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	public void writeSnapshot(Path path) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			BinaryWriter out = new BinaryWriter(channel);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(this.size);
+
+			InOrderWalk walk = new InOrderWalk(this.root);
+			long previous = 0;
+			boolean first = true;
+			for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+				out.writeVarLong(first ? zigzag(node.getKey()) : node.getKey() - previous);
+				previous = node.getKey();
+				first = false;
+			}
 
-		boolean isLeftSon=true;
-		if(nodeToJoin.getRight()==splitNode)
-			isLeftSon=false;
+			walk = new InOrderWalk(this.root);
+			for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+				out.writeString(node.getValue());
+			}
+			out.flush();
+			channel.force(true);
+		}
+	}
 
-		while(nodeToJoin!=null){
-			AVLTree joinTree=new AVLTree();
-			// ptr is a left son
-			if(isLeftSon){
-				// update next node to join
-				if(nodeToJoin.getParent()!=null) {
-					isLeftSon = true;
-					if (nodeToJoin.getParent().getRight() == nodeToJoin)
-						isLeftSon = false;
-				}
+	/**
+	 * public static AVLTree readSnapshot(Path path)
+	 *
+	 * Loads a tree written by writeSnapshot. The file is memory-mapped and, since the keys
+	 * are already sorted, the tree is built bottom-up without a single insert or rotation.
+	 * Throws IOException for a file that isn't a snapshot, or whose item count doesn't fit its size.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	public static AVLTree readSnapshot(Path path) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedReader in = new MappedReader(channel);
+			if(in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(path + " is not an AVLTree snapshot");
+			}
+			int version = in.readInt();
+			if(version != SNAPSHOT_VERSION) {
+				throw new IOException("unsupported snapshot version " + version);
+			}
+			int count = in.readInt();
+			// every key and every info takes at least one byte, checked before allocating for count items
+			if(count < 0 || 2L * count > in.fileSize - in.position()) {
+				throw new IOException(path + " claims " + count + " items but has only "
+						+ (in.fileSize - in.position()) + " bytes of items");
+			}
 
-				IAVLNode tempNode = nodeToJoin;
-				nodeToJoin = nodeToJoin.getParent();
+			int[] keys = new int[count];
+			long previous = 0;
+			for(int j = 0; j < count; j++) {
+				previous = j == 0 ? unzigzag(in.readVarLong()) : previous + in.readVarLong();
+				keys[j] = (int) previous;
+			}
+			String[] info = new String[count];
+			for(int j = 0; j < count; j++) {
+				info[j] = in.readString();
+			}
 
-				joinTree.setSubtree(tempNode.getRight());
+			AVLTree tree = new AVLTree();
+			tree.buildFromSorted(keys, info, count);
+			return tree;
+		}
+	}
 
-				// make it a separated  node
-				tempNode.setParent(null);
-
-				IAVLNode rightSon=new AVLNode(-1, null, false);
-				IAVLNode leftSon=new AVLNode(-1, null, false);
-
-				tempNode.setRight(rightSon);
-				rightSon.setParent(tempNode);
-				tempNode.setLeft(leftSon);
-				leftSon.setParent(tempNode);
-
-				tempNode.setHeight(0);
-				tempNode.updateSize();
-
-				T2.join(tempNode,joinTree);
-			}
-			// ptr is a right son
-			else
-			{
-				if(nodeToJoin.getParent()!=null) {
-					isLeftSon = true;
-					if (nodeToJoin.getParent().getRight() == nodeToJoin)
-						isLeftSon = false;
-				}
-
-				IAVLNode tempNode = nodeToJoin;
-				nodeToJoin = nodeToJoin.getParent();
+	/**
+	 * public void enableSearchCache(int capacity)
+	 *
+	 * Puts a cache of up to capacity found nodes in front of search, for skewed lookups where a
+	 * few keys get most of the calls. A hit returns the info without walking down the tree.
+	 * Nodes keep their identity through rotations and inserts, delete removes its key from the
+	 * cache, and split / bulk rebuilds clear it. Entries are evicted with the CLOCK algorithm, and a
+	 * key is only admitted the second time a search finds it without the cache.
+	 * With the cache enabled search writes to the tree, so concurrent searches must be synchronized.
+	 *
+	 * precondition: capacity >= 1
+	 *
+	 * Complexity - O(capacity)
+	 *
+	 */
+	public void enableSearchCache(int capacity)
+	{
+		this.searchCache = new SearchCache(capacity);
+	}
 
-				joinTree.setSubtree(tempNode.getLeft());
+	/**
+	 * public void disableSearchCache()
+	 *
+	 * Drops the search cache.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public void disableSearchCache()
+	{
+		this.searchCache = null;
+	}
 
-				tempNode.setParent(null);
+	/**
+	 * public long searchCacheHits()
+	 *
+	 * Returns the number of searches answered by the cache, 0 without a cache.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public long searchCacheHits()
+	{
+		return this.searchCache == null ? 0 : this.searchCache.hits;
+	}
 
-				IAVLNode rightSon=new AVLNode(-1, null, false);
-				IAVLNode leftSon=new AVLNode(-1, null, false);
+	/**
+	 * public long searchCacheMisses()
+	 *
+	 * Returns the number of searches that walked the tree while the cache was enabled.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public long searchCacheMisses()
+	{
+		return this.searchCache == null ? 0 : this.searchCache.misses;
+	}
 
-				tempNode.setRight(rightSon);
-				rightSon.setParent(tempNode);
-				tempNode.setLeft(leftSon);
-				leftSon.setParent(tempNode);
+	/**
+	 * public void enableMembershipFilter(int expectedKeys, double falsePositiveRate)
+	 *
+	 * Adds a counting Bloom filter of the keys, sized for expectedKeys keys at the given false
+	 * positive rate. search and the duplicate check of insert return at once for a key the
+	 * filter rules out, without walking down the tree. insert, delete, applyBatch and bulk
+	 * rebuilds keep it exact, join adds t's keys, and the trees returned by split get a copy
+	 * of the filter, which still has no false negatives but more false positives.
+	 *
+	 * precondition: expectedKeys >= 1, 0 < falsePositiveRate < 1
+	 *
+	 * Complexity - O(n + filter size)
+	 *
+	 */
+	public void enableMembershipFilter(int expectedKeys, double falsePositiveRate)
+	{
+		this.membershipFilter = new CountingBloomFilter(expectedKeys, falsePositiveRate);
+		InOrderWalk walk = new InOrderWalk(this.root);
+		for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+			this.membershipFilter.add(node.getKey());
+		}
+	}
 
-				tempNode.setHeight(0);
-				tempNode.updateSize();
+	/**
+	 * public void disableMembershipFilter()
+	 *
+	 * Drops the membership filter.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public void disableMembershipFilter()
+	{
+		this.membershipFilter = null;
+	}
 
-				T1.join(tempNode,joinTree);
-			}
+	/**
+	 * public double membershipFilterFalsePositiveRate()
+	 *
+	 * Returns the observed false positive rate: of the searches for absent keys,
+	 * the fraction the filter let through to the tree. 0 without a filter or such searches.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public double membershipFilterFalsePositiveRate()
+	{
+		CountingBloomFilter filter = this.membershipFilter;
+		if(filter == null) {
+			return 0;
 		}
+		long falsePositives = filter.falsePositives.sum();
+		long lookups = falsePositives + filter.negatives.sum();
+		return lookups == 0 ? 0 : (double) falsePositives / lookups;
+	}
 
-		// Set right IAVLNodes to min max
-		T1.max=T1.searchMax();
-		T1.min=T1.searchMin();
-		T2.max=T2.searchMax();
-		T2.min=T2.searchMin();
-
+	/**
+	 * public double membershipFilterExpectedFalsePositiveRate()
+	 *
+	 * Returns the false positive rate expected for the current number of keys, (1 - e^(-hn/m))^h
+	 * for m counters and h hashes. 0 without a filter.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public double membershipFilterExpectedFalsePositiveRate()
+	{
+		CountingBloomFilter filter = this.membershipFilter;
+		if(filter == null) {
+			return 0;
+		}
+		return Math.pow(1 - Math.exp(-(double) filter.hashes * this.size / filter.counters), filter.hashes);
+	}
 
-		AVLTree[] resultArr={T1,T2};
-		return resultArr;
+	/**
+	 * public long membershipFilterMemory()
+	 *
+	 * Returns the bytes used by the filter's counters, 0 without a filter.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public long membershipFilterMemory()
+	{
+		return this.membershipFilter == null ? 0 : 8L * this.membershipFilter.words.length;
 	}
 
 	/**
-	 * public int join(IAVLNode x, AVLTree t)
+	 * public void setCapacity(int capacity, int evictionPolicy)
 	 *
-	 * joins t and x with the tree.
-	 * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	 * Bounds the tree to capacity items, for use as an ordered cache. Whenever an insert,
+	 * applyBatch or join leaves more items than that, items are evicted by the policy:
+	 * EVICT_LOWEST_KEY and EVICT_HIGHEST_KEY remove the item with the smallest / biggest key,
+	 * EVICT_LEAST_RECENT the one least recently inserted or found by search (or updated by applyBatch).
+	 * Recency is kept in a doubly linked list threaded through the nodes, so an access moves one
+	 * node to its end in O(1) and every eviction is a single delete. Items over the new capacity
+	 * are evicted at once; a tree starting EVICT_LEAST_RECENT takes its items as accessed in key order.
+	 * Evicted keys count as changes for trackChanges(). The trees returned by split keep the
+	 * capacity, and with EVICT_LEAST_RECENT the order of their items, at the cost of O(n) splits.
 	 *
-	 * precondition: keys(t) < x < keys() or keys(t) > x > keys(). t/tree might be empty (rank = -1).
-	 * postcondition: none
+	 * precondition: capacity >= 1
 	 *
-	 * Complexity - O(|tree.root.height - t.root.height| + 1)
+	 * Complexity - O(log n) per evicted item, O(n) when starting EVICT_LEAST_RECENT
 	 *
 	 */
-	public int join(IAVLNode x, AVLTree t)
+	public void setCapacity(int capacity, int evictionPolicy)
 	{
-		IAVLNode T1=this.getRoot();
-		IAVLNode T2=t.getRoot();
-
-		// make sure x is a single node
-		x.setParent(null);
-		if(x.getRight()==null) {
-			IAVLNode rightSon=new AVLNode(-1, null, false);
-			x.setRight(rightSon);
-			rightSon.setParent(x);
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
 		}
-		if(x.getLeft()==null) {
-			IAVLNode leftSon=new AVLNode(-1, null, false);
-			x.setLeft(leftSon);
-			leftSon.setParent(x);
+		if(evictionPolicy < EVICT_LOWEST_KEY || evictionPolicy > EVICT_LEAST_RECENT) {
+			throw new IllegalArgumentException("unknown eviction policy " + evictionPolicy);
 		}
-		x.setHeight(0);
-		x.setSize(1);
-
-		this.size=this.size+t.size+1;
-		int result=0;
-
-		// at least one tree is empty
-		if(T1==null || T2==null)
-		{
-			//both trees are empty
-			if(T1==null && T2==null) {
-				this.root = x;
-				x.setParent(null);
-				//update min/max to be x
-				this.max=this.root;
-				this.min=this.root;
-
-				// |-1-(-1)|+1=1
-				return 1;
+		if(evictionPolicy != this.evictionPolicy) {
+			clearAccessList();
+			this.evictionPolicy = evictionPolicy;
+			InOrderWalk walk = new InOrderWalk(this.root);
+			for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+				appendAccess(node);
 			}
+		}
+		this.capacity = capacity;
+		evictOverCapacity();
+	}
 
-			//the tree is empty and t doesn't
-			if(T1==null){
-				this.root=T2;
-				// |t.rank-(-1)|+1=T2.getHeight()+2
-				result=T2.getHeight()+2;
+	/**
+	 * public void clearCapacity()
+	 *
+	 * Makes the tree unbounded again. The eviction counter is kept.
+	 *
+	 * Complexity - O(n) for EVICT_LEAST_RECENT, O(1) otherwise
+	 *
+	 */
+	public void clearCapacity()
+	{
+		clearAccessList();
+		this.capacity = 0;
+		this.evictionPolicy = 0;
+	}
 
-				// update min/max to be t's min/max
-				this.min=t.min;
-				this.max=t.max;
-			}
-			else{// else- t is empty and the tree doesn't
-				// |this.rank-(-1)|+1=T1.getHeight()+2
-				result=T1.getHeight()+2;
-			}
+	/**
+	 * public int capacity()
+	 *
+	 * Returns the maximum size of the tree, 0 if it is unbounded.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public int capacity()
+	{
+		return this.capacity;
+	}
 
-			if(this.min!=null && this.max!=null) {
-				// update x to be min/max if needed
-				if (x.getKey() > this.max.getKey())
-					this.max = x;
-				if (x.getKey() < this.min.getKey())
-					this.min = x;
-			}
+	/**
+	 * public long evictions()
+	 *
+	 * Returns the number of items evicted because the tree was over its capacity.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public long evictions()
+	{
+		return this.evictions;
+	}
 
-			// insert x to the merged tree
-			insertionForJoin(x);
-			return result;
+	/**
+	 * public void enableMetrics()
+	 *
+	 * Starts recording operation metrics: the number and latency of search, insert, delete, split
+	 * and join calls, the rotations and other re-balancing operations of insert, delete and join,
+	 * the total cost returned by join, and the lengths of the search paths. Latencies are kept in
+	 * histograms of about 3% precision between 1 ns and 30 minutes. Recording never locks, so the
+	 * metrics can be read (by metrics() or over JMX) while the tree is in use. Disabled, each
+	 * operation only checks a null field. Does nothing if the metrics are already enabled.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public void enableMetrics()
+	{
+		if(this.metrics == null) {
+			this.metrics = new Metrics();
 		}
+	}
 
-		// if we are in split and use join then it could be 2 un-empty trees with
-		// null min-max,we dont care about updating min/max- just at the end of split
-		if(t.min!=null && t.max!=null && this.min!=null && this.max!=null) {
-			// both trees are not empty so x isnt a min/max
-			if (t.min.getKey() < this.min.getKey()) {
-				this.min = t.min;
+	/**
+	 * public void disableMetrics()
+	 *
+	 * Stops recording metrics and unregisters their MXBean, if registered.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public void disableMetrics()
+	{
+		if(this.metrics != null && this.metrics.registeredAs != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metrics.registeredAs);
 			}
-			if (t.max.getKey() > this.max.getKey()) {
-				this.max = t.max;
+			catch(JMException e) {
+				// already unregistered by someone else
 			}
 		}
+		this.metrics = null;
+	}
 
-		// make T2  higher then T1
-		if(T2.getHeight()<T1.getHeight()){
-			T1=t.getRoot();
-			T2=this.getRoot();
-		}
+	/**
+	 * public MetricsSnapshot metrics()
+	 *
+	 * Returns a copy of the metrics recorded since enableMetrics(), or null if they are disabled.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public MetricsSnapshot metrics()
+	{
+		return this.metrics == null ? null : new MetricsSnapshot(this.metrics);
+	}
 
-		int h1=T1.getHeight();
-		int h2=T2.getHeight();
-
-		if(h1==h2){
-			if(T1.getKey()<x.getKey()){
-				x.setRight(T2);
-				x.setLeft(T1);
-			}
-			else{
-				x.setLeft(T2);
-				x.setRight(T1);
-			}
-			this.root=x;
-			x.updateSize();
-			T1.setParent(x);
-			T2.setParent(x);
-			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-
-			return 1;
-		}
-
-		result=h2-h1+1;
-
-		// the tree we'll "travel" on to find the right node to connect
-		IAVLNode ptr=T2;
-		this.root=T2;
-
-		// move right or left- depend on the keys
-		// if T1<x<T2 move left
-		if(T1.getKey()<x.getKey()){
-			if(!ptr.getLeft().isRealNode())
-			{
-				this.root=x;
-				x.setLeft(T2);
-				x.setRight(T1);
-
-				T2.setParent(x);
-				T1.setParent(x);
-
-				x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-				x.updateSize();
-				this.size=x.getSize();
-
-				return result;
-			}
-			else{
-				// down till ptr.getHeight()<=h)
-				while (ptr.getHeight() > h1) {
-					//update size of every node we pass through
-					ptr.setSize(ptr.getSize()+1+T1.getSize());
-					ptr = ptr.getLeft();
-				}
-
-				// Now the ptr is the node we need to place as X's right son
-				x.setRight(ptr);
-				x.setLeft(T1);
-
-				ptr.getParent().setLeft(x);
-				x.setParent(ptr.getParent());
-
-				// connect to x
-				ptr.setParent(x);
-				T1.setParent(x);
-			}
-		}
-		// move right
-		else
-		{
-			if(!ptr.getRight().isRealNode())
-			{
-				this.root=x;
-				x.setLeft(T1);
-				x.setRight(T2);
-
-				T2.setParent(x);
-				T1.setParent(x);
-
-				x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-				x.updateSize();
-				this.size=x.getSize();
-
-				return result;
-			}
-			else {
-				// down till ptr.getHeight()<=h)
-				while (ptr.getHeight() > h1) {
-					//update size of every node we pass through
-					ptr.setSize(ptr.getSize()+1+T1.getSize());
-					ptr = ptr.getRight();
-				}
-
-				// Now the ptr is the node we need to place as X's right son
-				x.setRight(T1);
-				x.setLeft(ptr);
-
-				ptr.getParent().setRight(x);
-				x.setParent(ptr.getParent());
-
-				// connect to x
-				ptr.setParent(x);
-				T1.setParent(x);
-			}
-		}
-
-		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-		x.updateSize();
-
-		rebalanceAfterJoin(x.getParent());
-
-		return result;
+	/**
+	 * public ObjectName registerMetrics(String name)
+	 *
+	 * Enables the metrics and registers them in the platform MBean server as
+	 * AVLTree:type=Metrics,name=name, and returns that name.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public ObjectName registerMetrics(String name) throws JMException
+	{
+		enableMetrics();
+		if(this.metrics.registeredAs == null) {
+			ObjectName objectName = new ObjectName("AVLTree:type=Metrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, objectName);
+			this.metrics.registeredAs = objectName;
+		}
+		return this.metrics.registeredAs;
+	}
 
+	/**
+	 * public void recordWorkload(Path path)
+	 *
+	 * Starts writing the calls of search, insert, delete, split and join to a trace file at path,
+	 * to be replayed by WorkloadReplay. The trace begins with the current keys, which a replay
+	 * inserts before it starts measuring. Infos are written as their length only, a replay uses
+	 * strings of the same length. The trees returned by split keep writing to the same trace,
+	 * each under an id of its own, and so do the trees built from them by join.
+	 * A trace is a header (magic, version), then records of an operation byte, varint tree id,
+	 * key as a zigzag varint delta from the previous key, and for insert and join the info
+	 * length (+1, 0 for null), for join also the id of t (+1, 0 for a tree outside the trace).
+	 * The first record holds the keys and info lengths of the tree when the recording started.
+	 * If writing fails, recording stops and stopRecordingWorkload() throws the error.
+	 * Changes made by other calls are written as the deletes and inserts that have the same
+	 * effect, so a replay ends up with the same items: pollMin, pollMax and evictions as deletes,
+	 * applyBatch and applyDelta as a delete and/or insert per key they changed (an UPDATE as both).
+	 * A replay with a bounded Target would evict twice, Targets should be unbounded.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	public void recordWorkload(Path path) throws IOException
+	{
+		stopRecordingWorkload();
+		TraceWriter writer = new TraceWriter(path);
+		int[] keys = keysToArray();
+		String[] info = infoToArray();
+		writer.writePreload(keys, info);
+		this.trace = writer;
+		this.traceId = 0;
 	}
 
-
 	/**
-	 * public int getRoot()
+	 * public void stopRecordingWorkload()
 	 *
-	 * Returns the root AVL node, or null if the tree is empty
+	 * Stops the recording started by recordWorkload (on this tree, or on the tree this one was
+	 * split from) and closes the trace file. Does nothing if the tree isn't being recorded.
 	 *
 	 * Complexity - O(1)
 	 *
 	 */
-	public IAVLNode getRoot()
+	public void stopRecordingWorkload() throws IOException
 	{
-		return this.root;
+		TraceWriter writer = this.trace;
+		this.trace = null;
+		if(writer != null) {
+			writer.close();
+		}
 	}
 
-
 	/**
-	 * private int keysToArrayRec(IAVLNode node, int i, int[] arr)
+	 * private void traceDelete(int k)
 	 *
-	 * Recursive helper function to insert the keys to the array
+	 * Writes the removal of k by anything but delete(k) to the trace, as a delete.
 	 *
 	 * Complexity - O(1)
 	 *
-	 * */
-	private int keysToArrayRec(IAVLNode node, int i, int[] arr) {
-		if(node.isRealNode()) {
-			i = keysToArrayRec(node.getLeft(), i, arr);
-			arr[i] = node.getKey();
-			i = keysToArrayRec(node.getRight(), i + 1, arr);
+	 */
+	private void traceDelete(int k)
+	{
+		if(this.trace != null) {
+			this.trace.write(this.traceId, WorkloadReplay.DELETE, k, null, 0);
 		}
-		return i;
 	}
 
 	/**
-	 * private int infoToArrayRec(IAVLNode node, int i, String[] arr)
+	 * private void traceInsert(int k, String i)
 	 *
-	 * Recursive helper function to insert the info to the array
+	 * Writes the addition of k by anything but insert(k, i) to the trace, as an insert.
 	 *
 	 * Complexity - O(1)
 	 *
-	 * */
-	private int infoToArrayRec(IAVLNode node, int i, String[] arr) {
-		if(node.isRealNode()) {
-			i = infoToArrayRec(node.getLeft(), i, arr);
-			arr[i] = node.getValue();
-			i = infoToArrayRec(node.getRight(), i + 1, arr);
+	 */
+	private void traceInsert(int k, String i)
+	{
+		if(this.trace != null) {
+			this.trace.write(this.traceId, WorkloadReplay.INSERT, k, i, 0);
 		}
-		return i;
 	}
 
 	/**
-	 * private int getBalanceFactor(IAVLNode node)
+	 * public MemoryFootprint memoryFootprint()
 	 *
-	 * Returns node.left.height - node.right.height. Results between -1 and 1 imply balanced.
+	 * Returns an estimate of the heap bytes held by this tree: its nodes, their virtual children,
+	 * the info strings and the arrays of the optional structures (search cache, membership filter,
+	 * metrics, change tracking). The sizes follow the object layout of the running JVM
+	 * (compressed references, header size and alignment). An info string shared by several nodes
+	 * is counted once, distinct strings are told apart by identity, not by equals.
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(n + total length of the infos) expected
 	 *
-	 **/
-	private int getBalanceFactor(IAVLNode node) {
-		if(node == null)
-			return 0;
-		return node.getLeft().getHeight() - node.getRight().getHeight();
+	 */
+	public MemoryFootprint memoryFootprint()
+	{
+		MemoryFootprint footprint = new MemoryFootprint();
+		footprint.auxiliaryBytes = MemoryFootprint.instanceSize(AVLTree.class);
+		Set<String> infos = Collections.newSetFromMap(new IdentityHashMap<>());
+		InOrderWalk walk = new InOrderWalk(this.root);
+		for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+			footprint.nodes++;
+			footprint.virtualNodes += (node.getLeft().isRealNode() ? 0 : 1) + (node.getRight().isRealNode() ? 0 : 1);
+			if(node.getValue() != null && infos.add(node.getValue())) {
+				footprint.infoBytes += MemoryFootprint.stringSize(node.getValue());
+			}
+		}
+		footprint.nodeBytes = footprint.nodes * MemoryFootprint.NODE_SIZE;
+		footprint.virtualNodeBytes = footprint.virtualNodes * MemoryFootprint.NODE_SIZE;
+		if(this.searchCache != null) {
+			footprint.auxiliaryBytes += MemoryFootprint.instanceSize(SearchCache.class)
+					+ MemoryFootprint.arraySize(this.searchCache.keys.length, 4)
+					+ MemoryFootprint.arraySize(this.searchCache.nodes.length, MemoryFootprint.REFERENCE_SIZE)
+					+ MemoryFootprint.arraySize(this.searchCache.referenced.length, 1);
+		}
+		if(this.membershipFilter != null) {
+			footprint.auxiliaryBytes += MemoryFootprint.instanceSize(CountingBloomFilter.class)
+					+ MemoryFootprint.arraySize(this.membershipFilter.words.length, 8);
+		}
+		if(this.metrics != null) {
+			footprint.auxiliaryBytes += MemoryFootprint.instanceSize(Metrics.class)
+					+ this.metrics.latencies.length * MemoryFootprint.arraySize(Metrics.BUCKETS, 8)
+					+ MemoryFootprint.arraySize(this.metrics.searchPathLengths.length(), 8);
+		}
+		if(this.changedKeys != null) {
+			footprint.auxiliaryBytes += MemoryFootprint.instanceSize(IntHashSet.class)
+					+ MemoryFootprint.arraySize(this.changedKeys.table.length, 4);
+		}
+		return footprint;
 	}
 
 	/**
-	 * private void rotateRight(IAVLNode x)
+	 * public ValidationReport validate()
 	 *
-	 * Rotate right according to a given node and update height
+	 * Same as validate(100).
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(n / p) with p threads of the common ForkJoinPool
 	 *
-	 **/
-	private void rotateRight(IAVLNode x) {
-		// Rotate right
-		IAVLNode parent = x.getParent();
-		IAVLNode y = x.getLeft();
-
-		y.getRight().setParent(x);
-		x.setLeft(y.getRight());
-		y.setRight(x);
-		y.setParent(parent);
-		x.setParent(y);
+	 */
+	public ValidationReport validate()
+	{
+		return validate(ValidationReport.DEFAULT_VIOLATIONS);
+	}
 
-		if (parent != null) {
-			if(parent.getRight() == x) {
-				parent.setRight(y);
+	/**
+	 * public ValidationReport validate(int maxViolations)
+	 *
+	 * Checks the invariants of the tree and returns a report of the violations, keeping the
+	 * maxViolations of them with the smallest keys. Every node is checked for the order of
+	 * its key, its parent link, its height and size against its children's, and its balance.
+	 * The tree is checked for its size and the cached min and max.
+	 * The top levels of the tree are divided between the threads of the common ForkJoinPool,
+	 * each thread walks its subtrees with an explicit stack, so a degenerate tree can't
+	 * overflow the stack. The subtree of a node out of order or with a wrong parent link is
+	 * not walked: a link back to an ancestor always breaks both, so a cycle is reported there
+	 * and walked once. A walk deeper than the size of the tree is reported as a cycle too.
+	 * The tree must not change while it is validated.
+	 *
+	 * Complexity - O(n / p) with p threads of the common ForkJoinPool
+	 *
+	 */
+	public ValidationReport validate(int maxViolations)
+	{
+		long start = System.nanoTime();
+		ValidationReport report = new ValidationReport(maxViolations);
+		boolean empty = this.root == null || !this.root.isRealNode();
+		if(empty) {
+			if(this.size != 0) {
+				report.add(-1, "the tree has no nodes but size " + this.size);
 			}
-			else {
-				parent.setLeft(y);
+			if(this.min != null || this.max != null) {
+				report.add(-1, "the tree has no nodes but a cached min or max");
+			}
+		}
+		else {
+			if(this.root.getSize() != this.size) {
+				report.add(this.root.getKey(), "the root has size " + this.root.getSize() + ", the tree " + this.size);
 			}
+			long maxDepth = Math.max(this.size, this.root.getSize()) + 1L;
+			validateEnd(report, this.min, true, maxDepth);
+			validateEnd(report, this.max, false, maxDepth);
+			// a few tasks per thread, so that unequal subtrees even out
+			int forkDepth = 32 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism()) + 2;
+			new ValidationTask(report, this.root, null, Long.MIN_VALUE, Long.MAX_VALUE, 0, forkDepth, maxDepth).invoke();
 		}
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
 
-		// Update root if necessary
-		if(x == this.root) {
-			this.root = y;
+	/**
+	 * private void validateEnd(ValidationReport report, IAVLNode cached, boolean smallest, long maxDepth)
+	 *
+	 * Checks that cached is the node of the smallest (or biggest) key.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private void validateEnd(ValidationReport report, IAVLNode cached, boolean smallest, long maxDepth)
+	{
+		IAVLNode node = this.root;
+		for(long depth = 0; depth <= maxDepth; depth++) {
+			IAVLNode next = smallest ? node.getLeft() : node.getRight();
+			if(next == null || !next.isRealNode()) {
+				if(cached != node) {
+					report.add(node.getKey(), "the cached " + (smallest ? "min" : "max") + " is "
+							+ (cached == null ? "null" : "key " + cached.getKey()));
+				}
+				return;
+			}
+			node = next;
 		}
+		// the walk went around a cycle, reported by the ValidationTask
+	}
 
-		// Update heights
-		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-		y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+	private void countHeightChange()
+	{
+		if(this.metrics != null) {
+			this.metrics.heightChangesInOperation++;
+		}
+	}
 
-		// Update sizes
-		x.updateSize();
-		y.updateSize();
+	private void recordSearchPath(int length)
+	{
+		if(this.metrics != null) {
+			this.metrics.searchPathLengths.incrementAndGet(Math.min(length, Metrics.MAX_PATH));
+		}
+	}
 
+	/**
+	 * private void clearAccessList()
+	 *
+	 * Unlinks all the nodes of the access list, so no node keeps the others reachable.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	private void clearAccessList()
+	{
+		AVLNode node = this.accessHead;
+		while(node != null) {
+			AVLNode next = node.newerAccess;
+			node.olderAccess = null;
+			node.newerAccess = null;
+			node = next;
+		}
+		this.accessHead = null;
+		this.accessTail = null;
 	}
 
 	/**
-	 * private void rotateDouble(IAVLNode x)
+	 * public void trackChanges()
+	 *
+	 * Starts recording which keys change, for incremental checkpoints: the tree is taken to be
+	 * equal to its last snapshot, and every later insert, delete, applyBatch and join marks the
+	 * keys it changes. Rotations only move items between nodes, so they change nothing to record.
+	 * The trees returned by split of a tracked tree are tracked and fully changed.
 	 *
-	 * Double Rotation- according to a given node and 2 directions
-	 * @pre r1!=r2 && (r1==LEFT || r1==RIGHT) && (r2==LEFT || r2==RIGHT)
 	 * Complexity - O(1)
 	 *
-	 **/
-	private void rotateDouble(IAVLNode y, int r1,int r2) {
-		if(r1==LEFT && r2==RIGHT) {
-			IAVLNode parent=y.getParent();
-			boolean isRoot=y==this.root;
-
-			IAVLNode x = y.getLeft();
-			IAVLNode z = x.getRight();
+	 */
+	public void trackChanges()
+	{
+		this.changedKeys = new IntHashSet();
+		this.allChanged = false;
+	}
 
-			x.setRight(z.getLeft());
-			y.setLeft(z.getRight());
+	/**
+	 * public int writeDelta(Path path)
+	 *
+	 * Writes the items changed since trackChanges() or the previous writeDelta to path, and
+	 * starts recording from scratch. A delta has a header (magic, version, full flag, count),
+	 * the sorted changed keys as varint deltas (the first key zigzag encoded), then one state
+	 * per key: varint 0 for a deleted key, 1 for a null info, otherwise length + 2 followed
+	 * by the UTF-8 bytes. A full delta (after split or a big join) holds the whole tree.
+	 * Returns the number of keys written.
+	 *
+	 * precondition: trackChanges() was called
+	 *
+	 * Complexity - O(c log n) for c changed keys, O(n) for a full delta
+	 *
+	 */
+	public int writeDelta(Path path) throws IOException
+	{
+		if(this.changedKeys == null) {
+			throw new IllegalStateException("changes are not tracked");
+		}
 
-			z.setLeft(x);
-			z.setRight(y);
+		int[] keys;
+		if(this.allChanged) {
+			keys = keysToArray();
+		}
+		else {
+			keys = this.changedKeys.toArray();
+			Arrays.sort(keys);
+		}
 
-			x.getRight().setParent(x);
-			y.getLeft().setParent(y);
-			x.setParent(z);
-			y.setParent(z);
-
-			if(!isRoot){
-				if(parent.getLeft()==y){
-					parent.setLeft(z);
-					z.setParent(parent);
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			BinaryWriter out = new BinaryWriter(channel);
+			out.writeInt(DELTA_MAGIC);
+			out.writeInt(DELTA_VERSION);
+			out.writeInt(this.allChanged ? 1 : 0);
+			out.writeInt(keys.length);
+			for(int j = 0; j < keys.length; j++) {
+				out.writeVarLong(j == 0 ? zigzag(keys[j]) : (long) keys[j] - keys[j - 1]);
+			}
+			for(int key : keys) {
+				IAVLNode node = findNode(key);
+				if(node == null || !node.isRealNode()) {
+					out.writeVarLong(0);
 				}
-				else{
-					parent.setRight(z);
-					z.setParent(parent);
+				else if(node.getValue() == null) {
+					out.writeVarLong(1);
+				}
+				else {
+					byte[] bytes = node.getValue().getBytes(StandardCharsets.UTF_8);
+					out.writeVarLong(bytes.length + 2L);
+					out.writeBytes(bytes, 0, bytes.length);
 				}
 			}
-			else{
-				this.root=z;
-				z.setParent(null);
-			}
-
-			// Update Heights
-			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-			y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-			z.setHeight(1 + Math.max(z.getLeft().getHeight(), z.getRight().getHeight()));
-
-			// Update sizes
-			x.updateSize();
-			y.updateSize();
-			z.updateSize();
+			out.flush();
+			channel.force(true);
 		}
-		else if(r1==RIGHT && r2==LEFT){
-			IAVLNode parent=y.getParent();
-			boolean isRoot=y==this.root;
-
-			IAVLNode x = y.getRight();
-			IAVLNode z = x.getLeft();
 
-			x.setLeft(z.getRight());
-			y.setRight(z.getLeft());
-
-			z.setLeft(y);
-			z.setRight(x);
-
-			x.getLeft().setParent(x);
-			y.getRight().setParent(y);
-			x.setParent(z);
-			y.setParent(z);
+		this.changedKeys.clear();
+		this.allChanged = false;
+		return keys.length;
+	}
 
-			if(!isRoot){
-				if(parent.getLeft()==y){
-					parent.setLeft(z);
-					z.setParent(parent);
+	/**
+	 * public void applyDelta(Path path)
+	 *
+	 * Applies a delta written by writeDelta, e.g. to a tree loaded with readSnapshot.
+	 *
+	 * Complexity - O(c log n) for c keys in the delta, O(c) for a full delta
+	 *
+	 */
+	public void applyDelta(Path path) throws IOException
+	{
+		Delta delta = Delta.read(path);
+		if(delta.full) {
+			delta.removeDeleted();
+			if(this.trace != null) {
+				for(int key : keysToArray()) {
+					traceDelete(key);
 				}
-				else{
-					parent.setRight(z);
-					z.setParent(parent);
+				for(int j = 0; j < delta.count; j++) {
+					traceInsert(delta.keys[j], delta.info[j]);
 				}
 			}
-			else{
-				this.root=z;
-				z.setParent(null);
-			}
-
-			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-			y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-			z.setHeight(1 + Math.max(z.getLeft().getHeight(), z.getRight().getHeight()));
-
-
-			// Update sizes
-			x.updateSize();
-			y.updateSize();
-			z.updateSize();
+			buildFromSorted(delta.keys, delta.info, delta.count);
+			markAllChanged();
+			return;
+		}
 
+		for(int j = 0; j < delta.count; j++) {
+			int key = delta.keys[j];
+			IAVLNode node = findNode(key);
+			boolean present = node != null && node.isRealNode();
+			if(delta.deleted[j]) {
+				if(present) {
+					traceDelete(key);
+					deleteNode(node);
+					markChanged(key);
+				}
+			}
+			else if(present) {
+				traceDelete(key);
+				traceInsert(key, delta.info[j]);
+				((AVLNode) node).info = delta.info[j];
+				markChanged(key);
+			}
+			else {
+				insert(key, delta.info[j]);
+			}
 		}
 	}
 
 	/**
-	 * private void rotateLeft(IAVLNode x)
+	 * public static void compactSnapshot(Path snapshot, List<Path> deltas, Path output)
 	 *
-	 * Rotate left according to a given node and update height and size
+	 * Writes to output the snapshot of snapshot with deltas applied in order, streaming
+	 * through the snapshot without loading it as a tree. Only the deltas are held in memory.
+	 * precondition: output is not snapshot
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(n + c log d) for c keys in d deltas
 	 *
-	 **/
-	private void rotateLeft(IAVLNode x) {
-		// Rotate left
-		IAVLNode parent = x.getParent();
-		IAVLNode y = x.getRight();
-
-		y.getLeft().setParent(x);
-		x.setRight(y.getLeft());
-		y.setLeft(x);
-		y.setParent(parent);
-		x.setParent(y);
+	 */
+	public static void compactSnapshot(Path snapshot, List<Path> deltas, Path output) throws IOException
+	{
+		// fold the deltas into one, later ones win
+		Delta changes = new Delta(false, 0);
+		for(Path path : deltas) {
+			changes = changes.then(Delta.read(path));
+		}
 
-		if (parent != null) {
-			if(parent.getLeft() == x) {
-				parent.setLeft(y);
+		Path infoPath = output.resolveSibling(output.getFileName() + ".info.tmp");
+		try(FileChannel base = FileChannel.open(snapshot, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileChannel infoOut = FileChannel.open(infoPath, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE)) {
+			MappedReader keysIn = new MappedReader(base);
+			if(keysIn.readInt() != SNAPSHOT_MAGIC || keysIn.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException(snapshot + " is not an AVLTree snapshot");
 			}
-			else {
-				parent.setRight(y);
+			int baseCount = changes.full ? 0 : keysIn.readInt();
+
+			// the infos of the base start after its keys
+			MappedReader infoIn = new MappedReader(base, keysIn.position());
+			for(int j = 0; j < baseCount; j++) {
+				infoIn.readVarLong();
 			}
-		}
 
-		// Update root if necessary
-		if(x == this.root) {
-			this.root = y;
-		}
+			BinaryWriter keysOut = new BinaryWriter(out);
+			BinaryWriter infoWriter = new BinaryWriter(infoOut);
+			keysOut.writeInt(SNAPSHOT_MAGIC);
+			keysOut.writeInt(SNAPSHOT_VERSION);
+			keysOut.writeInt(0); // the count is patched at the end
+			int count = 0;
+			long previous = 0;
+			long baseKey = 0;
+			boolean haveBase = false;
+			byte[] scratch = new byte[64];
+
+			// merge the sorted base items with the sorted changes
+			int b = 0;
+			int d = 0;
+			while(true) {
+				if(!haveBase && b < baseCount) {
+					baseKey = b == 0 ? unzigzag(keysIn.readVarLong()) : baseKey + keysIn.readVarLong();
+					haveBase = true;
+				}
+				boolean haveChange = d < changes.count;
+				if(!haveBase && !haveChange) {
+					break;
+				}
 
-		// Update heights
-		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-		y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+				if(haveBase && (!haveChange || baseKey < changes.keys[d])) {
+					keysOut.writeVarLong(count == 0 ? zigzag((int) baseKey) : baseKey - previous);
+					previous = baseKey;
+					count++;
+					scratch = copyString(infoIn, infoWriter, scratch);
+					haveBase = false;
+					b++;
+					continue;
+				}
 
-		// Update sizes
-		x.updateSize();
-		y.updateSize();
+				if(haveBase && baseKey == changes.keys[d]) {
+					scratch = copyString(infoIn, null, scratch);
+					haveBase = false;
+					b++;
+				}
+				if(!changes.deleted[d]) {
+					int key = changes.keys[d];
+					keysOut.writeVarLong(count == 0 ? zigzag(key) : key - previous);
+					previous = key;
+					count++;
+					infoWriter.writeString(changes.info[d]);
+				}
+				d++;
+			}
+			keysOut.flush();
+			infoWriter.flush();
 
+			long infoSize = infoOut.size();
+			for(long copied = 0; copied < infoSize; ) {
+				copied += infoOut.transferTo(copied, infoSize - copied, out);
+			}
+			ByteBuffer header = ByteBuffer.allocate(4).putInt(0, count);
+			while(header.hasRemaining()) {
+				out.write(header, 8 + header.position());
+			}
+			out.force(true);
+		}
 	}
 
 	/**
-	 * private void updateHeights(IAVLNode node)
-	 *
-	 * Traverse up the tree updating the heights
-	 * Return number of promotions
+	 * private static byte[] copyString(MappedReader in, BinaryWriter out, byte[] scratch)
 	 *
-	 * Complexity - O(log n)
+	 * Copies one length-prefixed string from in to out without decoding it, or skips it if out is null.
+	 * Returns the scratch buffer, grown if needed.
 	 *
-	 **/
-	private int updateHeights(IAVLNode node) {
-		IAVLNode ptr = node;
-		int promotions = 0;
-
-		while(ptr != null) {
-			int before = ptr.getHeight();
-			ptr.setHeight(1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight()));
-			promotions += ptr.getHeight() == before ? 0 : 1;
-			ptr = ptr.getParent();
+	 */
+	private static byte[] copyString(MappedReader in, BinaryWriter out, byte[] scratch) throws IOException
+	{
+		long length = in.readVarLong();
+		int bytes = length == 0 ? 0 : (int) (length - 1);
+		if(scratch.length < bytes) {
+			scratch = new byte[Math.max(bytes, scratch.length * 2)];
 		}
-		return promotions;
+		in.readBytes(scratch, bytes);
+		if(out != null) {
+			out.writeVarLong(length);
+			out.writeBytes(scratch, 0, bytes);
+		}
+		return scratch;
 	}
 
 	/**
-	 * private int typeOfNode(IAVLNode)
+	 * private void evictOverCapacity()
 	 *
-	 * Returns 0 if the node is a virtual node
-	 * 		   1 if the node is a leaf
-	 * 		   2 if the node is an unary node
-	 * 		   3- else (the node is an internal node)
+	 * Evicts items by the eviction policy until the size is within the capacity.
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(log n) per evicted item
 	 *
 	 */
-	private int typeOfNode(IAVLNode node){
-		if (!node.isRealNode())
-			return VIRTUAL_NODE;
-		if (!node.getRight().isRealNode() && !node.getLeft().isRealNode())
-			return LEAF_NODE;
-		if ((node.getRight().isRealNode() && !node.getLeft().isRealNode()) ||
-				(!node.getRight().isRealNode() && node.getLeft().isRealNode()))
-			return UNARY_NODE;
-		return INTERNAL_NODE;
+	private void evictOverCapacity()
+	{
+		while(this.capacity > 0 && this.size > this.capacity) {
+			switch(this.evictionPolicy) {
+				case EVICT_LOWEST_KEY:
+					pollMin();
+					break;
+				case EVICT_HIGHEST_KEY:
+					pollMax();
+					break;
+				default:
+					IAVLNode victim = this.accessHead;
+					traceDelete(victim.getKey());
+					markChanged(victim.getKey());
+					deleteNode(victim);
+					break;
+			}
+			this.evictions++;
+		}
 	}
 
 	/**
+	 * private void appendAccess(IAVLNode node)
 	 *
-	 * private int rebalanceAfterInsertion(IAVLNode parent, int k)
-	 *
-	 * Rebalnce the tree after insertion operation
-	 * @return number of re-balancing operations.
-	 *
-	 * Complexity - O(log n)
+	 * Adds node as the most recently accessed one, if the access list is kept.
+	 * @pre node isn't in the access list
 	 *
 	 */
-	private int rebalanceAfterInsertion(IAVLNode parent, int k) {
-		int promotions = 0;
-
-		// Update parent height
-		if(parent.getHeight() != 1) {
-			promotions++;
+	private void appendAccess(IAVLNode node)
+	{
+		if(this.evictionPolicy != EVICT_LEAST_RECENT) {
+			return;
+		}
+		AVLNode accessed = (AVLNode) node;
+		accessed.olderAccess = this.accessTail;
+		accessed.newerAccess = null;
+		if(this.accessTail == null) {
+			this.accessHead = accessed;
 		}
 		else {
-			return 0;
+			this.accessTail.newerAccess = accessed;
 		}
+		this.accessTail = accessed;
+	}
 
-		parent.setHeight(1 + Math.max(parent.getLeft().getHeight(), parent.getRight().getHeight()));
-
-		// Check if node is unbalanced
-		IAVLNode ptr = parent;
-		int balance = getBalanceFactor(ptr);
-
-		while(-1 <= balance && balance <= 1) {
-			ptr = ptr.getParent();
-
-			if(ptr == null) {
-				break;
-			}
-
-			//ptr.updateSize();
-
-			int newHeight = 1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight());
-			if(ptr.getHeight() != newHeight) {
-				promotions += 1;
-				ptr.setHeight(newHeight);
-			}
-			else {
-				return promotions;
-			}
-			balance = getBalanceFactor(ptr);
+	/**
+	 * private void unlinkAccess(IAVLNode node)
+	 *
+	 * Removes node from the access list, if the access list is kept.
+	 *
+	 */
+	private void unlinkAccess(IAVLNode node)
+	{
+		if(this.evictionPolicy != EVICT_LEAST_RECENT) {
+			return;
 		}
-		if(ptr == null) { // No balancing needed
-			return promotions;
+		AVLNode accessed = (AVLNode) node;
+		if(accessed.olderAccess == null) {
+			this.accessHead = accessed.newerAccess;
 		}
 		else {
-			// Case 1 - rotate right
-			if(balance > 1 && k < ptr.getLeft().getKey()) {
-				rotateRight(ptr);
-
-				return updateHeights(ptr.getParent()) + promotions;
-			}
-			// Case 2 - rotate left
-			else if(balance < -1 && k > ptr.getRight().getKey()) {
-				rotateLeft(ptr);
-
-				return updateHeights(ptr.getParent()) + promotions;
-			}
-			// Case 3 - rotate left right
-			else if(balance > 1 && k > ptr.getLeft().getKey()) {
-				IAVLNode left = ptr.getLeft();
-				rotateLeft(left);
-				ptr.setLeft(left.getParent());
-				rotateRight(ptr);
-
-				return 1 + updateHeights(ptr.getParent()) + promotions;
-			}
-			// Case 4 - rotate right left
-			else {
-				IAVLNode right = ptr.getRight();
-				rotateRight(right);
-				ptr.setRight(right.getParent());
-				rotateLeft(ptr);
-
-				return 1 + updateHeights(ptr.getParent()) + promotions;
-			}
+			accessed.olderAccess.newerAccess = accessed.newerAccess;
 		}
+		if(accessed.newerAccess == null) {
+			this.accessTail = accessed.olderAccess;
+		}
+		else {
+			accessed.newerAccess.olderAccess = accessed.olderAccess;
+		}
+		accessed.olderAccess = null;
+		accessed.newerAccess = null;
 	}
 
 	/**
+	 * private void touchAccess(IAVLNode node)
 	 *
-	 * private void insertionForJoin(IAVLNode toInsert)
+	 * Moves node to the most recently accessed end of the access list, if the access list is kept.
 	 *
-	 * insert the node to the right place and rebalnce the tree after join operation
+	 */
+	private void touchAccess(IAVLNode node)
+	{
+		if(this.evictionPolicy == EVICT_LEAST_RECENT && node != this.accessTail) {
+			unlinkAccess(node);
+			appendAccess(node);
+		}
+	}
+
+	/**
+	 * boolean searchMutates()
 	 *
-	 * Complexity - O(log n)
+	 * Returns true if search(k) writes to the tree: with EVICT_LEAST_RECENT a hit moves its node
+	 * in the access list, and the search cache records hits. Wrappers that share a read lock
+	 * between searches must take the exclusive lock for such trees. The counters of the membership
+	 * filter are LongAdders, so a filter alone doesn't make search exclusive.
 	 *
 	 */
-	private void insertionForJoin(IAVLNode toInsert) {
+	boolean searchMutates()
+	{
+		return this.evictionPolicy == EVICT_LEAST_RECENT || this.searchCache != null;
+	}
 
-		// Perform normal BST insertion
-		IAVLNode ptr = this.root;
-
-		while(ptr.isRealNode()) {
-			int key = ptr.getKey();
-
-			// update size while down
-			ptr.setSize(ptr.getSize()+1);
+	/**
+	 * private int[] accessOrder()
+	 *
+	 * Returns the keys of the access list, from the least to the most recently accessed.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	private int[] accessOrder()
+	{
+		int[] keys = new int[this.size];
+		int count = 0;
+		for(AVLNode node = this.accessHead; node != null; node = node.newerAccess) {
+			keys[count++] = node.key;
+		}
+		return keys;
+	}
 
-			if(toInsert.getKey() < key) {
-				ptr = ptr.getLeft();
+	/**
+	 * private void relinkAccess(int[] recency)
+	 *
+	 * Rebuilds the access list after the nodes were replaced: first the keys of recency that are
+	 * still in the tree in that order, then the new keys in key order as the most recent ones.
+	 *
+	 * Complexity - O(n log n)
+	 *
+	 */
+	private void relinkAccess(int[] recency)
+	{
+		for(int key : recency) {
+			IAVLNode node = findNode(key);
+			if(node != null && node.isRealNode()) {
+				appendAccess(node);
 			}
-			else {
-				ptr = ptr.getRight();
+		}
+		InOrderWalk walk = new InOrderWalk(this.root);
+		for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+			if(node != this.accessHead && ((AVLNode) node).olderAccess == null) {
+				appendAccess(node);
 			}
 		}
+	}
 
-		IAVLNode parent = ptr.getParent();
-		boolean isLeftChild = toInsert.getKey() < parent.getKey();
-
-		if(isLeftChild) {
-			parent.setLeft(toInsert);
-			toInsert.setParent(parent);
-		}
-		else {
-			parent.setRight(toInsert);
-			toInsert.setParent(parent);
+	void markChanged(int k)
+	{
+		if(this.changedKeys != null) {
+			this.changedKeys.add(k);
 		}
+	}
 
-
-		rebalanceAfterInsertion(parent,toInsert.getKey());
+	private void markAllChanged()
+	{
+		if(this.changedKeys != null) {
+			this.changedKeys.clear();
+			this.allChanged = true;
+		}
 	}
 
 	/**
-	 *private void rebalanceAfterJoin(IAVLNode node)
-	 *
-	 * Rebalnce the tree after join operation
+	 * private void initSplitResults(AVLTree[] parts, int x)
 	 *
-	 * Complexity - O(node.height)=O(log n)
+	 * Hands the membership filter, the change tracking and the capacity of this tree down to the
+	 * trees split from it at x. The access list is divided by key, keeping the order of each part.
 	 *
 	 */
-	private void rebalanceAfterJoin(IAVLNode node) {
-
-		// if node is'nt the root
-		if(node!=null) {
-			int right=node.getHeight()-node.getRight().getHeight();
-			int left=node.getHeight()-node.getLeft().getHeight();
-			if ((right==1 && left==0) || (right==0 && left==1)){
-
-				// promote- and go up
-				node.setHeight(1 + node.getHeight());
-				rebalanceAfterJoin(node.getParent());
+	private void initSplitResults(AVLTree[] parts, int x)
+	{
+		if(this.membershipFilter != null) {
+			parts[0].membershipFilter = new CountingBloomFilter(this.membershipFilter);
+			parts[1].membershipFilter = new CountingBloomFilter(this.membershipFilter);
+		}
+		if(this.changedKeys != null) {
+			for(AVLTree part : parts) {
+				part.trackChanges();
+				part.markAllChanged();
 			}
-			else if(right==2 && left==0){
-				IAVLNode x=node.getLeft();
-				IAVLNode a=x.getLeft();
-				IAVLNode b=x.getRight();
-
-				// rotate and done
-				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==2){
-					rotateRight(node);
-				}
-
-				// rotate and done
-				if(x.getHeight()-a.getHeight()==2 && x.getHeight()-b.getHeight()==1){
-					rotateDouble(node,LEFT,RIGHT);
-				}
-
-				// rotate and go up
-				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==1){
-					rotateRight(node);
-					rebalanceAfterJoin(node.getParent().getParent());
-				}
+		}
+		if(this.capacity > 0) {
+			for(AVLTree part : parts) {
+				part.capacity = this.capacity;
+				part.evictionPolicy = this.evictionPolicy;
 			}
-			else if(right==0 && left==2){
-				IAVLNode x=node.getRight();
-				IAVLNode a=x.getLeft();
-				IAVLNode b=x.getRight();
-
-				// rotate and done
-				if(x.getHeight()-a.getHeight()==2 && x.getHeight()-b.getHeight()==1){
-					rotateLeft(node);
-				}
-
-				// rotate and done
-				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==2){
-					rotateDouble(node,RIGHT,LEFT);
-				}
+		}
 
-				// rotate and go up
-				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==1){
-					rotateLeft(node);
-					rebalanceAfterJoin(node.getParent().getParent());
-				}
+		AVLNode node = this.accessHead;
+		this.accessHead = null;
+		this.accessTail = null;
+		while(node != null) {
+			AVLNode next = node.newerAccess;
+			if(node.key == x) {
+				node.olderAccess = null;
+				node.newerAccess = null;
+			}
+			else {
+				parts[node.key < x ? 0 : 1].appendAccess(node);
 			}
+			node = next;
 		}
 	}
 
 	/**
+	 * public int size()
 	 *
-	 * private int rebalanceAfterDeletion(IAVLNode parentOfDeleted)
-	 *
-	 * Rebalnce the tree after delete operation
-	 * @pre parentOfDeleted != null
-	 * @return number of re-balancing operations.
+	 * Returns the number of nodes in the tree.
 	 *
-	 * Complexity - O(log n)
+	 * Complexity - O(1)
 	 *
 	 */
-	private int rebalanceAfterDeletion(IAVLNode parentOfDeleted) {
-		IAVLNode ptr = parentOfDeleted;
-		int operations = 0; // Rotations, promotions and demotions
-
-		while(ptr != null) { // Traverse up the tree
-			int oldHeight = ptr.getHeight();
-			int newHeight = 1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight());
-
-			ptr.setHeight(newHeight);
-			ptr.updateSize();
+	public int size()
+	{
 
-			int balance = getBalanceFactor(ptr);
+		return this.size;
+	}
 
-			if(-1 <= balance && balance <= 1) {
-				if(oldHeight == newHeight) {
-					return operations;
-				}
-				else {
-					operations++; 											// Case 0 : Demotion
-				}
-			}
-			else if(balance > 1 && getBalanceFactor(ptr.getLeft()) >= 0) { // Case 1 : rotate right
-				rotateRight(ptr);
-				operations++;
-				ptr = ptr.getParent();
-			}
-			else if(balance < -1 && getBalanceFactor(ptr.getRight()) <= 0) { // Case 2 : rotate left
-				rotateLeft(ptr);
-				operations++;
-				ptr = ptr.getParent();
-			}
-			else if(balance > 1 && getBalanceFactor(ptr.getLeft()) < 0) { // Case 3 : left right
-				IAVLNode left = ptr.getLeft();
-				rotateLeft(left);
-				ptr.setLeft(left.getParent());
-				rotateRight(ptr);
-				operations += 2;
-				ptr = ptr.getParent();
-			}
-			else { 														   // Case 4 : right left
-				IAVLNode right = ptr.getRight();
-				rotateRight(right);
-				ptr.setRight(right.getParent());
-				rotateLeft(ptr);
-				operations += 2;
-				ptr = ptr.getParent();
+	/**
+	 * public AVLTree[] split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x.
+	 * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
+	 *
+	 * precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
+	 * postcondition: none
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	public AVLTree[] split(int x)
+	{
+		if(this.trace != null) {
+			int firstId = this.trace.writeSplit(this.traceId, x);
+			AVLTree[] result = splitTraced(x);
+			for(int j = 0; j < result.length; j++) {
+				result[j].trace = this.trace;
+				result[j].traceId = firstId + j;
 			}
-
-			ptr = ptr.getParent();
+			this.trace = null;
+			return result;
 		}
-		return operations;
+		return splitTraced(x);
 	}
 
 	/**
-	 * private void swapNodes(IAVLNode nodeA, IAVLNode nodeB)
+	 * public int lastSplitJoins()
 	 *
-	 * @pre: nodeA.isRealNode() == true  == nodeB.isRealNode()
+	 * Returns the number of joins the last split(x) of this tree made to build its two trees,
+	 * 0 if it wasn't split.
 	 *
 	 * Complexity - O(1)
 	 *
 	 */
-	private void swapNodes(IAVLNode nodeA, IAVLNode nodeB) {
-		// Cases where one node is parent of other node
-		if(nodeB.getParent() == nodeA) {
-			swapParentAndChild(nodeA, nodeB);
-			return;
+	public int lastSplitJoins()
+	{
+		return this.splitJoins;
+	}
+
+	/**
+	 * public long lastSplitJoinCost()
+	 *
+	 * Returns the sum of the costs (as returned by join) of the joins of the last split(x) of this tree,
+	 * 0 if it wasn't split.
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public long lastSplitJoinCost()
+	{
+		return this.splitJoinCost;
+	}
+
+	/**
+	 * private AVLTree[] splitTraced(int x)
+	 *
+	 * split(x) after its call was written to the trace.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private AVLTree[] splitTraced(int x)
+	{
+		SplitEvent event = new SplitEvent();
+		if(this.metrics == null && !event.isEnabled()) {
+			return splitTree(x);
 		}
-		if(nodeA.getParent() == nodeB) {
-			swapParentAndChild(nodeB, nodeA);
-			return;
+		int sizeBefore = this.size;
+		int heightBefore = this.root.getHeight();
+		event.begin();
+		long start = System.nanoTime();
+		AVLTree[] result = splitTree(x);
+		if(this.metrics != null) {
+			this.metrics.record(Metrics.SPLIT, System.nanoTime() - start);
 		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.key = x;
+			event.treeSize = sizeBefore;
+			event.treeHeight = heightBefore;
+			event.smallerSize = result[0].size;
+			event.biggerSize = result[1].size;
+			event.joins = this.splitJoins;
+			event.joinCost = this.splitJoinCost;
+			event.commit();
+		}
+		return result;
+	}
 
-		boolean isNodeARoot = nodeA == this.root;
-		boolean isNodeBRoot = nodeB == this.root;
-
-		IAVLNode saveParentA = nodeA.getParent();
-		IAVLNode saveParentB = nodeB.getParent();
+	/**
+	 * private AVLTree[] splitTree(int x)
+	 *
+	 * split(x) without the latency measurement.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private AVLTree[] splitTree(int x)
+	{
+		// the nodes move to the new trees
+		if(this.searchCache != null) {
+			this.searchCache.clear();
+		}
+		this.splitJoins = 0;
+		this.splitJoinCost = 0;
 
-		IAVLNode saveLeft = nodeA.getLeft();
-		IAVLNode saveRight = nodeA.getRight();
-		int saveHeight = nodeA.getHeight();
+		// smaller then x
+		AVLTree T1=new AVLTree();
 
-		nodeA.getLeft().setParent(nodeB);
-		nodeA.getRight().setParent(nodeB);
-		nodeA.setParent(nodeB.getParent());
-		nodeA.setLeft(nodeB.getLeft());
-		nodeA.setRight(nodeB.getRight());
-		nodeA.setHeight(nodeB.getHeight());
+		// bigger then x
+		AVLTree T2=new AVLTree();
 
-		if(isNodeARoot) {
-			this.root = nodeB;
+		IAVLNode splitNode=findNode(x);
 
-			boolean isNodeBLeftChild = saveParentB.getLeft() == nodeB;
-			if(isNodeBLeftChild) {
-				saveParentB.setLeft(nodeA);
-			}
-			else {
-				saveParentB.setRight(nodeA);
-			}
-		}
-		else if(isNodeBRoot) {
-			this.root = nodeA;
+		// split the node
+		if(splitNode==this.root)
+		{
+			T1.setSubtree(this.root.getLeft());
+			T2.setSubtree(this.root.getRight());
 
-			boolean isNodeALeftChild = saveParentA.getLeft() == nodeA;
-			if(isNodeALeftChild) {
-				saveParentA.setLeft(nodeB);
+			T1.max=T1.searchMax();
+			T1.min=T1.searchMin();
+			T2.max=T2.searchMax();
+			T2.min=T2.searchMin();
+
+			AVLTree[] resultArr={T1,T2};
+			initSplitResults(resultArr, x);
+			return resultArr;
+		}
+
+		// set the sub-tree of splitNode
+		if(splitNode.getLeft().isRealNode()){
+			T1.setSubtree(splitNode.getLeft());
+		}
+		if(splitNode.getRight().isRealNode()){
+			T2.setSubtree(splitNode.getRight());
+		}
+
+		IAVLNode nodeToJoin=splitNode.getParent();
+
+		boolean isLeftSon=true;
+		if(nodeToJoin.getRight()==splitNode)
+			isLeftSon=false;
+
+		// T1 and T2 are new trees without caches, filters, metrics or events to update, so
+		// joinSubtrees is enough
+		while(nodeToJoin!=null){
+			AVLTree joinTree=new AVLTree();
+			// ptr is a left son
+			if(isLeftSon){
+				// update next node to join
+				if(nodeToJoin.getParent()!=null) {
+					isLeftSon = true;
+					if (nodeToJoin.getParent().getRight() == nodeToJoin)
+						isLeftSon = false;
+				}
+
+				IAVLNode tempNode = nodeToJoin;
+				nodeToJoin = nodeToJoin.getParent();
+
+				joinTree.setSubtree(tempNode.getRight());
+
+				// make it a separated  node
+				tempNode.setParent(null);
+
+				IAVLNode rightSon=new AVLNode(-1, null, false);
+				IAVLNode leftSon=new AVLNode(-1, null, false);
+
+				tempNode.setRight(rightSon);
+				rightSon.setParent(tempNode);
+				tempNode.setLeft(leftSon);
+				leftSon.setParent(tempNode);
+
+				tempNode.setHeight(0);
+				tempNode.updateSize();
+
+				this.splitJoinCost += T2.joinSubtrees(tempNode,joinTree);
+				this.splitJoins++;
 			}
-			else {
-				saveParentA.setRight(nodeB);
+			// ptr is a right son
+			else
+			{
+				if(nodeToJoin.getParent()!=null) {
+					isLeftSon = true;
+					if (nodeToJoin.getParent().getRight() == nodeToJoin)
+						isLeftSon = false;
+				}
+
+				IAVLNode tempNode = nodeToJoin;
+				nodeToJoin = nodeToJoin.getParent();
+
+				joinTree.setSubtree(tempNode.getLeft());
+
+				tempNode.setParent(null);
+
+				IAVLNode rightSon=new AVLNode(-1, null, false);
+				IAVLNode leftSon=new AVLNode(-1, null, false);
+
+				tempNode.setRight(rightSon);
+				rightSon.setParent(tempNode);
+				tempNode.setLeft(leftSon);
+				leftSon.setParent(tempNode);
+
+				tempNode.setHeight(0);
+				tempNode.updateSize();
+
+				this.splitJoinCost += T1.joinSubtrees(tempNode,joinTree);
+				this.splitJoins++;
 			}
 		}
-		else {
-			boolean isNodeBLeftChild = saveParentB.getLeft() == nodeB;
-			boolean isNodeALeftChild = saveParentA.getLeft() == nodeA;
-			if(isNodeALeftChild) {
-				saveParentA.setLeft(nodeB);
+
+		// Set right IAVLNodes to min max
+		T1.max=T1.searchMax();
+		T1.min=T1.searchMin();
+		T2.max=T2.searchMax();
+		T2.min=T2.searchMin();
+
+
+		AVLTree[] resultArr={T1,T2};
+		initSplitResults(resultArr, x);
+		return resultArr;
+	}
+
+	/**
+	 * public int join(IAVLNode x, AVLTree t)
+	 *
+	 * joins t and x with the tree.
+	 * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	 *
+	 * If the tree is bounded, the items over its capacity are evicted afterwards.
+	 *
+	 * precondition: keys(t) < x < keys() or keys(t) > x > keys(). t/tree might be empty (rank = -1).
+	 * postcondition: none
+	 *
+	 * Complexity - O(|tree.root.height - t.root.height| + 1)
+	 *
+	 */
+	public int join(IAVLNode x, AVLTree t)
+	{
+		if(this.trace != null) {
+			// a tree that isn't part of the trace is replayed as an empty one
+			int other = t.trace == this.trace ? t.traceId : -1;
+			this.trace.write(this.traceId, WorkloadReplay.JOIN, x.getKey(), x.getValue(), other);
+		}
+		t.trace = null;
+		long start = 0;
+		if(this.metrics != null) {
+			this.metrics.rotationsInOperation = 0;
+			start = System.nanoTime();
+		}
+		JoinEvent event = new JoinEvent();
+		if(event.isEnabled()) {
+			event.key = x.getKey();
+			event.treeSize = this.size;
+			event.otherSize = t.size;
+		}
+		event.begin();
+		IAVLNode T2=t.getRoot();
+
+		// the nodes of t stay valid here, but t itself is used up
+		if(t.searchCache != null) {
+			t.searchCache.clear();
+		}
+		if(this.membershipFilter != null) {
+			this.membershipFilter.add(x.getKey());
+			if(this.membershipFilter.sameShape(t.membershipFilter)) {
+				this.membershipFilter.addAll(t.membershipFilter);
 			}
 			else {
-				saveParentA.setRight(nodeB);
+				InOrderWalk walk = new InOrderWalk(T2);
+				for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+					this.membershipFilter.add(node.getKey());
+				}
 			}
-			if(isNodeBLeftChild) {
-				saveParentB.setLeft(nodeA);
+		}
+
+		// a small t is recorded key by key, a big one as a change of everything
+		if(this.changedKeys != null) {
+			if(t.size <= this.size) {
+				markChanged(x.getKey());
+				InOrderWalk walk = new InOrderWalk(T2);
+				for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+					markChanged(node.getKey());
+				}
 			}
 			else {
-				saveParentB.setRight(nodeA);
+				markAllChanged();
 			}
 		}
 
-		nodeB.getLeft().setParent(nodeA);
-		nodeB.getRight().setParent(nodeA);
-		nodeB.setLeft(saveLeft);
-		nodeB.setRight(saveRight);
-		nodeB.setParent(saveParentA);
-		nodeB.setHeight(saveHeight);
+		// t's items are taken as more recent than the tree's, and x as the most recent
+		if(this.evictionPolicy == EVICT_LEAST_RECENT) {
+			if(t.evictionPolicy == EVICT_LEAST_RECENT) {
+				if(t.accessHead != null) {
+					t.accessHead.olderAccess = this.accessTail;
+					if(this.accessTail == null) {
+						this.accessHead = t.accessHead;
+					}
+					else {
+						this.accessTail.newerAccess = t.accessHead;
+					}
+					this.accessTail = t.accessTail;
+				}
+			}
+			else {
+				InOrderWalk walk = new InOrderWalk(T2);
+				for(IAVLNode node = walk.next(); node != null; node = walk.next()) {
+					appendAccess(node);
+				}
+			}
+			appendAccess(x);
+		}
+		t.accessHead = null;
+		t.accessTail = null;
 
-		nodeB.updateSize();
+		int result = joinSubtrees(x, t);
+		evictOverCapacity();
+		if(this.metrics != null) {
+			this.metrics.recordJoin(System.nanoTime() - start, result);
+		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.cost = result;
+			event.treeHeight = this.root.getHeight();
+			event.commit();
+		}
+		return result;
 	}
 
 	/**
-	 * private void swapParentAndChild(IAVLNode parent, IAVLNode child)
+	 * private int joinSubtrees(IAVLNode x, AVLTree t)
 	 *
-	 * @pre: child.getParent() == parent
+	 * The linking part of join(x, t), without the bookkeeping of caches, filters, change tracking and capacity.
 	 *
-	 * Complexity - O(1)
+	 * Complexity - O(|tree.root.height - t.root.height| + 1)
 	 *
 	 */
-	private void swapParentAndChild(IAVLNode parent, IAVLNode child) {
-		if(parent.getLeft() == child) {
-			IAVLNode right = parent.getRight();
-			IAVLNode grandparent = parent.getParent();
-			int height = parent.getHeight();
+	private int joinSubtrees(IAVLNode x, AVLTree t)
+	{
+		IAVLNode T1=this.getRoot();
+		IAVLNode T2=t.getRoot();
 
-			parent.setLeft(child.getLeft());
-			parent.setRight(child.getRight());
-			parent.setHeight(child.getHeight());
-			right.setParent(child);
-			parent.setParent(child);
+		// make sure x is a single node
+		x.setParent(null);
+		if(x.getRight()==null) {
+			IAVLNode rightSon=new AVLNode(-1, null, false);
+			x.setRight(rightSon);
+			rightSon.setParent(x);
+		}
+		if(x.getLeft()==null) {
+			IAVLNode leftSon=new AVLNode(-1, null, false);
+			x.setLeft(leftSon);
+			leftSon.setParent(x);
+		}
+		x.setHeight(0);
+		x.setSize(1);
+
+		this.size=this.size+t.size+1;
+		int result=0;
+
+		// at least one tree is empty
+		if(T1==null || T2==null)
+		{
+			//both trees are empty
+			if(T1==null && T2==null) {
+				this.root = x;
+				x.setParent(null);
+				//update min/max to be x
+				this.max=this.root;
+				this.min=this.root;
+
+				// |-1-(-1)|+1=1
+				return 1;
+			}
+
+			//the tree is empty and t doesn't
+			if(T1==null){
+				this.root=T2;
+				// |t.rank-(-1)|+1=T2.getHeight()+2
+				result=T2.getHeight()+2;
+
+				// update min/max to be t's min/max
+				this.min=t.min;
+				this.max=t.max;
+			}
+			else{// else- t is empty and the tree doesn't
+				// |this.rank-(-1)|+1=T1.getHeight()+2
+				result=T1.getHeight()+2;
+			}
+
+			if(this.min!=null && this.max!=null) {
+				// update x to be min/max if needed
+				if (x.getKey() > this.max.getKey())
+					this.max = x;
+				if (x.getKey() < this.min.getKey())
+					this.min = x;
+			}
+
+			// insert x to the merged tree
+			insertionForJoin(x);
+			return result;
+		}
+
+		// if we are in split and use join then it could be 2 un-empty trees with
+		// null min-max,we dont care about updating min/max- just at the end of split
+		if(t.min!=null && t.max!=null && this.min!=null && this.max!=null) {
+			// both trees are not empty so x isnt a min/max
+			if (t.min.getKey() < this.min.getKey()) {
+				this.min = t.min;
+			}
+			if (t.max.getKey() > this.max.getKey()) {
+				this.max = t.max;
+			}
+		}
+
+		// make T2  higher then T1
+		if(T2.getHeight()<T1.getHeight()){
+			T1=t.getRoot();
+			T2=this.getRoot();
+		}
+
+		int h1=T1.getHeight();
+		int h2=T2.getHeight();
+
+		if(h1==h2){
+			if(T1.getKey()<x.getKey()){
+				x.setRight(T2);
+				x.setLeft(T1);
+			}
+			else{
+				x.setLeft(T2);
+				x.setRight(T1);
+			}
+			this.root=x;
+			x.updateSize();
+			T1.setParent(x);
+			T2.setParent(x);
+			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+
+			return 1;
+		}
+
+		result=h2-h1+1;
+
+		// the tree we'll "travel" on to find the right node to connect
+		IAVLNode ptr=T2;
+		this.root=T2;
+
+		// move right or left- depend on the keys
+		// if T1<x<T2 move left
+		if(T1.getKey()<x.getKey()){
+			if(!ptr.getLeft().isRealNode())
+			{
+				this.root=x;
+				x.setLeft(T1);
+				x.setRight(T2);
+
+				T2.setParent(x);
+				T1.setParent(x);
+
+				x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+				x.updateSize();
+				this.size=x.getSize();
+
+				return result;
+			}
+			else{
+				// down till ptr.getHeight()<=h)
+				while (ptr.getHeight() > h1) {
+					//update size of every node we pass through
+					ptr.setSize(ptr.getSize()+1+T1.getSize());
+					ptr = ptr.getLeft();
+				}
+
+				// Now the ptr is the node we need to place as X's right son
+				x.setRight(ptr);
+				x.setLeft(T1);
+
+				ptr.getParent().setLeft(x);
+				x.setParent(ptr.getParent());
+
+				// connect to x
+				ptr.setParent(x);
+				T1.setParent(x);
+			}
+		}
+		// move right
+		else
+		{
+			if(!ptr.getRight().isRealNode())
+			{
+				this.root=x;
+				x.setLeft(T2);
+				x.setRight(T1);
+
+				T2.setParent(x);
+				T1.setParent(x);
+
+				x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+				x.updateSize();
+				this.size=x.getSize();
+
+				return result;
+			}
+			else {
+				// down till ptr.getHeight()<=h)
+				while (ptr.getHeight() > h1) {
+					//update size of every node we pass through
+					ptr.setSize(ptr.getSize()+1+T1.getSize());
+					ptr = ptr.getRight();
+				}
+
+				// Now the ptr is the node we need to place as X's right son
+				x.setRight(T1);
+				x.setLeft(ptr);
+
+				ptr.getParent().setRight(x);
+				x.setParent(ptr.getParent());
+
+				// connect to x
+				ptr.setParent(x);
+				T1.setParent(x);
+			}
+		}
+
+		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+		x.updateSize();
+
+		rebalanceAfterJoin(x.getParent());
+
+		return result;
+
+	}
+
+
+	/**
+	 * public int getRoot()
+	 *
+	 * Returns the root AVL node, or null if the tree is empty
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	public IAVLNode getRoot()
+	{
+		return this.root;
+	}
+
+	/**
+	 * public void print()
+	 *
+	 * Prints the tree to System.out turned on its side: the root in the first column and the
+	 * right subtree above the left one, each node as key(height). For debugging small trees.
+	 *
+	 * Complexity - O(n)
+	 *
+	 */
+	public void print()
+	{
+		if(this.empty()) {
+			System.out.println("(empty)");
+			return;
+		}
+		StringBuilder out = new StringBuilder();
+		printRec(this.root, 0, out);
+		System.out.print(out);
+	}
+
+	private static void printRec(IAVLNode node, int depth, StringBuilder out)
+	{
+		if(!node.isRealNode()) {
+			return;
+		}
+		printRec(node.getRight(), depth + 1, out);
+		for(int j = 0; j < depth; j++) {
+			out.append("        ");
+		}
+		out.append(node.getKey()).append('(').append(node.getHeight()).append(")\n");
+		printRec(node.getLeft(), depth + 1, out);
+	}
+
+
+	/**
+	 * private int[] applyBatchWithFinger(BatchOp[] ops)
+	 *
+	 * applyBatch for small batches. The finger is a node whose subtree range has a lower bound
+	 * smaller than all remaining keys, so finding the next key only needs to climb until the
+	 * upper bound of the range is above it.
+	 *
+	 * Complexity - O(m log n)
+	 *
+	 */
+	private int[] applyBatchWithFinger(BatchOp[] ops) {
+		int[] results = new int[ops.length];
+		IAVLNode finger = null;
+
+		for(int j = 0; j < ops.length; j++) {
+			BatchOp op = ops[j];
+			if(this.empty()) {
+				results[j] = op.type == BatchOp.INSERT ? this.insert(op.key, op.info) : -1;
+				finger = this.root;
+				continue;
+			}
+
+			IAVLNode start = finger == null ? this.root : climbToRange(finger, op.key);
+			IAVLNode last = descend(start, op.key);
+
+			if(last.isRealNode()) { // key found
+				finger = last;
+				switch(op.type) {
+					case BatchOp.INSERT:
+						results[j] = -1;
+						break;
+					case BatchOp.UPDATE:
+						((AVLNode) last).info = op.info;
+						touchAccess(last);
+						results[j] = 0;
+						break;
+					case BatchOp.DELETE:
+						finger = findNodePredecessor(last);
+						results[j] = deleteNode(last);
+						break;
+				}
+			}
+			else { // last is the virtual node where the key would be
+				finger = last.getParent();
+				if(op.type == BatchOp.INSERT) {
+					IAVLNode inserted = new AVLNode(op.key, op.info, true);
+					results[j] = insertAtVirtual(last, inserted);
+					finger = inserted;
+				}
+				else {
+					results[j] = -1;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * private IAVLNode climbToRange(IAVLNode finger, int k)
+	 *
+	 * Returns the lowest ancestor of finger (or finger itself) whose subtree range contains k.
+	 * @pre the range of finger has a lower bound smaller than k
+	 *
+	 * Complexity - O(distance climbed)
+	 *
+	 */
+	private IAVLNode climbToRange(IAVLNode finger, int k) {
+		IAVLNode ptr = finger;
+
+		while(ptr.getParent() != null) {
+			IAVLNode parent = ptr.getParent();
+			// the range of a left child ends at its parent's key
+			if(parent.getLeft() == ptr && k < parent.getKey()) {
+				return ptr;
+			}
+			ptr = parent;
+		}
+		return ptr;
+	}
+
+	/**
+	 * IAVLNode descend(IAVLNode start, int k)
+	 *
+	 * Binary search from start. Returns the node with key k,
+	 * or the virtual node where k would be inserted.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	IAVLNode descend(IAVLNode start, int k) {
+		IAVLNode ptr = start;
+
+		while(ptr.isRealNode() && ptr.getKey() != k) {
+			ptr = k < ptr.getKey() ? ptr.getLeft() : ptr.getRight();
+		}
+		return ptr;
+	}
+
+	/**
+	 * int insertAtVirtual(IAVLNode virtual, IAVLNode toInsert)
+	 *
+	 * Replaces the virtual node found by descend() with toInsert, then updates the sizes
+	 * bottom-up and re-balances like insert().
+	 * Returns the number of re-balancing operations.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	int insertAtVirtual(IAVLNode virtual, IAVLNode toInsert) {
+		IAVLNode parent = virtual.getParent();
+		int k = toInsert.getKey();
+
+		if(parent.getLeft() == virtual) {
+			parent.setLeft(toInsert);
+		}
+		else {
+			parent.setRight(toInsert);
+		}
+		toInsert.setParent(parent);
+		if(this.membershipFilter != null) {
+			this.membershipFilter.add(k);
+		}
+
+		if(k < this.min.getKey())
+			this.min = toInsert;
+		if(k > this.max.getKey())
+			this.max = toInsert;
+
+		this.size++;
+		updateSizes(parent);
+		appendAccess(toInsert);
+		return rebalanceAfterInsertion(parent, k);
+	}
+
+	/**
+	 * private int[] applyBatchByRebuild(BatchOp[] ops)
+	 *
+	 * applyBatch for large batches: merges the sorted contents of the tree with the batch
+	 * and builds a balanced tree from the result.
+	 *
+	 * Complexity - O(n + m)
+	 *
+	 */
+	private int[] applyBatchByRebuild(BatchOp[] ops) {
+		int[] results = new int[ops.length];
+		int[] oldKeys = this.keysToArray();
+		String[] oldInfo = this.infoToArray();
+		int[] newKeys = new int[oldKeys.length + ops.length];
+		String[] newInfo = new String[newKeys.length];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+
+		while(i < oldKeys.length || j < ops.length) {
+			if(j == ops.length || (i < oldKeys.length && oldKeys[i] < ops[j].key)) {
+				newKeys[count] = oldKeys[i];
+				newInfo[count++] = oldInfo[i++];
+				continue;
+			}
+
+			// apply all operations of one key to its current state
+			int k = ops[j].key;
+			boolean present = i < oldKeys.length && oldKeys[i] == k;
+			String info = present ? oldInfo[i++] : null;
+			for(; j < ops.length && ops[j].key == k; j++) {
+				switch(ops[j].type) {
+					case BatchOp.INSERT:
+						results[j] = present ? -1 : 0;
+						if(!present) {
+							present = true;
+							info = ops[j].info;
+						}
+						break;
+					case BatchOp.DELETE:
+						results[j] = present ? 0 : -1;
+						present = false;
+						info = null;
+						break;
+					case BatchOp.UPDATE:
+						results[j] = present ? 0 : -1;
+						if(present) {
+							info = ops[j].info;
+						}
+						break;
+				}
+			}
+			if(present) {
+				newKeys[count] = k;
+				newInfo[count++] = info;
+			}
+		}
+
+		buildFromSorted(newKeys, newInfo, count);
+		return results;
+	}
+
+	/**
+	 * void buildFromSorted(int[] keys, String[] info, int count)
+	 *
+	 * Replaces the contents of the tree with the first count items of keys/info.
+	 * The tree is built bottom-up, perfectly balanced, without any rotation.
+	 * @pre keys[0..count) is sorted and has no duplicates
+	 *
+	 * Complexity - O(count)
+	 *
+	 */
+	void buildFromSorted(int[] keys, String[] info, int count) {
+		if(this.searchCache != null) {
+			this.searchCache.clear();
+		}
+		int[] recency = this.evictionPolicy == EVICT_LEAST_RECENT ? accessOrder() : null;
+		this.accessHead = null;
+		this.accessTail = null;
+		if(this.membershipFilter != null) {
+			// same shape and statistics, rebuilt counters
+			Arrays.fill(this.membershipFilter.words, 0);
+			for(int j = 0; j < count; j++) {
+				this.membershipFilter.add(keys[j]);
+			}
+		}
+		if(count == 0) {
+			this.root = null;
+			this.size = 0;
+			this.min = null;
+			this.max = null;
+			return;
+		}
+
+		this.root = buildFromSortedRec(keys, info, 0, count - 1);
+		this.root.setParent(null);
+		this.size = count;
+		this.min = searchMin();
+		this.max = searchMax();
+		if(recency != null) {
+			relinkAccess(recency);
+		}
+		evictOverCapacity();
+	}
+
+	/**
+	 * private IAVLNode buildFromSortedRec(int[] keys, String[] info, int low, int high)
+	 *
+	 * Recursive helper of buildFromSorted, builds the subtree of keys[low..high].
+	 *
+	 * Complexity - O(high - low + 1)
+	 *
+	 */
+	private IAVLNode buildFromSortedRec(int[] keys, String[] info, int low, int high) {
+		if(low > high) {
+			return new AVLNode(-1, null, false);
+		}
+		int middle = (low + high) >>> 1;
+		// children first: a node made with new AVLNode(k, i, true) would get two virtual
+		// children only to throw them away, one wasted allocation per item
+		IAVLNode left = buildFromSortedRec(keys, info, low, middle - 1);
+		IAVLNode right = buildFromSortedRec(keys, info, middle + 1, high);
+		return new AVLNode(keys[middle], info[middle], left, right);
+	}
+
+	static long zigzag(int value) {
+		return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+	}
+
+	static int unzigzag(long value) {
+		return (int) (value >>> 1) ^ -(int) (value & 1);
+	}
+
+	/**
+	 * static ThreadFactory backgroundThreads(String name)
+	 *
+	 * Factory of daemon threads for the background work of the classes below.
+	 *
+	 */
+	static ThreadFactory backgroundThreads(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * static void putVarLong(ByteBuffer buffer, long value)
+	 *
+	 * LEB128: 7 bits per byte, high bit set on all bytes but the last.
+	 * @pre buffer has 10 bytes remaining
+	 *
+	 */
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for(int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * static void putString(ByteBuffer buffer, byte[] utf8)
+	 *
+	 * Same encoding as BinaryWriter.writeString, utf8 == null for a null string.
+	 * @pre buffer has utf8.length + 10 bytes remaining
+	 *
+	 */
+	static void putString(ByteBuffer buffer, byte[] utf8) {
+		if(utf8 == null) {
+			putVarLong(buffer, 0);
+			return;
+		}
+		putVarLong(buffer, utf8.length + 1L);
+		buffer.put(utf8);
+	}
+
+	static String getString(ByteBuffer buffer) {
+		long length = getVarLong(buffer);
+		if(length == 0) {
+			return null;
+		}
+		String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) (length - 1), StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + (int) (length - 1));
+		return value;
+	}
+
+	/**
+	 * private int keysToArrayRec(IAVLNode node, int i, int[] arr)
+	 *
+	 * Recursive helper function to insert the keys to the array
+	 *
+	 * Complexity - O(1)
+	 *
+	 * */
+	private int keysToArrayRec(IAVLNode node, int i, int[] arr) {
+		if(node.isRealNode()) {
+			i = keysToArrayRec(node.getLeft(), i, arr);
+			arr[i] = node.getKey();
+			i = keysToArrayRec(node.getRight(), i + 1, arr);
+		}
+		return i;
+	}
+
+	/**
+	 * private boolean exportAllKeysRec(IAVLNode node, KeyExport out)
+	 *
+	 * Recursive helper of exportKeys when the range covers the whole tree,
+	 * as cheap per node as keysToArrayRec. Returns false once out is full.
+	 *
+	 * Complexity - O(n)
+	 *
+	 * */
+	private boolean exportAllKeysRec(IAVLNode node, KeyExport out) {
+		if(!node.isRealNode()) {
+			return true;
+		}
+		return exportAllKeysRec(node.getLeft(), out) && out.add(node.getKey()) && exportAllKeysRec(node.getRight(), out);
+	}
+
+	/**
+	 * private boolean exportKeysRec(IAVLNode node, KeyExport out, int low, int high)
+	 *
+	 * Recursive helper of exportKeys, visits only the subtrees that overlap [low, high].
+	 * Returns false once out is full.
+	 *
+	 * Complexity - O(log n + r)
+	 *
+	 * */
+	private boolean exportKeysRec(IAVLNode node, KeyExport out, int low, int high) {
+		if(!node.isRealNode()) {
+			return true;
+		}
+		int key = node.getKey();
+		if(key > low && !exportKeysRec(node.getLeft(), out, low, high)) {
+			return false;
+		}
+		if(key >= low && key <= high && !out.add(key)) {
+			return false;
+		}
+		return key >= high || exportKeysRec(node.getRight(), out, low, high);
+	}
+
+	/**
+	 * private boolean exportInfoRec(IAVLNode node, ByteBuffer out, int low, int high, boolean swap,
+	 *                               CharsetEncoder encoder, int[] count)
+	 *
+	 * Recursive helper of exportInfo, count[0] counts the infos put.
+	 * Returns false at the first info that doesn't fit, out is then back before it.
+	 *
+	 * */
+	private boolean exportInfoRec(IAVLNode node, ByteBuffer out, int low, int high, boolean swap,
+			CharsetEncoder encoder, int[] count) {
+		if(!node.isRealNode()) {
+			return true;
+		}
+		int key = node.getKey();
+		if(key > low && !exportInfoRec(node.getLeft(), out, low, high, swap, encoder, count)) {
+			return false;
+		}
+		if(key >= low && key <= high) {
+			int start = out.position();
+			if(out.remaining() < 4) {
+				return false;
+			}
+			String value = node.getValue();
+			if(value == null) {
+				out.putInt(swap ? Integer.reverseBytes(-1) : -1);
+			}
+			else {
+				// encode behind room for the length, then fill the length in
+				out.position(start + 4);
+				encoder.reset();
+				if(encoder.encode(CharBuffer.wrap(value), out, true).isOverflow() || encoder.flush(out).isOverflow()) {
+					out.position(start);
+					return false;
+				}
+				int length = out.position() - start - 4;
+				out.putInt(start, swap ? Integer.reverseBytes(length) : length);
+			}
+			count[0]++;
+		}
+		return key >= high || exportInfoRec(node.getRight(), out, low, high, swap, encoder, count);
+	}
+
+	/**
+	 * private int infoToArrayRec(IAVLNode node, int i, String[] arr)
+	 *
+	 * Recursive helper function to insert the info to the array
+	 *
+	 * Complexity - O(1)
+	 *
+	 * */
+	private int infoToArrayRec(IAVLNode node, int i, String[] arr) {
+		if(node.isRealNode()) {
+			i = infoToArrayRec(node.getLeft(), i, arr);
+			arr[i] = node.getValue();
+			i = infoToArrayRec(node.getRight(), i + 1, arr);
+		}
+		return i;
+	}
+
+	/**
+	 * static int[] keysInRange(IAVLNode root, int low, int high, int maxSteps)
+	 *
+	 * Iterative in-order walk over the keys in [low, high] of the subtree of root.
+	 * Throws IllegalStateException after maxSteps nodes or MAX_HEIGHT pending ancestors,
+	 * so a walk over a tree that is modified at the same time cannot loop forever.
+	 *
+	 * Complexity - O(log n + r)
+	 *
+	 */
+	static int[] keysInRange(IAVLNode root, int low, int high, int maxSteps) {
+		int[] result = new int[16];
+		int count = 0;
+		IAVLNode[] stack = new IAVLNode[MAX_HEIGHT];
+		int depth = 0;
+		int steps = 0;
+		IAVLNode ptr = root;
+
+		while(depth > 0 || (ptr != null && ptr.isRealNode())) {
+			if(++steps > maxSteps) {
+				throw new IllegalStateException("tree changed during range walk");
+			}
+			if(ptr != null && ptr.isRealNode()) {
+				// the whole left subtree is smaller than low
+				if(ptr.getKey() < low) {
+					ptr = ptr.getRight();
+					continue;
+				}
+				if(depth == MAX_HEIGHT) {
+					throw new IllegalStateException("tree changed during range walk");
+				}
+				stack[depth++] = ptr;
+				ptr = ptr.getLeft();
+			}
+			else {
+				IAVLNode node = stack[--depth];
+				if(node.getKey() > high) {
+					break;
+				}
+				if(count == result.length) {
+					result = Arrays.copyOf(result, count * 2);
+				}
+				result[count++] = node.getKey();
+				ptr = node.getRight();
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * private int getBalanceFactor(IAVLNode node)
+	 *
+	 * Returns node.left.height - node.right.height. Results between -1 and 1 imply balanced.
+	 *
+	 * Complexity - O(1)
+	 *
+	 **/
+	private int getBalanceFactor(IAVLNode node) {
+		if(node == null)
+			return 0;
+		return node.getLeft().getHeight() - node.getRight().getHeight();
+	}
+
+	/**
+	 * private void rotateRight(IAVLNode x)
+	 *
+	 * Rotate right according to a given node and update height
+	 *
+	 * Complexity - O(1)
+	 *
+	 **/
+	private void rotateRight(IAVLNode x) {
+		if(this.metrics != null) {
+			this.metrics.rotationsInOperation++;
+		}
+		// Rotate right
+		IAVLNode parent = x.getParent();
+		IAVLNode y = x.getLeft();
+
+		y.getRight().setParent(x);
+		x.setLeft(y.getRight());
+		y.setRight(x);
+		y.setParent(parent);
+		x.setParent(y);
+
+		if (parent != null) {
+			if(parent.getRight() == x) {
+				parent.setRight(y);
+			}
+			else {
+				parent.setLeft(y);
+			}
+		}
+
+		// Update root if necessary
+		if(x == this.root) {
+			this.root = y;
+		}
+
+		// Update heights
+		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+		y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+
+		// Update sizes
+		x.updateSize();
+		y.updateSize();
+
+	}
+
+	/**
+	 * private void rotateDouble(IAVLNode x)
+	 *
+	 * Double Rotation- according to a given node and 2 directions
+	 * @pre r1!=r2 && (r1==LEFT || r1==RIGHT) && (r2==LEFT || r2==RIGHT)
+	 * Complexity - O(1)
+	 *
+	 **/
+	private void rotateDouble(IAVLNode y, int r1,int r2) {
+		if(this.metrics != null) {
+			this.metrics.rotationsInOperation += 2;
+		}
+		if(r1==LEFT && r2==RIGHT) {
+			IAVLNode parent=y.getParent();
+			boolean isRoot=y==this.root;
+
+			IAVLNode x = y.getLeft();
+			IAVLNode z = x.getRight();
+
+			x.setRight(z.getLeft());
+			y.setLeft(z.getRight());
+
+			z.setLeft(x);
+			z.setRight(y);
+
+			x.getRight().setParent(x);
+			y.getLeft().setParent(y);
+			x.setParent(z);
+			y.setParent(z);
+
+			if(!isRoot){
+				if(parent.getLeft()==y){
+					parent.setLeft(z);
+					z.setParent(parent);
+				}
+				else{
+					parent.setRight(z);
+					z.setParent(parent);
+				}
+			}
+			else{
+				this.root=z;
+				z.setParent(null);
+			}
+
+			// Update Heights
+			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+			y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+			z.setHeight(1 + Math.max(z.getLeft().getHeight(), z.getRight().getHeight()));
+
+			// Update sizes
+			x.updateSize();
+			y.updateSize();
+			z.updateSize();
+		}
+		else if(r1==RIGHT && r2==LEFT){
+			IAVLNode parent=y.getParent();
+			boolean isRoot=y==this.root;
+
+			IAVLNode x = y.getRight();
+			IAVLNode z = x.getLeft();
+
+			x.setLeft(z.getRight());
+			y.setRight(z.getLeft());
+
+			z.setLeft(y);
+			z.setRight(x);
+
+			x.getLeft().setParent(x);
+			y.getRight().setParent(y);
+			x.setParent(z);
+			y.setParent(z);
+
+			if(!isRoot){
+				if(parent.getLeft()==y){
+					parent.setLeft(z);
+					z.setParent(parent);
+				}
+				else{
+					parent.setRight(z);
+					z.setParent(parent);
+				}
+			}
+			else{
+				this.root=z;
+				z.setParent(null);
+			}
+
+			x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+			y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+			z.setHeight(1 + Math.max(z.getLeft().getHeight(), z.getRight().getHeight()));
+
+
+			// Update sizes
+			x.updateSize();
+			y.updateSize();
+			z.updateSize();
+
+		}
+	}
+
+	/**
+	 * private void rotateLeft(IAVLNode x)
+	 *
+	 * Rotate left according to a given node and update height and size
+	 *
+	 * Complexity - O(1)
+	 *
+	 **/
+	private void rotateLeft(IAVLNode x) {
+		if(this.metrics != null) {
+			this.metrics.rotationsInOperation++;
+		}
+		// Rotate left
+		IAVLNode parent = x.getParent();
+		IAVLNode y = x.getRight();
+
+		y.getLeft().setParent(x);
+		x.setRight(y.getLeft());
+		y.setLeft(x);
+		y.setParent(parent);
+		x.setParent(y);
+
+		if (parent != null) {
+			if(parent.getLeft() == x) {
+				parent.setLeft(y);
+			}
+			else {
+				parent.setRight(y);
+			}
+		}
+
+		// Update root if necessary
+		if(x == this.root) {
+			this.root = y;
+		}
+
+		// Update heights
+		x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
+		y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+
+		// Update sizes
+		x.updateSize();
+		y.updateSize();
+
+	}
+
+	/**
+	 * private void updateHeights(IAVLNode node)
+	 *
+	 * Traverse up the tree updating the heights
+	 * Return number of promotions
+	 *
+	 * Complexity - O(log n)
+	 *
+	 **/
+	private int updateHeights(IAVLNode node) {
+		IAVLNode ptr = node;
+		int promotions = 0;
+
+		while(ptr != null) {
+			int before = ptr.getHeight();
+			ptr.setHeight(1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight()));
+			promotions += ptr.getHeight() == before ? 0 : 1;
+			ptr = ptr.getParent();
+		}
+		return promotions;
+	}
+
+	/**
+	 * private void updateSizes(IAVLNode node)
+	 *
+	 * Traverse up the tree updating the sizes
+	 *
+	 * Complexity - O(log n)
+	 *
+	 **/
+	private void updateSizes(IAVLNode node) {
+		IAVLNode ptr = node;
+
+		while(ptr != null) {
+			ptr.updateSize();
+			ptr = ptr.getParent();
+		}
+	}
+
+	/**
+	 * private int typeOfNode(IAVLNode)
+	 *
+	 * Returns 0 if the node is a virtual node
+	 * 		   1 if the node is a leaf
+	 * 		   2 if the node is an unary node
+	 * 		   3- else (the node is an internal node)
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	private int typeOfNode(IAVLNode node){
+		if (!node.isRealNode())
+			return VIRTUAL_NODE;
+		if (!node.getRight().isRealNode() && !node.getLeft().isRealNode())
+			return LEAF_NODE;
+		if ((node.getRight().isRealNode() && !node.getLeft().isRealNode()) ||
+				(!node.getRight().isRealNode() && node.getLeft().isRealNode()))
+			return UNARY_NODE;
+		return INTERNAL_NODE;
+	}
+
+	/**
+	 *
+	 * private int rebalanceAfterInsertion(IAVLNode parent, int k)
+	 *
+	 * Rebalnce the tree after insertion operation
+	 * @return number of re-balancing operations.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private int rebalanceAfterInsertion(IAVLNode parent, int k) {
+		int promotions = 0;
+
+		// Update parent height
+		if(parent.getHeight() != 1) {
+			promotions++;
+			countHeightChange();
+		}
+		else {
+			return 0;
+		}
+
+		parent.setHeight(1 + Math.max(parent.getLeft().getHeight(), parent.getRight().getHeight()));
+
+		// Check if node is unbalanced
+		IAVLNode ptr = parent;
+		int balance = getBalanceFactor(ptr);
+
+		while(-1 <= balance && balance <= 1) {
+			ptr = ptr.getParent();
+
+			if(ptr == null) {
+				break;
+			}
+
+			//ptr.updateSize();
+
+			int newHeight = 1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight());
+			if(ptr.getHeight() != newHeight) {
+				promotions += 1;
+				countHeightChange();
+				ptr.setHeight(newHeight);
+			}
+			else {
+				return promotions;
+			}
+			balance = getBalanceFactor(ptr);
+		}
+		if(ptr == null) { // No balancing needed
+			return promotions;
+		}
+		else {
+			// Case 1 - rotate right
+			if(balance > 1 && k < ptr.getLeft().getKey()) {
+				rotateRight(ptr);
+
+				return updateHeights(ptr.getParent()) + promotions;
+			}
+			// Case 2 - rotate left
+			else if(balance < -1 && k > ptr.getRight().getKey()) {
+				rotateLeft(ptr);
+
+				return updateHeights(ptr.getParent()) + promotions;
+			}
+			// Case 3 - rotate left right
+			else if(balance > 1 && k > ptr.getLeft().getKey()) {
+				IAVLNode left = ptr.getLeft();
+				rotateLeft(left);
+				ptr.setLeft(left.getParent());
+				rotateRight(ptr);
+
+				return 1 + updateHeights(ptr.getParent()) + promotions;
+			}
+			// Case 4 - rotate right left
+			else {
+				IAVLNode right = ptr.getRight();
+				rotateRight(right);
+				ptr.setRight(right.getParent());
+				rotateLeft(ptr);
+
+				return 1 + updateHeights(ptr.getParent()) + promotions;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * private void insertionForJoin(IAVLNode toInsert)
+	 *
+	 * insert the node to the right place and rebalnce the tree after join operation
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private void insertionForJoin(IAVLNode toInsert) {
+
+		// Perform normal BST insertion
+		IAVLNode ptr = this.root;
+
+		while(ptr.isRealNode()) {
+			int key = ptr.getKey();
+
+			// update size while down
+			ptr.setSize(ptr.getSize()+1);
+
+			if(toInsert.getKey() < key) {
+				ptr = ptr.getLeft();
+			}
+			else {
+				ptr = ptr.getRight();
+			}
+		}
+
+		IAVLNode parent = ptr.getParent();
+		boolean isLeftChild = toInsert.getKey() < parent.getKey();
+
+		if(isLeftChild) {
+			parent.setLeft(toInsert);
+			toInsert.setParent(parent);
+		}
+		else {
+			parent.setRight(toInsert);
+			toInsert.setParent(parent);
+		}
+
+
+		rebalanceAfterInsertion(parent,toInsert.getKey());
+	}
+
+	/**
+	 *private void rebalanceAfterJoin(IAVLNode node)
+	 *
+	 * Rebalnce the tree after join operation
+	 *
+	 * Complexity - O(node.height)=O(log n)
+	 *
+	 */
+	private void rebalanceAfterJoin(IAVLNode node) {
+
+		// if node is'nt the root
+		if(node!=null) {
+			int right=node.getHeight()-node.getRight().getHeight();
+			int left=node.getHeight()-node.getLeft().getHeight();
+			if ((right==1 && left==0) || (right==0 && left==1)){
+
+				// promote- and go up
+				node.setHeight(1 + node.getHeight());
+				rebalanceAfterJoin(node.getParent());
+			}
+			else if(right==2 && left==0){
+				IAVLNode x=node.getLeft();
+				IAVLNode a=x.getLeft();
+				IAVLNode b=x.getRight();
+
+				// rotate and done
+				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==2){
+					rotateRight(node);
+				}
+
+				// rotate and done
+				if(x.getHeight()-a.getHeight()==2 && x.getHeight()-b.getHeight()==1){
+					rotateDouble(node,LEFT,RIGHT);
+				}
+
+				// rotate and go up
+				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==1){
+					rotateRight(node);
+					rebalanceAfterJoin(node.getParent().getParent());
+				}
+			}
+			else if(right==0 && left==2){
+				IAVLNode x=node.getRight();
+				IAVLNode a=x.getLeft();
+				IAVLNode b=x.getRight();
+
+				// rotate and done
+				if(x.getHeight()-a.getHeight()==2 && x.getHeight()-b.getHeight()==1){
+					rotateLeft(node);
+				}
+
+				// rotate and done
+				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==2){
+					rotateDouble(node,RIGHT,LEFT);
+				}
+
+				// rotate and go up
+				if(x.getHeight()-a.getHeight()==1 && x.getHeight()-b.getHeight()==1){
+					rotateLeft(node);
+					rebalanceAfterJoin(node.getParent().getParent());
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * private int rebalanceAfterDeletion(IAVLNode parentOfDeleted)
+	 *
+	 * Rebalnce the tree after delete operation
+	 * @pre parentOfDeleted != null
+	 * @return number of re-balancing operations.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	private int rebalanceAfterDeletion(IAVLNode parentOfDeleted) {
+		IAVLNode ptr = parentOfDeleted;
+		int operations = 0; // Rotations, promotions and demotions
+
+		while(ptr != null) { // Traverse up the tree
+			int oldHeight = ptr.getHeight();
+			int newHeight = 1 + Math.max(ptr.getLeft().getHeight(), ptr.getRight().getHeight());
+
+			ptr.setHeight(newHeight);
+			ptr.updateSize();
+
+			int balance = getBalanceFactor(ptr);
+
+			if(-1 <= balance && balance <= 1) {
+				if(oldHeight == newHeight) {
+					// no more re-balancing, but the sizes above still count the deleted node
+					updateSizes(ptr.getParent());
+					return operations;
+				}
+				else {
+					operations++; 											// Case 0 : Demotion
+					countHeightChange();
+				}
+			}
+			else if(balance > 1 && getBalanceFactor(ptr.getLeft()) >= 0) { // Case 1 : rotate right
+				rotateRight(ptr);
+				operations++;
+				ptr = ptr.getParent();
+			}
+			else if(balance < -1 && getBalanceFactor(ptr.getRight()) <= 0) { // Case 2 : rotate left
+				rotateLeft(ptr);
+				operations++;
+				ptr = ptr.getParent();
+			}
+			else if(balance > 1 && getBalanceFactor(ptr.getLeft()) < 0) { // Case 3 : left right
+				IAVLNode left = ptr.getLeft();
+				rotateLeft(left);
+				ptr.setLeft(left.getParent());
+				rotateRight(ptr);
+				operations += 2;
+				ptr = ptr.getParent();
+			}
+			else { 														   // Case 4 : right left
+				IAVLNode right = ptr.getRight();
+				rotateRight(right);
+				ptr.setRight(right.getParent());
+				rotateLeft(ptr);
+				operations += 2;
+				ptr = ptr.getParent();
+			}
+
+			ptr = ptr.getParent();
+		}
+		return operations;
+	}
+
+	/**
+	 * private void swapNodes(IAVLNode nodeA, IAVLNode nodeB)
+	 *
+	 * @pre: nodeA.isRealNode() == true  == nodeB.isRealNode()
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	private void swapNodes(IAVLNode nodeA, IAVLNode nodeB) {
+		// Cases where one node is parent of other node
+		if(nodeB.getParent() == nodeA) {
+			swapParentAndChild(nodeA, nodeB);
+			return;
+		}
+		if(nodeA.getParent() == nodeB) {
+			swapParentAndChild(nodeB, nodeA);
+			return;
+		}
+
+		boolean isNodeARoot = nodeA == this.root;
+		boolean isNodeBRoot = nodeB == this.root;
+
+		IAVLNode saveParentA = nodeA.getParent();
+		IAVLNode saveParentB = nodeB.getParent();
+
+		IAVLNode saveLeft = nodeA.getLeft();
+		IAVLNode saveRight = nodeA.getRight();
+		int saveHeight = nodeA.getHeight();
+
+		nodeA.getLeft().setParent(nodeB);
+		nodeA.getRight().setParent(nodeB);
+		nodeA.setParent(nodeB.getParent());
+		nodeA.setLeft(nodeB.getLeft());
+		nodeA.setRight(nodeB.getRight());
+		nodeA.setHeight(nodeB.getHeight());
+
+		if(isNodeARoot) {
+			this.root = nodeB;
+
+			boolean isNodeBLeftChild = saveParentB.getLeft() == nodeB;
+			if(isNodeBLeftChild) {
+				saveParentB.setLeft(nodeA);
+			}
+			else {
+				saveParentB.setRight(nodeA);
+			}
+		}
+		else if(isNodeBRoot) {
+			this.root = nodeA;
+
+			boolean isNodeALeftChild = saveParentA.getLeft() == nodeA;
+			if(isNodeALeftChild) {
+				saveParentA.setLeft(nodeB);
+			}
+			else {
+				saveParentA.setRight(nodeB);
+			}
+		}
+		else {
+			boolean isNodeBLeftChild = saveParentB.getLeft() == nodeB;
+			boolean isNodeALeftChild = saveParentA.getLeft() == nodeA;
+			if(isNodeALeftChild) {
+				saveParentA.setLeft(nodeB);
+			}
+			else {
+				saveParentA.setRight(nodeB);
+			}
+			if(isNodeBLeftChild) {
+				saveParentB.setLeft(nodeA);
+			}
+			else {
+				saveParentB.setRight(nodeA);
+			}
+		}
+
+		nodeB.getLeft().setParent(nodeA);
+		nodeB.getRight().setParent(nodeA);
+		nodeB.setLeft(saveLeft);
+		nodeB.setRight(saveRight);
+		nodeB.setParent(saveParentA);
+		nodeB.setHeight(saveHeight);
+
+		nodeB.updateSize();
+	}
+
+	/**
+	 * private void swapParentAndChild(IAVLNode parent, IAVLNode child)
+	 *
+	 * @pre: child.getParent() == parent
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	private void swapParentAndChild(IAVLNode parent, IAVLNode child) {
+		if(parent.getLeft() == child) {
+			IAVLNode right = parent.getRight();
+			IAVLNode grandparent = parent.getParent();
+			int height = parent.getHeight();
+
+			parent.setLeft(child.getLeft());
+			parent.setRight(child.getRight());
+			parent.setHeight(child.getHeight());
+			right.setParent(child);
+			parent.setParent(child);
+
+			if(grandparent != null) {
+				if(grandparent.getLeft() == parent) {
+					grandparent.setLeft(child);
+				}
+				else {
+					grandparent.setRight(child);
+				}
+			}
+			else {
+				this.root = child;
+			}
+			child.setRight(right);
+			child.setParent(grandparent);
+			child.setHeight(height);
+			child.setLeft(parent);
+
+			child.updateSize();
+		}
+		else {
+			IAVLNode left = parent.getLeft();
+			IAVLNode grandparent = parent.getParent();
+			int height = parent.getHeight();
+
+			parent.setRight(child.getRight());
+			parent.setLeft(child.getLeft());
+			parent.setHeight(child.getHeight());
+			left.setParent(child);
+			parent.setParent(child);
+
+			if(grandparent != null) {
+				if(grandparent.getLeft() == parent) {
+					grandparent.setLeft(child);
+				}
+				else {
+					grandparent.setRight(child);
+				}
+			}
+			else {
+				this.root = child;
+			}
+			child.setLeft(left);
+			child.setParent(grandparent);
+			child.setHeight(height);
+			child.setRight(parent);
+
+			child.updateSize();
+		}
+	}
+
+	/**
+	 * IAVLNode findNode(int k)
+	 *
+	 * Returns the AVLNode that contain k
+	 * If k doesn't exist in the tree - return null
+	 * Has no side effects, and follows at most MAX_HEIGHT links (more than any AVL tree of ints
+	 * is high), so StampedAVLTree can run it optimistically against a concurrent writer.
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	IAVLNode findNode(int k) {
+
+		IAVLNode ptr = this.root;
+
+		for (int depth = 0; ptr != null && depth < MAX_HEIGHT; depth++) {
+			int key = ptr.getKey();
+			// a virtual node has key -1 too
+			if (key == k && ptr.isRealNode()) {
+				return ptr;
+			}
+			else{
+				if (k > key) {
+					ptr = ptr.getRight();
+				}
+				else{
+					ptr = ptr.getLeft();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * IAVLNode select(int rank)
+	 *
+	 * Returns the node with the rank-th smallest key (0 based), using the subtree sizes.
+	 * @pre 0 <= rank < size()
+	 *
+	 * Complexity - O(log n)
+	 *
+	 */
+	IAVLNode select(int rank) {
+		IAVLNode ptr = this.root;
+
+		while(ptr.isRealNode()) {
+			int leftSize = ptr.getLeft().getSize();
+			if(rank == leftSize) {
+				return ptr;
+			}
+			if(rank < leftSize) {
+				ptr = ptr.getLeft();
+			}
+			else {
+				rank -= leftSize + 1;
+				ptr = ptr.getRight();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * private IAVLNode findNodeSuccessor(IAVLNode node)
+	 *
+	 * Returns node's successor
+	 *
+	 * Complexity - O(logn)
+	 *
+	 */
+	private IAVLNode findNodeSuccessor(IAVLNode node){
+		IAVLNode ptr;
+
+		// if node has right son- return the minimum from its sub-tree
+		if (node.getRight().isRealNode()){
+			ptr = node.getRight();
+			while (ptr.getLeft().isRealNode()) {
+				ptr = ptr.getLeft();
+			}
+			return ptr;
+		}
+
+		IAVLNode tempNode = node;
+		ptr = node.getParent();
+		while(ptr != null && tempNode == ptr.getRight()){
+			tempNode = ptr;
+			ptr = tempNode.getParent();
+		}
+
+		// if x is the maximum it return null
+		return ptr;
+	}
+
+	/**
+	 * private IAVLNode findNodePredecessor(IAVLNode node)
+	 *
+	 * Returns node's predecessor, or null if node is the minimum
+	 *
+	 * Complexity - O(logn)
+	 *
+	 */
+	private IAVLNode findNodePredecessor(IAVLNode node){
+		IAVLNode ptr;
+
+		// if node has left son- return the maximum from its sub-tree
+		if (node.getLeft().isRealNode()){
+			ptr = node.getLeft();
+			while (ptr.getRight().isRealNode()) {
+				ptr = ptr.getRight();
+			}
+			return ptr;
+		}
+
+		IAVLNode tempNode = node;
+		ptr = node.getParent();
+		while(ptr != null && tempNode == ptr.getLeft()){
+			tempNode = ptr;
+			ptr = tempNode.getParent();
+		}
+
+		return ptr;
+	}
+
+	/**
+	 * private void removeLeafNode(IAVLNode node)
+	 *
+	 * @pre : node is a leaf node && not the root
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	private void removeLeafNode(IAVLNode node) {
+		boolean isLeftChild = node.getParent().getLeft() == node;
+		node.setLeft(null);
+		node.setRight(null);
+
+		if(isLeftChild) {
+			node.getParent().setLeft(new AVLNode(-1, null, false));
+			node.getParent().getLeft().setParent(node.getParent());
+		}
+		else {
+			node.getParent().setRight(new AVLNode(-1, null, false));
+			node.getParent().getRight().setParent(node.getParent());
+		}
+		node.setParent(null);
+	}
+
+	/**
+	 * private void removeUnaryNode(IAVLNode node)
+	 *
+	 * @pre: node is an unary node
+	 *
+	 * Complexity - O(1)
+	 *
+	 */
+	private void removeUnaryNode(IAVLNode node) {
+		boolean isLeftChild = node.getParent().getLeft() == node;
+
+		if(node.getLeft().isRealNode()) { // If left unary
+			if(isLeftChild) {
+				node.getParent().setLeft(node.getLeft());
+			}
+			else {
+				node.getParent().setRight(node.getLeft());
+			}
+			node.getLeft().setParent(node.getParent());
+
+		}
+		else {                           // Right unary
+			if(isLeftChild) {
+				node.getParent().setLeft(node.getRight());
+			}
+			else {
+				node.getParent().setRight(node.getRight());
+			}
+			node.getRight().setParent(node.getParent());
+		}
+
+		node.setParent(null);
+		node.setLeft(null);
+		node.setRight(null);
+	}
+
+	/**
+	 * private void removeInternalNode(IAVLNode node)
+	 *
+	 * Internal node has a right child so its successor is a leaf node or unary.
+	 * Returns the parent of the removed node, where rebalancing has to start.
+	 * @pre: node is an internal node.
+	 *
+	 * Complexity - O(logn)
+	 *
+	 */
+	private IAVLNode removeInternalNode(IAVLNode node) {
+		IAVLNode successor = findNodeSuccessor(node);
+		swapNodes(node, successor);
+		// after the swap node sits where its successor was, which may be deep below the successor
+		IAVLNode parentOfDeleted = node.getParent();
+		switch(typeOfNode(node)) {
+			case LEAF_NODE:
+				removeLeafNode(node);
+				break;
+			case UNARY_NODE:
+				removeUnaryNode(node);
+				break;
+		}
+		return parentOfDeleted;
+	}
+
+	/**
+	 * private void setSubtree(IAVLNode root)
+	 *
+	 * make nodeToRoot to be an AVLTree
+	 *
+	 * Complexity -O(1)
+	 *
+	 */
+	private void setSubtree(IAVLNode nodeToRoot) {
+		if(nodeToRoot.isRealNode()) {
+			this.root = nodeToRoot;
+			nodeToRoot.setParent(null);
+			this.size = nodeToRoot.getSize();
+		}
+		else{
+			this.root=null;
+			this.size=0;
+		}
+	}
+
+	/**
+	 * private int removeRootNode()
+	 *
+	 * Removes the root node and returns number of re-balancing operations done.
+	 *
+	 * Complexity - O(logn)
+	 *
+	 */
+	private int removeRootNode() {
+		IAVLNode root = this.root;
+		if(this.size == 1) { // If the tree only has one node, remove it and set the tree as empty
+			this.root = null;
+			this.size = 0;
+			this.min = null;
+			this.max = null;
+			return 0;
+		}
+
+		if(!root.getLeft().isRealNode()) { // If the tree has only a right child
+			root.getRight().setParent(null);
+			this.root = root.getRight();
+			this.size = 1;
+			this.min = this.root;
+
+			return 0;
+		}
+		else if(!root.getRight().isRealNode()) { // If the tree only has a left child
+			root.getLeft().setParent(null);
+			this.root = root.getLeft();
+			this.size = 1;
+			this.max = this.root;
+			return 0;
+		}
+		else { // root has both children
+			IAVLNode successor = findNodeSuccessor(root);
+			swapNodes(root, successor);
+			IAVLNode deletedParent = root.getParent();
+			switch(typeOfNode(root)) {
+				case LEAF_NODE:
+					removeLeafNode(root);
+					break;
+				case UNARY_NODE:
+					removeUnaryNode(root);
+					break;
+
+			}
+			this.min = searchMin();
+			this.max = searchMax();
+			this.size--;
+			return rebalanceAfterDeletion(deletedParent);
+		}
+	}
+
+	/**
+	 * static class InOrderWalk
+	 *
+	 * Iterative in-order walk over the real nodes of a subtree, for walks
+	 * that cannot be written as a recursion over an array.
+	 */
+	static class InOrderWalk {
+		private final IAVLNode[] stack = new IAVLNode[MAX_HEIGHT];
+		private int depth = 0;
+
+		/**
+		 * InOrderWalk(IAVLNode root)
+		 *
+		 * root may be null (empty tree)
+		 * Complexity - O(log n)
+		 */
+		InOrderWalk(IAVLNode root) {
+			pushLeftPath(root);
+		}
+
+		/**
+		 * IAVLNode next()
+		 *
+		 * Returns the next node in key order, or null at the end.
+		 * Complexity - O(1) amortized
+		 */
+		IAVLNode next() {
+			if(depth == 0) {
+				return null;
+			}
+			IAVLNode node = stack[--depth];
+			pushLeftPath(node.getRight());
+			return node;
+		}
+
+		private void pushLeftPath(IAVLNode node) {
+			for(IAVLNode ptr = node; ptr != null && ptr.isRealNode(); ptr = ptr.getLeft()) {
+				stack[depth++] = ptr;
+			}
+		}
+	}
+
+	/**
+	 * static class BinaryWriter
+	 *
+	 * Buffered writer of ints, longs, varints and length-prefixed strings to a FileChannel.
+	 */
+	static class BinaryWriter {
+		private final static int BUFFER_SIZE = 1 << 16;
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		BinaryWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void writeInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+
+		void writeLong(long value) throws IOException {
+			ensure(8);
+			buffer.putLong(value);
+		}
+
+		void writeVarLong(long value) throws IOException {
+			ensure(10);
+			putVarLong(buffer, value);
+		}
+
+		/**
+		 * Varint of 0 for null, length + 1 otherwise, followed by the UTF-8 bytes.
+		 */
+		private void writeString(String value) throws IOException {
+			if(value == null) {
+				writeVarLong(0);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length + 1L);
+			writeBytes(bytes, 0, bytes.length);
+		}
+
+		void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+			while(length > 0) {
+				ensure(1);
+				int chunk = Math.min(length, buffer.remaining());
+				buffer.put(bytes, offset, chunk);
+				offset += chunk;
+				length -= chunk;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * static class MappedReader
+	 *
+	 * Reader of the BinaryWriter format over a memory-mapped FileChannel.
+	 * Files larger than one mapping are read through consecutive windows.
+	 */
+	static class MappedReader {
+		private final static long WINDOW_SIZE = 1L << 30;
+
+		private final FileChannel channel;
+		private final long fileSize;
+		private long windowStart;
+		private MappedByteBuffer buffer;
+		private byte[] scratch = new byte[64];
+
+		MappedReader(FileChannel channel) throws IOException {
+			this(channel, 0);
+		}
+
+		private MappedReader(FileChannel channel, long start) throws IOException {
+			this.channel = channel;
+			this.fileSize = channel.size();
+			map(start);
+		}
+
+		long position() {
+			return windowStart + buffer.position();
+		}
+
+		boolean hasRemaining() {
+			return position() < fileSize;
+		}
+
+		int readInt() throws IOException {
+			ensure(4);
+			return buffer.getInt();
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				ensure(1);
+				byte b = buffer.get();
+				value |= (long) (b & 0x7F) << shift;
+				if(b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("malformed varint at " + position());
+		}
+
+		private String readString() throws IOException {
+			long length = readVarLong();
+			if(length == 0) {
+				return null;
+			}
+			int bytes = (int) (length - 1);
+			if(scratch.length < bytes) {
+				scratch = new byte[Math.max(bytes, scratch.length * 2)];
+			}
+			readBytes(scratch, bytes);
+			return new String(scratch, 0, bytes, StandardCharsets.UTF_8);
+		}
+
+		void readBytes(byte[] dst, int length) throws IOException {
+			int offset = 0;
+			while(offset < length) {
+				ensure(1);
+				int chunk = Math.min(length - offset, buffer.remaining());
+				buffer.get(dst, offset, chunk);
+				offset += chunk;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() >= bytes) {
+				return;
+			}
+			long position = position();
+			if(position + bytes > fileSize) {
+				throw new IOException("unexpected end of file at " + position);
+			}
+			map(position);
+		}
+
+		private void map(long start) throws IOException {
+			windowStart = start;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+		}
+	}
+
+	/**
+	 * public static class BatchOp
+	 *
+	 * One operation of applyBatch.
+	 * INSERT adds key with info, DELETE removes key, UPDATE replaces the info of an existing key.
+	 */
+	public static class BatchOp {
+		public final static int INSERT = 1;
+		public final static int DELETE = 2;
+		public final static int UPDATE = 3;
+
+		private final int type;
+		private final int key;
+		private final String info;
+
+		/**
+		 * public BatchOp(int type, int key, String info)
+		 *
+		 * @pre type is INSERT, DELETE or UPDATE. info is ignored for DELETE.
+		 * Complexity - O(1)
+		 */
+		public BatchOp(int type, int key, String info) {
+			this.type = type;
+			this.key = key;
+			this.info = info;
+		}
+
+		public int getType() {
+			return this.type;
+		}
+
+		public int getKey() {
+			return this.key;
+		}
+
+		public String getInfo() {
+			return this.info;
+		}
+	}
+
+	/**
+	 * public interface IAVLNode
+	 * ! Do not delete or modify this - otherwise all tests will fail !
+	 */
+	public interface IAVLNode{
+		public int getKey(); // Returns node's key (for virtual node return -1).
+		public String getValue(); // Returns node's value [info], for virtual node returns null.
+		public void setLeft(IAVLNode node); // Sets left child.
+		public IAVLNode getLeft(); // Returns left child, if there is no left child returns null.
+		public void setRight(IAVLNode node); // Sets right child.
+		public IAVLNode getRight(); // Returns right child, if there is no right child return null.
+		public void setParent(IAVLNode node); // Sets parent.
+		public IAVLNode getParent(); // Returns the parent, if there is no parent return null.
+		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node.
+		public void setHeight(int height); // Sets the height of the node.
+		public int getHeight(); // Returns the height of the node (-1 for virtual nodes).
+		public int getSize();// Returns the size of the node's subtree.
+		public void updateSize();// Updates the size of the node's subtree.
+		public void setSize(int size);// Sets the size of the node's subtree.
+	}
+
+	/**
+	 * public class AVLNode
+	 *
+	 * If you wish to implement classes other than AVLTree
+	 * (for example AVLNode), do it in this file, not in another file.
+	 *
+	 * This class can and MUST be modified (It must implement IAVLNode).
+	 */
+	public class AVLNode implements IAVLNode{
+
+		private int key;
+		String info;
+		private IAVLNode left;
+		private IAVLNode right;
+		private IAVLNode parent;
+		private final boolean isRealNode;
+		private int height;
+		private int size;
+		// neighbours in the access list of a tree evicting the least recently accessed node
+		private AVLNode olderAccess;
+		private AVLNode newerAccess;
+
+		/**
+		 * public AVLNode(int key, String info, boolean isRealNode)
+		 *
+		 * Constructor of a node- virtual or real.
+		 * if real- has size 1 (at the beginning), has its key and info, no parent, 2 virtual sons and height=0
+		 * if virtual- has no sons, size=0, height= -1 the info will be null and key= -1.
+		 *
+		 * Complexity - O(1)
+		 */
+		public AVLNode(int key, String info, boolean isRealNode) {
+			this.key = key;
+			this.info = info;
+			this.left = isRealNode ? new AVLNode(-1, null, false) : null;
+			this.right = isRealNode ? new AVLNode(-1, null, false) : null;
+			this.isRealNode = isRealNode;
+			this.height = isRealNode ? 0 : -1;
+			this.parent = null;
+
+			if(this.isRealNode) {
+				this.left.setParent(this);
+				this.right.setParent(this);
+				updateSize();
+			}
+			else{
+				this.size=0;
+			}
+
+		}
+
+		/**
+		 * private AVLNode(int key, String info, IAVLNode left, IAVLNode right)
+		 *
+		 * Constructor of a real node above two existing subtrees, for building a tree bottom-up.
+		 * @pre left and right are valid subtrees, their heights differ by at most 1
+		 *
+		 * Complexity - O(1)
+		 */
+		private AVLNode(int key, String info, IAVLNode left, IAVLNode right) {
+			this.key = key;
+			this.info = info;
+			this.left = left;
+			this.right = right;
+			this.isRealNode = true;
+			this.height = 1 + Math.max(left.getHeight(), right.getHeight());
+			this.size = left.getSize() + right.getSize() + 1;
+			left.setParent(this);
+			right.setParent(this);
+		}
+
+		/**
+		 * public int getKey()
+		 * Returns node's key (for virtual node return -1).
+		 * Complexity --O(1)
+		 */
+		public int getKey()
+		{
+			return this.key;
+		}
+
+		/**
+		 * public String getValue()
+		 * Returns node's value [info], for virtual node returns null.
+		 * Complexity --O(1)
+		 */
+		public String getValue()
+		{
+			return this.info;
+		}
+
+		/**
+		 * public void setLeft(IAVLNode node)
+		 * Sets left child.
+		 * Complexity --O(1)
+		 */
+		public void setLeft(IAVLNode node)
+		{
+			this.left = node;
+		}
+
+		/**
+		 * public IAVLNode getLeft()
+		 * Returns left child, if there is no left child returns null.
+		 * Complexity --O(1)
+		 */
+		public IAVLNode getLeft()
+		{
+			return this.left;
+		}
+
+		/**
+		 * public void setRight(IAVLNode node)
+		 * Sets right child.
+		 * Complexity --O(1)
+		 */
+		public void setRight(IAVLNode node)
+		{
+			this.right = node;
+		}
+
+		/**
+		 * public IAVLNode getRight()
+		 * Returns right child, if there is no right child returns null.
+		 * Complexity --O(1)
+		 */
+		public IAVLNode getRight()
+		{
+			return this.right;
+		}
+
+		/**
+		 * public void setParent(IAVLNode node)
+		 * Sets parent.
+		 * Complexity --O(1)
+		 */
+		public void setParent(IAVLNode node)
+		{
+			this.parent = node;
+		}
+
+		/**
+		 * public IAVLNode getParent()
+		 * Returns the parent, if there is no parent return null.
+		 * Complexity --O(1)
+		 */
+		public IAVLNode getParent()
+		{
+			return this.parent;
+		}
+
+		/**
+		 * public boolean isRealNode()
+		 * Returns True if this is a non-virtual AVL node.
+		 * Complexity --O(1)
+		 *
+		 */
+		public boolean isRealNode()
+		{
+			return this.isRealNode;
+		}
+
+		/**
+		 * public void setHeight(int height)
+		 * Sets the height of the node.
+		 * Complexity --O(1)
+		 */
+		public void setHeight(int height)
+		{
+			this.height = height;
+		}
+
+		/**
+		 * public int getHeight()
+		 * Returns the height of the node (-1 for virtual nodes).
+		 * Complexity --O(1)
+		 */
+		public int getHeight()
+		{
+			return this.height;
+		}
+
+		/**
+		 * public int getSize()
+		 * Returns the size of the node's subtree.
+		 * Complexity --O(1)
+		 */
+		public int getSize()
+		{
+			return this.size;
+		}
+
+		/**
+		 * public void updateSize()
+		 * Update the size according to it's sons
+		 * Complexity --O(1)
+		 */
+		public void updateSize()
+		{
+			if(this.isRealNode){
+				this.size=this.left.getSize()+this.right.getSize()+1;
+			}
+			else
+				this.size=0;
+		}
+
+		/**
+		 * public void setSize(int size)
+		 * Set the size according to given size
+		 * Complexity --O(1)
+		 */
+		public void setSize(int size)
+		{
+			this.size=size;
+		}
+	}
 
-			if(grandparent != null) {
-				if(grandparent.getLeft() == parent) {
-					grandparent.setLeft(child);
-				}
-				else {
-					grandparent.setRight(child);
-				}
+	/**
+	 * private static class IntHashSet
+	 *
+	 * Set of ints with open addressing and linear probing, without boxing.
+	 * 0 marks an empty slot, so the key 0 is kept in a flag of its own.
+	 */
+	private static class IntHashSet {
+		private int[] table = new int[16];
+		private int shift = 28; // 32 - log2(table.length)
+		private int count = 0; // keys in table
+		private boolean hasZero = false;
+
+		private void add(int key) {
+			if(key == 0) {
+				hasZero = true;
+				return;
 			}
-			else {
-				this.root = child;
+			if(2 * (count + 1) > table.length) {
+				int[] old = table;
+				table = new int[old.length * 2];
+				shift--;
+				count = 0;
+				for(int k : old) {
+					if(k != 0) {
+						insert(k);
+					}
+				}
 			}
-			child.setRight(right);
-			child.setParent(grandparent);
-			child.setHeight(height);
-			child.setLeft(parent);
+			insert(key);
+		}
 
-			child.updateSize();
+		private void insert(int key) {
+			int mask = table.length - 1;
+			// Fibonacci hashing, same as SearchCache.slotOf(key)
+			for(int slot = (key * 0x9E3779B9) >>> shift; ; slot = (slot + 1) & mask) {
+				if(table[slot] == key) {
+					return;
+				}
+				if(table[slot] == 0) {
+					table[slot] = key;
+					count++;
+					return;
+				}
+			}
 		}
-		else {
-			IAVLNode left = parent.getLeft();
-			IAVLNode grandparent = parent.getParent();
-			int height = parent.getHeight();
 
-			parent.setRight(child.getRight());
-			parent.setLeft(child.getLeft());
-			parent.setHeight(child.getHeight());
-			left.setParent(child);
-			parent.setParent(child);
+		private int size() {
+			return count + (hasZero ? 1 : 0);
+		}
 
-			if(grandparent != null) {
-				if(grandparent.getLeft() == parent) {
-					grandparent.setLeft(child);
-				}
-				else {
-					grandparent.setRight(child);
+		private int[] toArray() {
+			int[] result = new int[size()];
+			int j = 0;
+			if(hasZero) {
+				result[j++] = 0;
+			}
+			for(int k : table) {
+				if(k != 0) {
+					result[j++] = k;
 				}
 			}
+			return result;
+		}
+
+		private void clear() {
+			// the table only grows while count reaches half of it, so a quarter means it was grown
+			// for an earlier burst of changes: don't keep it for the quiet intervals after that
+			if(table.length > 16 && 4 * count < table.length) {
+				table = new int[16];
+				shift = 28;
+			}
 			else {
-				this.root = child;
+				Arrays.fill(table, 0);
 			}
-			child.setLeft(left);
-			child.setParent(grandparent);
-			child.setHeight(height);
-			child.setRight(parent);
-
-			child.updateSize();
+			count = 0;
+			hasZero = false;
 		}
 	}
 
 	/**
-	 * private IAVLNode findNode(int k)
-	 *
-	 * Returns the AVLNode that contain k
-	 * If k doesn't exist in the tree - return null
-	 *
-	 * Complexity - O(log n)
+	 * private static class Delta
 	 *
+	 * The contents of a file written by writeDelta, sorted by key.
 	 */
-	private IAVLNode findNode(int k) {
+	private static class Delta {
+		private final boolean full;
+		private int count;
+		private int[] keys;
+		private String[] info;
+		private boolean[] deleted;
+
+		private Delta(boolean full, int count) {
+			this.full = full;
+			this.count = count;
+			this.keys = new int[count];
+			this.info = new String[count];
+			this.deleted = new boolean[count];
+		}
 
-		IAVLNode ptr = this.root;
+		private static Delta read(Path path) throws IOException {
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedReader in = new MappedReader(channel);
+				if(in.readInt() != DELTA_MAGIC) {
+					throw new IOException(path + " is not an AVLTree delta");
+				}
+				int version = in.readInt();
+				if(version != DELTA_VERSION) {
+					throw new IOException("unsupported delta version " + version);
+				}
+				boolean full = in.readInt() != 0;
+				Delta delta = new Delta(full, in.readInt());
 
-		while (ptr != null) {
-			int key = ptr.getKey();
-			if (key == k) {
-				return ptr;
-			}
-			else{
-				if (k > key) {
-					ptr = ptr.getRight();
+				long previous = 0;
+				for(int j = 0; j < delta.count; j++) {
+					previous = j == 0 ? unzigzag(in.readVarLong()) : previous + in.readVarLong();
+					delta.keys[j] = (int) previous;
 				}
-				else{
-					ptr = ptr.getLeft();
+				byte[] scratch = new byte[64];
+				for(int j = 0; j < delta.count; j++) {
+					long state = in.readVarLong();
+					if(state == 0) {
+						delta.deleted[j] = true;
+					}
+					else if(state > 1) {
+						int length = (int) (state - 2);
+						if(scratch.length < length) {
+							scratch = new byte[Math.max(length, scratch.length * 2)];
+						}
+						in.readBytes(scratch, length);
+						delta.info[j] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+					}
 				}
+				return delta;
 			}
 		}
-		return null;
-	}
-
-	/**
-	 * private IAVLNode findNodeSuccessor(IAVLNode node)
-	 *
-	 * Returns node's successor
-	 *
-	 * Complexity - O(logn)
-	 *
-	 */
-	private IAVLNode findNodeSuccessor(IAVLNode node){
-		IAVLNode ptr;
 
-		// if node has right son- return the minimum from its sub-tree
-		if (node.getRight().isRealNode()){
-			ptr = node.getRight();
-			while (ptr.getLeft().isRealNode()) {
-				ptr = ptr.getLeft();
+		/**
+		 * private Delta then(Delta next)
+		 *
+		 * Returns the delta of applying this and then next.
+		 * Complexity - O(count + next.count)
+		 */
+		private Delta then(Delta next) {
+			if(next.full) {
+				return next;
 			}
-			return ptr;
+			Delta merged = new Delta(full, count + next.count);
+			int a = 0;
+			int b = 0;
+			int j = 0;
+			while(a < count || b < next.count) {
+				boolean fromNext = a == count || (b < next.count && next.keys[b] <= keys[a]);
+				if(fromNext) {
+					if(a < count && keys[a] == next.keys[b]) {
+						a++;
+					}
+					merged.keys[j] = next.keys[b];
+					merged.info[j] = next.info[b];
+					merged.deleted[j] = next.deleted[b];
+					b++;
+				}
+				else {
+					merged.keys[j] = keys[a];
+					merged.info[j] = info[a];
+					merged.deleted[j] = deleted[a];
+					a++;
+				}
+				j++;
+			}
+			merged.count = j;
+			return merged;
 		}
 
-		IAVLNode tempNode = node;
-		ptr = node.getParent();
-		while(ptr != null && tempNode == ptr.getRight()){
-			tempNode = ptr;
-			ptr = tempNode.getParent();
+		private void removeDeleted() {
+			int j = 0;
+			for(int i = 0; i < count; i++) {
+				if(!deleted[i]) {
+					keys[j] = keys[i];
+					info[j] = info[i];
+					deleted[j] = false;
+					j++;
+				}
+			}
+			count = j;
 		}
-
-		// if x is the maximum it return null
-		return ptr;
 	}
 
 	/**
-	 * private void removeLeafNode(IAVLNode node)
-	 *
-	 * @pre : node is a leaf node && not the root
-	 *
-	 * Complexity - O(1)
+	 * private static class KeyExport
 	 *
+	 * Puts keys into an IntBuffer through a small staging array, since one bulk put is much
+	 * cheaper than a put per key into a direct buffer.
 	 */
-	private void removeLeafNode(IAVLNode node) {
-		boolean isLeftChild = node.getParent().getLeft() == node;
-		node.setLeft(null);
-		node.setRight(null);
+	private static class KeyExport {
+		private final static int STAGE_SIZE = 1024;
 
-		if(isLeftChild) {
-			node.getParent().setLeft(new AVLNode(-1, null, false));
-			node.getParent().getLeft().setParent(node.getParent());
+		private final IntBuffer out;
+		private final int[] stage = new int[STAGE_SIZE];
+		private int staged = 0;
+		private int room;
+
+		private KeyExport(IntBuffer out) {
+			this.out = out;
+			this.room = out.remaining();
 		}
-		else {
-			node.getParent().setRight(new AVLNode(-1, null, false));
-			node.getParent().getRight().setParent(node.getParent());
+
+		/**
+		 * Returns false (without adding) if out is full.
+		 */
+		private boolean add(int key) {
+			if(room == 0) {
+				return false;
+			}
+			if(staged == STAGE_SIZE) {
+				flush();
+			}
+			stage[staged++] = key;
+			room--;
+			return true;
+		}
+
+		private void flush() {
+			out.put(stage, 0, staged);
+			staged = 0;
 		}
-		node.setParent(null);
 	}
 
 	/**
-	 * private void removeUnaryNode(IAVLNode node)
-	 *
-	 * @pre: node is an unary node
+	 * private static class SearchCache
 	 *
-	 * Complexity - O(1)
+	 * Open addressing key -> node table with linear probing, at most half full.
+	 * When it holds capacity entries, a CLOCK hand sweeps the slots: an entry that was hit
+	 * since the last sweep gets a second chance, the first one that wasn't is evicted.
 	 *
+	 * A found key is only admitted on its second miss: the first one sets its bit in a doorkeeper
+	 * bitmap, cleared whenever it fills up. Under a skewed load most misses are keys looked up once,
+	 * and caching them would cost each such search an insertion plus an eviction (that is, the
+	 * slowest searches pay the most) while pushing out the popular keys.
 	 */
-	private void removeUnaryNode(IAVLNode node) {
-		boolean isLeftChild = node.getParent().getLeft() == node;
+	private static class SearchCache {
+		private final int capacity;
+		private final int mask;
+		private final int shift;
+		private final int[] keys;
+		private final IAVLNode[] nodes; // null = empty slot
+		private final boolean[] referenced;
+		private final long[] doorkeeper; // 4 bits per slot
+		private final int doorkeeperShift;
+		private int doorkeeperBits = 0;
+		private int count = 0;
+		private int hand = 0;
+		private long hits = 0;
+		private long misses = 0;
+
+		private SearchCache(int capacity) {
+			this.capacity = capacity;
+			int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+			this.mask = slots - 1;
+			this.shift = 32 - Integer.numberOfTrailingZeros(slots);
+			this.keys = new int[slots];
+			this.nodes = new IAVLNode[slots];
+			this.referenced = new boolean[slots];
+			this.doorkeeper = new long[Math.max(1, slots / 16)];
+			this.doorkeeperShift = 32 - Integer.numberOfTrailingZeros(doorkeeper.length * 64);
+		}
 
-		if(node.getLeft().isRealNode()) { // If left unary
-			if(isLeftChild) {
-				node.getParent().setLeft(node.getLeft());
+		private int slotOf(int key) {
+			// Fibonacci hashing: the top bits of the product depend on all bits of the key
+			return (key * 0x9E3779B9) >>> shift;
+		}
+
+		/**
+		 * Returns true for the second (and later) call with key since the doorkeeper was last cleared.
+		 */
+		private boolean seenBefore(int key) {
+			// another multiplier than slotOf, so keys that share a slot rarely share a bit
+			int bit = (key * 0x85EBCA6B) >>> doorkeeperShift;
+			long word = doorkeeper[bit >>> 6];
+			if((word & 1L << bit) != 0) {
+				return true;
 			}
-			else {
-				node.getParent().setRight(node.getLeft());
+			if(++doorkeeperBits > doorkeeper.length * 32) {
+				// half full: start over, so keys that were popular long ago must earn their way back in
+				Arrays.fill(doorkeeper, 0);
+				doorkeeperBits = 1;
+				word = 0;
 			}
-			node.getLeft().setParent(node.getParent());
+			doorkeeper[bit >>> 6] = word | 1L << bit;
+			return false;
+		}
 
+		private IAVLNode get(int key) {
+			for(int slot = slotOf(key); nodes[slot] != null; slot = (slot + 1) & mask) {
+				if(keys[slot] == key) {
+					referenced[slot] = true;
+					hits++;
+					return nodes[slot];
+				}
+			}
+			misses++;
+			return null;
 		}
-		else {                           // Right unary
-			if(isLeftChild) {
-				node.getParent().setLeft(node.getRight());
+
+		/**
+		 * Caches node under key if key missed before.
+		 * @pre key isn't in the cache
+		 */
+		private void admit(int key, IAVLNode node) {
+			if(seenBefore(key)) {
+				put(key, node);
 			}
-			else {
-				node.getParent().setRight(node.getRight());
+		}
+
+		/**
+		 * @pre key isn't in the cache
+		 */
+		private void put(int key, IAVLNode node) {
+			if(count == capacity) {
+				evict();
 			}
-			node.getRight().setParent(node.getParent());
+			int slot = slotOf(key);
+			while(nodes[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			nodes[slot] = node;
+			referenced[slot] = false;
+			count++;
 		}
 
-		node.setParent(null);
-		node.setLeft(null);
-		node.setRight(null);
-	}
+		private void remove(int key) {
+			for(int slot = slotOf(key); nodes[slot] != null; slot = (slot + 1) & mask) {
+				if(keys[slot] == key) {
+					removeSlot(slot);
+					return;
+				}
+			}
+		}
 
-	/**
-	 * private void removeInternalNode(IAVLNode node)
-	 *
-	 * Internal node has a right child so its successor is a leaf node or unary.
-	 * @pre: node is an internal node.
-	 *
-	 * Complexity - O(logn)
-	 *
-	 */
-	private void removeInternalNode(IAVLNode node) {
-		IAVLNode successor = findNodeSuccessor(node);
-		swapNodes(node, successor);
-		switch(typeOfNode(node)) {
-			case LEAF_NODE:
-				removeLeafNode(node);
-				break;
-			case UNARY_NODE:
-				removeUnaryNode(node);
-				break;
+		private void evict() {
+			while(true) {
+				hand = (hand + 1) & mask;
+				if(nodes[hand] != null) {
+					if(!referenced[hand]) {
+						removeSlot(hand);
+						return;
+					}
+					referenced[hand] = false;
+				}
+			}
 		}
-	}
 
-	/**
-	 * private void setSubtree(IAVLNode root)
-	 *
-	 * make nodeToRoot to be an AVLTree
-	 *
-	 * Complexity -O(1)
-	 *
-	 */
-	private void setSubtree(IAVLNode nodeToRoot) {
-		if(nodeToRoot.isRealNode()) {
-			this.root = nodeToRoot;
-			nodeToRoot.setParent(null);
-			this.size = nodeToRoot.getSize();
+		/**
+		 * Empties slot and shifts the following entries of its probe run back,
+		 * so that lookups never stop at a hole in front of their key.
+		 */
+		private void removeSlot(int slot) {
+			count--;
+			int hole = slot;
+			for(int next = (hole + 1) & mask; nodes[next] != null; next = (next + 1) & mask) {
+				int home = slotOf(keys[next]);
+				// move next into the hole unless its home lies cyclically in (hole, next]
+				if(((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					nodes[hole] = nodes[next];
+					referenced[hole] = referenced[next];
+					hole = next;
+				}
+			}
+			nodes[hole] = null;
+			referenced[hole] = false;
 		}
-		else{
-			this.root=null;
-			this.size=0;
+
+		private void clear() {
+			Arrays.fill(nodes, null);
+			Arrays.fill(referenced, false);
+			Arrays.fill(doorkeeper, 0);
+			doorkeeperBits = 0;
+			count = 0;
 		}
 	}
 
 	/**
-	 * private int removeRootNode()
-	 *
-	 * Removes the root node and returns number of re-balancing operations done.
-	 *
-	 * Complexity - O(logn)
+	 * private static class CountingBloomFilter
 	 *
+	 * Bloom filter with 4 bit counters instead of bits, so keys can be removed again.
+	 * A counter that reached 15 stays there (it may count more keys than it can hold).
+	 * The hashes are derived from one 64 bit mix of the key by double hashing.
 	 */
-	private int removeRootNode() {
-		IAVLNode root = this.root;
-		if(this.size == 1) { // If the tree only has one node, remove it and set the tree as empty
-			this.root = null;
-			this.size = 0;
-			this.min = null;
-			this.max = null;
-			return 0;
+	private static class CountingBloomFilter {
+		private final static int MAX_COUNT = 15;
+
+		private final int counters;
+		private final int hashes;
+		private final long[] words; // 16 counters per word
+		// counted by searches, which wrappers run concurrently under a read lock
+		private final LongAdder falsePositives = new LongAdder();
+		private final LongAdder negatives = new LongAdder();
+
+		private CountingBloomFilter(int expectedKeys, double falsePositiveRate) {
+			double ln2 = Math.log(2);
+			long size = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+			this.counters = (int) Math.max(64, Math.min(size, Integer.MAX_VALUE - 15));
+			this.hashes = Math.max(1, (int) Math.round((double) counters / expectedKeys * ln2));
+			this.words = new long[(counters + 15) / 16];
 		}
 
-		if(!root.getLeft().isRealNode()) { // If the tree has only a right child
-			root.getRight().setParent(null);
-			this.root = root.getRight();
-			this.size = 1;
-			this.min = this.root;
-
-			return 0;
+		private CountingBloomFilter(CountingBloomFilter other) {
+			this.counters = other.counters;
+			this.hashes = other.hashes;
+			this.words = other.words.clone();
 		}
-		else if(!root.getRight().isRealNode()) { // If the tree only has a left child
-			root.getLeft().setParent(null);
-			this.root = root.getLeft();
-			this.size = 1;
-			this.max = this.root;
-			return 0;
+
+		private void add(int key) {
+			long hash = mix(key);
+			for(int i = 0; i < hashes; i++) {
+				int index = index(hash, i);
+				long count = get(index);
+				if(count < MAX_COUNT) {
+					set(index, count + 1);
+				}
+			}
+		}
+
+		/**
+		 * @pre key was added
+		 */
+		private void remove(int key) {
+			long hash = mix(key);
+			for(int i = 0; i < hashes; i++) {
+				int index = index(hash, i);
+				long count = get(index);
+				if(count > 0 && count < MAX_COUNT) {
+					set(index, count - 1);
+				}
+			}
 		}
-		else { // root has both children
-			IAVLNode successor = findNodeSuccessor(root);
-			swapNodes(root, successor);
-			IAVLNode deletedParent = root.getParent();
-			switch(typeOfNode(root)) {
-				case LEAF_NODE:
-					removeLeafNode(root);
-					break;
-				case UNARY_NODE:
-					removeUnaryNode(root);
-					break;
 
+		private boolean mightContain(int key) {
+			long hash = mix(key);
+			for(int i = 0; i < hashes; i++) {
+				if(get(index(hash, i)) == 0) {
+					return false;
+				}
 			}
-			this.min = searchMin();
-			this.max = searchMax();
-			this.size--;
-			return rebalanceAfterDeletion(deletedParent);
+			return true;
 		}
-	}
 
-	/**
-	 * public interface IAVLNode
-	 * ! Do not delete or modify this - otherwise all tests will fail !
-	 */
-	public interface IAVLNode{
-		public int getKey(); // Returns node's key (for virtual node return -1).
-		public String getValue(); // Returns node's value [info], for virtual node returns null.
-		public void setLeft(IAVLNode node); // Sets left child.
-		public IAVLNode getLeft(); // Returns left child, if there is no left child returns null.
-		public void setRight(IAVLNode node); // Sets right child.
-		public IAVLNode getRight(); // Returns right child, if there is no right child return null.
-		public void setParent(IAVLNode node); // Sets parent.
-		public IAVLNode getParent(); // Returns the parent, if there is no parent return null.
-		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node.
-		public void setHeight(int height); // Sets the height of the node.
-		public int getHeight(); // Returns the height of the node (-1 for virtual nodes).
-		public int getSize();// Returns the size of the node's subtree.
-		public void updateSize();// Updates the size of the node's subtree.
-		public void setSize(int size);// Sets the size of the node's subtree.
+		/**
+		 * Adds all keys counted by other.
+		 * @pre other has the same counters and hashes
+		 */
+		private void addAll(CountingBloomFilter other) {
+			for(int index = 0; index < counters; index++) {
+				long count = other.get(index);
+				if(count > 0) {
+					set(index, Math.min(MAX_COUNT, get(index) + count));
+				}
+			}
+		}
+
+		private boolean sameShape(CountingBloomFilter other) {
+			return other != null && other.counters == counters && other.hashes == hashes;
+		}
+
+		private long get(int index) {
+			return words[index >>> 4] >>> ((index & 15) << 2) & 0xF;
+		}
+
+		private void set(int index, long count) {
+			int shift = (index & 15) << 2;
+			words[index >>> 4] = words[index >>> 4] & ~(0xFL << shift) | count << shift;
+		}
+
+		private int index(long hash, int i) {
+			int combined = (int) hash + i * ((int) (hash >>> 32) | 1);
+			return (combined & Integer.MAX_VALUE) % counters;
+		}
+
+		// the finalizer of SplitMix64
+		private static long mix(int key) {
+			long z = key * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
 	}
 
 	/**
-	 * public class AVLNode
-	 *
-	 * If you wish to implement classes other than AVLTree
-	 * (for example AVLNode), do it in this file, not in another file.
+	 * public static class MemoryFootprint
 	 *
-	 * This class can and MUST be modified (It must implement IAVLNode).
+	 * Heap bytes held by a tree, see AVLTree.memoryFootprint().
+	 * Object sizes are the header plus the fields rounded up to the object alignment, which is
+	 * how HotSpot lays objects out, up to the padding between fields of different sizes.
 	 */
-	public class AVLNode implements IAVLNode{
-
-		private int key;
-		private String info;
-		private IAVLNode left;
-		private IAVLNode right;
-		private IAVLNode parent;
-		private final boolean isRealNode;
-		private int height;
-		private int size;
+	public static class MemoryFootprint {
+		// object layout of the running JVM, HotSpot defaults if it can't be read
+		private final static int REFERENCE_SIZE = vmFlag("UseCompressedOops", true) ? 4 : 8;
+		private final static int HEADER_SIZE = vmFlag("UseCompressedClassPointers", true) ? 12 : 16;
+		private final static int ALIGNMENT = vmInt("ObjectAlignmentInBytes", 8);
+		private final static boolean COMPACT_STRINGS = vmFlag("CompactStrings", true);
+		private final static long NODE_SIZE = instanceSize(AVLNode.class);
+		private final static long STRING_SIZE = instanceSize(String.class);
+
+		private long nodes;
+		private long virtualNodes;
+		private long nodeBytes;
+		private long virtualNodeBytes;
+		private long infoBytes;
+		private long auxiliaryBytes;
+
+		private MemoryFootprint() {
+		}
 
 		/**
-		 * public AVLNode(int key, String info, boolean isRealNode)
-		 *
-		 * Constructor of a node- virtual or real.
-		 * if real- has size 1 (at the beginning), has its key and info, no parent, 2 virtual sons and height=0
-		 * if virtual- has no sons, size=0, height= -1 the info will be null and key= -1.
+		 * public long nodes()
 		 *
+		 * Returns the number of real nodes.
 		 * Complexity - O(1)
 		 */
-		public AVLNode(int key, String info, boolean isRealNode) {
-			this.key = key;
-			this.info = info;
-			this.left = isRealNode ? new AVLNode(-1, null, false) : null;
-			this.right = isRealNode ? new AVLNode(-1, null, false) : null;
-			this.isRealNode = isRealNode;
-			this.height = isRealNode ? 0 : -1;
-			this.parent = null;
+		public long nodes() {
+			return nodes;
+		}
 
-			if(this.isRealNode) {
-				this.left.setParent(this);
-				this.right.setParent(this);
-				updateSize();
-			}
-			else{
-				this.size=0;
-			}
+		/**
+		 * public long virtualNodes()
+		 *
+		 * Returns the number of virtual children of the real nodes.
+		 * Complexity - O(1)
+		 */
+		public long virtualNodes() {
+			return virtualNodes;
+		}
 
+		/**
+		 * public long nodeBytes()
+		 *
+		 * Returns the bytes of the real nodes.
+		 * Complexity - O(1)
+		 */
+		public long nodeBytes() {
+			return nodeBytes;
 		}
 
 		/**
-		 * public int getKey()
-		 * Returns node's key (for virtual node return -1).
-		 * Complexity --O(1)
+		 * public long virtualNodeBytes()
+		 *
+		 * Returns the bytes of the virtual nodes.
+		 * Complexity - O(1)
 		 */
-		public int getKey()
-		{
-			return this.key;
+		public long virtualNodeBytes() {
+			return virtualNodeBytes;
 		}
 
 		/**
-		 * public String getValue()
-		 * Returns node's value [info], for virtual node returns null.
-		 * Complexity --O(1)
+		 * public long infoBytes()
+		 *
+		 * Returns the bytes of the info strings and their arrays.
+		 * Complexity - O(1)
 		 */
-		public String getValue()
-		{
-			return this.info;
+		public long infoBytes() {
+			return infoBytes;
 		}
 
 		/**
-		 * public void setLeft(IAVLNode node)
-		 * Sets left child.
-		 * Complexity --O(1)
+		 * public long auxiliaryBytes()
+		 *
+		 * Returns the bytes of the tree object and of its optional structures.
+		 * Complexity - O(1)
 		 */
-		public void setLeft(IAVLNode node)
-		{
-			this.left = node;
+		public long auxiliaryBytes() {
+			return auxiliaryBytes;
 		}
 
 		/**
-		 * public IAVLNode getLeft()
-		 * Returns left child, if there is no left child returns null.
-		 * Complexity --O(1)
+		 * public long totalBytes()
+		 *
+		 * Returns the sum of all the bytes above.
+		 * Complexity - O(1)
 		 */
-		public IAVLNode getLeft()
-		{
-			return this.left;
+		public long totalBytes() {
+			return nodeBytes + virtualNodeBytes + infoBytes + auxiliaryBytes;
 		}
 
 		/**
-		 * public void setRight(IAVLNode node)
-		 * Sets right child.
-		 * Complexity --O(1)
+		 * public double bytesPerKey()
+		 *
+		 * Returns totalBytes() / nodes(), 0 for an empty tree.
+		 * Complexity - O(1)
 		 */
-		public void setRight(IAVLNode node)
-		{
-			this.right = node;
+		public double bytesPerKey() {
+			return nodes == 0 ? 0 : (double) totalBytes() / nodes;
+		}
+
+		public String toString() {
+			return String.format("%d keys: nodes %d B, virtual nodes %d B, infos %d B, other %d B, %.1f B per key",
+					nodes, nodeBytes, virtualNodeBytes, infoBytes, auxiliaryBytes, bytesPerKey());
 		}
 
 		/**
-		 * public IAVLNode getRight()
-		 * Returns right child, if there is no right child returns null.
-		 * Complexity --O(1)
+		 * Returns the size of an instance of type: the header and the instance fields of type and
+		 * its superclasses (including the reference to the outer instance of an inner class).
 		 */
-		public IAVLNode getRight()
-		{
-			return this.right;
+		private static long instanceSize(Class<?> type) {
+			long size = HEADER_SIZE;
+			for(Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for(java.lang.reflect.Field field : c.getDeclaredFields()) {
+					if(java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					Class<?> fieldType = field.getType();
+					if(fieldType == long.class || fieldType == double.class) {
+						size += 8;
+					}
+					else if(fieldType == int.class || fieldType == float.class) {
+						size += 4;
+					}
+					else if(fieldType == short.class || fieldType == char.class) {
+						size += 2;
+					}
+					else if(fieldType == byte.class || fieldType == boolean.class) {
+						size += 1;
+					}
+					else {
+						size += REFERENCE_SIZE;
+					}
+				}
+			}
+			return align(size);
+		}
+
+		private static long arraySize(int length, int elementSize) {
+			return align(HEADER_SIZE + 4 + (long) length * elementSize);
 		}
 
 		/**
-		 * public void setParent(IAVLNode node)
-		 * Sets parent.
-		 * Complexity --O(1)
+		 * Returns the size of s and its byte array, which holds one byte per char if all of them
+		 * are Latin-1 (and compact strings are on), two otherwise. 0 for null.
 		 */
-		public void setParent(IAVLNode node)
-		{
-			this.parent = node;
+		private static long stringSize(String s) {
+			if(s == null) {
+				return 0;
+			}
+			int bytesPerChar = 1;
+			if(!COMPACT_STRINGS) {
+				bytesPerChar = 2;
+			}
+			else {
+				for(int j = 0; j < s.length(); j++) {
+					if(s.charAt(j) > 0xFF) {
+						bytesPerChar = 2;
+						break;
+					}
+				}
+			}
+			return STRING_SIZE + arraySize(s.length(), bytesPerChar);
+		}
+
+		private static long align(long size) {
+			return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		}
+
+		private static String vmOption(String name) {
+			try {
+				return ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class)
+						.getVMOption(name).getValue();
+			}
+			catch(RuntimeException | LinkageError e) {
+				return null; // not HotSpot, or no such option
+			}
+		}
+
+		private static boolean vmFlag(String name, boolean fallback) {
+			String value = vmOption(name);
+			return value == null ? fallback : Boolean.parseBoolean(value);
+		}
+
+		private static int vmInt(String name, int fallback) {
+			String value = vmOption(name);
+			return value == null ? fallback : Integer.parseInt(value);
+		}
+	}
+
+	/**
+	 * private static class ValidationTask
+	 *
+	 * Checks the subtree of node, whose keys must lie strictly between low and high.
+	 * Down to forkDepth the two subtrees of a node are checked by tasks of their own, below it
+	 * the subtree is walked with an explicit stack.
+	 */
+	private static class ValidationTask extends RecursiveAction {
+		private final static long serialVersionUID = 1L;
+
+		private final ValidationReport report;
+		private final IAVLNode node;
+		private final IAVLNode parent;
+		private final long low;
+		private final long high;
+		private final long depth;
+		private final int forkDepth;
+		private final long maxDepth;
+		private long nodes;
+
+		private ValidationTask(ValidationReport report, IAVLNode node, IAVLNode parent, long low, long high,
+				long depth, int forkDepth, long maxDepth) {
+			this.report = report;
+			this.node = node;
+			this.parent = parent;
+			this.low = low;
+			this.high = high;
+			this.depth = depth;
+			this.forkDepth = forkDepth;
+			this.maxDepth = maxDepth;
+		}
+
+		protected void compute() {
+			if(depth < forkDepth) {
+				if(check(node, parent, low, high, depth)) {
+					int key = node.getKey();
+					invokeAll(new ValidationTask(report, node.getLeft(), node, low, key, depth + 1, forkDepth, maxDepth),
+							new ValidationTask(report, node.getRight(), node, key, high, depth + 1, forkDepth, maxDepth));
+				}
+				report.addNodes(nodes);
+				return;
+			}
+
+			IAVLNode[] nodeStack = new IAVLNode[MAX_HEIGHT];
+			IAVLNode[] parentStack = new IAVLNode[MAX_HEIGHT];
+			long[] lowStack = new long[MAX_HEIGHT];
+			long[] highStack = new long[MAX_HEIGHT];
+			long[] depthStack = new long[MAX_HEIGHT];
+			int top = 0;
+			nodeStack[0] = node;
+			parentStack[0] = parent;
+			lowStack[0] = low;
+			highStack[0] = high;
+			depthStack[0] = depth;
+			top++;
+			while(top > 0) {
+				top--;
+				IAVLNode current = nodeStack[top];
+				long currentLow = lowStack[top];
+				long currentHigh = highStack[top];
+				long currentDepth = depthStack[top];
+				if(!check(current, parentStack[top], currentLow, currentHigh, currentDepth)) {
+					continue;
+				}
+				if(top + 2 > nodeStack.length) {
+					// only a tree far out of balance gets here
+					int capacity = 2 * nodeStack.length;
+					nodeStack = Arrays.copyOf(nodeStack, capacity);
+					parentStack = Arrays.copyOf(parentStack, capacity);
+					lowStack = Arrays.copyOf(lowStack, capacity);
+					highStack = Arrays.copyOf(highStack, capacity);
+					depthStack = Arrays.copyOf(depthStack, capacity);
+				}
+				int key = current.getKey();
+				// the right child first, so that the left subtree is walked first
+				nodeStack[top] = current.getRight();
+				parentStack[top] = current;
+				lowStack[top] = key;
+				highStack[top] = currentHigh;
+				depthStack[top] = currentDepth + 1;
+				top++;
+				nodeStack[top] = current.getLeft();
+				parentStack[top] = current;
+				lowStack[top] = currentLow;
+				highStack[top] = key;
+				depthStack[top] = currentDepth + 1;
+				top++;
+			}
+			report.addNodes(nodes);
 		}
 
 		/**
-		 * public IAVLNode getParent()
-		 * Returns the parent, if there is no parent return null.
-		 * Complexity --O(1)
+		 * Checks node against its children and returns whether its children are to be checked,
+		 * that is, whether it is a real node deep as a tree of this size allows, in order and
+		 * linked to its parent. The children of a node that isn't may lead back up the tree.
 		 */
-		public IAVLNode getParent()
-		{
-			return this.parent;
+		private boolean check(IAVLNode node, IAVLNode parent, long low, long high, long depth) {
+			if(node == null) {
+				report.add(parent.getKey(), "a child is null instead of a virtual node");
+				return false;
+			}
+			boolean linked = node.getParent() == parent;
+			if(!linked) {
+				report.add(node.isRealNode() ? node.getKey() : parent.getKey(), (node.isRealNode() ? "" : "a virtual child: ")
+						+ "the parent link is " + (node.getParent() == null ? "null" : "key " + node.getParent().getKey()));
+			}
+			if(!node.isRealNode()) {
+				if(node.getHeight() != -1 || node.getSize() != 0) {
+					report.add(parent.getKey(), "a virtual child has height " + node.getHeight() + " and size " + node.getSize());
+				}
+				return false;
+			}
+			nodes++;
+			int key = node.getKey();
+			if(depth > maxDepth) {
+				report.add(key, "deeper than the tree has nodes, the tree has a cycle");
+				return false;
+			}
+			boolean inOrder = key > low && key < high;
+			if(!inOrder) {
+				report.add(key, "out of order, the key must lie between " + low + " and " + high);
+			}
+			IAVLNode left = node.getLeft();
+			IAVLNode right = node.getRight();
+			int leftHeight = left == null ? -1 : left.getHeight();
+			int rightHeight = right == null ? -1 : right.getHeight();
+			int leftSize = left == null ? 0 : left.getSize();
+			int rightSize = right == null ? 0 : right.getSize();
+			if(node.getHeight() != 1 + Math.max(leftHeight, rightHeight)) {
+				report.add(key, "height " + node.getHeight() + ", its children have " + leftHeight + " and " + rightHeight);
+			}
+			if(Math.abs(leftHeight - rightHeight) > 1) {
+				report.add(key, "unbalanced, its children have heights " + leftHeight + " and " + rightHeight);
+			}
+			if(node.getSize() != 1 + leftSize + rightSize) {
+				report.add(key, "size " + node.getSize() + ", its children have " + leftSize + " and " + rightSize);
+			}
+			return linked && inOrder;
+		}
+	}
+
+	/**
+	 * public static class ValidationReport
+	 *
+	 * Result of AVLTree.validate(): the number of violations found and the descriptions of
+	 * those with the smallest keys, each as "key k: what is wrong". Violations of the tree
+	 * as a whole use the key of the root, or -1 for an empty tree.
+	 */
+	public static class ValidationReport {
+		private final static int DEFAULT_VIOLATIONS = 100;
+
+		private final int maxViolations;
+		// the kept violations, the last in order first
+		private final PriorityQueue<Violation> kept;
+		private long violations;
+		private long nodes;
+		private long nanos;
+
+		private ValidationReport(int maxViolations) {
+			this.maxViolations = maxViolations;
+			this.kept = new PriorityQueue<>((a, b) -> b.compareTo(a));
+		}
+
+		private synchronized void add(int key, String message) {
+			violations++;
+			kept.add(new Violation(key, message));
+			if(kept.size() > maxViolations) {
+				kept.poll();
+			}
+		}
+
+		private synchronized void addNodes(long count) {
+			nodes += count;
 		}
 
 		/**
-		 * public boolean isRealNode()
-		 * Returns True if this is a non-virtual AVL node.
-		 * Complexity --O(1)
+		 * public boolean isValid()
 		 *
+		 * Returns true if and only if no violation was found.
+		 * Complexity - O(1)
 		 */
-		public boolean isRealNode()
-		{
-			return this.isRealNode;
+		public boolean isValid() {
+			return violations == 0;
 		}
 
 		/**
-		 * public void setHeight(int height)
-		 * Sets the height of the node.
-		 * Complexity --O(1)
+		 * public long violationCount()
+		 *
+		 * Returns the number of violations found, including those that weren't kept.
+		 * Complexity - O(1)
 		 */
-		public void setHeight(int height)
-		{
-			this.height = height;
+		public long violationCount() {
+			return violations;
 		}
 
 		/**
-		 * public int getHeight()
-		 * Returns the height of the node (-1 for virtual nodes).
-		 * Complexity --O(1)
+		 * public List<String> violations()
+		 *
+		 * Returns the kept violations in key order.
+		 * Complexity - O(maxViolations log maxViolations)
 		 */
-		public int getHeight()
-		{
-			return this.height;
+		public synchronized List<String> violations() {
+			Violation[] sorted = kept.toArray(new Violation[0]);
+			Arrays.sort(sorted);
+			List<String> result = new ArrayList<>(sorted.length);
+			for(Violation violation : sorted) {
+				result.add("key " + violation.key + ": " + violation.message);
+			}
+			return result;
 		}
 
 		/**
-		 * public int getSize()
-		 * Returns the size of the node's subtree.
-		 * Complexity --O(1)
+		 * public long nodesChecked()
+		 *
+		 * Returns the number of real nodes checked.
+		 * Complexity - O(1)
 		 */
-		public int getSize()
-		{
-			return this.size;
+		public long nodesChecked() {
+			return nodes;
 		}
 
 		/**
-		 * public void updateSize()
-		 * Update the size according to it's sons
-		 * Complexity --O(1)
+		 * public double seconds()
+		 *
+		 * Returns the time the validation took.
+		 * Complexity - O(1)
 		 */
-		public void updateSize()
-		{
-			if(this.isRealNode){
-				this.size=this.left.getSize()+this.right.getSize()+1;
+		public double seconds() {
+			return nanos / 1e9;
+		}
+
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			result.append(String.format("%d nodes checked in %.3f s, %d violations", nodes, seconds(), violations));
+			for(String violation : violations()) {
+				result.append(System.lineSeparator()).append("  ").append(violation);
 			}
-			else
-				this.size=0;
+			return result.toString();
 		}
 
 		/**
-		 * public void setSize(int size)
-		 * Set the size according to given size
-		 * Complexity --O(1)
+		 * Ordered by key, then by message, so that the kept violations don't depend on the
+		 * order the threads found them in.
 		 */
-		public void setSize(int size)
-		{
-			this.size=size;
+		private static class Violation implements Comparable<Violation> {
+			private final int key;
+			private final String message;
+
+			private Violation(int key, String message) {
+				this.key = key;
+				this.message = message;
+			}
+
+			public int compareTo(Violation other) {
+				int byKey = Integer.compare(key, other.key);
+				return byKey != 0 ? byKey : message.compareTo(other.message);
+			}
 		}
 	}
-}
\ No newline at end of file
+}
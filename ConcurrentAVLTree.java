@@ -0,0 +1,878 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * public class ConcurrentAVLTree
+ *
+ * Concurrent AVL tree with optimistic, non-blocking reads and fine-grained node locks
+ * for writes, after Bronson, Casper, Chafi and Olukotun, "A Practical Concurrent
+ * Binary Search Tree" (PPoPP 2010).
+ *
+ * Every node carries a version number that changes whenever a rotation shrinks the range
+ * of keys in its subtree, or when the node is unlinked. A search reads the version of a node
+ * before following a child link and re-checks it afterwards (hand-over-hand optimistic
+ * validation), so it never blocks unless it meets a node in the middle of a rotation.
+ * Writers lock only the nodes they modify. Deleting a node with two children just
+ * clears its value, leaving a routing node that is spliced out once it has less than two children.
+ *
+ * Balance is relaxed: a writer repairs heights and performs the same single/double rotations
+ * as rebalanceAfterInsertion/rebalanceAfterDeletion on its way up, and when no
+ * writer is active the tree satisfies the AVL invariant.
+ *
+ * Heights follow the AVLTree convention: -1 for a missing child, 0 for a leaf.
+ * precondition for insert: i != null (a null value marks a routing node)
+ */
+public class ConcurrentAVLTree {
+
+	private final static long UNLINKED = 1;
+	private final static long SHRINKING = 2;
+	private final static long SHRINK_COUNT_INCREMENT = 4;
+	private final static int SPIN_COUNT = 100;
+
+	// results of nodeCondition() which are not a new height
+	private final static int UNLINK_REQUIRED = -2;
+	private final static int REBALANCE_REQUIRED = -3;
+	private final static int NOTHING_REQUIRED = -4;
+
+	private final static Object RETRY = new Object();
+
+	// sentinel whose right child is the root, so that the root has a lockable parent
+	private final Node holder = new Node(0, null, null);
+	private final LongAdder size = new LongAdder();
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Returns the info of an item with key k if it exists in the tree, otherwise null.
+	 * Complexity - O(log n), lock-free unless it meets a rotation in progress
+	 */
+	public String search(int k) {
+		while(true) {
+			Node right = holder.right;
+			if(right == null) {
+				return null;
+			}
+			int rightKey = right.key;
+			if(k == rightKey) {
+				return right.value;
+			}
+			long ovl = right.version;
+			if(isShrinkingOrUnlinked(ovl)) {
+				right.waitUntilShrinkCompleted(ovl);
+			}
+			else if(right == holder.right) {
+				Object result = attemptSearch(k, right, k < rightKey ? AVLTree.LEFT : AVLTree.RIGHT, ovl);
+				if(result != RETRY) {
+					return (String) result;
+				}
+			}
+		}
+	}
+
+	/**
+	 * public boolean insert(int k, String i)
+	 *
+	 * Inserts an item with key k and info i.
+	 * Returns false if an item with key k already exists in the tree.
+	 * Complexity - O(log n)
+	 */
+	public boolean insert(int k, String i) {
+		if(update(k, i) == null) {
+			size.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * public boolean delete(int k)
+	 *
+	 * Deletes the item with key k. Returns false if it was not found in the tree.
+	 * Complexity - O(log n)
+	 */
+	public boolean delete(int k) {
+		if(update(k, null) != null) {
+			size.decrement();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in the tree. Exact only while no writer is active.
+	 * Complexity - O(number of threads)
+	 */
+	public int size() {
+		return size.intValue();
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * Returns true if and only if the tree is empty.
+	 * Complexity - O(number of threads)
+	 */
+	public boolean empty() {
+		return size() == 0;
+	}
+
+	/**
+	 * public int height()
+	 *
+	 * Returns the height of the tree (-1 for an empty tree), including routing nodes.
+	 * Complexity - O(1)
+	 */
+	public int height() {
+		return height(holder.right);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array of the keys in the tree.
+	 * Only a consistent snapshot while no writer is active.
+	 * Complexity - O(n)
+	 */
+	public int[] keysToArray() {
+		int[] result = new int[Math.max(16, size())];
+		int count = 0;
+		ArrayDeque<Node> stack = new ArrayDeque<>();
+		Node ptr = holder.right;
+
+		while(ptr != null || !stack.isEmpty()) {
+			if(ptr != null) {
+				stack.push(ptr);
+				ptr = ptr.left;
+			}
+			else {
+				Node node = stack.pop();
+				// skip routing nodes
+				if(node.value != null) {
+					if(count == result.length) {
+						result = Arrays.copyOf(result, count * 2);
+					}
+					result[count++] = node.key;
+				}
+				ptr = node.right;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * private Object attemptSearch(int k, Node node, int dir, long nodeOVL)
+	 *
+	 * Searches k below node, which was reached while node.version was nodeOVL.
+	 * Returns RETRY if node shrank in the meantime and the parent must search again.
+	 */
+	private Object attemptSearch(int k, Node node, int dir, long nodeOVL) {
+		while(true) {
+			Node child = node.child(dir);
+			if(child == null) {
+				if(node.version != nodeOVL) {
+					return RETRY;
+				}
+				return null;
+			}
+
+			int childKey = child.key;
+			if(childKey == k) {
+				return child.value;
+			}
+
+			long childOVL = child.version;
+			if(isShrinkingOrUnlinked(childOVL)) {
+				child.waitUntilShrinkCompleted(childOVL);
+				if(node.version != nodeOVL) {
+					return RETRY;
+				}
+			}
+			else if(child != node.child(dir)) {
+				if(node.version != nodeOVL) {
+					return RETRY;
+				}
+			}
+			else {
+				if(node.version != nodeOVL) {
+					return RETRY;
+				}
+				// the link node -> child is valid, node may shrink from now on
+				Object result = attemptSearch(k, child, k < childKey ? AVLTree.LEFT : AVLTree.RIGHT, childOVL);
+				if(result != RETRY) {
+					return result;
+				}
+			}
+		}
+	}
+
+	/**
+	 * private Object update(int k, String newValue)
+	 *
+	 * Inserts k with newValue if k is absent, or removes k if newValue == null.
+	 * Returns the previous value of k (null if it was absent).
+	 */
+	private Object update(int k, String newValue) {
+		while(true) {
+			Node right = holder.right;
+			if(right == null) {
+				if(newValue == null || attemptInsertIntoEmpty(k, newValue)) {
+					return null;
+				}
+			}
+			else {
+				long ovl = right.version;
+				if(isShrinkingOrUnlinked(ovl)) {
+					right.waitUntilShrinkCompleted(ovl);
+				}
+				else if(right == holder.right) {
+					Object result = attemptUpdate(k, newValue, holder, right, ovl);
+					if(result != RETRY) {
+						return result;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * private boolean attemptInsertIntoEmpty(int k, String value)
+	 *
+	 * Sets a new root if the tree is still empty.
+	 */
+	private boolean attemptInsertIntoEmpty(int k, String value) {
+		synchronized(holder) {
+			if(holder.right == null) {
+				holder.right = new Node(k, value, holder);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * private Object attemptUpdate(int k, String newValue, Node parent, Node node, long nodeOVL)
+	 *
+	 * Update step of update() at node, which was reached from parent while node.version
+	 * was nodeOVL. Returns RETRY if parent must retry.
+	 */
+	private Object attemptUpdate(int k, String newValue, Node parent, Node node, long nodeOVL) {
+		if(k == node.key) {
+			return attemptNodeUpdate(newValue, parent, node);
+		}
+
+		int dir = k < node.key ? AVLTree.LEFT : AVLTree.RIGHT;
+		while(true) {
+			Node child = node.child(dir);
+			if(node.version != nodeOVL) {
+				return RETRY;
+			}
+
+			if(child == null) {
+				if(newValue == null) {
+					return null; // nothing to remove
+				}
+
+				boolean inserted;
+				Node damaged;
+				synchronized(node) {
+					// once node is locked no rotation can move the insertion point
+					if(node.version != nodeOVL) {
+						return RETRY;
+					}
+					if(node.child(dir) != null) {
+						// lost a race with another insert, retry from node
+						inserted = false;
+						damaged = null;
+					}
+					else {
+						node.setChild(dir, new Node(k, newValue, node));
+						inserted = true;
+						damaged = fixHeight_nl(node);
+					}
+				}
+				if(inserted) {
+					fixHeightAndRebalance(damaged);
+					return null;
+				}
+			}
+			else {
+				long childOVL = child.version;
+				if(isShrinkingOrUnlinked(childOVL)) {
+					child.waitUntilShrinkCompleted(childOVL);
+				}
+				else if(child == node.child(dir)) {
+					if(node.version != nodeOVL) {
+						return RETRY;
+					}
+					Object result = attemptUpdate(k, newValue, node, child, childOVL);
+					if(result != RETRY) {
+						return result;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * private Object attemptNodeUpdate(String newValue, Node parent, Node node)
+	 *
+	 * Performs the update on the node holding the key. A removed node with less than
+	 * two children is unlinked, otherwise it stays as a routing node.
+	 */
+	private Object attemptNodeUpdate(String newValue, Node parent, Node node) {
+		if(newValue == null && node.value == null) {
+			return null; // already removed
+		}
+
+		if(newValue == null && (node.left == null || node.right == null)) {
+			// unlink, which needs the lock of the parent as well
+			String prev;
+			Node damaged;
+			synchronized(parent) {
+				if(isUnlinked(parent.version) || node.parent != parent) {
+					return RETRY;
+				}
+				synchronized(node) {
+					prev = node.value;
+					if(prev == null) {
+						return null;
+					}
+					if(!attemptUnlink_nl(parent, node)) {
+						return RETRY;
+					}
+				}
+				damaged = fixHeight_nl(parent);
+			}
+			fixHeightAndRebalance(damaged);
+			return prev;
+		}
+
+		synchronized(node) {
+			if(isUnlinked(node.version)) {
+				return RETRY;
+			}
+			String prev = node.value;
+			if(newValue != null ? prev != null : prev == null) {
+				return prev; // insert of an existing key, or removal of a routing node
+			}
+			if(newValue == null && (node.left == null || node.right == null)) {
+				return RETRY; // lost a child meanwhile, so it must be unlinked instead
+			}
+			node.value = newValue;
+			return prev;
+		}
+	}
+
+	/**
+	 * private boolean attemptUnlink_nl(Node parent, Node node)
+	 *
+	 * Splices out node, which has at most one child.
+	 * @pre parent and node are locked
+	 */
+	private boolean attemptUnlink_nl(Node parent, Node node) {
+		Node parentLeft = parent.left;
+		Node parentRight = parent.right;
+		if(parentLeft != node && parentRight != node) {
+			return false;
+		}
+
+		Node left = node.left;
+		Node right = node.right;
+		if(left != null && right != null) {
+			return false;
+		}
+		Node splice = left != null ? left : right;
+
+		if(parentLeft == node) {
+			parent.left = splice;
+		}
+		else {
+			parent.right = splice;
+		}
+		if(splice != null) {
+			splice.parent = parent;
+		}
+
+		node.version = UNLINKED;
+		node.value = null;
+		return true;
+	}
+
+	/**
+	 * private int nodeCondition(Node node)
+	 *
+	 * Returns UNLINK_REQUIRED, REBALANCE_REQUIRED, NOTHING_REQUIRED,
+	 * or the new height of node if only its height is wrong.
+	 */
+	private int nodeCondition(Node node) {
+		Node left = node.left;
+		Node right = node.right;
+
+		if((left == null || right == null) && node.value == null) {
+			return UNLINK_REQUIRED;
+		}
+
+		int height = node.height;
+		int leftHeight = height(left);
+		int rightHeight = height(right);
+		int newHeight = 1 + Math.max(leftHeight, rightHeight);
+		int balance = leftHeight - rightHeight;
+
+		if(balance < -1 || balance > 1) {
+			return REBALANCE_REQUIRED;
+		}
+		return height != newHeight ? newHeight : NOTHING_REQUIRED;
+	}
+
+	/**
+	 * private void fixHeightAndRebalance(Node node)
+	 *
+	 * Walks up from a damaged node, fixing heights, unlinking routing nodes and rotating,
+	 * until no more repairs are needed.
+	 * Complexity - O(log n)
+	 */
+	private void fixHeightAndRebalance(Node node) {
+		while(node != null && node.parent != null) {
+			int condition = nodeCondition(node);
+			if(condition == NOTHING_REQUIRED || isUnlinked(node.version)) {
+				return;
+			}
+
+			if(condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized(node) {
+					node = fixHeight_nl(node);
+				}
+			}
+			else {
+				Node parent = node.parent;
+				synchronized(parent) {
+					if(!isUnlinked(parent.version) && node.parent == parent) {
+						synchronized(node) {
+							node = rebalance_nl(parent, node);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * private Node fixHeight_nl(Node node)
+	 *
+	 * Fixes the height of a locked node. Returns the next damaged node,
+	 * or null if no more repairs are needed.
+	 */
+	private Node fixHeight_nl(Node node) {
+		int condition = nodeCondition(node);
+		switch(condition) {
+			case REBALANCE_REQUIRED:
+			case UNLINK_REQUIRED:
+				return node;
+			case NOTHING_REQUIRED:
+				return null;
+			default:
+				node.height = condition;
+				return node.parent;
+		}
+	}
+
+	/**
+	 * private Node rebalance_nl(Node parent, Node node)
+	 *
+	 * Unlinks, rotates or fixes the height of node.
+	 * @pre parent and node are locked
+	 * Returns the next damaged node, or null if no more repairs are needed.
+	 */
+	private Node rebalance_nl(Node parent, Node node) {
+		Node left = node.left;
+		Node right = node.right;
+
+		if((left == null || right == null) && node.value == null) {
+			if(attemptUnlink_nl(parent, node)) {
+				return fixHeight_nl(parent);
+			}
+			return node;
+		}
+
+		int height = node.height;
+		int leftHeight = height(left);
+		int rightHeight = height(right);
+		int newHeight = 1 + Math.max(leftHeight, rightHeight);
+		int balance = leftHeight - rightHeight;
+
+		if(balance > 1) {
+			return rebalanceToRight_nl(parent, node, left, rightHeight);
+		}
+		else if(balance < -1) {
+			return rebalanceToLeft_nl(parent, node, right, leftHeight);
+		}
+		else if(newHeight != height) {
+			node.height = newHeight;
+			return fixHeight_nl(parent);
+		}
+		return null;
+	}
+
+	/**
+	 * private Node rebalanceToRight_nl(Node parent, Node n, Node nL, int hR0)
+	 *
+	 * n is left-heavy: rotate right, or left-right if nL is right-heavy.
+	 */
+	private Node rebalanceToRight_nl(Node parent, Node n, Node nL, int hR0) {
+		synchronized(nL) {
+			int hL = nL.height;
+			if(hL - hR0 <= 1) {
+				return n; // retry
+			}
+			Node nLR = nL.right;
+			int hLL0 = height(nL.left);
+			int hLR0 = height(nLR);
+			if(hLL0 >= hLR0) {
+				return rotateRight_nl(parent, n, nL, hR0, hLL0, nLR, hLR0);
+			}
+			synchronized(nLR) {
+				int hLR = nLR.height;
+				if(hLL0 >= hLR) {
+					return rotateRight_nl(parent, n, nL, hR0, hLL0, nLR, hLR);
+				}
+				int hLRL = height(nLR.left);
+				int balance = hLL0 - hLRL;
+				// only rotate twice if nL does not end up unbalanced or a removable routing node
+				if(balance >= -1 && balance <= 1 && !((hLL0 == -1 || hLRL == -1) && nL.value == null)) {
+					return rotateRightOverLeft_nl(parent, n, nL, hR0, hLL0, nLR, hLRL);
+				}
+			}
+			// fix nL first, n is repaired afterwards if needed
+			return rebalanceToLeft_nl(n, nL, nLR, hLL0);
+		}
+	}
+
+	/**
+	 * private Node rebalanceToLeft_nl(Node parent, Node n, Node nR, int hL0)
+	 *
+	 * n is right-heavy: rotate left, or right-left if nR is left-heavy.
+	 */
+	private Node rebalanceToLeft_nl(Node parent, Node n, Node nR, int hL0) {
+		synchronized(nR) {
+			int hR = nR.height;
+			if(hL0 - hR >= -1) {
+				return n; // retry
+			}
+			Node nRL = nR.left;
+			int hRL0 = height(nRL);
+			int hRR0 = height(nR.right);
+			if(hRR0 >= hRL0) {
+				return rotateLeft_nl(parent, n, hL0, nR, nRL, hRL0, hRR0);
+			}
+			synchronized(nRL) {
+				int hRL = nRL.height;
+				if(hRR0 >= hRL) {
+					return rotateLeft_nl(parent, n, hL0, nR, nRL, hRL, hRR0);
+				}
+				int hRLR = height(nRL.right);
+				int balance = hRR0 - hRLR;
+				if(balance >= -1 && balance <= 1 && !((hRR0 == -1 || hRLR == -1) && nR.value == null)) {
+					return rotateLeftOverRight_nl(parent, n, hL0, nR, nRL, hRR0, hRLR);
+				}
+			}
+			return rebalanceToRight_nl(n, nR, nRL, hRR0);
+		}
+	}
+
+	/**
+	 * private Node rotateRight_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR, int hLR)
+	 *
+	 * Single right rotation of n, as rotateRight(IAVLNode) of AVLTree.
+	 * n shrinks, so its version changes.
+	 */
+	private Node rotateRight_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR, int hLR) {
+		long nodeOVL = n.version;
+		Node parentLeft = parent.left;
+
+		n.version = beginShrink(nodeOVL);
+
+		n.left = nLR;
+		if(nLR != null) {
+			nLR.parent = n;
+		}
+		nL.right = n;
+		n.parent = nL;
+		if(parentLeft == n) {
+			parent.left = nL;
+		}
+		else {
+			parent.right = nL;
+		}
+		nL.parent = parent;
+
+		int hNRepl = 1 + Math.max(hLR, hR);
+		n.height = hNRepl;
+		nL.height = 1 + Math.max(hLL, hNRepl);
+
+		n.version = endShrink(nodeOVL);
+
+		// n is the deepest damaged node, then nL, then parent
+		int balanceN = hLR - hR;
+		if(balanceN < -1 || balanceN > 1) {
+			return n;
+		}
+		if((nLR == null || hR == -1) && n.value == null) {
+			return n;
+		}
+		int balanceL = hLL - hNRepl;
+		if(balanceL < -1 || balanceL > 1) {
+			return nL;
+		}
+		if(hLL == -1 && nL.value == null) {
+			return nL;
+		}
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * private Node rotateLeft_nl(Node parent, Node n, int hL, Node nR, Node nRL, int hRL, int hRR)
+	 *
+	 * Single left rotation of n, as rotateLeft(IAVLNode) of AVLTree.
+	 */
+	private Node rotateLeft_nl(Node parent, Node n, int hL, Node nR, Node nRL, int hRL, int hRR) {
+		long nodeOVL = n.version;
+		Node parentLeft = parent.left;
+
+		n.version = beginShrink(nodeOVL);
+
+		n.right = nRL;
+		if(nRL != null) {
+			nRL.parent = n;
+		}
+		nR.left = n;
+		n.parent = nR;
+		if(parentLeft == n) {
+			parent.left = nR;
+		}
+		else {
+			parent.right = nR;
+		}
+		nR.parent = parent;
+
+		int hNRepl = 1 + Math.max(hL, hRL);
+		n.height = hNRepl;
+		nR.height = 1 + Math.max(hNRepl, hRR);
+
+		n.version = endShrink(nodeOVL);
+
+		int balanceN = hRL - hL;
+		if(balanceN < -1 || balanceN > 1) {
+			return n;
+		}
+		if((nRL == null || hL == -1) && n.value == null) {
+			return n;
+		}
+		int balanceR = hRR - hNRepl;
+		if(balanceR < -1 || balanceR > 1) {
+			return nR;
+		}
+		if(hRR == -1 && nR.value == null) {
+			return nR;
+		}
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * private Node rotateRightOverLeft_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR, int hLRL)
+	 *
+	 * Double rotation (left at nL, then right at n), as rotateDouble(y, LEFT, RIGHT) of AVLTree.
+	 * Both n and nL shrink.
+	 */
+	private Node rotateRightOverLeft_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR, int hLRL) {
+		long nodeOVL = n.version;
+		long leftOVL = nL.version;
+		Node parentLeft = parent.left;
+		Node nLRL = nLR.left;
+		Node nLRR = nLR.right;
+		int hLRR = height(nLRR);
+
+		n.version = beginShrink(nodeOVL);
+		nL.version = beginShrink(leftOVL);
+
+		n.left = nLRR;
+		if(nLRR != null) {
+			nLRR.parent = n;
+		}
+		nL.right = nLRL;
+		if(nLRL != null) {
+			nLRL.parent = nL;
+		}
+		nLR.left = nL;
+		nL.parent = nLR;
+		nLR.right = n;
+		n.parent = nLR;
+		if(parentLeft == n) {
+			parent.left = nLR;
+		}
+		else {
+			parent.right = nLR;
+		}
+		nLR.parent = parent;
+
+		int hNRepl = 1 + Math.max(hLRR, hR);
+		n.height = hNRepl;
+		int hLRepl = 1 + Math.max(hLL, hLRL);
+		nL.height = hLRepl;
+		nLR.height = 1 + Math.max(hLRepl, hNRepl);
+
+		n.version = endShrink(nodeOVL);
+		nL.version = endShrink(leftOVL);
+
+		int balanceN = hLRR - hR;
+		if(balanceN < -1 || balanceN > 1) {
+			return n;
+		}
+		if((nLRR == null || hR == -1) && n.value == null) {
+			return n;
+		}
+		int balanceLR = hLRepl - hNRepl;
+		if(balanceLR < -1 || balanceLR > 1) {
+			return nLR;
+		}
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * private Node rotateLeftOverRight_nl(Node parent, Node n, int hL, Node nR, Node nRL, int hRR, int hRLR)
+	 *
+	 * Double rotation (right at nR, then left at n), as rotateDouble(y, RIGHT, LEFT) of AVLTree.
+	 * Both n and nR shrink.
+	 */
+	private Node rotateLeftOverRight_nl(Node parent, Node n, int hL, Node nR, Node nRL, int hRR, int hRLR) {
+		long nodeOVL = n.version;
+		long rightOVL = nR.version;
+		Node parentLeft = parent.left;
+		Node nRLL = nRL.left;
+		Node nRLR = nRL.right;
+		int hRLL = height(nRLL);
+
+		n.version = beginShrink(nodeOVL);
+		nR.version = beginShrink(rightOVL);
+
+		n.right = nRLL;
+		if(nRLL != null) {
+			nRLL.parent = n;
+		}
+		nR.left = nRLR;
+		if(nRLR != null) {
+			nRLR.parent = nR;
+		}
+		nRL.right = nR;
+		nR.parent = nRL;
+		nRL.left = n;
+		n.parent = nRL;
+		if(parentLeft == n) {
+			parent.left = nRL;
+		}
+		else {
+			parent.right = nRL;
+		}
+		nRL.parent = parent;
+
+		int hNRepl = 1 + Math.max(hL, hRLL);
+		n.height = hNRepl;
+		int hRRepl = 1 + Math.max(hRLR, hRR);
+		nR.height = hRRepl;
+		nRL.height = 1 + Math.max(hNRepl, hRRepl);
+
+		n.version = endShrink(nodeOVL);
+		nR.version = endShrink(rightOVL);
+
+		int balanceN = hRLL - hL;
+		if(balanceN < -1 || balanceN > 1) {
+			return n;
+		}
+		if((nRLL == null || hL == -1) && n.value == null) {
+			return n;
+		}
+		int balanceRL = hRRepl - hNRepl;
+		if(balanceRL < -1 || balanceRL > 1) {
+			return nRL;
+		}
+		return fixHeight_nl(parent);
+	}
+
+	private static int height(Node node) {
+		return node == null ? -1 : node.height;
+	}
+
+	private static boolean isShrinkingOrUnlinked(long ovl) {
+		return (ovl & (SHRINKING | UNLINKED)) != 0;
+	}
+
+	private static boolean isUnlinked(long ovl) {
+		return (ovl & UNLINKED) != 0;
+	}
+
+	private static long beginShrink(long ovl) {
+		return ovl | SHRINKING;
+	}
+
+	private static long endShrink(long ovl) {
+		return ovl + SHRINK_COUNT_INCREMENT;
+	}
+
+	/**
+	 * private static final class Node
+	 *
+	 * Node of a ConcurrentAVLTree. Missing children are null rather than virtual nodes,
+	 * and a null value marks a routing node whose key was deleted.
+	 */
+	private static final class Node {
+		private final int key;
+		private volatile String value;
+		private volatile int height;
+		private volatile long version;
+		private volatile Node parent;
+		private volatile Node left;
+		private volatile Node right;
+
+		private Node(int key, String value, Node parent) {
+			this.key = key;
+			this.value = value;
+			this.parent = parent;
+			this.height = 0;
+		}
+
+		private Node child(int dir) {
+			return dir == AVLTree.LEFT ? left : right;
+		}
+
+		private void setChild(int dir, Node node) {
+			if(dir == AVLTree.LEFT) {
+				left = node;
+			}
+			else {
+				right = node;
+			}
+		}
+
+		/**
+		 * Waits until the rotation that started at version ovl has finished.
+		 * A rotating thread holds the lock of the node, so after a short spin
+		 * we block on the lock instead of burning CPU.
+		 */
+		private void waitUntilShrinkCompleted(long ovl) {
+			if((ovl & SHRINKING) == 0) {
+				return;
+			}
+			for(int tries = 0; tries < SPIN_COUNT; tries++) {
+				if(version != ovl) {
+					return;
+				}
+				Thread.onSpinWait();
+			}
+			synchronized(this) {
+				// the rotation is over once we get the lock
+			}
+		}
+	}
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * public class DelimitedImporter
+ *
+ * Bulk loads an AVLTree from a text file of "key<delimiter>info" lines ('\n' or "\r\n" line ends).
+ * The file is cut into CHUNK_SIZE chunks at line ends, and the chunks are memory-mapped and
+ * parsed in parallel into primitive key arrays and byte slabs of the infos. All items are then
+ * sorted in parallel as packed (key, line number) longs, duplicates keep their first line
+ * (like repeated inserts would), and the tree is built bottom-up in O(n) by buildFromSorted.
+ *
+ * After load() the getters report the throughput and the peak heap usage of the last load.
+ */
+public class DelimitedImporter {
+
+	private final static long CHUNK_SIZE = 64L << 20;
+
+	private final int threads;
+	private final byte delimiter;
+	private long lines;
+	private long bytes;
+	private long nanos;
+	private long peakMemory;
+
+	/**
+	 * public DelimitedImporter(int threads, char delimiter)
+	 *
+	 * @pre threads >= 1, delimiter is an ASCII character other than '-', a digit or a line end
+	 */
+	public DelimitedImporter(int threads, char delimiter) {
+		this.threads = threads;
+		this.delimiter = (byte) delimiter;
+	}
+
+	/**
+	 * public AVLTree load(Path file)
+	 *
+	 * Returns a new tree with the items of file. Throws IOException on a malformed line.
+	 *
+	 * Complexity - O(n log n / threads) for the sort, O(n) for the rest
+	 */
+	public AVLTree load(Path file) throws IOException {
+		long start = System.nanoTime();
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for(MemoryPoolMXBean pool : pools) {
+			pool.resetPeakUsage();
+		}
+
+		AVLTree tree = new AVLTree();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, AVLTree.backgroundThreads("DelimitedImporter"));
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			this.bytes = channel.size();
+
+			// parse all chunks in parallel
+			long[] bounds = chunkBounds(channel);
+			List<Future<ParsedChunk>> futures = new ArrayList<>();
+			for(int c = 0; c + 1 < bounds.length; c++) {
+				long from = bounds[c];
+				long to = bounds[c + 1];
+				futures.add(workers.submit(() -> parse(channel, from, to)));
+			}
+			ParsedChunk[] chunks = new ParsedChunk[futures.size()];
+			int[] firstLine = new int[chunks.length + 1];
+			for(int c = 0; c < chunks.length; c++) {
+				chunks[c] = await(futures.get(c));
+				long total = (long) firstLine[c] + chunks[c].count;
+				if(total > Integer.MAX_VALUE) {
+					throw new IOException("more than " + Integer.MAX_VALUE + " lines");
+				}
+				firstLine[c + 1] = (int) total;
+			}
+			int n = firstLine[chunks.length];
+			this.lines = n;
+
+			// sort by key, then by line number
+			long[] order = new long[n];
+			for(int c = 0; c < chunks.length; c++) {
+				ParsedChunk chunk = chunks[c];
+				for(int j = 0; j < chunk.count; j++) {
+					order[firstLine[c] + j] = ((long) chunk.keys[j] << 32) | (firstLine[c] + j);
+				}
+			}
+			Arrays.parallelSort(order);
+
+			// keep the first line of every key
+			int distinct = 0;
+			for(int j = 0; j < n; j++) {
+				if(distinct == 0 || (int) (order[j] >> 32) != (int) (order[distinct - 1] >> 32)) {
+					order[distinct++] = order[j];
+				}
+			}
+
+			int[] keys = new int[distinct];
+			String[] info = new String[distinct];
+			int count = distinct;
+			List<Future<?>> decoded = new ArrayList<>();
+			int slice = Math.max(1, (count + threads - 1) / threads);
+			for(int from = 0; from < count; from += slice) {
+				int low = from;
+				int high = Math.min(count, from + slice);
+				decoded.add(workers.submit(() -> {
+					for(int j = low; j < high; j++) {
+						int line = (int) order[j];
+						int c = Arrays.binarySearch(firstLine, line);
+						if(c < 0) {
+							c = -c - 2;
+						}
+						else {
+							// skip chunks without lines
+							while(firstLine[c + 1] == line) {
+								c++;
+							}
+						}
+						keys[j] = (int) (order[j] >> 32);
+						info[j] = chunks[c].info(line - firstLine[c]);
+					}
+				}));
+			}
+			for(Future<?> future : decoded) {
+				await(future);
+			}
+
+			if(count > 0) {
+				tree.buildFromSorted(keys, info, count);
+			}
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		this.nanos = System.nanoTime() - start;
+		this.peakMemory = 0;
+		for(MemoryPoolMXBean pool : pools) {
+			if(pool.getType() == MemoryType.HEAP) {
+				this.peakMemory += pool.getPeakUsage().getUsed();
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * public long lines()
+	 *
+	 * Returns the number of items read by the last load, duplicates included.
+	 */
+	public long lines() {
+		return lines;
+	}
+
+	/**
+	 * public double linesPerSecond()
+	 *
+	 * Returns the lines per second of the last load.
+	 */
+	public double linesPerSecond() {
+		return lines * 1e9 / Math.max(1, nanos);
+	}
+
+	/**
+	 * public double megabytesPerSecond()
+	 *
+	 * Returns the MB (2^20 bytes) of input per second of the last load.
+	 */
+	public double megabytesPerSecond() {
+		return bytes * 1e9 / (1 << 20) / Math.max(1, nanos);
+	}
+
+	/**
+	 * public long peakMemory()
+	 *
+	 * Returns the peak heap usage in bytes during the last load, summed over the heap pools.
+	 */
+	public long peakMemory() {
+		return peakMemory;
+	}
+
+	/**
+	 * private long[] chunkBounds(FileChannel channel)
+	 *
+	 * Returns the chunk start offsets and the file size, every start is right after a '\n'.
+	 */
+	private long[] chunkBounds(FileChannel channel) throws IOException {
+		long size = channel.size();
+		ArrayList<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long position = CHUNK_SIZE;
+		while(position < size) {
+			// move forward to the next line start
+			probe.clear();
+			int read = channel.read(probe, position);
+			int newline = -1;
+			for(int j = 0; j < read; j++) {
+				if(probe.get(j) == '\n') {
+					newline = j;
+					break;
+				}
+			}
+			if(newline == -1) {
+				position += Math.max(read, 1);
+				continue;
+			}
+			position += newline + 1;
+			if(position < size) {
+				bounds.add(position);
+			}
+			position += CHUNK_SIZE;
+		}
+		bounds.add(size);
+
+		long[] result = new long[bounds.size()];
+		for(int j = 0; j < result.length; j++) {
+			result[j] = bounds.get(j);
+		}
+		return result;
+	}
+
+	/**
+	 * private ParsedChunk parse(FileChannel channel, long from, long to)
+	 *
+	 * Parses the lines in [from, to) of the file.
+	 * Complexity - O(to - from)
+	 */
+	private ParsedChunk parse(FileChannel channel, long from, long to) throws IOException {
+		MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		int length = (int) (to - from);
+		ParsedChunk chunk = new ParsedChunk(length);
+		int position = 0;
+
+		while(position < length) {
+			int lineStart = position;
+			byte b = in.get(position);
+			if(b == '\n' || b == '\r') {
+				position++; // blank line
+				continue;
+			}
+
+			boolean negative = b == '-';
+			if(negative) {
+				position++;
+			}
+			long key = 0;
+			int digits = 0;
+			while(position < length && (b = in.get(position)) >= '0' && b <= '9') {
+				key = key * 10 + (b - '0');
+				position++;
+				if(++digits > 10) {
+					break;
+				}
+			}
+			key = negative ? -key : key;
+			if(digits == 0 || digits > 10 || key < Integer.MIN_VALUE || key > Integer.MAX_VALUE
+					|| position == length || in.get(position) != delimiter) {
+				throw new IOException("malformed line at byte " + (from + lineStart));
+			}
+			position++;
+
+			int infoStart = position;
+			while(position < length && in.get(position) != '\n') {
+				position++;
+			}
+			int infoEnd = position;
+			if(infoEnd > infoStart && in.get(infoEnd - 1) == '\r') {
+				infoEnd--;
+			}
+			chunk.add((int) key, in, infoStart, infoEnd - infoStart);
+			position++;
+		}
+		return chunk;
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while importing", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("import failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,634 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * public class DurableAVLTree
+ *
+ * AVLTree whose mutations (insert, delete, split, join) are recorded in a write-ahead log.
+ * The state lives in a directory as snapshot-N (written by writeSnapshot, missing for N = 0)
+ * plus log-N, the mutations applied on top of it. checkpoint() writes snapshot-(N+1) and starts
+ * an empty log-(N+1), so a crash at any point leaves one complete snapshot/log pair.
+ *
+ * Log records are [int length][int CRC32][payload]. A torn or corrupt record at the tail of
+ * the log, left by a crash during a write, is discarded on recovery.
+ *
+ * A mutation appends its record to the log before it changes the tree, so a mutation whose
+ * append fails leaves the tree unchanged. After a failed write or fsync the log may have lost
+ * acknowledged records (a failed fsync clears the error on Linux, a later one would succeed),
+ * so every later mutation, sync() and checkpoint() throws that failure.
+ *
+ * Commits: by default records are buffered and fsync'ed once groupCommitBytes are pending, or
+ * at most groupCommitMillis after the oldest unsynced record (enforced by a background flusher).
+ * A crash can therefore lose the mutations of the last commit window; sync() makes everything
+ * written so far durable. In the waiting mode (groupCommitBytes = 0, or open with waitForSync)
+ * a mutation returns only once an fsync covers its record. Callers that arrive while an fsync
+ * runs wait for it and share the next one, so concurrent mutations are committed in groups.
+ *
+ * The tree and the log buffer are guarded by the object's monitor, fsyncs by a lock of their
+ * own, so reads don't wait for an fsync.
+ */
+public class DurableAVLTree implements Closeable {
+
+	private final static byte INSERT_RECORD = 1;
+	private final static byte DELETE_RECORD = 2;
+	private final static byte SPLIT_RECORD = 3;
+	private final static byte JOIN_RECORD = 4;
+	private final static int RECORD_HEADER = 8;
+
+	private final Path directory;
+	private final long groupCommitBytes;
+	private final long groupCommitNanos;
+	private final boolean waitForSync;
+	private final ScheduledExecutorService flusher;
+	private final CRC32 crc = new CRC32();
+	// held while an fsync runs, and by checkpoint() while it replaces the log
+	private final Object syncLock = new Object();
+
+	private AVLTree tree;
+	private long generation;
+	private FileChannel logChannel;
+	private AVLTree.BinaryWriter log;
+	private ByteBuffer record = ByteBuffer.allocate(256);
+	// offsets in the sequence of all records ever appended, across generations:
+	// appended to the buffer, handed to the channel, and covered by an fsync
+	private long appended = 0;
+	private volatile long written = 0;
+	private volatile long durable = 0;
+	private volatile long firstUnsyncedNanos = 0;
+	private volatile long syncs = 0;
+	// the first failed write or fsync, after which the log refuses writes
+	private volatile IOException failure;
+
+	/**
+	 * public static DurableAVLTree open(Path directory, long groupCommitBytes, long groupCommitMillis)
+	 *
+	 * Recovers the tree stored in directory (creating it if needed): loads the newest
+	 * snapshot and replays its log.
+	 *
+	 * Complexity - O(n + log length)
+	 */
+	public static DurableAVLTree open(Path directory, long groupCommitBytes, long groupCommitMillis) throws IOException {
+		return open(directory, groupCommitBytes, groupCommitMillis, groupCommitBytes == 0);
+	}
+
+	/**
+	 * public static DurableAVLTree open(Path directory, long groupCommitBytes, long groupCommitMillis, boolean waitForSync)
+	 *
+	 * Same as open(directory, groupCommitBytes, groupCommitMillis). If waitForSync, every
+	 * mutation returns once its record is durable, sharing fsyncs with concurrent mutations.
+	 *
+	 * Complexity - O(n + log length)
+	 */
+	public static DurableAVLTree open(Path directory, long groupCommitBytes, long groupCommitMillis,
+			boolean waitForSync) throws IOException {
+		Files.createDirectories(directory);
+
+		long generation = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*")) {
+			for(Path file : files) {
+				String suffix = file.getFileName().toString().substring("snapshot-".length());
+				if(suffix.matches("[0-9]+")) {
+					generation = Math.max(generation, Long.parseLong(suffix));
+				}
+			}
+		}
+		return new DurableAVLTree(directory, generation, groupCommitBytes, groupCommitMillis, waitForSync);
+	}
+
+	private DurableAVLTree(Path directory, long generation, long groupCommitBytes, long groupCommitMillis,
+			boolean waitForSync) throws IOException {
+		this.directory = directory;
+		this.generation = generation;
+		this.groupCommitBytes = groupCommitBytes;
+		this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+		this.waitForSync = waitForSync;
+
+		Path snapshot = directory.resolve("snapshot-" + generation);
+		this.tree = Files.exists(snapshot) ? AVLTree.readSnapshot(snapshot) : new AVLTree();
+		this.logChannel = FileChannel.open(logPath(generation), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		replay();
+		this.logChannel.position(this.logChannel.size());
+		this.log = new AVLTree.BinaryWriter(this.logChannel);
+		deleteOlderGenerations();
+
+		if(!waitForSync) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "DurableAVLTree-flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(1, groupCommitMillis);
+			this.flusher.scheduleWithFixedDelay(this::syncIfDue, period, period, TimeUnit.MILLISECONDS);
+		}
+		else {
+			this.flusher = null;
+		}
+	}
+
+	/**
+	 * public synchronized String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(log n)
+	 */
+	public synchronized String search(int k) {
+		return tree.search(k);
+	}
+
+	/**
+	 * public synchronized String min()
+	 *
+	 * Same as AVLTree.min()
+	 * Complexity - O(1)
+	 */
+	public synchronized String min() {
+		return tree.min();
+	}
+
+	/**
+	 * public synchronized String max()
+	 *
+	 * Same as AVLTree.max()
+	 * Complexity - O(1)
+	 */
+	public synchronized String max() {
+		return tree.max();
+	}
+
+	/**
+	 * public synchronized int size()
+	 *
+	 * Same as AVLTree.size()
+	 * Complexity - O(1)
+	 */
+	public synchronized int size() {
+		return tree.size();
+	}
+
+	/**
+	 * public synchronized int[] keysToArray()
+	 *
+	 * Same as AVLTree.keysToArray()
+	 * Complexity - O(n)
+	 */
+	public synchronized int[] keysToArray() {
+		return tree.keysToArray();
+	}
+
+	/**
+	 * public synchronized String[] infoToArray()
+	 *
+	 * Same as AVLTree.infoToArray()
+	 * Complexity - O(n)
+	 */
+	public synchronized String[] infoToArray() {
+		return tree.infoToArray();
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Same as AVLTree.insert(k, i), logged if the item is inserted.
+	 * Complexity - O(log n) amortized
+	 */
+	public int insert(int k, String i) throws IOException {
+		long end;
+		int result;
+		synchronized(this) {
+			checkFailure();
+			if(tree.findNode(k) != null) {
+				return -1;
+			}
+			startRecord(INSERT_RECORD);
+			AVLTree.putVarLong(record, AVLTree.zigzag(k));
+			putRecordString(i);
+			end = appendRecord();
+			result = tree.insert(k, i);
+		}
+		commit(end);
+		return result;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Same as AVLTree.delete(k), logged if the item is deleted.
+	 * Complexity - O(log n) amortized
+	 */
+	public int delete(int k) throws IOException {
+		long end;
+		int result;
+		synchronized(this) {
+			checkFailure();
+			if(tree.findNode(k) == null) {
+				return -1;
+			}
+			startRecord(DELETE_RECORD);
+			AVLTree.putVarLong(record, AVLTree.zigzag(k));
+			end = appendRecord();
+			result = tree.delete(k);
+		}
+		commit(end);
+		return result;
+	}
+
+	/**
+	 * public AVLTree split(int x)
+	 *
+	 * Splits like AVLTree.split(x). This tree keeps the keys smaller than x,
+	 * the keys bigger than x are returned as a new, not durable, tree.
+	 * Throws IllegalArgumentException, without logging, if x isn't in the tree: a logged split
+	 * that fails would fail again on every recovery.
+	 * Complexity - O(log n)
+	 */
+	public AVLTree split(int x) throws IOException {
+		long end;
+		AVLTree bigger;
+		synchronized(this) {
+			checkFailure();
+			if(tree.findNode(x) == null) {
+				throw new IllegalArgumentException("split key " + x + " is not in the tree");
+			}
+			startRecord(SPLIT_RECORD);
+			AVLTree.putVarLong(record, AVLTree.zigzag(x));
+			end = appendRecord();
+			AVLTree[] parts = tree.split(x);
+			tree = parts[0];
+			bigger = parts[1];
+		}
+		commit(end);
+		return bigger;
+	}
+
+	/**
+	 * public int join(IAVLNode x, AVLTree t)
+	 *
+	 * Same as AVLTree.join(x, t). The log record holds x and all items of t.
+	 * Throws IllegalArgumentException, without logging, unless keys(t) < x < keys()
+	 * or keys(t) > x > keys().
+	 * Complexity - O(|t|) for the log record, plus the join
+	 */
+	public int join(AVLTree.IAVLNode x, AVLTree t) throws IOException {
+		long end;
+		int result;
+		synchronized(this) {
+			checkFailure();
+			if(!joinable(x.getKey(), t)) {
+				throw new IllegalArgumentException("join key " + x.getKey() + " does not separate the two trees");
+			}
+			startRecord(JOIN_RECORD);
+			AVLTree.putVarLong(record, AVLTree.zigzag(x.getKey()));
+			putRecordString(x.getValue());
+			AVLTree.putVarLong(record, t.size());
+			AVLTree.InOrderWalk walk = new AVLTree.InOrderWalk(t.root);
+			for(AVLTree.IAVLNode node = walk.next(); node != null; node = walk.next()) {
+				ensureRecordCapacity(10);
+				AVLTree.putVarLong(record, AVLTree.zigzag(node.getKey()));
+				putRecordString(node.getValue());
+			}
+			end = appendRecord();
+			result = tree.join(x, t);
+		}
+		commit(end);
+		return result;
+	}
+
+	/**
+	 * Returns true if keys(t) < x < keys() or keys(t) > x > keys(), either tree may be empty.
+	 */
+	private boolean joinable(int x, AVLTree t) {
+		boolean below = (t.empty() || t.peekMaxKey() < x) && (tree.empty() || x < tree.peekMinKey());
+		boolean above = (t.empty() || t.peekMinKey() > x) && (tree.empty() || x > tree.peekMaxKey());
+		return below || above;
+	}
+
+	/**
+	 * public void sync()
+	 *
+	 * Makes all mutations so far durable. Throws the failure of an earlier write or fsync.
+	 * Complexity - at most one fsync
+	 */
+	public void sync() throws IOException {
+		syncThrough(-1);
+	}
+
+	/**
+	 * public long syncs()
+	 *
+	 * Returns the number of fsyncs of the log so far.
+	 * Complexity - O(1)
+	 */
+	public long syncs() {
+		return syncs;
+	}
+
+	/**
+	 * public void checkpoint()
+	 *
+	 * Writes the whole tree as the next snapshot and starts an empty log on top of it.
+	 * Complexity - O(n)
+	 */
+	public void checkpoint() throws IOException {
+		synchronized(syncLock) {
+			synchronized(this) {
+				checkFailure();
+				flushLog();
+				forceLog();
+				Path snapshot = directory.resolve("snapshot-" + (generation + 1));
+				Path temporary = directory.resolve("snapshot-" + (generation + 1) + ".tmp");
+				tree.writeSnapshot(temporary);
+				Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+				// from here on recovery starts from the new snapshot, the old pair is garbage
+				logChannel.close();
+				generation++;
+				logChannel = FileChannel.open(logPath(generation), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				log = new AVLTree.BinaryWriter(logChannel);
+				deleteOlderGenerations();
+			}
+		}
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * Syncs the log and releases the files. The object must not be used afterwards.
+	 * Throws the failure of an earlier write or fsync, after releasing the files.
+	 */
+	public void close() throws IOException {
+		if(flusher != null) {
+			// not shutdownNow(), an interrupt during an fsync would close the channel
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			sync();
+		}
+		finally {
+			synchronized(syncLock) {
+				synchronized(this) {
+					logChannel.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * private void commit(long end)
+	 *
+	 * Called after a mutation appended its record up to end, outside the monitor. Waits for the
+	 * fsync covering the record in the waiting mode, otherwise syncs once groupCommitBytes are pending.
+	 */
+	private void commit(long end) throws IOException {
+		if(waitForSync || end - durable >= groupCommitBytes) {
+			syncThrough(end);
+		}
+	}
+
+	/**
+	 * private void syncThrough(long target)
+	 *
+	 * Makes the records up to offset target (all appended records for -1) durable. The buffer
+	 * is written to the channel under the monitor, the fsync runs outside it under syncLock.
+	 * A caller that waited for syncLock returns without an fsync if the previous one covered it.
+	 */
+	private void syncThrough(long target) throws IOException {
+		synchronized(this) {
+			checkFailure();
+			if(target < 0) {
+				target = appended;
+			}
+			if(written < target) {
+				flushLog();
+			}
+		}
+		synchronized(syncLock) {
+			checkFailure();
+			if(durable < target) {
+				forceLog();
+			}
+		}
+	}
+
+	/**
+	 * private void flushLog()
+	 *
+	 * Writes the buffered records to the channel. Called under the monitor.
+	 */
+	private void flushLog() throws IOException {
+		try {
+			log.flush();
+		}
+		catch(IOException e) {
+			fail(e);
+			throw e;
+		}
+		written = appended;
+	}
+
+	/**
+	 * private void forceLog()
+	 *
+	 * fsyncs the log, which makes everything written before durable. Called under syncLock.
+	 */
+	private void forceLog() throws IOException {
+		long covered = written;
+		try {
+			logChannel.force(false);
+		}
+		catch(IOException e) {
+			fail(e);
+			throw e;
+		}
+		syncs++;
+		durable = Math.max(durable, covered);
+	}
+
+	private void fail(IOException e) {
+		if(failure == null) {
+			failure = e;
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		IOException cause = failure;
+		if(cause != null) {
+			throw new IOException("the log failed earlier, mutations since the last sync may be lost", cause);
+		}
+	}
+
+	/**
+	 * private void syncIfDue()
+	 *
+	 * Called by the flusher, syncs once the oldest unsynced record waited groupCommitMillis.
+	 * A failure is kept in failure and thrown to the next caller.
+	 */
+	private void syncIfDue() {
+		if(durable < appendedSnapshot() && System.nanoTime() - firstUnsyncedNanos >= groupCommitNanos) {
+			try {
+				sync();
+			}
+			catch(IOException e) {
+				// kept in failure by flushLog or forceLog
+			}
+		}
+	}
+
+	private synchronized long appendedSnapshot() {
+		return appended;
+	}
+
+	private void startRecord(byte type) {
+		record.clear();
+		record.put(type);
+	}
+
+	private void putRecordString(String value) {
+		byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		ensureRecordCapacity(10 + (bytes == null ? 0 : bytes.length));
+		AVLTree.putString(record, bytes);
+	}
+
+	private void ensureRecordCapacity(int bytes) {
+		if(record.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+			record.flip();
+			bigger.put(record);
+			record = bigger;
+		}
+	}
+
+	/**
+	 * private long appendRecord()
+	 *
+	 * Appends the record built in record to the log buffer and returns the offset of its end.
+	 * Called under the monitor. A failed write leaves a torn record, so it fails the log.
+	 */
+	private long appendRecord() throws IOException {
+		int length = record.position();
+		crc.reset();
+		crc.update(record.array(), 0, length);
+
+		try {
+			log.writeInt(length);
+			log.writeInt((int) crc.getValue());
+			log.writeBytes(record.array(), 0, length);
+		}
+		catch(IOException e) {
+			fail(e);
+			throw e;
+		}
+
+		if(appended == durable) {
+			firstUnsyncedNanos = System.nanoTime();
+		}
+		appended += RECORD_HEADER + length;
+		return appended;
+	}
+
+	/**
+	 * private void replay()
+	 *
+	 * Applies all complete records of the log to the tree, and cuts off a torn tail.
+	 * Complexity - O(log length * log n)
+	 */
+	private void replay() throws IOException {
+		long size = logChannel.size();
+		if(size == 0) {
+			return;
+		}
+		AVLTree.MappedReader in = new AVLTree.MappedReader(logChannel);
+		byte[] payload = new byte[256];
+		long end = 0;
+
+		while(size - in.position() >= RECORD_HEADER) {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if(length <= 0 || size - in.position() < length) {
+				break;
+			}
+			if(payload.length < length) {
+				payload = new byte[Math.max(length, payload.length * 2)];
+			}
+			in.readBytes(payload, length);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if((int) crc.getValue() != checksum) {
+				break;
+			}
+			apply(ByteBuffer.wrap(payload, 0, length));
+			end = in.position();
+		}
+
+		if(end < size) {
+			logChannel.truncate(end);
+		}
+	}
+
+	/**
+	 * private void apply(ByteBuffer payload)
+	 *
+	 * Re-applies one logged mutation.
+	 */
+	private void apply(ByteBuffer payload) {
+		byte type = payload.get();
+		int key = AVLTree.unzigzag(AVLTree.getVarLong(payload));
+		switch(type) {
+			case INSERT_RECORD:
+				tree.insert(key, AVLTree.getString(payload));
+				break;
+			case DELETE_RECORD:
+				tree.delete(key);
+				break;
+			case SPLIT_RECORD:
+				tree = tree.split(key)[0];
+				break;
+			case JOIN_RECORD:
+				String info = AVLTree.getString(payload);
+				int count = (int) AVLTree.getVarLong(payload);
+				int[] keys = new int[count];
+				String[] values = new String[count];
+				for(int j = 0; j < count; j++) {
+					keys[j] = AVLTree.unzigzag(AVLTree.getVarLong(payload));
+					values[j] = AVLTree.getString(payload);
+				}
+				AVLTree t = new AVLTree();
+				t.buildFromSorted(keys, values, count);
+				tree.join(tree.new AVLNode(key, info, true), t);
+				break;
+		}
+	}
+
+	private Path logPath(long generation) {
+		return directory.resolve("log-" + generation);
+	}
+
+	private void deleteOlderGenerations() throws IOException {
+		for(long older = generation - 1; older >= 0; older--) {
+			boolean snapshotDeleted = Files.deleteIfExists(directory.resolve("snapshot-" + older));
+			boolean logDeleted = Files.deleteIfExists(logPath(older));
+			if(!snapshotDeleted && !logDeleted && older > 0) {
+				break; // cleaned up by an earlier checkpoint
+			}
+		}
+	}
+}
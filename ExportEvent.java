@@ -0,0 +1,22 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("AVLTree.Export")
+@Label("AVLTree Export")
+@Category("AVLTree")
+@Description("keysToArray, infoToArray, exportKeys or exportInfo")
+@Threshold("0 ns")
+class ExportEvent extends Event {
+	@Label("Operation")
+	String operation;
+	@Label("Items")
+	int items;
+	@Label("Tree Size")
+	int treeSize;
+	@Label("Tree Height")
+	int treeHeight;
+}
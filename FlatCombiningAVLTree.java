@@ -0,0 +1,338 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * public class FlatCombiningAVLTree
+ *
+ * Thread-safe AVLTree with a flat-combining front end (Hendler, Incze, Shavit and Tzafrir,
+ * "Flat Combining and the Synchronization-Parallelism Tradeoff", SPAA 2010).
+ *
+ * A thread publishes its operation in its own slot of a publication list and tries to become
+ * the combiner. The combiner collects all published operations, sorts them by key and applies
+ * the whole batch to the tree in one pass, handing each result (the rebalance count of
+ * insert/delete, or the info found by search) back through its slot.
+ * The other threads only spin on their own slot instead of fighting for the lock.
+ * Every CLEANUP_PERIOD passes the combiner unlinks the slots that stayed idle for RETIRE_AGE
+ * passes, so threads that stopped using the tree (or died) do not lengthen every later pass.
+ * A thread whose slot was retired puts it back at the head of the list on its next operation.
+ */
+public class FlatCombiningAVLTree {
+
+	private final static int NONE = 0;
+	private final static int SEARCH = 1;
+	private final static int INSERT = 2;
+	private final static int DELETE = 3;
+	private final static int SPIN_COUNT = 64;
+	private final static int CLEANUP_PERIOD = 64;
+	private final static int RETIRE_AGE = 256;
+
+	private final AVLTree tree;
+	private final ReentrantLock combinerLock = new ReentrantLock();
+	private final AtomicReference<Slot> slots = new AtomicReference<>();
+	private final ThreadLocal<Slot> mySlot = ThreadLocal.withInitial(this::registerSlot);
+
+	// only used by the combiner
+	private Slot[] batch = new Slot[16];
+	private long[] order = new long[16];
+	private int passes;
+
+	/**
+	 * public FlatCombiningAVLTree()
+	 *
+	 * Constructor of an empty tree
+	 * Complexity - O(1)
+	 */
+	public FlatCombiningAVLTree() {
+		this(new AVLTree());
+	}
+
+	/**
+	 * public FlatCombiningAVLTree(AVLTree tree)
+	 *
+	 * Wraps an existing tree. The caller must not access tree afterwards.
+	 * Complexity - O(1)
+	 */
+	public FlatCombiningAVLTree(AVLTree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(log n), plus waiting for the current batch
+	 */
+	public String search(int k) {
+		return execute(SEARCH, k, null).found;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Same as AVLTree.insert(k, i), returns the rebalance count or -1.
+	 * Complexity - O(log n), plus waiting for the current batch
+	 */
+	public int insert(int k, String i) {
+		return execute(INSERT, k, i).result;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Same as AVLTree.delete(k), returns the rebalance count or -1.
+	 * Complexity - O(log n), plus waiting for the current batch
+	 */
+	public int delete(int k) {
+		return execute(DELETE, k, null).result;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Same as AVLTree.size()
+	 * Complexity - O(1), plus waiting for the current batch
+	 */
+	public int size() {
+		combinerLock.lock();
+		try {
+			return tree.size();
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Same as AVLTree.min()
+	 * Complexity - O(1), plus waiting for the current batch
+	 */
+	public String min() {
+		combinerLock.lock();
+		try {
+			return tree.min();
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Same as AVLTree.max()
+	 * Complexity - O(1), plus waiting for the current batch
+	 */
+	public String max() {
+		combinerLock.lock();
+		try {
+			return tree.max();
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Same as AVLTree.keysToArray()
+	 * Complexity - O(n)
+	 */
+	public int[] keysToArray() {
+		combinerLock.lock();
+		try {
+			return tree.keysToArray();
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	/**
+	 * public int publicationSlots()
+	 *
+	 * Returns the number of slots currently linked into the publication list.
+	 * Complexity - O(t), t = number of slots, plus waiting for the current batch
+	 */
+	public int publicationSlots() {
+		combinerLock.lock();
+		try {
+			int count = 0;
+			for(Slot slot = slots.get(); slot != null; slot = slot.next) {
+				count++;
+			}
+			return count;
+		}
+		finally {
+			combinerLock.unlock();
+		}
+	}
+
+	/**
+	 * private Slot execute(int request, int k, String i)
+	 *
+	 * Publishes the operation and waits until some combiner, possibly this thread, applied it.
+	 */
+	private Slot execute(int request, int k, String i) {
+		Slot slot = mySlot.get();
+		slot.key = k;
+		slot.value = i;
+		slot.request = request; // volatile write publishes key and value
+
+		for(int spins = 0; ; spins++) {
+			// checked on every round: the combiner may have read the slot as idle just before
+			// the request was published and retired it afterwards
+			if(!slot.active) {
+				reactivate(slot);
+			}
+			if(combinerLock.tryLock()) {
+				try {
+					combine();
+				}
+				finally {
+					combinerLock.unlock();
+				}
+			}
+			if(slot.request == NONE) {
+				slot.value = null;
+				return slot;
+			}
+			if(spins < SPIN_COUNT) {
+				Thread.onSpinWait();
+			}
+			else {
+				// the combiner may not be running, e.g. when there are more threads than cores
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * private void combine()
+	 *
+	 * Applies all published operations in key order.
+	 * @pre combinerLock is held
+	 * Complexity - O(t log t + t log n), t = number of published operations
+	 */
+	private void combine() {
+		passes++;
+		int count = 0;
+		for(Slot slot = slots.get(); slot != null; slot = slot.next) {
+			if(slot.request != NONE) {
+				slot.lastPass = passes;
+				if(count == batch.length) {
+					batch = Arrays.copyOf(batch, count * 2);
+					order = new long[count * 2];
+				}
+				batch[count++] = slot;
+			}
+		}
+
+		// sort by key, ties by publication order: key in the high bits, index in the low bits
+		for(int j = 0; j < count; j++) {
+			order[j] = ((long) batch[j].key << 32) | j;
+		}
+		Arrays.sort(order, 0, count);
+
+		for(int j = 0; j < count; j++) {
+			Slot slot = batch[(int) order[j]];
+			switch(slot.request) {
+				case SEARCH:
+					slot.found = tree.search(slot.key);
+					break;
+				case INSERT:
+					slot.result = tree.insert(slot.key, slot.value);
+					break;
+				case DELETE:
+					slot.result = tree.delete(slot.key);
+					break;
+			}
+			slot.request = NONE; // volatile write hands the result back
+			batch[(int) order[j]] = null;
+		}
+
+		if(passes % CLEANUP_PERIOD == 0) {
+			retireIdleSlots();
+		}
+	}
+
+	/**
+	 * private void retireIdleSlots()
+	 *
+	 * Unlinks the slots that published nothing during the last RETIRE_AGE passes.
+	 * The head is never unlinked, registering threads only ever swap it, so every other
+	 * next pointer is written by the combiner alone.
+	 * @pre combinerLock is held
+	 * Complexity - O(t), t = number of slots
+	 */
+	private void retireIdleSlots() {
+		Slot prev = slots.get();
+		if(prev == null) {
+			return;
+		}
+		for(Slot slot = prev.next; slot != null; slot = prev.next) {
+			if(slot.request == NONE && passes - slot.lastPass >= RETIRE_AGE) {
+				prev.next = slot.next;
+				slot.active = false; // volatile write, the owner re-registers after seeing it
+			}
+			else {
+				prev = slot;
+			}
+		}
+	}
+
+	/**
+	 * private Slot registerSlot()
+	 *
+	 * Adds a slot for the calling thread to the head of the publication list.
+	 * Complexity - O(1) expected
+	 */
+	private Slot registerSlot() {
+		Slot slot = new Slot();
+		push(slot);
+		return slot;
+	}
+
+	/**
+	 * private void reactivate(Slot slot)
+	 *
+	 * Links a retired slot of the calling thread back into the publication list.
+	 * Complexity - O(1) expected
+	 */
+	private void reactivate(Slot slot) {
+		slot.active = true;
+		push(slot);
+	}
+
+	/**
+	 * private void push(Slot slot)
+	 *
+	 * Adds slot to the head of the publication list.
+	 * Complexity - O(1) expected
+	 */
+	private void push(Slot slot) {
+		do {
+			slot.next = slots.get();
+		} while(!slots.compareAndSet(slot.next, slot));
+	}
+
+	/**
+	 * private static class Slot
+	 *
+	 * Publication record of one thread. request != NONE while an operation is pending,
+	 * active is false while the slot is unlinked from the publication list.
+	 */
+	private static class Slot {
+		private volatile int request = NONE;
+		private volatile boolean active = true;
+		private int key;
+		private String value;
+		private int result;
+		private String found;
+		private int lastPass;
+		private Slot next;
+	}
+}
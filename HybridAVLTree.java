@@ -0,0 +1,208 @@
+/**
+ * public class HybridAVLTree
+ *
+ * AVLTree with a hash index of its nodes, for workloads dominated by exact-key lookups.
+ * The index maps every key to its node, so search, the duplicate check of insert and finding
+ * the node to delete take O(1) expected instead of a descent from the root; insert and delete
+ * still re-balance the tree. min, max, range queries, split and join use the tree. Nodes keep
+ * their identity through rotations, split and join, so the index stays valid as the tree changes.
+ * The index costs a key and a reference per slot, at 1/4 to 1/2 of the slots used.
+ *
+ * The wrapped tree must not be used directly once it is wrapped.
+ */
+public class HybridAVLTree {
+
+	final AVLTree tree;
+	private NodeIndex index;
+
+	/**
+	 * public HybridAVLTree()
+	 *
+	 * Constructor of an empty hybrid tree
+	 * Complexity - O(1)
+	 */
+	public HybridAVLTree() {
+		this(new AVLTree(), new NodeIndex(0));
+	}
+
+	/**
+	 * public HybridAVLTree(AVLTree tree)
+	 *
+	 * Wraps an existing tree and indexes its nodes. The caller must not access tree afterwards.
+	 * Throws IllegalArgumentException for a bounded tree, a tree recording a workload, or one with
+	 * metrics: inserts through the index skip eviction, the trace and the metrics.
+	 * Complexity - O(n)
+	 */
+	public HybridAVLTree(AVLTree tree) {
+		this(tree, new NodeIndex(tree.size));
+		if(tree.capacity > 0 || tree.trace != null || tree.metrics != null) {
+			throw new IllegalArgumentException("a bounded, recording or measured tree can't be wrapped");
+		}
+		AVLTree.InOrderWalk walk = new AVLTree.InOrderWalk(tree.root);
+		for(AVLTree.IAVLNode node = walk.next(); node != null; node = walk.next()) {
+			index.put(node.getKey(), node);
+		}
+	}
+
+	private HybridAVLTree(AVLTree tree, NodeIndex index) {
+		this.tree = tree;
+		this.index = index;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(1) expected
+	 */
+	public String search(int k) {
+		AVLTree.IAVLNode node = index.get(k);
+		return node == null ? null : node.getValue();
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Same as AVLTree.insert(k, i). An existing key is rejected by the index,
+	 * otherwise a single descent finds where the new node goes.
+	 * Complexity - O(log n), O(1) expected for an existing key
+	 */
+	public int insert(int k, String i) {
+		if(index.get(k) != null) {
+			return -1;
+		}
+		if(tree.empty()) {
+			tree.insert(k, i);
+			index.put(k, tree.root);
+			return 0;
+		}
+		AVLTree.IAVLNode node = tree.new AVLNode(k, i, true);
+		tree.markChanged(k);
+		int result = tree.insertAtVirtual(tree.descend(tree.root, k), node);
+		index.put(k, node);
+		return result;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Same as AVLTree.delete(k), starting from the node found in the index.
+	 * Complexity - O(log n), O(1) expected for a missing key
+	 */
+	public int delete(int k) {
+		AVLTree.IAVLNode node = index.remove(k);
+		if(node == null) {
+			return -1;
+		}
+		tree.markChanged(k);
+		return tree.deleteNode(node);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Same as AVLTree.min()
+	 * Complexity - O(1)
+	 */
+	public String min() {
+		return tree.min();
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Same as AVLTree.max()
+	 * Complexity - O(1)
+	 */
+	public String max() {
+		return tree.max();
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Same as AVLTree.size()
+	 * Complexity - O(1)
+	 */
+	public int size() {
+		return tree.size;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * Same as AVLTree.empty()
+	 * Complexity - O(1)
+	 */
+	public boolean empty() {
+		return tree.empty();
+	}
+
+	/**
+	 * public int[] keysInRange(int low, int high)
+	 *
+	 * Same as AVLTree.keysInRange(low, high)
+	 * Complexity - O(log n + r)
+	 */
+	public int[] keysInRange(int low, int high) {
+		return tree.keysInRange(low, high);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Same as AVLTree.keysToArray()
+	 * Complexity - O(n)
+	 */
+	public int[] keysToArray() {
+		return tree.keysToArray();
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Same as AVLTree.infoToArray()
+	 * Complexity - O(n)
+	 */
+	public String[] infoToArray() {
+		return tree.infoToArray();
+	}
+
+	/**
+	 * public HybridAVLTree[] split(int x)
+	 *
+	 * Same as AVLTree.split(x). The bigger part keeps the index and the keys of the
+	 * smaller part move to a new one.
+	 * Complexity - O(log n + size of the smaller part) expected
+	 */
+	public HybridAVLTree[] split(int x) {
+		AVLTree[] parts = tree.split(x);
+		index.remove(x);
+		int smaller = parts[0].size <= parts[1].size ? 0 : 1;
+		NodeIndex moved = new NodeIndex(parts[smaller].size);
+		AVLTree.InOrderWalk walk = new AVLTree.InOrderWalk(parts[smaller].root);
+		for(AVLTree.IAVLNode node = walk.next(); node != null; node = walk.next()) {
+			index.remove(node.getKey());
+			moved.put(node.getKey(), node);
+		}
+
+		HybridAVLTree[] result = new HybridAVLTree[2];
+		result[smaller] = new HybridAVLTree(parts[smaller], moved);
+		result[1 - smaller] = new HybridAVLTree(parts[1 - smaller], index);
+		return result;
+	}
+
+	/**
+	 * public int join(IAVLNode x, HybridAVLTree t)
+	 *
+	 * Same as AVLTree.join(x, t). The keys of the smaller tree are added to the index of the bigger one.
+	 * Complexity - O(|tree.root.height - t.root.height| + 1 + size of the smaller tree) expected
+	 */
+	public int join(AVLTree.IAVLNode x, HybridAVLTree t) {
+		NodeIndex bigger = t.size() > size() ? t.index : index;
+		bigger.putAll(bigger == index ? t.index : index);
+		bigger.put(x.getKey(), x);
+		index = bigger;
+		return tree.join(x, t.tree);
+	}
+}
@@ -0,0 +1,26 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("AVLTree.Join")
+@Label("AVLTree Join")
+@Category("AVLTree")
+@Description("A join of two trees")
+@Threshold("0 ns")
+class JoinEvent extends Event {
+	@Label("Join Key")
+	int key;
+	@Label("Tree Size")
+	int treeSize;
+	@Label("Other Tree Size")
+	int otherSize;
+	@Label("Tree Height")
+	@Description("Height of the joined tree")
+	int treeHeight;
+	@Label("Cost")
+	@Description("The value join returned")
+	int cost;
+}
@@ -0,0 +1,18 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.Threshold;
+
+@Name("AVLTree.LargeRebalance")
+@Label("AVLTree Large Rebalance")
+@Description("An insert or delete with at least as many re-balancing operations as the rebalancing setting")
+@Threshold("0 ns")
+class LargeRebalanceEvent extends UpdateEvent {
+	@Label("Re-balancing Threshold")
+	@Name("rebalancing")
+	@SettingDefinition
+	protected boolean rebalancingOver(RebalancingThreshold threshold) {
+		return rebalancing >= threshold.value;
+	}
+}
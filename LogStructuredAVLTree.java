@@ -0,0 +1,370 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * public class LogStructuredAVLTree
+ *
+ * Write optimized map in the style of an LSM tree. Writes go to an AVLTree memtable.
+ * When it holds memtableSize items it is frozen, a new memtable takes over, and a background
+ * thread streams the frozen tree in order to an immutable sorted run file (run-<seq>).
+ * A delete writes a tombstone, so it shadows older values in the runs.
+ *
+ * Reads consult the memtable, the frozen memtables and then the runs, newest first.
+ * When there are more than maxRuns runs, a second background thread merges all of them
+ * into one run (newest value wins, tombstones are dropped since nothing older is left).
+ *
+ * Memory is bounded by the memtable and at most MAX_FROZEN frozen memtables, writers wait
+ * when the flusher falls behind. Runs are durable once written, the memtables are lost
+ * on a crash unless close() or flush() was called.
+ *
+ * All public methods are synchronized.
+ */
+public class LogStructuredAVLTree implements Closeable {
+
+	private final static int MAX_FROZEN = 2;
+	// marks a deleted key in a memtable, compared by reference
+	private final static String TOMBSTONE = new String("tombstone");
+
+	private final Path directory;
+	private final int memtableSize;
+	private final int maxRuns;
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor(AVLTree.backgroundThreads("LogStructuredAVLTree-flusher"));
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(AVLTree.backgroundThreads("LogStructuredAVLTree-compactor"));
+
+	private AVLTree memtable = new AVLTree();
+	private final ArrayDeque<AVLTree> frozen = new ArrayDeque<>(); // newest first
+	private SortedRun[] runs; // newest first
+	private long nextSeq;
+	private boolean compacting = false;
+	private IOException backgroundFailure;
+
+	/**
+	 * public static LogStructuredAVLTree open(Path directory, int memtableSize, int maxRuns)
+	 *
+	 * Opens the runs in directory (creating it if needed).
+	 * @pre memtableSize >= 1, maxRuns >= 1
+	 * Complexity - O(number of runs)
+	 */
+	public static LogStructuredAVLTree open(Path directory, int memtableSize, int maxRuns) throws IOException {
+		return new LogStructuredAVLTree(directory, memtableSize, maxRuns);
+	}
+
+	private LogStructuredAVLTree(Path directory, int memtableSize, int maxRuns) throws IOException {
+		this.directory = directory;
+		this.memtableSize = memtableSize;
+		this.maxRuns = maxRuns;
+		Files.createDirectories(directory);
+
+		ArrayList<SortedRun> found = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "run-*")) {
+			for(Path file : files) {
+				String suffix = file.getFileName().toString().substring("run-".length());
+				if(suffix.matches("[0-9]+")) {
+					found.add(SortedRun.open(file, Long.parseLong(suffix)));
+				}
+				else {
+					Files.delete(file); // unfinished run
+				}
+			}
+		}
+		found.sort((a, b) -> Long.compare(b.seq, a.seq));
+
+		// a crash right after a compaction can leave inputs that the merged run already covers
+		ArrayList<SortedRun> live = new ArrayList<>();
+		long coveredFrom = Long.MAX_VALUE;
+		for(SortedRun run : found) {
+			if(run.seq >= coveredFrom) {
+				run.close();
+				Files.delete(run.path);
+				continue;
+			}
+			live.add(run);
+			coveredFrom = run.firstSeq;
+		}
+		this.runs = live.toArray(new SortedRun[0]);
+		this.nextSeq = found.isEmpty() ? 1 : found.get(0).seq + 1;
+	}
+
+	/**
+	 * public synchronized void insert(int k, String i)
+	 *
+	 * Sets the info of k to i, whether or not k is already there.
+	 * Complexity - O(log memtableSize) amortized
+	 */
+	public synchronized void insert(int k, String i) throws IOException {
+		put(k, i);
+	}
+
+	/**
+	 * public synchronized void delete(int k)
+	 *
+	 * Deletes k, if it's there.
+	 * Complexity - O(log memtableSize) amortized
+	 */
+	public synchronized void delete(int k) throws IOException {
+		put(k, TOMBSTONE);
+	}
+
+	/**
+	 * public synchronized String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(log memtableSize + runs * log n)
+	 */
+	public synchronized String search(int k) throws IOException {
+		AVLTree.IAVLNode node = memtable.findNode(k);
+		if(node != null && node.isRealNode()) {
+			return node.getValue() == TOMBSTONE ? null : node.getValue();
+		}
+		for(AVLTree table : frozen) {
+			node = table.findNode(k);
+			if(node != null && node.isRealNode()) {
+				return node.getValue() == TOMBSTONE ? null : node.getValue();
+			}
+		}
+		for(SortedRun run : runs) {
+			int index = run.find(k);
+			if(index >= 0) {
+				return run.value(index);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * public synchronized int runCount()
+	 *
+	 * Returns the number of sorted runs on disk.
+	 */
+	public synchronized int runCount() {
+		return runs.length;
+	}
+
+	/**
+	 * public synchronized void flush()
+	 *
+	 * Writes the memtable to a run and waits until all frozen memtables are on disk.
+	 */
+	public synchronized void flush() throws IOException {
+		if(!memtable.empty()) {
+			freeze();
+		}
+		while(!frozen.isEmpty() && backgroundFailure == null) {
+			waitForBackground();
+		}
+		checkBackground();
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * Flushes, waits for a running compaction and releases the files.
+	 * The object must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		flush();
+		flusher.shutdown();
+		compactor.shutdown();
+		try {
+			flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized(this) {
+			for(SortedRun run : runs) {
+				run.close();
+			}
+			checkBackground();
+		}
+	}
+
+	private void put(int k, String i) throws IOException {
+		checkBackground();
+		AVLTree.IAVLNode node = memtable.findNode(k);
+		if(node != null && node.isRealNode()) {
+			((AVLTree.AVLNode) node).info = i;
+		}
+		else {
+			memtable.insert(k, i);
+		}
+		if(memtable.size() >= memtableSize) {
+			// wait for the flusher instead of growing without bound
+			while(frozen.size() >= MAX_FROZEN && backgroundFailure == null) {
+				waitForBackground();
+			}
+			checkBackground();
+			freeze();
+		}
+	}
+
+	private void freeze() {
+		AVLTree table = memtable;
+		long seq = nextSeq++;
+		frozen.addFirst(table);
+		memtable = new AVLTree();
+		flusher.execute(() -> flushTable(table, seq));
+	}
+
+	/**
+	 * private void flushTable(AVLTree table, long seq)
+	 *
+	 * Runs on the flusher thread: writes table to run-seq and replaces it by the run.
+	 * Complexity - O(table size)
+	 */
+	private void flushTable(AVLTree table, long seq) {
+		try {
+			Path path = directory.resolve("run-" + seq);
+			RunWriter writer = new RunWriter(directory.resolve("run-" + seq + ".tmp"), table.size());
+			AVLTree.InOrderWalk walk = new AVLTree.InOrderWalk(table.root);
+			for(AVLTree.IAVLNode node = walk.next(); node != null; node = walk.next()) {
+				String value = node.getValue();
+				if(value == TOMBSTONE) {
+					writer.add(node.getKey(), SortedRun.DELETED, null);
+				}
+				else if(value == null) {
+					writer.add(node.getKey(), SortedRun.NULL_INFO, null);
+				}
+				else {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					writer.add(node.getKey(), bytes.length, bytes);
+				}
+			}
+			writer.finish(path, seq);
+			SortedRun run = SortedRun.open(path, seq);
+
+			synchronized(this) {
+				SortedRun[] installed = new SortedRun[runs.length + 1];
+				installed[0] = run;
+				System.arraycopy(runs, 0, installed, 1, runs.length);
+				runs = installed;
+				frozen.removeLast();
+				if(!compacting) {
+					scheduleCompaction();
+				}
+				notifyAll();
+			}
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * private void compact()
+	 *
+	 * Runs on the compactor thread: merges all current runs into one, named after the newest input.
+	 * Runs flushed meanwhile stay in front of it.
+	 * Complexity - O(total run size * number of runs)
+	 */
+	private void compact() {
+		try {
+			SortedRun[] inputs;
+			synchronized(this) {
+				inputs = runs;
+			}
+			SortedRun newest = inputs[0];
+			SortedRun oldest = inputs[inputs.length - 1];
+			long total = 0;
+			for(SortedRun run : inputs) {
+				total += run.count;
+			}
+
+			RunWriter writer = new RunWriter(directory.resolve("run-" + newest.seq + ".tmp"), (int) Math.min(total, 1 << 20));
+			int[] positions = new int[inputs.length];
+			while(true) {
+				// smallest next key over all inputs, its newest value wins
+				int winner = -1;
+				int key = 0;
+				for(int j = 0; j < inputs.length; j++) {
+					if(positions[j] < inputs[j].count) {
+						int candidate = inputs[j].key(positions[j]);
+						if(winner == -1 || candidate < key) {
+							winner = j;
+							key = candidate;
+						}
+					}
+				}
+				if(winner == -1) {
+					break;
+				}
+				int length = inputs[winner].length(positions[winner]);
+				if(length != SortedRun.DELETED) {
+					writer.add(key, length, inputs[winner].bytes(positions[winner]));
+				}
+				for(int j = winner; j < inputs.length; j++) {
+					if(positions[j] < inputs[j].count && inputs[j].key(positions[j]) == key) {
+						positions[j]++;
+					}
+				}
+			}
+			writer.finish(newest.path, oldest.firstSeq);
+			SortedRun merged = SortedRun.open(newest.path, newest.seq);
+
+			synchronized(this) {
+				int newer = runs.length - inputs.length;
+				SortedRun[] installed = Arrays.copyOf(runs, newer + 1);
+				installed[newer] = merged;
+				runs = installed;
+				compacting = false;
+				scheduleCompaction();
+			}
+			for(SortedRun run : inputs) {
+				run.close();
+				if(run != newest) {
+					Files.delete(run.path);
+				}
+			}
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	private void scheduleCompaction() {
+		if(runs.length > maxRuns && !compactor.isShutdown()) {
+			try {
+				compactor.execute(this::compact);
+				compacting = true;
+			}
+			catch(RejectedExecutionException e) {
+				// closing, the first flush after reopening merges them
+			}
+		}
+	}
+
+	private synchronized void failed(IOException e) {
+		if(backgroundFailure == null) {
+			backgroundFailure = e;
+		}
+		notifyAll();
+	}
+
+	private void checkBackground() throws IOException {
+		if(backgroundFailure != null) {
+			throw new IOException("background flush or compaction failed", backgroundFailure);
+		}
+	}
+
+	private void waitForBackground() throws IOException {
+		try {
+			wait();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for a flush", e);
+		}
+	}
+}
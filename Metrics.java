@@ -0,0 +1,177 @@
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * public class Metrics
+ *
+ * The live metrics of a tree. The counters are LongAdders and the histograms AtomicLongArrays,
+ * so the thread running an operation records without locking while others read.
+ * A latency histogram is log-linear like HdrHistogram: values below 64 ns get a bucket each,
+ * every higher power of two is divided into 32 buckets.
+ */
+public class Metrics implements MetricsMXBean {
+	public final static int SEARCH = 0;
+	public final static int INSERT = 1;
+	public final static int DELETE = 2;
+	public final static int SPLIT = 3;
+	public final static int JOIN = 4;
+	final static String[] OPERATIONS = {"search", "insert", "delete", "split", "join"};
+	private final static double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 1};
+	private final static String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "max"};
+
+	private final static int SUB_BUCKET_BITS = 5;
+	private final static int MAX_VALUE_BITS = 41; // 2^41 ns, about 36 minutes
+	final static int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+	final static int MAX_PATH = AVLTree.MAX_HEIGHT + 2; // paths this long or longer share the last slot
+
+	final AtomicLongArray[] latencies = new AtomicLongArray[OPERATIONS.length];
+	final AtomicLongArray searchPathLengths = new AtomicLongArray(MAX_PATH + 1);
+	final LongAdder rotations = new LongAdder();
+	final LongAdder promotions = new LongAdder();
+	final LongAdder demotions = new LongAdder();
+	final LongAdder joinCost = new LongAdder();
+	// rotations and promotions/demotions of the running operation, only used by the thread running it
+	int rotationsInOperation;
+	int heightChangesInOperation;
+	ObjectName registeredAs;
+
+	Metrics() {
+		for(int op = 0; op < latencies.length; op++) {
+			latencies[op] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	void record(int operation, long nanos) {
+		latencies[operation].incrementAndGet(bucketOf(nanos));
+	}
+
+	void recordRebalancing(int operation, long nanos) {
+		record(operation, nanos);
+		rotations.add(rotationsInOperation);
+		(operation == INSERT ? promotions : demotions).add(heightChangesInOperation);
+	}
+
+	void recordJoin(long nanos, int cost) {
+		record(JOIN, nanos);
+		rotations.add(rotationsInOperation);
+		joinCost.add(cost);
+	}
+
+	static int bucketOf(long nanos) {
+		long value = Math.max(0, Math.min(nanos, (1L << MAX_VALUE_BITS) - 1));
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the biggest value that falls into bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		int shift = Math.max(0, (bucket >> SUB_BUCKET_BITS) - 1);
+		return ((long) (bucket - (shift << SUB_BUCKET_BITS) + 1) << shift) - 1;
+	}
+
+	/**
+	 * Returns the highest value of the bucket holding percentile of the values counted in histogram.
+	 */
+	static long percentile(long[] histogram, double percentile) {
+		long rank = (long) Math.ceil(percentile * Arrays.stream(histogram).sum());
+		long seen = 0;
+		for(int bucket = 0; bucket < histogram.length; bucket++) {
+			seen += histogram[bucket];
+			if(seen >= rank && seen > 0) {
+				return highestValueOf(bucket);
+			}
+		}
+		return 0;
+	}
+
+	static long[] copy(AtomicLongArray array) {
+		long[] result = new long[array.length()];
+		for(int j = 0; j < result.length; j++) {
+			result[j] = array.get(j);
+		}
+		return result;
+	}
+
+	private long count(int operation) {
+		long count = 0;
+		for(int j = 0; j < BUCKETS; j++) {
+			count += latencies[operation].get(j);
+		}
+		return count;
+	}
+
+	public long getSearches() {
+		return count(SEARCH);
+	}
+
+	public long getInserts() {
+		return count(INSERT);
+	}
+
+	public long getDeletes() {
+		return count(DELETE);
+	}
+
+	public long getSplits() {
+		return count(SPLIT);
+	}
+
+	public long getJoins() {
+		return count(JOIN);
+	}
+
+	public long getRotations() {
+		return rotations.sum();
+	}
+
+	public long getPromotions() {
+		return promotions.sum();
+	}
+
+	public long getDemotions() {
+		return demotions.sum();
+	}
+
+	public long getJoinCost() {
+		return joinCost.sum();
+	}
+
+	public double getMeanSearchPathLength() {
+		return new MetricsSnapshot(this).meanSearchPathLength();
+	}
+
+	public Map<String, Long> getLatencyNanos() {
+		MetricsSnapshot snapshot = new MetricsSnapshot(this);
+		Map<String, Long> result = new LinkedHashMap<>();
+		for(int op = 0; op < OPERATIONS.length; op++) {
+			for(int p = 0; p < PERCENTILES.length; p++) {
+				result.put(OPERATIONS[op] + " " + PERCENTILE_NAMES[p], snapshot.latencyPercentile(op, PERCENTILES[p]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Zeroes all the metrics. Operations running meanwhile may be partly counted.
+	 */
+	public void reset() {
+		for(AtomicLongArray histogram : latencies) {
+			for(int j = 0; j < BUCKETS; j++) {
+				histogram.set(j, 0);
+			}
+		}
+		for(int j = 0; j < searchPathLengths.length(); j++) {
+			searchPathLengths.set(j, 0);
+		}
+		rotations.reset();
+		promotions.reset();
+		demotions.reset();
+		joinCost.reset();
+	}
+}
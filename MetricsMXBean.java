@@ -0,0 +1,22 @@
+import java.util.Map;
+
+/**
+ * public interface MetricsMXBean
+ *
+ * Management interface of the metrics of a tree, see AVLTree.registerMetrics(name).
+ * Latencies are in nanoseconds, keyed by operation and percentile, e.g. "insert p99".
+ */
+public interface MetricsMXBean {
+	long getSearches();
+	long getInserts();
+	long getDeletes();
+	long getSplits();
+	long getJoins();
+	long getRotations();
+	long getPromotions();
+	long getDemotions();
+	long getJoinCost();
+	double getMeanSearchPathLength();
+	Map<String, Long> getLatencyNanos();
+	void reset();
+}
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+/**
+ * public class MetricsSnapshot
+ *
+ * Copy of the metrics of a tree at one point in time, see AVLTree.metrics().
+ * The counters are read one after the other, so operations running while the copy is
+ * taken may be counted in some of them only.
+ */
+public class MetricsSnapshot {
+	private final long[][] latencies;
+	private final long[] searchPathLengths;
+	private final long rotations;
+	private final long promotions;
+	private final long demotions;
+	private final long joinCost;
+
+	MetricsSnapshot(Metrics metrics) {
+		this.latencies = new long[Metrics.OPERATIONS.length][];
+		for(int op = 0; op < latencies.length; op++) {
+			latencies[op] = Metrics.copy(metrics.latencies[op]);
+		}
+		this.searchPathLengths = Metrics.copy(metrics.searchPathLengths);
+		this.rotations = metrics.rotations.sum();
+		this.promotions = metrics.promotions.sum();
+		this.demotions = metrics.demotions.sum();
+		this.joinCost = metrics.joinCost.sum();
+	}
+
+	/**
+	 * public long count(int operation)
+	 *
+	 * Returns the number of calls of operation (Metrics.SEARCH, INSERT, DELETE, SPLIT or JOIN).
+	 * Complexity - O(1)
+	 */
+	public long count(int operation) {
+		return Arrays.stream(latencies[operation]).sum();
+	}
+
+	/**
+	 * public long latencyPercentile(int operation, double percentile)
+	 *
+	 * Returns the latency in nanoseconds that percentile (0 < percentile <= 1) of the calls of
+	 * operation didn't exceed, rounded up to the end of its histogram bucket. 0 without calls.
+	 * Complexity - O(1)
+	 */
+	public long latencyPercentile(int operation, double percentile) {
+		return Metrics.percentile(latencies[operation], percentile);
+	}
+
+	/**
+	 * public long rotations()
+	 *
+	 * Returns the number of rotations made by insert, delete and join, a double rotation counting 2.
+	 * Complexity - O(1)
+	 */
+	public long rotations() {
+		return rotations;
+	}
+
+	/**
+	 * public long promotions()
+	 *
+	 * Returns the number of height increases made by insert.
+	 * Complexity - O(1)
+	 */
+	public long promotions() {
+		return promotions;
+	}
+
+	/**
+	 * public long demotions()
+	 *
+	 * Returns the number of height decreases made by delete (outside of rotations).
+	 * Complexity - O(1)
+	 */
+	public long demotions() {
+		return demotions;
+	}
+
+	/**
+	 * public long joinCost()
+	 *
+	 * Returns the sum of the values returned by join.
+	 * Complexity - O(1)
+	 */
+	public long joinCost() {
+		return joinCost;
+	}
+
+	/**
+	 * public long[] searchPathLengths()
+	 *
+	 * Returns how many searches compared k with j nodes, at index j (counting the virtual node an
+	 * unsuccessful search ends at). Searches answered by the search cache or the membership
+	 * filter are at index 0, and the last index counts all longer paths.
+	 * Complexity - O(MAX_HEIGHT)
+	 */
+	public long[] searchPathLengths() {
+		return searchPathLengths.clone();
+	}
+
+	/**
+	 * public double meanSearchPathLength()
+	 *
+	 * Returns the mean of searchPathLengths(), 0 without searches.
+	 * Complexity - O(MAX_HEIGHT)
+	 */
+	public double meanSearchPathLength() {
+		long searches = 0;
+		long total = 0;
+		for(int length = 0; length < searchPathLengths.length; length++) {
+			searches += searchPathLengths[length];
+			total += length * searchPathLengths[length];
+		}
+		return searches == 0 ? 0 : (double) total / searches;
+	}
+}
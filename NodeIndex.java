@@ -0,0 +1,106 @@
+/**
+ * class NodeIndex
+ *
+ * Open addressing key -> node table with linear probing, at most half full.
+ * A null node marks an empty slot, so every key can be stored.
+ */
+class NodeIndex {
+	private int mask;
+	private int shift;
+	private int[] keys;
+	private AVLTree.IAVLNode[] nodes;
+	private int count = 0;
+
+	NodeIndex(int expectedKeys) {
+		int slots = Integer.highestOneBit(Math.max(8, expectedKeys) * 2 - 1) << 1;
+		this.mask = slots - 1;
+		this.shift = 32 - Integer.numberOfTrailingZeros(slots);
+		this.keys = new int[slots];
+		this.nodes = new AVLTree.IAVLNode[slots];
+	}
+
+	/**
+	 * Same as SearchCache.slotOf(key)
+	 */
+	private int slotOf(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	AVLTree.IAVLNode get(int key) {
+		for(int slot = slotOf(key); nodes[slot] != null; slot = (slot + 1) & mask) {
+			if(keys[slot] == key) {
+				return nodes[slot];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @pre key isn't in the index
+	 */
+	void put(int key, AVLTree.IAVLNode node) {
+		if(2 * (count + 1) > nodes.length) {
+			int[] oldKeys = keys;
+			AVLTree.IAVLNode[] oldNodes = nodes;
+			mask = 2 * oldNodes.length - 1;
+			shift--;
+			keys = new int[oldNodes.length * 2];
+			nodes = new AVLTree.IAVLNode[oldNodes.length * 2];
+			count = 0;
+			for(int slot = 0; slot < oldNodes.length; slot++) {
+				if(oldNodes[slot] != null) {
+					put(oldKeys[slot], oldNodes[slot]);
+				}
+			}
+		}
+		int slot = slotOf(key);
+		while(nodes[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		nodes[slot] = node;
+		count++;
+	}
+
+	/**
+	 * @pre no key of other is in the index
+	 */
+	void putAll(NodeIndex other) {
+		for(int slot = 0; slot < other.nodes.length; slot++) {
+			if(other.nodes[slot] != null) {
+				put(other.keys[slot], other.nodes[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the node of key, or null if it wasn't in the index.
+	 */
+	AVLTree.IAVLNode remove(int key) {
+		for(int slot = slotOf(key); nodes[slot] != null; slot = (slot + 1) & mask) {
+			if(keys[slot] == key) {
+				AVLTree.IAVLNode node = nodes[slot];
+				removeSlot(slot);
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Same as SearchCache.removeSlot(slot)
+	 */
+	private void removeSlot(int slot) {
+		count--;
+		int hole = slot;
+		for(int next = (hole + 1) & mask; nodes[next] != null; next = (next + 1) & mask) {
+			int home = slotOf(keys[next]);
+			if(((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				nodes[hole] = nodes[next];
+				hole = next;
+			}
+		}
+		nodes[hole] = null;
+	}
+}
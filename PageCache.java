@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * class PageCache
+ *
+ * LRU cache of fixed size pages of a file, dirty pages are written back on eviction and flush().
+ * A page returned by page() is only valid until the next call, which may evict it.
+ */
+class PageCache {
+
+	private final FileChannel channel;
+	private final LinkedHashMap<Long, Page> pages;
+	private IOException evictionFailure;
+	long reads = 0;
+	long writes = 0;
+
+	private static class Page {
+		private final long number;
+		private final ByteBuffer data = ByteBuffer.allocate(PagedAVLTree.PAGE_SIZE);
+		private boolean dirty;
+
+		private Page(long number) {
+			this.number = number;
+		}
+	}
+
+	PageCache(FileChannel channel, int capacity) {
+		this.channel = channel;
+		this.pages = new LinkedHashMap<Long, Page>(capacity * 2, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+				if(size() <= capacity) {
+					return false;
+				}
+				try {
+					writeBack(eldest.getValue());
+				}
+				catch(IOException e) {
+					evictionFailure = e;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * ByteBuffer pageFor(long offset, boolean dirty)
+	 *
+	 * Returns the page that contains offset, marked dirty if it's going to be written.
+	 */
+	ByteBuffer pageFor(long offset, boolean dirty) throws IOException {
+		Page page = load(offset / PagedAVLTree.PAGE_SIZE);
+		page.dirty |= dirty;
+		return page.data;
+	}
+
+	ByteBuffer page(long number) throws IOException {
+		return load(number).data;
+	}
+
+	void markDirty(long number) throws IOException {
+		load(number).dirty = true;
+	}
+
+	private Page load(long number) throws IOException {
+		Page page = pages.get(number);
+		if(page != null) {
+			return page;
+		}
+		page = new Page(number);
+		ByteBuffer data = page.data;
+		long position = number * PagedAVLTree.PAGE_SIZE;
+		while(data.hasRemaining()) {
+			if(channel.read(data, position + data.position()) <= 0) {
+				break; // past the end of the file the page reads as zeros
+			}
+		}
+		data.clear();
+		reads++;
+		pages.put(number, page);
+		if(evictionFailure != null) {
+			IOException failure = evictionFailure;
+			evictionFailure = null;
+			throw failure;
+		}
+		return page;
+	}
+
+	private void writeBack(Page page) throws IOException {
+		if(!page.dirty) {
+			return;
+		}
+		ByteBuffer data = page.data.duplicate();
+		data.clear();
+		long position = page.number * PagedAVLTree.PAGE_SIZE;
+		while(data.hasRemaining()) {
+			channel.write(data, position + data.position());
+		}
+		page.dirty = false;
+		writes++;
+	}
+
+	void flush() throws IOException {
+		for(Page page : pages.values()) {
+			writeBack(page);
+		}
+	}
+}
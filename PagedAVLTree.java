@@ -0,0 +1,461 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * public class PagedAVLTree
+ *
+ * AVL tree that lives in a file instead of the heap, for indexes bigger than memory.
+ * Nodes are fixed size slots in PAGE_SIZE pages, and a node reference is the file offset
+ * of its slot (NIL = 0, the first page is the header). Only cachePages pages are in memory
+ * at a time, in an LRU cache that writes dirty pages back when they are evicted or on flush().
+ * Infos are appended to a separate values file, the node keeps their offset and length.
+ *
+ * Rebalancing uses the same single and double rotations as AVLTree. Setters only write
+ * a field that actually changes, so an update dirties just the pages of the nodes on the
+ * search path that changed (and of the removed / inserted node).
+ *
+ * Not thread safe. The file is consistent after flush() or close(), not after a crash.
+ */
+public class PagedAVLTree implements Closeable {
+
+	public final static int PAGE_SIZE = 4096;
+
+	private final static int PAGED_MAGIC = 0x41564C50; // "AVLP"
+	private final static long NIL = 0;
+
+	// node slot layout
+	private final static int KEY = 0;
+	private final static int HEIGHT = 4;
+	private final static int LEFT = 8;
+	private final static int RIGHT = 16;
+	private final static int VALUE_OFFSET = 24;
+	private final static int VALUE_LENGTH = 32;
+	private final static int NODE_SIZE = 36;
+
+	private final FileChannel pages;
+	private final FileChannel values;
+	private final PageCache cache;
+
+	private long root = NIL;
+	private int size = 0;
+	private long nextNode = PAGE_SIZE; // first never used slot
+	private long freeNodes = NIL; // freed slots, linked through LEFT
+	private long valuesEnd = 0;
+
+	// results of the recursive insert / delete
+	private boolean changed;
+	private int rotations;
+
+	/**
+	 * public static PagedAVLTree open(Path file, int cachePages)
+	 *
+	 * Opens the tree stored in file (and file.values), or creates an empty one.
+	 * @pre cachePages >= 1
+	 * Complexity - O(1)
+	 */
+	public static PagedAVLTree open(Path file, int cachePages) throws IOException {
+		return new PagedAVLTree(file, cachePages);
+	}
+
+	private PagedAVLTree(Path file, int cachePages) throws IOException {
+		this.pages = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.values = FileChannel.open(file.resolveSibling(file.getFileName() + ".values"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.cache = new PageCache(pages, cachePages);
+
+		if(pages.size() > 0) {
+			ByteBuffer header = cache.page(0);
+			if(header.getInt(0) != PAGED_MAGIC) {
+				throw new IOException("not a paged AVL tree file");
+			}
+			this.root = header.getLong(4);
+			this.size = header.getInt(12);
+			this.nextNode = header.getLong(16);
+			this.freeNodes = header.getLong(24);
+			this.valuesEnd = header.getLong(32);
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * Same as AVLTree.empty()
+	 * Complexity - O(1)
+	 */
+	public boolean empty() {
+		return size == 0;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Same as AVLTree.size()
+	 * Complexity - O(1)
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * public int height()
+	 *
+	 * Returns the height of the tree, -1 if empty.
+	 * Complexity - O(1) page accesses
+	 */
+	public int height() throws IOException {
+		return height(root);
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(log n) page accesses
+	 */
+	public String search(int k) throws IOException {
+		long node = root;
+		while(node != NIL) {
+			int key = key(node);
+			if(k == key) {
+				return value(node);
+			}
+			node = k < key ? left(node) : right(node);
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Inserts an item with key k and info i.
+	 * Returns the number of rotations done, or -1 if k already exists in the tree.
+	 * Complexity - O(log n) page accesses
+	 */
+	public int insert(int k, String i) throws IOException {
+		changed = false;
+		rotations = 0;
+		root = insert(root, k, i);
+		if(!changed) {
+			return -1;
+		}
+		size++;
+		return rotations;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Deletes the item with key k.
+	 * Returns the number of rotations done, or -1 if k doesn't exist in the tree.
+	 * The info bytes stay in the values file.
+	 * Complexity - O(log n) page accesses
+	 */
+	public int delete(int k) throws IOException {
+		changed = false;
+		rotations = 0;
+		root = delete(root, k);
+		if(!changed) {
+			return -1;
+		}
+		size--;
+		return rotations;
+	}
+
+	/**
+	 * public int[] keysInRange(int low, int high)
+	 *
+	 * Same as AVLTree.keysInRange(low, high)
+	 * Complexity - O(log n + r) page accesses, r = number of keys returned
+	 */
+	public int[] keysInRange(int low, int high) throws IOException {
+		int[] keys = new int[16];
+		int count = 0;
+		long[] stack = new long[AVLTree.MAX_HEIGHT];
+		int depth = 0;
+		long node = root;
+
+		while(node != NIL || depth > 0) {
+			// go left as long as the left subtree may contain keys >= low
+			while(node != NIL) {
+				if(key(node) < low) {
+					node = right(node);
+				}
+				else {
+					stack[depth++] = node;
+					node = left(node);
+				}
+			}
+			if(depth == 0) {
+				break;
+			}
+			node = stack[--depth];
+			int key = key(node);
+			if(key > high) {
+				break;
+			}
+			if(count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+			}
+			keys[count++] = key;
+			node = right(node);
+		}
+		return Arrays.copyOf(keys, count);
+	}
+
+	/**
+	 * public long pageReads()
+	 *
+	 * Returns the number of pages read from the file so far (cache misses).
+	 */
+	public long pageReads() {
+		return cache.reads;
+	}
+
+	/**
+	 * public long pageWrites()
+	 *
+	 * Returns the number of dirty pages written back to the file so far.
+	 */
+	public long pageWrites() {
+		return cache.writes;
+	}
+
+	/**
+	 * public void flush()
+	 *
+	 * Writes the header and all dirty pages back to the file.
+	 */
+	public void flush() throws IOException {
+		ByteBuffer header = cache.page(0);
+		header.putInt(0, PAGED_MAGIC);
+		header.putLong(4, root);
+		header.putInt(12, size);
+		header.putLong(16, nextNode);
+		header.putLong(24, freeNodes);
+		header.putLong(32, valuesEnd);
+		cache.markDirty(0);
+		cache.flush();
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * Flushes and closes the files. The object must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			pages.close();
+			values.close();
+		}
+	}
+
+	private long insert(long node, int k, String i) throws IOException {
+		if(node == NIL) {
+			changed = true;
+			return allocate(k, i);
+		}
+		int key = key(node);
+		if(k == key) {
+			return node;
+		}
+		if(k < key) {
+			setLeft(node, insert(left(node), k, i));
+		}
+		else {
+			setRight(node, insert(right(node), k, i));
+		}
+		return changed ? rebalance(node) : node;
+	}
+
+	private long delete(long node, int k) throws IOException {
+		if(node == NIL) {
+			return NIL;
+		}
+		int key = key(node);
+		if(k < key) {
+			setLeft(node, delete(left(node), k));
+		}
+		else if(k > key) {
+			setRight(node, delete(right(node), k));
+		}
+		else {
+			changed = true;
+			long left = left(node);
+			long right = right(node);
+			if(left == NIL || right == NIL) {
+				free(node);
+				return left == NIL ? right : left;
+			}
+			// two children: the successor takes node's place
+			long successor = right;
+			while(left(successor) != NIL) {
+				successor = left(successor);
+			}
+			setRight(successor, deleteMin(right));
+			setLeft(successor, left);
+			free(node);
+			node = successor;
+		}
+		return changed ? rebalance(node) : node;
+	}
+
+	/**
+	 * private long deleteMin(long node)
+	 *
+	 * Unlinks (without freeing) the minimum of node's subtree, returns the new subtree root.
+	 */
+	private long deleteMin(long node) throws IOException {
+		long left = left(node);
+		if(left == NIL) {
+			return right(node);
+		}
+		setLeft(node, deleteMin(left));
+		return rebalance(node);
+	}
+
+	private long rebalance(long node) throws IOException {
+		updateHeight(node);
+		int balance = height(left(node)) - height(right(node));
+		if(balance > 1) {
+			long left = left(node);
+			if(height(left(left)) < height(right(left))) {
+				setLeft(node, rotateLeft(left));
+			}
+			return rotateRight(node);
+		}
+		if(balance < -1) {
+			long right = right(node);
+			if(height(right(right)) < height(left(right))) {
+				setRight(node, rotateRight(right));
+			}
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private long rotateRight(long node) throws IOException {
+		long left = left(node);
+		setLeft(node, right(left));
+		setRight(left, node);
+		updateHeight(node);
+		updateHeight(left);
+		rotations++;
+		return left;
+	}
+
+	private long rotateLeft(long node) throws IOException {
+		long right = right(node);
+		setRight(node, left(right));
+		setLeft(right, node);
+		updateHeight(node);
+		updateHeight(right);
+		rotations++;
+		return right;
+	}
+
+	private void updateHeight(long node) throws IOException {
+		int height = 1 + Math.max(height(left(node)), height(right(node)));
+		if(height(node) != height) {
+			cache.pageFor(node, true).putInt(slot(node) + HEIGHT, height);
+		}
+	}
+
+	private long allocate(int k, String i) throws IOException {
+		long node;
+		if(freeNodes != NIL) {
+			node = freeNodes;
+			freeNodes = left(node);
+		}
+		else {
+			if(nextNode % PAGE_SIZE + NODE_SIZE > PAGE_SIZE) {
+				nextNode += PAGE_SIZE - nextNode % PAGE_SIZE;
+			}
+			node = nextNode;
+			nextNode += NODE_SIZE;
+		}
+
+		long valueOffset = valuesEnd;
+		int valueLength = -1;
+		if(i != null) {
+			byte[] bytes = i.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while(buffer.hasRemaining()) {
+				values.write(buffer, valuesEnd + buffer.position());
+			}
+			valueLength = bytes.length;
+			valuesEnd += bytes.length;
+		}
+
+		ByteBuffer page = cache.pageFor(node, true);
+		int slot = slot(node);
+		page.putInt(slot + KEY, k);
+		page.putInt(slot + HEIGHT, 0);
+		page.putLong(slot + LEFT, NIL);
+		page.putLong(slot + RIGHT, NIL);
+		page.putLong(slot + VALUE_OFFSET, valueOffset);
+		page.putInt(slot + VALUE_LENGTH, valueLength);
+		return node;
+	}
+
+	private void free(long node) throws IOException {
+		setLeft(node, freeNodes);
+		freeNodes = node;
+	}
+
+	private int key(long node) throws IOException {
+		return cache.pageFor(node, false).getInt(slot(node) + KEY);
+	}
+
+	private int height(long node) throws IOException {
+		return node == NIL ? -1 : cache.pageFor(node, false).getInt(slot(node) + HEIGHT);
+	}
+
+	private long left(long node) throws IOException {
+		return cache.pageFor(node, false).getLong(slot(node) + LEFT);
+	}
+
+	private long right(long node) throws IOException {
+		return cache.pageFor(node, false).getLong(slot(node) + RIGHT);
+	}
+
+	private void setLeft(long node, long left) throws IOException {
+		if(left(node) != left) {
+			cache.pageFor(node, true).putLong(slot(node) + LEFT, left);
+		}
+	}
+
+	private void setRight(long node, long right) throws IOException {
+		if(right(node) != right) {
+			cache.pageFor(node, true).putLong(slot(node) + RIGHT, right);
+		}
+	}
+
+	private String value(long node) throws IOException {
+		ByteBuffer page = cache.pageFor(node, false);
+		long offset = page.getLong(slot(node) + VALUE_OFFSET);
+		int length = page.getInt(slot(node) + VALUE_LENGTH);
+		if(length < 0) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while(bytes.hasRemaining()) {
+			if(values.read(bytes, offset + bytes.position()) < 0) {
+				throw new IOException("values file is truncated");
+			}
+		}
+		return new String(bytes.array(), StandardCharsets.UTF_8);
+	}
+
+	private static int slot(long node) {
+		return (int) (node % PAGE_SIZE);
+	}
+}
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * class ParsedChunk
+ *
+ * The keys of a chunk of lines, and their infos as UTF-8 bytes one after another in a slab.
+ */
+class ParsedChunk {
+	int[] keys = new int[1024];
+	private int[] infoEnds = new int[1024]; // info j is slab[infoEnds[j - 1], infoEnds[j])
+	private final byte[] slab;
+	private int slabSize = 0;
+	int count = 0;
+
+	/**
+	 * @pre the infos of the chunk total at most capacity bytes
+	 */
+	ParsedChunk(int capacity) {
+		this.slab = new byte[capacity];
+	}
+
+	void add(int key, ByteBuffer source, int offset, int length) {
+		if(count == keys.length) {
+			keys = Arrays.copyOf(keys, count * 2);
+			infoEnds = Arrays.copyOf(infoEnds, count * 2);
+		}
+		source.get(offset, slab, slabSize, length);
+		slabSize += length;
+		keys[count] = key;
+		infoEnds[count] = slabSize;
+		count++;
+	}
+
+	String info(int j) {
+		int start = j == 0 ? 0 : infoEnds[j - 1];
+		return new String(slab, start, infoEnds[j] - start, StandardCharsets.UTF_8);
+	}
+}
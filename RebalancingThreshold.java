@@ -0,0 +1,42 @@
+import jdk.jfr.SettingControl;
+import java.util.Set;
+
+/**
+ * public class RebalancingThreshold
+ *
+ * The "rebalancing" setting of AVLTree.LargeRebalance: a number of re-balancing operations.
+ * Of several recordings the lowest threshold wins.
+ */
+public class RebalancingThreshold extends SettingControl {
+	private final static int DEFAULT = 8;
+
+	volatile int value = DEFAULT;
+
+	@Override
+	public String combine(Set<String> values) {
+		int lowest = Integer.MAX_VALUE;
+		for(String setting : values) {
+			lowest = Math.min(lowest, parse(setting));
+		}
+		return Integer.toString(values.isEmpty() ? DEFAULT : lowest);
+	}
+
+	@Override
+	public void setValue(String setting) {
+		value = parse(setting);
+	}
+
+	@Override
+	public String getValue() {
+		return Integer.toString(value);
+	}
+
+	private static int parse(String setting) {
+		try {
+			return Integer.parseInt(setting.trim());
+		}
+		catch(NumberFormatException e) {
+			return DEFAULT;
+		}
+	}
+}
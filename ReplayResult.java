@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * public class ReplayResult
+ *
+ * Throughput and latencies of a replay, see WorkloadReplay.replay.
+ */
+public class ReplayResult {
+	private final long[][] latencies = new long[Metrics.OPERATIONS.length][Metrics.BUCKETS];
+	private final long[] all = new long[Metrics.BUCKETS];
+	private final long nanos;
+	private long operations;
+	private long searchHits;
+
+	ReplayResult(WorkloadReplay.Replayer[] replayers, long nanos) {
+		this.nanos = nanos;
+		for(WorkloadReplay.Replayer replayer : replayers) {
+			for(int op = 0; op < latencies.length; op++) {
+				for(int bucket = 0; bucket < Metrics.BUCKETS; bucket++) {
+					latencies[op][bucket] += replayer.latencies[op][bucket];
+					all[bucket] += replayer.latencies[op][bucket];
+					operations += replayer.latencies[op][bucket];
+				}
+			}
+			searchHits += replayer.searchHits;
+		}
+	}
+
+	/**
+	 * public long operations()
+	 *
+	 * Returns the number of replayed calls.
+	 * Complexity - O(1)
+	 */
+	public long operations() {
+		return operations;
+	}
+
+	/**
+	 * public long count(int operation)
+	 *
+	 * Returns the number of replayed calls of operation (Metrics.SEARCH, INSERT, DELETE, SPLIT or JOIN).
+	 * Complexity - O(1)
+	 */
+	public long count(int operation) {
+		return Arrays.stream(latencies[operation]).sum();
+	}
+
+	/**
+	 * public long searchHits()
+	 *
+	 * Returns the number of replayed searches that found their key.
+	 * Complexity - O(1)
+	 */
+	public long searchHits() {
+		return searchHits;
+	}
+
+	/**
+	 * public double seconds()
+	 *
+	 * Returns the wall-clock time of the replay, without reading the trace and the preload.
+	 * Complexity - O(1)
+	 */
+	public double seconds() {
+		return nanos / 1e9;
+	}
+
+	/**
+	 * public double throughput()
+	 *
+	 * Returns the replayed calls per second.
+	 * Complexity - O(1)
+	 */
+	public double throughput() {
+		return nanos == 0 ? 0 : operations * 1e9 / nanos;
+	}
+
+	/**
+	 * public long latencyPercentile(double percentile)
+	 *
+	 * Returns the latency in nanoseconds that percentile (0 < percentile <= 1) of all the calls
+	 * didn't exceed, rounded up to the end of its histogram bucket. 0 without calls.
+	 * Complexity - O(1)
+	 */
+	public long latencyPercentile(double percentile) {
+		return Metrics.percentile(all, percentile);
+	}
+
+	/**
+	 * public long latencyPercentile(int operation, double percentile)
+	 *
+	 * Same as latencyPercentile(percentile), for the calls of operation only.
+	 * Complexity - O(1)
+	 */
+	public long latencyPercentile(int operation, double percentile) {
+		return Metrics.percentile(latencies[operation], percentile);
+	}
+
+	public String toString() {
+		return String.format("%d calls in %.3f s, %.0f calls/s, p50 %d ns, p99 %d ns, p999 %d ns",
+				operations, seconds(), throughput(), latencyPercentile(0.5), latencyPercentile(0.99),
+				latencyPercentile(0.999));
+	}
+}
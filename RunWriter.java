@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * class RunWriter
+ *
+ * Writes a SortedRun from items added in increasing key order, to a temporary file
+ * that finish() moves into place.
+ */
+class RunWriter {
+	private final Path temporary;
+	private final FileChannel channel;
+	private final AVLTree.BinaryWriter out;
+	private int[] keys;
+	private int[] lengths;
+	private long[] offsets;
+	private int count = 0;
+	private long position = SortedRun.HEADER_SIZE;
+
+	RunWriter(Path temporary, int expectedCount) throws IOException {
+		this.temporary = temporary;
+		this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		this.channel.position(SortedRun.HEADER_SIZE);
+		this.out = new AVLTree.BinaryWriter(channel);
+		this.keys = new int[Math.max(expectedCount, 1)];
+		this.lengths = new int[keys.length];
+		this.offsets = new long[keys.length];
+	}
+
+	/**
+	 * @pre key is bigger than all keys added so far, bytes.length == length if length >= 0
+	 */
+	void add(int key, int length, byte[] bytes) throws IOException {
+		if(count == keys.length) {
+			if(count > Integer.MAX_VALUE / SortedRun.ENTRY_SIZE / 2) {
+				throw new IOException("sorted run has too many items");
+			}
+			keys = Arrays.copyOf(keys, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+		}
+		keys[count] = key;
+		lengths[count] = length;
+		offsets[count] = position;
+		count++;
+		if(length > 0) {
+			out.writeBytes(bytes, 0, length);
+			position += length;
+		}
+	}
+
+	/**
+	 * void finish(Path path, long firstSeq)
+	 *
+	 * Writes the index and header, forces the file and moves it to path.
+	 */
+	void finish(Path path, long firstSeq) throws IOException {
+		try {
+			long indexOffset = position;
+			for(int i = 0; i < count; i++) {
+				out.writeInt(keys[i]);
+				out.writeInt(lengths[i]);
+				out.writeLong(offsets[i]);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(SortedRun.HEADER_SIZE);
+			header.putInt(SortedRun.RUN_MAGIC).putInt(SortedRun.RUN_VERSION).putInt(count)
+					.putLong(firstSeq).putLong(indexOffset).flip();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
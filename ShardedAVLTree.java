@@ -0,0 +1,420 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * public class ShardedAVLTree
+ *
+ * Thread-safe ordered map made of AVLTree shards that cover disjoint, consecutive key ranges.
+ * Each shard has its own read-write lock, so writers on different key ranges do not contend.
+ * Operations are routed by binary search over the lower bounds of the shards.
+ *
+ * A shard that grows beyond splitThreshold keys is cut at its median with split(), and a
+ * shard that shrinks below splitThreshold/4 keys is merged into a neighbour with join(),
+ * so re-sharding costs O(log n) instead of rebuilding trees.
+ */
+public class ShardedAVLTree {
+
+	private final int splitThreshold;
+	private final int mergeThreshold;
+	private final AtomicInteger size = new AtomicInteger();
+	// serializes splits and merges, never taken by regular operations
+	private final ReentrantLock resizeLock = new ReentrantLock();
+	private volatile Topology topology;
+
+	/**
+	 * public ShardedAVLTree(int splitThreshold)
+	 *
+	 * Constructor of an empty sharded tree with a single shard.
+	 * @pre splitThreshold >= 4
+	 * Complexity - O(1)
+	 */
+	public ShardedAVLTree(int splitThreshold) {
+		this.splitThreshold = splitThreshold;
+		this.mergeThreshold = splitThreshold / 4;
+		Shard first = new Shard(Integer.MIN_VALUE, new AVLTree());
+		this.topology = new Topology(new Shard[] {first});
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Same as AVLTree.search(k)
+	 * Complexity - O(log n)
+	 */
+	public String search(int k) {
+		while(true) {
+			Shard shard = topology.route(k);
+			// a shard that changes on search must not be searched under the shared lock
+			Lock lock = shard.tree.searchMutates() ? shard.lock.writeLock() : shard.lock.readLock();
+			lock.lock();
+			try {
+				if(!shard.retired) {
+					return shard.tree.search(k);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Same as AVLTree.insert(k, i). Splits the shard if it became too big.
+	 * Complexity - O(log n)
+	 */
+	public int insert(int k, String i) {
+		while(true) {
+			Shard shard = topology.route(k);
+			int result;
+			boolean tooBig;
+			shard.lock.writeLock().lock();
+			try {
+				if(shard.retired) {
+					continue;
+				}
+				result = shard.tree.insert(k, i);
+				tooBig = shard.tree.size() > splitThreshold;
+			}
+			finally {
+				shard.lock.writeLock().unlock();
+			}
+
+			if(result != -1) {
+				size.incrementAndGet();
+			}
+			if(tooBig) {
+				splitShard(shard);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Same as AVLTree.delete(k). Merges the shard into a neighbour if it became too small.
+	 * Complexity - O(log n)
+	 */
+	public int delete(int k) {
+		while(true) {
+			Shard shard = topology.route(k);
+			int result;
+			boolean tooSmall;
+			shard.lock.writeLock().lock();
+			try {
+				if(shard.retired) {
+					continue;
+				}
+				result = shard.tree.delete(k);
+				tooSmall = shard.tree.size() < mergeThreshold;
+			}
+			finally {
+				shard.lock.writeLock().unlock();
+			}
+
+			if(result != -1) {
+				size.decrementAndGet();
+			}
+			if(tooSmall && topology.shards.length > 1) {
+				mergeShard(shard);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in all shards.
+	 * Complexity - O(1)
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * Returns true if and only if all shards are empty.
+	 * Complexity - O(1)
+	 */
+	public boolean empty() {
+		return size() == 0;
+	}
+
+	/**
+	 * public int shardCount()
+	 *
+	 * Returns the current number of shards.
+	 * Complexity - O(1)
+	 */
+	public int shardCount() {
+		return topology.shards.length;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Same as AVLTree.min()
+	 * Complexity - O(number of shards)
+	 */
+	public String min() {
+		resizeLock.lock();
+		try {
+			for(Shard shard : topology.shards) {
+				shard.lock.readLock().lock();
+				try {
+					if(!shard.tree.empty()) {
+						return shard.tree.min();
+					}
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			return null;
+		}
+		finally {
+			resizeLock.unlock();
+		}
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Same as AVLTree.max()
+	 * Complexity - O(number of shards)
+	 */
+	public String max() {
+		resizeLock.lock();
+		try {
+			Shard[] shards = topology.shards;
+			for(int s = shards.length - 1; s >= 0; s--) {
+				shards[s].lock.readLock().lock();
+				try {
+					if(!shards[s].tree.empty()) {
+						return shards[s].tree.max();
+					}
+				}
+				finally {
+					shards[s].lock.readLock().unlock();
+				}
+			}
+			return null;
+		}
+		finally {
+			resizeLock.unlock();
+		}
+	}
+
+	/**
+	 * public int[] keysInRange(int low, int high)
+	 *
+	 * Same as AVLTree.keysInRange(low, high). Each shard is read under its own lock,
+	 * so the result is not an atomic snapshot across shards.
+	 * Complexity - O(number of shards * log n + r)
+	 */
+	public int[] keysInRange(int low, int high) {
+		resizeLock.lock();
+		try {
+			Topology current = topology;
+			int[] result = new int[0];
+			for(int s = current.indexOf(low); s < current.shards.length && current.bounds[s] <= high; s++) {
+				Shard shard = current.shards[s];
+				int[] keys;
+				shard.lock.readLock().lock();
+				try {
+					keys = shard.tree.keysInRange(low, high);
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+				int count = result.length;
+				result = Arrays.copyOf(result, count + keys.length);
+				System.arraycopy(keys, 0, result, count, keys.length);
+			}
+			return result;
+		}
+		finally {
+			resizeLock.unlock();
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Same as AVLTree.keysToArray()
+	 * Complexity - O(n)
+	 */
+	public int[] keysToArray() {
+		return keysInRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * private void splitShard(Shard shard)
+	 *
+	 * Cuts shard at its median key into two shards.
+	 * Complexity - O(log n)
+	 */
+	private void splitShard(Shard shard) {
+		resizeLock.lock();
+		try {
+			shard.lock.writeLock().lock();
+			try {
+				AVLTree tree = shard.tree;
+				if(shard.retired || tree.size() <= splitThreshold) {
+					return; // another thread got here first
+				}
+
+				AVLTree.IAVLNode median = tree.select(tree.size() / 2);
+				int medianKey = median.getKey();
+				String medianValue = median.getValue();
+
+				// split() leaves the median out, it starts the upper shard
+				AVLTree[] parts = tree.split(medianKey);
+				parts[1].insert(medianKey, medianValue);
+
+				Shard lower = new Shard(shard.lowKey, parts[0]);
+				Shard upper = new Shard(medianKey, parts[1]);
+				topology = topology.replace(topology.indexOf(shard.lowKey), 1, lower, upper);
+				shard.retired = true;
+			}
+			finally {
+				shard.lock.writeLock().unlock();
+			}
+		}
+		finally {
+			resizeLock.unlock();
+		}
+	}
+
+	/**
+	 * private void mergeShard(Shard shard)
+	 *
+	 * Joins shard with its smaller neighbour into one shard.
+	 * Complexity - O(log n)
+	 */
+	private void mergeShard(Shard shard) {
+		resizeLock.lock();
+		try {
+			Topology current = topology;
+			if(shard.retired || current.shards.length < 2) {
+				return;
+			}
+			int index = current.indexOf(shard.lowKey);
+			if(index > 0 && (index == current.shards.length - 1 ||
+					current.shards[index - 1].tree.size() <= current.shards[index + 1].tree.size())) {
+				index--;
+			}
+			Shard left = current.shards[index];
+			Shard right = current.shards[index + 1];
+
+			// ascending order, a regular operation never holds more than one shard lock
+			left.lock.writeLock().lock();
+			right.lock.writeLock().lock();
+			try {
+				if(left.tree.size() >= mergeThreshold && right.tree.size() >= mergeThreshold) {
+					return; // refilled in the meantime
+				}
+				AVLTree merged = joinTrees(left.tree, right.tree);
+				topology = current.replace(index, 2, new Shard(left.lowKey, merged));
+				left.retired = true;
+				right.retired = true;
+			}
+			finally {
+				right.lock.writeLock().unlock();
+				left.lock.writeLock().unlock();
+			}
+		}
+		finally {
+			resizeLock.unlock();
+		}
+	}
+
+	/**
+	 * private static AVLTree joinTrees(AVLTree lower, AVLTree upper)
+	 *
+	 * Joins two trees with keys(lower) < keys(upper), using the minimum of upper as the middle node.
+	 * Complexity - O(log n)
+	 */
+	private static AVLTree joinTrees(AVLTree lower, AVLTree upper) {
+		if(upper.empty()) {
+			return lower;
+		}
+		if(lower.empty()) {
+			return upper;
+		}
+		int key = upper.min.getKey();
+		String value = upper.min.getValue();
+		upper.delete(key);
+		lower.join(lower.new AVLNode(key, value, true), upper);
+		return lower;
+	}
+
+	/**
+	 * private static class Shard
+	 *
+	 * A tree with all keys >= lowKey and smaller than the lowKey of the next shard.
+	 * A retired shard was replaced by a split or merge, and operations that
+	 * still routed to it must retry.
+	 */
+	private static class Shard {
+		private final int lowKey;
+		private final AVLTree tree;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private volatile boolean retired;
+
+		private Shard(int lowKey, AVLTree tree) {
+			this.lowKey = lowKey;
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * private static class Topology
+	 *
+	 * Immutable boundary index: shards in key order and their lower bounds.
+	 */
+	private static class Topology {
+		private final Shard[] shards;
+		private final int[] bounds;
+
+		private Topology(Shard[] shards) {
+			this.shards = shards;
+			this.bounds = new int[shards.length];
+			for(int s = 0; s < shards.length; s++) {
+				bounds[s] = shards[s].lowKey;
+			}
+		}
+
+		/**
+		 * Returns the index of the shard whose range contains k.
+		 * Complexity - O(log number of shards)
+		 */
+		private int indexOf(int k) {
+			int index = Arrays.binarySearch(bounds, k);
+			// otherwise the shard before the insertion point, bounds[0] is Integer.MIN_VALUE
+			return index >= 0 ? index : -index - 2;
+		}
+
+		private Shard route(int k) {
+			return shards[indexOf(k)];
+		}
+
+		/**
+		 * Returns a copy with count shards starting at index replaced by replacement.
+		 */
+		private Topology replace(int index, int count, Shard... replacement) {
+			Shard[] result = new Shard[shards.length - count + replacement.length];
+			System.arraycopy(shards, 0, result, 0, index);
+			System.arraycopy(replacement, 0, result, index, replacement.length);
+			System.arraycopy(shards, index + count, result, index + replacement.length, shards.length - index - count);
+			return new Topology(result);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("AVLTree.SlowUpdate")
+@Label("AVLTree Slow Update")
+@Description("An insert or delete that took longer than the threshold")
+@Threshold("1 ms")
+class SlowUpdateEvent extends UpdateEvent {
+}
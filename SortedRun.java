@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * class SortedRun
+ *
+ * Immutable file of items sorted by key: a header (magic, version, count, firstSeq,
+ * index offset), the info bytes, then the index, count fixed width entries of
+ * (int key, int length, long offset) that are binary searched through a memory mapping.
+ * length is NULL_INFO for a null info and DELETED for a tombstone.
+ * firstSeq is the oldest run seq merged into this run.
+ */
+class SortedRun {
+	final static int RUN_MAGIC = 0x41564C52; // "AVLR"
+	final static int RUN_VERSION = 1;
+	final static int HEADER_SIZE = 28;
+	final static int ENTRY_SIZE = 16;
+	final static int NULL_INFO = -1;
+	final static int DELETED = -2;
+
+	final Path path;
+	final long seq;
+	final long firstSeq;
+	final int count;
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+
+	private SortedRun(Path path, long seq, long firstSeq, int count, FileChannel channel, MappedByteBuffer index) {
+		this.path = path;
+		this.seq = seq;
+		this.firstSeq = firstSeq;
+		this.count = count;
+		this.channel = channel;
+		this.index = index;
+	}
+
+	static SortedRun open(Path path, long seq) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while(header.hasRemaining()) {
+				if(channel.read(header, header.position()) < 0) {
+					throw new IOException(path + " is not a sorted run");
+				}
+			}
+			header.flip();
+			if(header.getInt() != RUN_MAGIC || header.getInt() != RUN_VERSION) {
+				throw new IOException(path + " is not a sorted run");
+			}
+			int count = header.getInt();
+			long firstSeq = header.getLong();
+			long indexOffset = header.getLong();
+			MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) count * ENTRY_SIZE);
+			return new SortedRun(path, seq, firstSeq, count, channel, index);
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * int find(int k)
+	 *
+	 * Returns the index of k, or -1 if k isn't in the run.
+	 * Complexity - O(log count)
+	 */
+	int find(int k) {
+		int low = 0;
+		int high = count - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int key = key(middle);
+			if(key < k) {
+				low = middle + 1;
+			}
+			else if(key > k) {
+				high = middle - 1;
+			}
+			else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	int key(int i) {
+		return index.getInt(i * ENTRY_SIZE);
+	}
+
+	int length(int i) {
+		return index.getInt(i * ENTRY_SIZE + 4);
+	}
+
+	byte[] bytes(int i) throws IOException {
+		int length = length(i);
+		if(length < 0) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		long offset = index.getLong(i * ENTRY_SIZE + 8);
+		while(bytes.hasRemaining()) {
+			if(channel.read(bytes, offset + bytes.position()) < 0) {
+				throw new IOException(path + " is truncated");
+			}
+		}
+		return bytes.array();
+	}
+
+	String value(int i) throws IOException {
+		byte[] bytes = bytes(i);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,39 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR events of the tree, in the category "AVLTree" of a flight recording: this one, JoinEvent,
+ * ExportEvent, SlowUpdateEvent and LargeRebalanceEvent.
+ * Split, join and export events are recorded at every call (threshold 0), SlowUpdate for an
+ * insert or delete that takes 1 ms or more, and LargeRebalance for one whose re-balancing
+ * operations (the value insert/delete returns) reach the "rebalancing" setting, 8 by default.
+ * All of them can be enabled and tuned in a .jfc file or through jdk.jfr.Recording.
+ * Without a recording the events are disabled and cost close to nothing.
+ */
+@Name("AVLTree.Split")
+@Label("AVLTree Split")
+@Category("AVLTree")
+@Description("A split of a tree")
+@Threshold("0 ns")
+class SplitEvent extends Event {
+	@Label("Split Key")
+	int key;
+	@Label("Tree Size")
+	int treeSize;
+	@Label("Tree Height")
+	int treeHeight;
+	@Label("Smaller Keys")
+	int smallerSize;
+	@Label("Bigger Keys")
+	int biggerSize;
+	@Label("Joins")
+	@Description("Joins made to build the two trees")
+	int joins;
+	@Label("Join Cost")
+	@Description("Sum of the costs of those joins")
+	long joinCost;
+}
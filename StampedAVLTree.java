@@ -0,0 +1,284 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * public class StampedAVLTree
+ *
+ * Thread-safe wrapper of an AVLTree for read-mostly workloads.
+ * Writers (insert, delete) take the write lock of a StampedLock. Point reads
+ * (search, min, max, size) and range reads first run under an optimistic stamp without
+ * blocking, and are validated afterwards. A read that raced with a writer is retried,
+ * and falls back to the read lock after OPTIMISTIC_ATTEMPTS failed attempts.
+ * If the wrapped tree changes on search (bounded with EVICT_LEAST_RECENT, or with the search
+ * cache enabled), search takes the write lock instead.
+ * A search answered optimistically bypasses AVLTree.search: the wrapped tree's metrics, JFR
+ * events, workload trace and membership filter only see the searches that fell back to the read
+ * lock, so a recorded trace lacks most searches and the metrics undercount them.
+ *
+ * The wrapped tree must not be used directly once it is wrapped.
+ */
+public class StampedAVLTree {
+
+	private final static int OPTIMISTIC_ATTEMPTS = 3;
+
+	private final AVLTree tree;
+	private final StampedLock lock = new StampedLock();
+	// fixed at construction, the wrapped tree is not configured afterwards
+	private final boolean exclusiveSearch;
+
+	/**
+	 * public StampedAVLTree()
+	 *
+	 * Constructor of an empty thread-safe AVL tree
+	 * Complexity - O(1)
+	 */
+	public StampedAVLTree() {
+		this(new AVLTree());
+	}
+
+	/**
+	 * public StampedAVLTree(AVLTree tree)
+	 *
+	 * Wraps an existing tree. The caller must not access tree afterwards.
+	 * Complexity - O(1)
+	 */
+	public StampedAVLTree(AVLTree tree) {
+		this.tree = tree;
+		this.exclusiveSearch = tree.searchMutates();
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * Same as AVLTree.search(k), without blocking as long as no writer interferes.
+	 * Under the write lock if the tree changes on search.
+	 * Complexity - O(log n)
+	 */
+	public String search(int k) {
+		if(exclusiveSearch) {
+			long stamp = lock.writeLock();
+			try {
+				return tree.search(k);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if(stamp == 0) {
+				break; // a writer holds the lock
+			}
+			String result = optimisticSearch(k);
+			if(lock.validate(stamp)) {
+				return result;
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return tree.search(k);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Same as AVLTree.min()
+	 * Complexity - O(1)
+	 */
+	public String min() {
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if(stamp == 0) {
+				break;
+			}
+			AVLTree.IAVLNode node = tree.min;
+			String result = node == null ? null : node.getValue();
+			if(lock.validate(stamp)) {
+				return result;
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return tree.min();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Same as AVLTree.max()
+	 * Complexity - O(1)
+	 */
+	public String max() {
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if(stamp == 0) {
+				break;
+			}
+			AVLTree.IAVLNode node = tree.max;
+			String result = node == null ? null : node.getValue();
+			if(lock.validate(stamp)) {
+				return result;
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return tree.max();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Same as AVLTree.size()
+	 * Complexity - O(1)
+	 */
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int result = tree.size;
+		if(stamp != 0 && lock.validate(stamp)) {
+			return result;
+		}
+
+		stamp = lock.readLock();
+		try {
+			return tree.size;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * Same as AVLTree.empty()
+	 * Complexity - O(1)
+	 */
+	public boolean empty() {
+		return size() == 0;
+	}
+
+	/**
+	 * public int[] keysInRange(int low, int high)
+	 *
+	 * Same as AVLTree.keysInRange(low, high)
+	 * Complexity - O(log n + r)
+	 */
+	public int[] keysInRange(int low, int high) {
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if(stamp == 0) {
+				break;
+			}
+			int[] result = null;
+			try {
+				// every real node is visited at most twice
+				result = AVLTree.keysInRange(tree.root, low, high, 2 * tree.size + AVLTree.MAX_HEIGHT);
+			}
+			catch(RuntimeException e) {
+				// inconsistent view of a tree in the middle of a write
+			}
+			if(lock.validate(stamp) && result != null) {
+				return result;
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return tree.keysInRange(low, high);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Same as AVLTree.keysToArray(), under the read lock.
+	 * Complexity - O(n)
+	 */
+	public int[] keysToArray() {
+		long stamp = lock.readLock();
+		try {
+			return tree.keysToArray();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Same as AVLTree.infoToArray(), under the read lock.
+	 * Complexity - O(n)
+	 */
+	public String[] infoToArray() {
+		long stamp = lock.readLock();
+		try {
+			return tree.infoToArray();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * Same as AVLTree.insert(k, i), under the write lock.
+	 * Complexity - O(log n)
+	 */
+	public int insert(int k, String i) {
+		long stamp = lock.writeLock();
+		try {
+			return tree.insert(k, i);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * Same as AVLTree.delete(k), under the write lock.
+	 * Complexity - O(log n)
+	 */
+	public int delete(int k) {
+		long stamp = lock.writeLock();
+		try {
+			return tree.delete(k);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * private String optimisticSearch(int k)
+	 *
+	 * Search that tolerates a concurrent writer: AVLTree.findNode(k) writes nothing and never
+	 * follows more than MAX_HEIGHT links, and its result is only trusted after the stamp is validated.
+	 * Complexity - O(log n)
+	 */
+	private String optimisticSearch(int k) {
+		AVLTree.IAVLNode node = tree.findNode(k);
+		return node == null ? null : node.getValue();
+	}
+}
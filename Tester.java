@@ -1,10 +1,16 @@
 import javax.swing.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 public class Tester {
     public static void main(String[] args) {
-        /*Q2();
+        /*benchmarkSplitJoin();
         checkminMax();
         System.out.println("done");
         checkProblem5();
@@ -466,7 +472,10 @@ public class Tester {
         }
     }
     public static void shuffle(int[] array) { // mix-up the array
-        Random rand = new Random();
+        shuffle(array, new Random());
+    }
+
+    public static void shuffle(int[] array, Random rand) {
         for (int i = array.length - 1; i > 0; --i) {
             int j = rand.nextInt(i + 1);
             int temp = array[i];
@@ -475,43 +484,2616 @@ public class Tester {
         }
     }
 
-    public static void Q2(){
-        for(int i=1;i<=10;i++){
-            int size=(int)(1000*(Math.pow(2, i)));
-            System.out.println("================== for i= "+i+ " Tree's Size: "+size+" ==================");
+    // benchmarkSplitJoin: split points, and measured splits per tree size (each joined back)
+    private static final String[] SPLIT_POINTS={"random","maxLeft","min","max"};
+    private static final int SPLIT_REPETITIONS=50;
+
+    /**
+     * Measures split(x) and the join that puts the two trees back together, for trees of 1K to 16M
+     * keys and split points drawn at random, at the biggest key of the left subtree of the root (the
+     * most expensive split), at the minimum and at the maximum. A fixed inner split point would
+     * become the root after the first join back, so there is none. Prints the averages of the split time,
+     * the joins the split made and their total cost, and the time and cost of the join back.
+     * The keys and split points come from fixed seeds, so every run measures the same work.
+     */
+    public static void benchmarkSplitJoin(){
+        System.out.println(String.format("%9s %-8s %10s %8s %10s %10s %8s","keys","split at","split ns","joins",
+                "join cost","join ns","cost"));
+        boolean sizesAddUp=true;
+        for(int i=0;i<=14;i++){
+            int size=1000<<i;
+            if(300L*size>Runtime.getRuntime().maxMemory()){
+                System.out.println("size "+size+" skipped, needs -Xmx"+((300L*size>>30)+1)+"g");
+                continue;
+            }
+            int[] keysArr=IntStream.range(1,size+1).toArray();
+            shuffle(keysArr,new Random(48));
+            AVLTree[] tree={new AVLTree()};
+            for(int key:keysArr)
+                tree[0].insert(key,"num "+key);
+
+            for(String point:SPLIT_POINTS){
+                System.gc();
+                Random rand=new Random(size);
+                long[] totals=new long[5];
+                for(int rep=-SPLIT_REPETITIONS;rep<SPLIT_REPETITIONS;rep++){
+                    int x;
+                    if(point.equals("random"))
+                        x=rand.nextInt(size)+1;
+                    else if(point.equals("min"))
+                        x=1;
+                    else if(point.equals("max"))
+                        x=size;
+                    else{
+                        AVLTree.IAVLNode ptr=tree[0].getRoot().getLeft();
+                        while(ptr.getRight().isRealNode())
+                            ptr=ptr.getRight();
+                        x=ptr.getKey();
+                    }
+                    long before=System.nanoTime();
+                    AVLTree[] parts=tree[0].split(x);
+                    long splitTime=System.nanoTime()-before;
+                    sizesAddUp&=parts[0].size()+parts[1].size()+1==size;
+                    AVLTree.IAVLNode node=parts[0].new AVLNode(x,"num "+x,true);
+                    before=System.nanoTime();
+                    int cost=parts[0].join(node,parts[1]);
+                    long joinTime=System.nanoTime()-before;
+                    sizesAddUp&=parts[0].size()==size;
+                    // the first half of the repetitions warms up
+                    if(rep>=0){
+                        totals[0]+=splitTime;
+                        totals[1]+=tree[0].lastSplitJoins();
+                        totals[2]+=tree[0].lastSplitJoinCost();
+                        totals[3]+=joinTime;
+                        totals[4]+=cost;
+                    }
+                    tree[0]=parts[0];
+                }
+                System.out.println(String.format("%9d %-8s %10d %8.1f %10.1f %10d %8.1f",size,point,
+                        totals[0]/SPLIT_REPETITIONS,(double)totals[1]/SPLIT_REPETITIONS,(double)totals[2]/SPLIT_REPETITIONS,
+                        totals[3]/SPLIT_REPETITIONS,(double)totals[4]/SPLIT_REPETITIONS));
+            }
+        }
+        System.out.println("sizes add up after every split and join? "+sizesAddUp);
+    }
 
-            AVLTree treeRandom=new AVLTree();
-            AVLTree treeMax=new AVLTree();
+    public static void checkStampedAVLTree(){
+        // virtual leaves have key -1 as well
+        StampedAVLTree small=new StampedAVLTree();
+        small.insert(-2,"a");
+        small.insert(0,"b");
+        boolean absent=small.search(-1)==null;
+        small.insert(-1,"c");
+        System.out.println("key -1 found only when inserted? "+(absent && "c".equals(small.search(-1))));
+
+        int threads=8;
+        int opsPerThread=200000;
+        int keyRange=1<<12;
+
+        StampedAVLTree tree=new StampedAVLTree();
+        ConcurrentSkipListMap<Integer,String> map=new ConcurrentSkipListMap<>();
+        AtomicInteger errors=new AtomicInteger();
+
+        // thread t owns the keys k with k%threads==t, the reads of other threads' keys race with
+        // their writers and must still see either nothing or the one value ever stored
+        Thread[] workers=new Thread[threads];
+        for(int t=0;t<threads;t++){
+            int id=t;
+            workers[t]=new Thread(() -> {
+                Random rand=new Random(id);
+                for(int i=0;i<opsPerThread;i++){
+                    int key=rand.nextInt(keyRange/threads)*threads+id;
+                    int op=rand.nextInt(10);
+                    if(op<2){
+                        boolean expected=map.putIfAbsent(key,"num "+key)==null;
+                        if((tree.insert(key,"num "+key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else if(op<4){
+                        boolean expected=map.remove(key)!=null;
+                        if((tree.delete(key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else if(op<9){
+                        if(!Objects.equals(map.get(key),tree.search(key)))
+                            errors.incrementAndGet();
+                        int other=rand.nextInt(keyRange);
+                        String value=tree.search(other);
+                        if(value!=null && !value.equals("num "+other))
+                            errors.incrementAndGet();
+                    }
+                    else{
+                        // a range read is a sorted set of existing keys, whatever the writers did
+                        int low=rand.nextInt(keyRange);
+                        int[] range=tree.keysInRange(low,low+64);
+                        for(int j=0;j<range.length;j++){
+                            if(range[j]<low || range[j]>low+64 || (j>0 && range[j]<=range[j-1]))
+                                errors.incrementAndGet();
+                        }
+                        String min=tree.min();
+                        if(min!=null && !min.startsWith("num "))
+                            errors.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
 
-            int[] keysArr= IntStream.range(1,size+1).toArray();
+        int[] expectedKeys=map.keySet().stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("operation errors: "+errors.get());
+        System.out.println("same keys? "+Arrays.equals(expectedKeys,tree.keysToArray()));
+        System.out.println("same size? "+(expectedKeys.length==tree.size()));
+        System.out.println("same min and max? "+(expectedKeys.length==0
+                || (("num "+expectedKeys[0]).equals(tree.min()) && ("num "+expectedKeys[expectedKeys.length-1]).equals(tree.max()))));
+    }
+
+    public static void benchmarkStampedAVLTree(){
+        int keyRange=1<<20;
+        int totalOps=1<<22;
+
+        System.out.println("threads | StampedAVLTree | synchronized AVLTree   (Mops/s, 95% search 2.5% insert 2.5% delete)");
+        for(int threads=1;threads<=64;threads*=2){
+            int opsPerThread=totalOps/threads;
+            StampedAVLTree stamped=new StampedAVLTree();
+            AVLTree locked=new AVLTree();
+            int[] keysArr=IntStream.range(0,keyRange).toArray();
+            shuffle(keysArr);
+            for(int j=0;j<keyRange/2;j++){
+                stamped.insert(keysArr[j],"num "+keysArr[j]);
+                locked.insert(keysArr[j],"num "+keysArr[j]);
+            }
+
+            double stampedOps=runMixedWorkload(threads,opsPerThread,keyRange,95,
+                    k -> stamped.search(k),k -> stamped.insert(k,"num "+k),k -> stamped.delete(k));
+            double lockedOps=runMixedWorkload(threads,opsPerThread,keyRange,95,
+                    k -> {synchronized(locked){locked.search(k);}},
+                    k -> {synchronized(locked){locked.insert(k,"num "+k);}},
+                    k -> {synchronized(locked){locked.delete(k);}});
+
+            System.out.printf("%7d | %14.2f | %20.2f%n",threads,stampedOps,lockedOps);
+        }
+    }
+
+    public static void checkConcurrentAVLTree(){
+        int threads=8;
+        int opsPerThread=300000;
+        int keyRange=1<<12;
+
+        ConcurrentAVLTree tree=new ConcurrentAVLTree();
+        ConcurrentSkipListMap<Integer,String> map=new ConcurrentSkipListMap<>();
+        AtomicInteger errors=new AtomicInteger();
+
+        // thread t owns the keys k with k%threads==t, so the expected result of every
+        // operation is known, while neighbouring keys of different threads share nodes
+        Thread[] workers=new Thread[threads];
+        for(int t=0;t<threads;t++){
+            int id=t;
+            workers[t]=new Thread(() -> {
+                Random rand=new Random(id);
+                for(int i=0;i<opsPerThread;i++){
+                    int key=rand.nextInt(keyRange/threads)*threads+id;
+                    int op=rand.nextInt(3);
+                    if(op==0){
+                        boolean expected=map.putIfAbsent(key,"num "+key)==null;
+                        if(tree.insert(key,"num "+key)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else if(op==1){
+                        boolean expected=map.remove(key)!=null;
+                        if(tree.delete(key)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else{
+                        if(!Objects.equals(map.get(key),tree.search(key)))
+                            errors.incrementAndGet();
+                    }
+                    // a search of another thread's key must return null or its value
+                    int other=rand.nextInt(keyRange);
+                    String value=tree.search(other);
+                    if(value!=null && !value.equals("num "+other))
+                        errors.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        int[] expectedKeys=map.keySet().stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("operation errors: "+errors.get());
+        System.out.println("same keys? "+Arrays.equals(expectedKeys,tree.keysToArray()));
+        System.out.println("same size? "+(expectedKeys.length==tree.size()));
+        // AVL height bound, routing nodes included
+        double bound=1.45*Math.log(expectedKeys.length+2)/Math.log(2);
+        System.out.println("height "+tree.height()+" within AVL bound? "+(tree.height()<=bound+1));
+    }
+
+    public static void benchmarkConcurrentAVLTree(){
+        int keyRange=1<<20;
+        int totalOps=1<<21;
+
+        System.out.println("threads | ConcurrentAVLTree | StampedAVLTree | ConcurrentSkipListMap   (Mops/s, 50% search 25% insert 25% delete)");
+        for(int threads=1;threads<=64;threads*=2){
+            int opsPerThread=totalOps/threads;
+            ConcurrentAVLTree concurrent=new ConcurrentAVLTree();
+            StampedAVLTree stamped=new StampedAVLTree();
+            ConcurrentSkipListMap<Integer,String> skipList=new ConcurrentSkipListMap<>();
+            int[] keysArr=IntStream.range(0,keyRange).toArray();
+            shuffle(keysArr);
+            for(int j=0;j<keyRange/2;j++){
+                concurrent.insert(keysArr[j],"num "+keysArr[j]);
+                stamped.insert(keysArr[j],"num "+keysArr[j]);
+                skipList.put(keysArr[j],"num "+keysArr[j]);
+            }
+
+            double concurrentOps=runMixedWorkload(threads,opsPerThread,keyRange,
+                    k -> concurrent.search(k),k -> concurrent.insert(k,"num "+k),k -> concurrent.delete(k));
+            double stampedOps=runMixedWorkload(threads,opsPerThread,keyRange,
+                    k -> stamped.search(k),k -> stamped.insert(k,"num "+k),k -> stamped.delete(k));
+            double skipListOps=runMixedWorkload(threads,opsPerThread,keyRange,
+                    k -> skipList.get(k),k -> skipList.putIfAbsent(k,"num "+k),k -> skipList.remove(k));
+
+            System.out.printf("%7d | %17.2f | %14.2f | %21.2f%n",threads,concurrentOps,stampedOps,skipListOps);
+        }
+    }
+
+    // 50% search 25% insert 25% delete, returns millions of operations per second
+    private static double runMixedWorkload(int threads, int opsPerThread, int keyRange,
+                                           java.util.function.IntConsumer search,
+                                           java.util.function.IntConsumer insert,
+                                           java.util.function.IntConsumer delete){
+        return runMixedWorkload(threads,opsPerThread,keyRange,50,search,insert,delete);
+    }
 
+    // searchPercent% search, the rest split evenly between insert and delete
+    private static double runMixedWorkload(int threads, int opsPerThread, int keyRange, int searchPercent,
+                                           java.util.function.IntConsumer search,
+                                           java.util.function.IntConsumer insert,
+                                           java.util.function.IntConsumer delete){
+        CountDownLatch start=new CountDownLatch(1);
+        Thread[] workers=new Thread[threads];
+        for(int t=0;t<threads;t++){
+            workers[t]=new Thread(() -> {
+                ThreadLocalRandom rand=ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i=0;i<opsPerThread;i++){
+                    int key=rand.nextInt(keyRange);
+                    int op=rand.nextInt(200);
+                    if(op<2*searchPercent)
+                        search.accept(key);
+                    else if(op%2==0)
+                        insert.accept(key);
+                    else
+                        delete.accept(key);
+                }
+            });
+            workers[t].start();
+        }
+        long startTime=System.nanoTime();
+        start.countDown();
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long elapsed=System.nanoTime()-startTime;
+        return (double)threads*opsPerThread/elapsed*1000;
+    }
+
+    public static void checkShardedAVLTree(){
+        int threads=4;
+        int opsPerThread=200000;
+        int keyRange=1<<14;
+
+        // small shards so that splits and merges happen all the time
+        ShardedAVLTree tree=new ShardedAVLTree(64);
+        ConcurrentSkipListMap<Integer,String> map=new ConcurrentSkipListMap<>();
+        AtomicInteger errors=new AtomicInteger();
+
+        Thread[] workers=new Thread[threads];
+        for(int t=0;t<threads;t++){
+            int id=t;
+            workers[t]=new Thread(() -> {
+                Random rand=new Random(id);
+                for(int i=0;i<opsPerThread;i++){
+                    int key=rand.nextInt(keyRange/threads)*threads+id;
+                    int op=rand.nextInt(3);
+                    if(op==0){
+                        boolean expected=map.putIfAbsent(key,"num "+key)==null;
+                        if((tree.insert(key,"num "+key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else if(op==1){
+                        boolean expected=map.remove(key)!=null;
+                        if((tree.delete(key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else{
+                        if(!Objects.equals(map.get(key),tree.search(key)))
+                            errors.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        int[] expectedKeys=map.keySet().stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("operation errors: "+errors.get());
+        System.out.println("shards: "+tree.shardCount());
+        System.out.println("same keys? "+Arrays.equals(expectedKeys,tree.keysToArray()));
+        System.out.println("same size? "+(expectedKeys.length==tree.size()));
+        System.out.println("min: "+tree.min()+" max: "+tree.max());
+    }
+
+    public static void checkFlatCombiningAVLTree(){
+        int threads=8;
+        int opsPerThread=100000;
+        int keyRange=1<<12;
+
+        FlatCombiningAVLTree tree=new FlatCombiningAVLTree();
+        ConcurrentSkipListMap<Integer,String> map=new ConcurrentSkipListMap<>();
+        AtomicInteger errors=new AtomicInteger();
+
+        Thread[] workers=new Thread[threads];
+        for(int t=0;t<threads;t++){
+            int id=t;
+            workers[t]=new Thread(() -> {
+                Random rand=new Random(id);
+                for(int i=0;i<opsPerThread;i++){
+                    int key=rand.nextInt(keyRange/threads)*threads+id;
+                    int op=rand.nextInt(3);
+                    if(op==0){
+                        boolean expected=map.putIfAbsent(key,"num "+key)==null;
+                        if((tree.insert(key,"num "+key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else if(op==1){
+                        boolean expected=map.remove(key)!=null;
+                        if((tree.delete(key)!=-1)!=expected)
+                            errors.incrementAndGet();
+                    }
+                    else{
+                        if(!Objects.equals(map.get(key),tree.search(key)))
+                            errors.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        int[] expectedKeys=map.keySet().stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("operation errors: "+errors.get());
+        System.out.println("same keys? "+Arrays.equals(expectedKeys,tree.keysToArray()));
+        System.out.println("same size? "+(expectedKeys.length==tree.size()));
+
+        // slots of threads that went away are retired, the main thread's slot (idle since the
+        // first batch of workers ran) is linked back in once it is used again
+        int shortLived=1000;
+        for(int t=0;t<shortLived;t++){
+            int key=keyRange+t;
+            Thread worker=new Thread(() -> {
+                if(tree.insert(key,"num "+key)==-1 || !("num "+key).equals(tree.search(key)))
+                    errors.incrementAndGet();
+            });
+            worker.start();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for(int i=0;i<1000;i++){
+            if(!("num "+(keyRange+i)).equals(tree.search(keyRange+i)))
+                errors.incrementAndGet();
+        }
+        int slots=tree.publicationSlots();
+        System.out.println("operation errors after "+shortLived+" short-lived threads: "+errors.get());
+        System.out.println("publication slots: "+slots+" (bounded? "+(slots<=threads+2)+")");
+    }
+
+    public static void benchmarkFlatCombiningAVLTree(){
+        int keyRange=1<<20;
+        int totalOps=1<<21;
+
+        System.out.println("threads | FlatCombiningAVLTree | synchronized AVLTree   (Mops/s, 50% search 25% insert 25% delete)");
+        for(int threads=1;threads<=64;threads*=2){
+            int opsPerThread=totalOps/threads;
+            AVLTree combined=new AVLTree();
+            AVLTree locked=new AVLTree();
+            int[] keysArr=IntStream.range(0,keyRange).toArray();
             shuffle(keysArr);
+            for(int j=0;j<keyRange/2;j++){
+                combined.insert(keysArr[j],"num "+keysArr[j]);
+                locked.insert(keysArr[j],"num "+keysArr[j]);
+            }
+            FlatCombiningAVLTree flatCombining=new FlatCombiningAVLTree(combined);
+
+            double flatCombiningOps=runMixedWorkload(threads,opsPerThread,keyRange,
+                    k -> flatCombining.search(k),k -> flatCombining.insert(k,"num "+k),k -> flatCombining.delete(k));
+            double lockedOps=runMixedWorkload(threads,opsPerThread,keyRange,
+                    k -> {synchronized(locked){locked.search(k);}},
+                    k -> {synchronized(locked){locked.insert(k,"num "+k);}},
+                    k -> {synchronized(locked){locked.delete(k);}});
+
+            System.out.printf("%7d | %20.2f | %20.2f%n",threads,flatCombiningOps,lockedOps);
+        }
+    }
+
+    public static void checkApplyBatch(){
+        Random rand=new Random(7);
+        AVLTree tree=new AVLTree();
+        TreeMap<Integer,String> map=new TreeMap<>();
+        int errors=0;
+
+        // batches from tiny to larger than the tree, so both strategies of applyBatch are used
+        for(int round=0;round<400;round++){
+            int batchSize=1+rand.nextInt(round%4==0 ? 5000 : 50);
+            AVLTree.BatchOp[] ops=new AVLTree.BatchOp[batchSize];
+            for(int j=0;j<batchSize;j++){
+                int key=rand.nextInt(20000);
+                ops[j]=new AVLTree.BatchOp(1+rand.nextInt(3),key,"v"+round+"_"+key);
+            }
+            Arrays.sort(ops,Comparator.comparingInt(AVLTree.BatchOp::getKey));
+
+            int[] results=tree.applyBatch(ops);
+            for(int j=0;j<batchSize;j++){
+                AVLTree.BatchOp op=ops[j];
+                boolean present=map.containsKey(op.getKey());
+                boolean expectedSuccess;
+                if(op.getType()==AVLTree.BatchOp.INSERT){
+                    expectedSuccess=!present;
+                    if(!present)
+                        map.put(op.getKey(),op.getInfo());
+                }
+                else if(op.getType()==AVLTree.BatchOp.DELETE){
+                    expectedSuccess=present;
+                    map.remove(op.getKey());
+                }
+                else{
+                    expectedSuccess=present;
+                    if(present)
+                        map.put(op.getKey(),op.getInfo());
+                }
+                if((results[j]!=-1)!=expectedSuccess)
+                    errors++;
+            }
+            if(tree.size()!=map.size() || !Objects.equals(tree.min(),map.isEmpty()?null:map.firstEntry().getValue())
+                    || !Objects.equals(tree.max(),map.isEmpty()?null:map.lastEntry().getValue()))
+                errors++;
+        }
+        System.out.println("result errors: "+errors);
+        System.out.println("same keys? "+Arrays.equals(tree.keysToArray(),map.keySet().stream().mapToInt(Integer::intValue).toArray()));
+        System.out.println("same info? "+Arrays.equals(tree.infoToArray(),map.values().toArray(new String[0])));
+
+        // 10k-operation batches against a 1M-key tree, batch vs. one call per operation
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,2*size).filter(k -> k%2==0).toArray();
+        shuffle(keysArr);
+        AVLTree batched=new AVLTree();
+        AVLTree single=new AVLTree();
+        for(int key:keysArr){
+            batched.insert(key,"num "+key);
+            single.insert(key,"num "+key);
+        }
+        long batchTime=0;
+        long singleTime=0;
+        for(int round=0;round<20;round++){
+            int start=rand.nextInt(2*size-40000);
+            AVLTree.BatchOp[] ops=new AVLTree.BatchOp[10000];
+            for(int j=0;j<ops.length;j++){
+                int key=start+4*j+rand.nextInt(4);
+                ops[j]=new AVLTree.BatchOp(1+rand.nextInt(3),key,"num "+key);
+            }
+
+            long before=System.nanoTime();
+            batched.applyBatch(ops);
+            batchTime+=System.nanoTime()-before;
+
+            before=System.nanoTime();
+            for(AVLTree.BatchOp op:ops){
+                if(op.getType()==AVLTree.BatchOp.INSERT)
+                    single.insert(op.getKey(),op.getInfo());
+                else if(op.getType()==AVLTree.BatchOp.DELETE)
+                    single.delete(op.getKey());
+                else if(single.search(op.getKey())!=null){
+                    single.delete(op.getKey());
+                    single.insert(op.getKey(),op.getInfo());
+                }
+            }
+            singleTime+=System.nanoTime()-before;
+        }
+        System.out.println("applyBatch: "+batchTime/20/1000+" us per batch, single calls: "+singleTime/20/1000+" us per batch");
+        System.out.println("same keys? "+Arrays.equals(batched.keysToArray(),single.keysToArray()));
+    }
 
+    public static void checkSnapshot(){
+        try {
+            Path file=Files.createTempFile("avl",".snapshot");
+
+            AVLTree small=new AVLTree();
+            small.insert(Integer.MIN_VALUE,"min");
+            small.insert(-1,null);
+            small.insert(0,"");
+            small.insert(Integer.MAX_VALUE,"max א");
+            small.writeSnapshot(file);
+            AVLTree loaded=AVLTree.readSnapshot(file);
+            System.out.println("same keys? "+Arrays.equals(small.keysToArray(),loaded.keysToArray()));
+            System.out.println("same info? "+Arrays.equals(small.infoToArray(),loaded.infoToArray()));
+            System.out.println("min: "+loaded.min()+" max: "+loaded.max());
+
+            for(int i=10;i<=22;i+=4){
+                int size=1<<i;
+                int[] keysArr=IntStream.range(0,size).map(k -> 3*k).toArray();
+                shuffle(keysArr);
+                AVLTree tree=new AVLTree();
+                long before=System.nanoTime();
+                for(int key:keysArr)
+                    tree.insert(key,"num "+key);
+                long insertTime=System.nanoTime()-before;
+
+                before=System.nanoTime();
+                tree.writeSnapshot(file);
+                long writeTime=System.nanoTime()-before;
+
+                before=System.nanoTime();
+                loaded=AVLTree.readSnapshot(file);
+                long readTime=System.nanoTime()-before;
+
+                boolean same=Arrays.equals(tree.keysToArray(),loaded.keysToArray())
+                        && Arrays.equals(tree.infoToArray(),loaded.infoToArray());
+                System.out.println("size "+size+": "+Files.size(file)+" bytes, inserts "+insertTime/1000000+" ms, write "
+                        +writeTime/1000000+" ms, read "+readTime/1000000+" ms, same? "+same);
+                loaded=null;
+            }
+
+            // a count that doesn't fit the file is rejected before anything is allocated for it
+            small.writeSnapshot(file);
+            byte[] header=Arrays.copyOf(Files.readAllBytes(file),8);
+            try(java.io.DataOutputStream out=new java.io.DataOutputStream(Files.newOutputStream(file))){
+                out.write(header);
+                out.writeInt(Integer.MAX_VALUE);
+                out.write(new byte[]{0,0,0,0});
+            }
+            try {
+                AVLTree.readSnapshot(file);
+                System.out.println("oversized count rejected? false");
+            } catch (IOException e) {
+                System.out.println("oversized count rejected? true ("+e.getMessage()+")");
+            }
+
+            // 20M keys: the file is written directly in the snapshot format, one tree would not fit twice
+            int size=20000000;
+            if(200L*size>Runtime.getRuntime().maxMemory()){
+                System.out.println("size "+size+" skipped, needs -Xmx"+((200L*size>>30)+1)+"g");
+            }
+            else{
+                writeSequentialSnapshot(file,header,size);
+                System.gc();
+                long before=System.nanoTime();
+                loaded=AVLTree.readSnapshot(file);
+                long readTime=System.nanoTime()-before;
+                boolean same=loaded.size()==size && ("num 0").equals(loaded.min()) && ("num "+3*(size-1)).equals(loaded.max())
+                        && ("num 3000").equals(loaded.search(3000)) && loaded.search(3001)==null;
+                System.out.println("size "+size+": "+Files.size(file)+" bytes, read "+readTime/1000000+" ms, same? "+same);
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("snapshot failed: "+e);
+        }
+    }
+
+    // writes the keys 0, 3, .., 3*(size-1) with info "num "+key in the format of writeSnapshot, after header (magic, version)
+    private static void writeSequentialSnapshot(Path file,byte[] header,int size) throws IOException{
+        try(java.io.OutputStream out=new java.io.BufferedOutputStream(Files.newOutputStream(file),1<<16)){
+            out.write(header);
+            out.write(ByteBuffer.allocate(4).putInt(size).array());
+            out.write(0); // zigzag of the first key 0
+            for(int j=1;j<size;j++)
+                out.write(3); // delta 3, a one-byte varint
             for(int j=0;j<size;j++){
-                treeRandom.insert(keysArr[j],"num "+keysArr[j]);
-                treeMax.insert(keysArr[j],"num "+keysArr[j]);
+                byte[] info=("num "+3*j).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                out.write(info.length+1); // length + 1 < 128, a one-byte varint
+                out.write(info);
             }
+        }
+    }
 
-            Random rand = new Random(); //instance of random class
-            int randToSplit=rand.nextInt(size);
+    public static void checkDurableAVLTree(){
+        Path dir=null;
+        Path benchDir=null;
+        try {
+            dir=Files.createTempDirectory("avl-wal");
+
+            // recovery: mutations, a checkpoint, more mutations, then reopen without close()
+            DurableAVLTree durable=DurableAVLTree.open(dir,1<<16,10);
+            TreeMap<Integer,String> expected=new TreeMap<>();
+            Random rnd=new Random(32);
+            for(int i=0;i<20000;i++){
+                int key=rnd.nextInt(5000);
+                if(rnd.nextInt(3)==0){
+                    durable.delete(key);
+                    expected.remove(key);
+                }
+                else{
+                    String info=rnd.nextInt(10)==0?null:"v"+key;
+                    if(durable.insert(key,info)!=-1)
+                        expected.put(key,info);
+                }
+                if(i==10000)
+                    durable.checkpoint();
+            }
+            int splitKey=expected.ceilingKey(2500);
+            durable.split(splitKey);
+            expected.tailMap(splitKey,true).clear();
+            AVLTree right=new AVLTree();
+            for(int key=6000;key<6100;key++){
+                right.insert(key,"j"+key);
+                expected.put(key,"j"+key);
+            }
+            durable.join(right.new AVLNode(5999,"pivot",true),right);
+            expected.put(5999,"pivot");
+
+            // rejected before logging, so recovery doesn't replay them
+            int rejected=0;
+            try {
+                durable.split(-5);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+            AVLTree inside=new AVLTree();
+            inside.insert(10,"inside");
+            try {
+                durable.join(inside.new AVLNode(6200,"pivot",true),inside);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+            System.out.println("bad split and join rejected? "+(rejected==2 && durable.size()==expected.size()));
+            durable.sync();
+
+            DurableAVLTree recovered=DurableAVLTree.open(dir,1<<16,10);
+            System.out.println("recovered same keys? "+Arrays.equals(recovered.keysToArray(),
+                    expected.keySet().stream().mapToInt(Integer::intValue).toArray()));
+            System.out.println("recovered same info? "+Arrays.equals(recovered.infoToArray(),expected.values().toArray(new String[0])));
+            recovered.close();
+            durable.close();
+
+            // a torn record at the end of the log is dropped
+            Path log;
+            try(java.util.stream.Stream<Path> files=Files.list(dir)){
+                log=files.filter(f -> f.getFileName().toString().startsWith("log-")).findFirst().get();
+            }
+            long validLength=Files.size(log);
+            Files.write(log,new byte[]{0,0,0,40,1,2,3,4,1,2},java.nio.file.StandardOpenOption.APPEND);
+            recovered=DurableAVLTree.open(dir,1<<16,10);
+            System.out.println("torn tail dropped? "+(Files.size(log)==validLength && recovered.size()==expected.size()));
+            recovered.close();
+
+            // waiting commits: every insert is durable when it returns, concurrent ones share fsyncs
+            deleteRecursively(dir);
+            DurableAVLTree waiting=DurableAVLTree.open(dir,1<<16,10,true);
+            int threads=4, perThread=500;
+            Thread[] workers=new Thread[threads];
+            AtomicInteger errors=new AtomicInteger();
+            for(int t=0;t<threads;t++){
+                int id=t;
+                workers[t]=new Thread(()->{
+                    try {
+                        for(int i=0;i<perThread;i++)
+                            waiting.insert(i*threads+id,"t"+id);
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                });
+                workers[t].start();
+            }
+            for(Thread worker:workers)
+                worker.join();
+            long syncs=waiting.syncs();
+            // no close(): the records must be durable already
+            recovered=DurableAVLTree.open(dir,1<<16,10);
+            System.out.println("waiting commits durable? "+(errors.get()==0 && recovered.size()==threads*perThread)
+                    +", "+threads*perThread+" inserts in "+syncs+" fsyncs");
+            recovered.close();
+            waiting.close();
+
+            // throughput: in memory vs group commit vs fsync per mutation
+            int ops=1<<14;
+            int[] keysArr=IntStream.range(0,ops).toArray();
+            shuffle(keysArr);
+            long before=System.nanoTime();
+            AVLTree plain=new AVLTree();
+            for(int key:keysArr)
+                plain.insert(key,"num "+key);
+            long plainTime=System.nanoTime()-before;
+            long[] times=new long[2];
+            long[][] settings={{1<<16,10},{0,0}};
+            for(int j=0;j<2;j++){
+                benchDir=Files.createTempDirectory("avl-wal-bench");
+                DurableAVLTree bench=DurableAVLTree.open(benchDir,settings[j][0],settings[j][1]);
+                int count=j==0?ops:ops/16;
+                before=System.nanoTime();
+                for(int i=0;i<count;i++)
+                    bench.insert(keysArr[i],"num "+keysArr[i]);
+                bench.sync();
+                times[j]=(System.nanoTime()-before)*(ops/count);
+                bench.close();
+                deleteRecursively(benchDir);
+                benchDir=null;
+            }
+            System.out.println(ops+" inserts: in memory "+plainTime/1000000+" ms, group commit "+times[0]/1000000
+                    +" ms, sync per insert ~"+times[1]/1000000+" ms");
+        } catch (IOException | InterruptedException e) {
+            System.out.println("durable tree failed: "+e);
+        } finally {
+            deleteRecursively(dir);
+            deleteRecursively(benchDir);
+        }
+    }
 
-            System.out.println("split of Random: "+randToSplit);
-            AVLTree[] splitRandom=treeRandom.splitQ2(randToSplit);
-            System.out.println("is good split? "+ (splitRandom[0].size()+splitRandom[1].size()+1==size));
+    /**
+     * Deletes a temporary directory of a check and everything in it, null is ignored.
+     */
+    public static void deleteRecursively(Path dir){
+        if(dir==null)
+            return;
+        try(java.util.stream.Stream<Path> files=Files.walk(dir)){
+            files.sorted(Comparator.reverseOrder()).forEach(file->{
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    System.out.println("can't delete "+file+": "+e);
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("can't delete "+dir+": "+e);
+        }
+    }
 
+    public static void checkPagedAVLTree(){
+        try {
+            Path dir=Files.createTempDirectory("avl-paged");
+            Path file=dir.resolve("index");
+
+            // random operations against a TreeMap, with a cache much smaller than the tree
+            PagedAVLTree paged=PagedAVLTree.open(file,8);
+            TreeMap<Integer,String> expected=new TreeMap<>();
+            Random rnd=new Random(33);
+            boolean ok=true;
+            for(int i=0;i<100000;i++){
+                int key=rnd.nextInt(20000)-10000;
+                if(rnd.nextInt(3)==0){
+                    boolean deleted=paged.delete(key)!=-1;
+                    ok&=deleted==expected.containsKey(key);
+                    expected.remove(key);
+                }
+                else{
+                    String info=rnd.nextInt(10)==0?null:"v"+key;
+                    boolean inserted=paged.insert(key,info)!=-1;
+                    ok&=inserted!=expected.containsKey(key);
+                    if(inserted)
+                        expected.put(key,info);
+                }
+            }
+            int[] all=expected.keySet().stream().mapToInt(Integer::intValue).toArray();
+            System.out.println("operations agree? "+ok);
+            System.out.println("same keys? "+Arrays.equals(paged.keysInRange(Integer.MIN_VALUE,Integer.MAX_VALUE),all));
+            System.out.println("same range? "+Arrays.equals(paged.keysInRange(-500,500),
+                    expected.subMap(-500,true,500,true).keySet().stream().mapToInt(Integer::intValue).toArray()));
+            System.out.println("height "+paged.height()+" within AVL bound? "+(paged.height()<=1.45*Math.log(expected.size()+2)/Math.log(2)));
+            paged.close();
+
+            // reopen: everything is read back from the file
+            paged=PagedAVLTree.open(file,8);
+            boolean sameInfo=paged.size()==expected.size();
+            for(Map.Entry<Integer,String> entry:expected.entrySet())
+                sameInfo&=Objects.equals(paged.search(entry.getKey()),entry.getValue());
+            System.out.println("reopened same items? "+sameInfo);
+            paged.close();
+
+            // pages dirtied per insert stay O(log n) although the tree is far bigger than the cache
+            Files.delete(file);
+            Files.delete(dir.resolve("index.values"));
+            int size=1<<18;
+            int[] keysArr=IntStream.range(0,size).toArray();
+            shuffle(keysArr);
+            paged=PagedAVLTree.open(file,64);
+            long before=System.nanoTime();
+            for(int key:keysArr)
+                paged.insert(key,"num "+key);
+            long insertTime=System.nanoTime()-before;
+            long writes=paged.pageWrites();
+            before=System.nanoTime();
+            for(int j=0;j<100000;j++)
+                paged.search(keysArr[j]);
+            long searchTime=System.nanoTime()-before;
+            paged.close();
+            System.out.println(size+" inserts with 64 cached pages: "+insertTime/1000000+" ms, "
+                    +String.format("%.2f",(double)writes/size)+" page writes per insert, "
+                    +searchTime/100000+" ns per search, file "+Files.size(file)/1024+" KB");
+            Files.delete(file);
+            Files.delete(dir.resolve("index.values"));
+            Files.delete(dir);
+        } catch (IOException e) {
+            System.out.println("paged tree failed: "+e);
+        }
+    }
 
-            AVLTree.IAVLNode ptr=treeMax.getRoot().getLeft();
-            while(ptr.getRight().isRealNode()){
-                ptr=ptr.getRight();
+    public static void checkLogStructuredAVLTree(){
+        Path dir=null;
+        Path benchDir=null;
+        try {
+            dir=Files.createTempDirectory("avl-lsm");
+
+            // random operations against a TreeMap, with many flushes and compactions
+            LogStructuredAVLTree lsm=LogStructuredAVLTree.open(dir,1000,3);
+            TreeMap<Integer,String> expected=new TreeMap<>();
+            Random rnd=new Random(34);
+            boolean ok=true;
+            for(int i=0;i<200000;i++){
+                int key=rnd.nextInt(50000);
+                int op=rnd.nextInt(4);
+                if(op==0){
+                    lsm.delete(key);
+                    expected.remove(key);
+                }
+                else if(op==1){
+                    ok&=Objects.equals(lsm.search(key),expected.get(key));
+                }
+                else{
+                    String info=rnd.nextInt(10)==0?null:"v"+i;
+                    lsm.insert(key,info);
+                    expected.put(key,info);
+                }
             }
-            int maxToSplit=ptr.getKey();
+            System.out.println("searches agree? "+ok+", runs: "+lsm.runCount());
+            lsm.close();
+
+            lsm=LogStructuredAVLTree.open(dir,1000,3);
+            boolean same=true;
+            for(int key=0;key<50000;key++)
+                same&=Objects.equals(lsm.search(key),expected.get(key));
+            System.out.println("reopened same items? "+same);
+            lsm.close();
+
+            // ingest throughput with bounded memory vs one growing tree
+            int size=1<<21;
+            int[] keysArr=IntStream.range(0,size).toArray();
+            shuffle(keysArr);
+            benchDir=Files.createTempDirectory("avl-lsm-bench");
+            lsm=LogStructuredAVLTree.open(benchDir,1<<16,4);
+            long before=System.nanoTime();
+            for(int key:keysArr)
+                lsm.insert(key,"num "+key);
+            lsm.flush();
+            long lsmTime=System.nanoTime()-before;
+            before=System.nanoTime();
+            for(int j=0;j<100000;j++)
+                lsm.search(keysArr[j]);
+            long searchTime=System.nanoTime()-before;
+            lsm.close();
+
+            AVLTree tree=new AVLTree();
+            before=System.nanoTime();
+            for(int key:keysArr)
+                tree.insert(key,"num "+key);
+            long treeTime=System.nanoTime()-before;
+            System.out.println(size+" inserts: LSM "+lsmTime/1000000+" ms ("+searchTime/100000+" ns per search), AVLTree "
+                    +treeTime/1000000+" ms");
+        } catch (IOException e) {
+            System.out.println("log structured tree failed: "+e);
+        } finally {
+            deleteRecursively(dir);
+            deleteRecursively(benchDir);
+        }
+    }
 
-            System.out.println("split of Max: "+maxToSplit);
-            AVLTree[] splitMax=treeMax.splitQ2(maxToSplit);
-            System.out.println("is good split? "+ (splitMax[0].size()+splitMax[1].size()+1==size));
-            splitMax[0].join(ptr,splitMax[1]);
-            System.out.println("is good join? "+ (splitMax[0].size()==size));
+    public static void checkDelimitedImporter(){
+        try {
+            Path file=Files.createTempFile("avl-import",".csv");
+            int lines=1<<21;
+            Random rnd=new Random(35);
+            StringBuilder text=new StringBuilder();
+            try(java.io.BufferedWriter out=Files.newBufferedWriter(file)){
+                for(int i=0;i<lines;i++){
+                    int key=rnd.nextInt(lines)*(rnd.nextInt(8)==0?-1:1);
+                    text.setLength(0);
+                    text.append(key).append(',').append("info ").append(i).append(i%5==0?" שלום":"").append(i%7==0?"\r\n":"\n");
+                    out.write(text.toString());
+                }
+            }
+
+            // the same items inserted one by one
+            AVLTree expected=new AVLTree();
+            for(String line:Files.readAllLines(file)){
+                int comma=line.indexOf(',');
+                expected.insert(Integer.parseInt(line.substring(0,comma)),line.substring(comma+1).replace("\r",""));
+            }
+
+            for(int threads=1;threads<=4;threads*=2){
+                DelimitedImporter importer=new DelimitedImporter(threads,',');
+                AVLTree loaded=importer.load(file);
+                boolean same=Arrays.equals(expected.keysToArray(),loaded.keysToArray())
+                        && Arrays.equals(expected.infoToArray(),loaded.infoToArray());
+                System.out.println(threads+" threads: same as inserts? "+same+", "+importer.lines()+" lines, "
+                        +String.format("%.0f lines/s, %.1f MB/s, peak heap %d MB",importer.linesPerSecond(),
+                        importer.megabytesPerSecond(),importer.peakMemory()>>20));
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("import failed: "+e);
+        }
+    }
+
+    public static void checkIncrementalCheckpoint(){
+        Path dir=null;
+        try {
+            dir=Files.createTempDirectory("avl-delta");
+            Path base=dir.resolve("base");
+            int size=1<<20;
+            int[] keysArr=IntStream.range(0,size).map(k -> 2*k).toArray();
+            AVLTree tree=new AVLTree();
+            tree.applyBatch(Arrays.stream(keysArr).mapToObj(k -> new AVLTree.BatchOp(AVLTree.BatchOp.INSERT,k,"num "+k))
+                    .toArray(AVLTree.BatchOp[]::new));
+            long before=System.nanoTime();
+            tree.writeSnapshot(base);
+            long snapshotTime=System.nanoTime()-before;
+            System.out.println("full snapshot: "+Files.size(base)/1024+" KB, "+snapshotTime/1000000+" ms");
+            tree.trackChanges();
+
+            // a few thousand changes per checkpoint
+            Random rnd=new Random(36);
+            List<Path> deltas=new ArrayList<>();
+            for(int round=0;round<5;round++){
+                for(int i=0;i<3000;i++){
+                    int key=rnd.nextInt(2*size);
+                    switch(rnd.nextInt(3)){
+                        case 0: tree.delete(key); break;
+                        case 1: tree.insert(key,"round "+round); break;
+                        default: tree.applyBatch(new AVLTree.BatchOp[]{new AVLTree.BatchOp(AVLTree.BatchOp.UPDATE,key,rnd.nextInt(5)==0?null:"updated "+round)});
+                    }
+                }
+                if(round==3){
+                    // join a small tree of bigger keys
+                    AVLTree small=new AVLTree();
+                    for(int key=3*size;key<3*size+100;key++)
+                        small.insert(key,"joined");
+                    tree.join(small.new AVLNode(3*size-1,"pivot",true),small);
+                }
+                Path delta=dir.resolve("delta-"+round);
+                before=System.nanoTime();
+                int written=tree.writeDelta(delta);
+                long deltaTime=System.nanoTime()-before;
+                deltas.add(delta);
+                System.out.println("delta "+round+": "+written+" keys, "+Files.size(delta)/1024+" KB, "+deltaTime/1000+" us");
+            }
+
+            AVLTree recovered=AVLTree.readSnapshot(base);
+            for(Path delta:deltas)
+                recovered.applyDelta(delta);
+            System.out.println("snapshot + deltas same? "+(Arrays.equals(tree.keysToArray(),recovered.keysToArray())
+                    && Arrays.equals(tree.infoToArray(),recovered.infoToArray())));
+
+            Path compacted=dir.resolve("compacted");
+            before=System.nanoTime();
+            AVLTree.compactSnapshot(base,deltas,compacted);
+            long compactTime=System.nanoTime()-before;
+            recovered=AVLTree.readSnapshot(compacted);
+            System.out.println("compacted same? "+(Arrays.equals(tree.keysToArray(),recovered.keysToArray())
+                    && Arrays.equals(tree.infoToArray(),recovered.infoToArray()))+", "+compactTime/1000000+" ms");
+
+            // after split the next delta is full
+            AVLTree[] parts=tree.split(tree.keysToArray()[tree.size()/2]);
+            Path delta=dir.resolve("delta-split");
+            int written=parts[0].writeDelta(delta);
+            recovered=AVLTree.readSnapshot(compacted);
+            recovered.applyDelta(delta);
+            System.out.println("full delta after split: "+(written==parts[0].size())+", same? "
+                    +Arrays.equals(parts[0].keysToArray(),recovered.keysToArray()));
+
+            // a burst of changes, a quiet interval that shrinks the set of changed keys, another burst
+            AVLTree bursts=new AVLTree();
+            Path burstBase=dir.resolve("bursts");
+            bursts.writeSnapshot(burstBase);
+            bursts.trackChanges();
+            deltas.clear();
+            int[] changes={5000,10,5000};
+            for(int interval=0;interval<changes.length;interval++){
+                for(int i=0;i<changes[interval];i++)
+                    bursts.insert(rnd.nextInt(),"burst "+interval);
+                Path burstDelta=dir.resolve("burst-"+interval);
+                bursts.writeDelta(burstDelta);
+                deltas.add(burstDelta);
+            }
+            recovered=AVLTree.readSnapshot(burstBase);
+            for(Path burstDelta:deltas)
+                recovered.applyDelta(burstDelta);
+            System.out.println("deltas after a quiet interval same? "+Arrays.equals(bursts.keysToArray(),recovered.keysToArray()));
+        } catch (IOException e) {
+            System.out.println("checkpoint failed: "+e);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public static void checkExport(){
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).map(k -> 3*k-size).toArray();
+        shuffle(keysArr);
+        AVLTree tree=new AVLTree();
+        for(int key:keysArr)
+            tree.insert(key,key%11==0?null:"num "+key+(key%7==0?" שלום":""));
+        int[] keys=tree.keysToArray();
+        String[] info=tree.infoToArray();
+
+        // keys as little-endian ints, whatever the buffer order
+        ByteBuffer keyBytes=ByteBuffer.allocateDirect(4*size);
+        int exported=tree.exportKeys(keyBytes);
+        keyBytes.flip().order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        boolean same=exported==size;
+        for(int j=0;j<size;j++)
+            same&=keyBytes.getInt()==keys[j];
+        System.out.println("keys same? "+same);
+
+        java.nio.IntBuffer range=ByteBuffer.allocateDirect(4*1000).order(java.nio.ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        exported=tree.exportKeys(range,-100,200);
+        int[] expected=tree.keysInRange(-100,200);
+        int[] got=new int[exported];
+        range.flip().get(got);
+        System.out.println("range same? "+Arrays.equals(got,expected));
+
+        // resumed up to Integer.MAX_VALUE, stops at the last key instead of wrapping around
+        AVLTree edge=new AVLTree();
+        for(int key=Integer.MAX_VALUE-9;key!=Integer.MIN_VALUE;key++)
+            edge.insert(key,"edge");
+        java.nio.IntBuffer small=java.nio.IntBuffer.allocate(5);
+        List<Integer> resumed=new ArrayList<>();
+        int from=Integer.MAX_VALUE-20;
+        while(true){
+            small.clear();
+            int n=edge.exportKeys(small,from,Integer.MAX_VALUE);
+            small.flip();
+            int last=from;
+            for(int j=0;j<n;j++)
+                resumed.add(last=small.get());
+            if(small.limit()<small.capacity() || last==Integer.MAX_VALUE)
+                break;
+            from=last+1;
+        }
+        System.out.println("resumed up to MAX_VALUE same? "+resumed.equals(Arrays.stream(edge.keysToArray()).boxed().toList()));
+
+        // infos through a small buffer, resumed from the last exported key
+        ByteBuffer chunk=ByteBuffer.allocateDirect(1<<12);
+        int position=0;
+        int low=Integer.MIN_VALUE;
+        same=true;
+        while(position<size){
+            chunk.clear();
+            int n=tree.exportInfo(chunk,low,Integer.MAX_VALUE);
+            chunk.flip().order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            for(int j=0;j<n;j++,position++){
+                int length=chunk.getInt();
+                String value=null;
+                if(length>=0){
+                    byte[] bytes=new byte[length];
+                    chunk.get(bytes);
+                    value=new String(bytes,java.nio.charset.StandardCharsets.UTF_8);
+                }
+                same&=Objects.equals(value,info[position]);
+            }
+            low=keys[position-1]+1;
+        }
+        System.out.println("info same? "+same);
+
+        // against copying the arrays into a direct buffer
+        long before=System.nanoTime();
+        for(int r=0;r<10;r++){
+            ByteBuffer copy=ByteBuffer.allocateDirect(4*size).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            copy.asIntBuffer().put(tree.keysToArray());
+        }
+        long arrayTime=(System.nanoTime()-before)/10;
+        before=System.nanoTime();
+        for(int r=0;r<10;r++){
+            keyBytes.clear();
+            tree.exportKeys(keyBytes);
+        }
+        long exportTime=(System.nanoTime()-before)/10;
+        System.out.println("keys of "+size+": keysToArray + copy "+arrayTime/1000+" us, exportKeys "+exportTime/1000+" us");
+    }
+
+    public static void checkSearchCache(){
+        // random operations against a TreeMap with a tiny cache
+        AVLTree tree=new AVLTree();
+        tree.enableSearchCache(64);
+        TreeMap<Integer,String> expected=new TreeMap<>();
+        Random rnd=new Random(38);
+        boolean ok=true;
+        for(int i=0;i<300000;i++){
+            int key=rnd.nextInt(2000);
+            switch(rnd.nextInt(5)){
+                case 0:
+                    tree.delete(key);
+                    expected.remove(key);
+                    break;
+                case 1:
+                    if(tree.insert(key,"v"+i)!=-1)
+                        expected.put(key,"v"+i);
+                    break;
+                case 2:
+                    tree.applyBatch(new AVLTree.BatchOp[]{new AVLTree.BatchOp(AVLTree.BatchOp.UPDATE,key,"u"+i)});
+                    if(expected.containsKey(key))
+                        expected.put(key,"u"+i);
+                    break;
+                default:
+                    ok&=Objects.equals(tree.search(key),expected.get(key));
+            }
+        }
+        System.out.println("searches agree? "+ok+", hits "+tree.searchCacheHits()+", misses "+tree.searchCacheMisses());
+
+        // join keeps the cache, split clears it
+        AVLTree right=new AVLTree();
+        for(int key=5000;key<5100;key++)
+            right.insert(key,"r"+key);
+        tree.join(tree.new AVLNode(4999,"pivot",true),right);
+        ok=Objects.equals(tree.search(5050),"r5050") && Objects.equals(tree.search(4999),"pivot");
+        for(Map.Entry<Integer,String> entry:expected.entrySet())
+            ok&=Objects.equals(tree.search(entry.getKey()),entry.getValue());
+        AVLTree[] parts=tree.split(4999);
+        System.out.println("after join/split agree? "+(ok && parts[1].search(5050).equals("r5050")));
+
+        // Zipfian lookups on a big tree
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        AVLTree big=new AVLTree();
+        for(int key:keysArr)
+            big.insert(key,"num "+key);
+        double[] cdf=new double[size];
+        double sum=0;
+        for(int j=0;j<size;j++){
+            sum+=1.0/(j+1);
+            cdf[j]=sum;
+        }
+        int lookups=1<<20;
+        int[] queries=new int[lookups];
+        for(int j=0;j<lookups;j++){
+            int rank=Arrays.binarySearch(cdf,rnd.nextDouble()*sum);
+            queries[j]=keysArr[rank<0?-rank-1:rank];
+        }
+        // misses are the tail. They walk the same tree either way, but with the cache the hits no
+        // longer keep the top of the tree in the CPU caches, so the p99 goes up a few percent. The
+        // same tree is measured with and without the cache in alternating rounds, so node layout
+        // and drift of the machine hit both sides alike
+        int rounds=9;
+        long[][] p50=new long[2][rounds];
+        long[][] p99=new long[2][rounds];
+        long[] latency=new long[lookups];
+        double hitRate=0;
+        for(int round=-1;round<rounds;round++){
+            for(int turn=0;turn<2;turn++){
+                int cached=(round&1)==0?turn:1-turn;
+                if(cached==1){
+                    // a warm cache, as in a long running process
+                    big.enableSearchCache(4096);
+                    for(int j=0;j<lookups/4;j++)
+                        big.search(queries[j]);
+                }
+                else{
+                    big.disableSearchCache();
+                }
+                long hits=big.searchCacheHits(), misses=big.searchCacheMisses();
+                for(int j=0;j<lookups;j++){
+                    long before=System.nanoTime();
+                    big.search(queries[j]);
+                    latency[j]=System.nanoTime()-before;
+                }
+                if(cached==1)
+                    hitRate=(double)(big.searchCacheHits()-hits)/(big.searchCacheHits()-hits+big.searchCacheMisses()-misses);
+                // the first round warms up
+                if(round>=0){
+                    Arrays.sort(latency);
+                    p50[cached][round]=latency[lookups/2];
+                    p99[cached][round]=latency[lookups/100*99];
+                }
+            }
+        }
+        double[] ratio=new double[rounds];
+        for(int round=0;round<rounds;round++)
+            ratio[round]=(double)p99[1][round]/p99[0][round];
+        Arrays.sort(ratio);
+        for(int cached=0;cached<2;cached++){
+            Arrays.sort(p50[cached]);
+            Arrays.sort(p99[cached]);
+        }
+        System.out.println("without cache: p50 "+p50[0][rounds/2]+" ns, p99 "+p99[0][rounds/2]+" ns");
+        System.out.println("with cache:    p50 "+p50[1][rounds/2]+" ns, p99 "+p99[1][rounds/2]+" ns, hit rate "+String.format("%.2f",hitRate)
+                +String.format(", median p99 ratio %.3f",ratio[rounds/2]));
+    }
+
+    public static void checkMembershipFilter(){
+        // random operations against a TreeMap, batches and bulk rebuilds included
+        AVLTree tree=new AVLTree();
+        tree.enableMembershipFilter(4000,0.01);
+        TreeMap<Integer,String> expected=new TreeMap<>();
+        Random rnd=new Random(39);
+        boolean ok=true;
+        for(int i=0;i<200000;i++){
+            int key=rnd.nextInt(8000);
+            switch(rnd.nextInt(5)){
+                case 0:
+                    ok&=(tree.delete(key)!=-1)==(expected.remove(key)!=null);
+                    break;
+                case 1:
+                    boolean inserted=tree.insert(key,"v"+key)!=-1;
+                    ok&=inserted!=expected.containsKey(key);
+                    if(inserted)
+                        expected.put(key,"v"+key);
+                    break;
+                case 2:
+                    int count=rnd.nextInt(50)==0?3000:3;
+                    TreeSet<Integer> batchKeys=new TreeSet<>();
+                    while(batchKeys.size()<count)
+                        batchKeys.add(rnd.nextInt(8000));
+                    AVLTree.BatchOp[] ops=batchKeys.stream().map(k -> new AVLTree.BatchOp(k%2==0?AVLTree.BatchOp.INSERT:AVLTree.BatchOp.DELETE,k,"v"+k))
+                            .toArray(AVLTree.BatchOp[]::new);
+                    tree.applyBatch(ops);
+                    for(AVLTree.BatchOp op:ops){
+                        if(op.getType()==AVLTree.BatchOp.INSERT)
+                            expected.putIfAbsent(op.getKey(),op.getInfo());
+                        else
+                            expected.remove(op.getKey());
+                    }
+                    break;
+                default:
+                    ok&=Objects.equals(tree.search(key),expected.get(key));
+            }
+        }
+        System.out.println("operations agree? "+ok+", observed false positive rate "
+                +String.format("%.4f",tree.membershipFilterFalsePositiveRate())+", expected "
+                +String.format("%.4f",tree.membershipFilterExpectedFalsePositiveRate()));
+
+        // split hands a copy down, join adds t's keys
+        AVLTree right=new AVLTree();
+        for(int key=10000;key<10100;key++)
+            right.insert(key,"r"+key);
+        tree.join(tree.new AVLNode(9999,"pivot",true),right);
+        AVLTree[] parts=tree.split(tree.keysToArray()[tree.size()/2]);
+        ok=Objects.equals(parts[1].search(10050),"r10050") && Objects.equals(parts[1].search(9999),"pivot");
+        for(int key:parts[0].keysToArray())
+            ok&=Objects.equals(parts[0].search(key),expected.get(key));
+        System.out.println("after join/split agree? "+ok);
+
+        // absent lookups on a big tree
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).map(k -> 2*k).toArray();
+        shuffle(keysArr);
+        AVLTree big=new AVLTree();
+        for(int key:keysArr)
+            big.insert(key,"num "+key);
+        for(int filtered=0;filtered<2;filtered++){
+            if(filtered==1)
+                big.enableMembershipFilter(size,0.01);
+            long before=System.nanoTime();
+            for(int round=0;round<3;round++){
+                for(int key:keysArr)
+                    big.search(key+1);
+            }
+            long time=(System.nanoTime()-before)/3;
+            System.out.println((filtered==1?"with filter:    ":"without filter: ")+time/size+" ns per absent search"
+                    +(filtered==1?String.format(", false positive rate %.4f, %d KB",big.membershipFilterFalsePositiveRate(),
+                    big.membershipFilterMemory()/1024):""));
+        }
+    }
+
+    public static void checkPoll(){
+        // a scheduler: deadlines are inserted and the earliest (or latest) one is polled
+        AVLTree tree=new AVLTree();
+        TreeMap<Integer,String> expected=new TreeMap<>();
+        Random rnd=new Random(40);
+        boolean ok=true;
+        int now=0;
+        for(int i=0;i<300000;i++){
+            int op=rnd.nextInt(10);
+            if(op<5){
+                int deadline=now+rnd.nextInt(1000);
+                if(tree.insert(deadline,"task "+i)!=-1)
+                    expected.put(deadline,"task "+i);
+            }
+            else if(op<8){
+                if(!expected.isEmpty()){
+                    ok&=tree.peekMinKey()==expected.firstKey();
+                    now=expected.firstKey();
+                }
+                Map.Entry<Integer,String> first=expected.pollFirstEntry();
+                ok&=Objects.equals(tree.pollMin(),first==null?null:first.getValue());
+            }
+            else{
+                if(!expected.isEmpty())
+                    ok&=tree.peekMaxKey()==expected.lastKey();
+                Map.Entry<Integer,String> last=expected.pollLastEntry();
+                ok&=Objects.equals(tree.pollMax(),last==null?null:last.getValue());
+            }
+            ok&=tree.size()==expected.size();
+            if(!expected.isEmpty())
+                ok&=Objects.equals(tree.min(),expected.firstEntry().getValue()) && Objects.equals(tree.max(),expected.lastEntry().getValue());
+        }
+        ok&=Arrays.equals(tree.keysToArray(),expected.keySet().stream().mapToInt(Integer::intValue).toArray());
+        // a null info doesn't end the drain
+        tree.insert(Integer.MIN_VALUE,null);
+        while(!tree.empty())
+            tree.pollMin();
+        System.out.println("poll agrees? "+(ok && tree.empty() && tree.pollMax()==null));
+
+        // draining a big queue, each way twice (the first round warms up)
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        for(int drain=0;drain<4;drain++){
+            AVLTree queue=new AVLTree();
+            for(int key:keysArr)
+                queue.insert(key,"num "+key);
+            long before=System.nanoTime();
+            if(drain%2==0){
+                while(!queue.empty()){
+                    queue.min();
+                    queue.delete(queue.peekMinKey());
+                }
+            }
+            else{
+                while(!queue.empty())
+                    queue.pollMin();
+            }
+            long time=System.nanoTime()-before;
+            if(drain>=2)
+                System.out.println((drain%2==0?"min + delete: ":"pollMin:      ")+time/size+" ns per item");
+        }
+    }
+
+    public static void checkBoundedAVLTree(){
+        // random inserts and searches against a TreeMap / access ordered LinkedHashMap evicting the same way
+        String[] names={"lowest key","highest key","least recent"};
+        for(int policy=AVLTree.EVICT_LOWEST_KEY;policy<=AVLTree.EVICT_LEAST_RECENT;policy++){
+            int capacity=500;
+            AVLTree tree=new AVLTree();
+            tree.setCapacity(capacity,policy);
+            TreeMap<Integer,String> sorted=new TreeMap<>();
+            LinkedHashMap<Integer,String> recent=new LinkedHashMap<>(16,0.75f,true);
+            Random rnd=new Random(41+policy);
+            long evicted=0;
+            boolean ok=true;
+            for(int i=0;i<200000;i++){
+                int key=rnd.nextInt(2000);
+                if(rnd.nextBoolean()){
+                    String info=tree.search(key);
+                    String expected=policy==AVLTree.EVICT_LEAST_RECENT?recent.get(key):sorted.get(key);
+                    ok&=Objects.equals(info,expected);
+                }
+                else if(rnd.nextInt(10)==0){
+                    ok&=(tree.delete(key)!=-1)==sorted.containsKey(key);
+                    sorted.remove(key);
+                    recent.remove(key);
+                }
+                else{
+                    ok&=(tree.insert(key,"v"+key)!=-1)!=sorted.containsKey(key);
+                    if(!sorted.containsKey(key)){
+                        sorted.put(key,"v"+key);
+                        recent.put(key,"v"+key);
+                        if(sorted.size()>capacity){
+                            int victim=policy==AVLTree.EVICT_LOWEST_KEY?sorted.firstKey()
+                                    :policy==AVLTree.EVICT_HIGHEST_KEY?sorted.lastKey()
+                                    :recent.keySet().iterator().next();
+                            sorted.remove(victim);
+                            recent.remove(victim);
+                            evicted++;
+                        }
+                    }
+                }
+                ok&=tree.size()==sorted.size();
+                if(!sorted.isEmpty())
+                    ok&=tree.getRoot().getSize()==tree.size() && tree.peekMinKey()==sorted.firstKey() && tree.peekMaxKey()==sorted.lastKey();
+            }
+            ok&=Arrays.equals(tree.keysToArray(),sorted.keySet().stream().mapToInt(Integer::intValue).toArray());
+            System.out.println(names[policy-1]+": agrees? "+ok+", evictions "+tree.evictions()+" expected "+evicted);
+        }
+
+        // the access order survives split, join and batches
+        AVLTree tree=new AVLTree();
+        for(int key=0;key<100;key++)
+            tree.insert(key,"v"+key);
+        tree.setCapacity(100,AVLTree.EVICT_LEAST_RECENT);
+        for(int key=99;key>=0;key--)
+            tree.search(key);
+        // least recent first: 49..0 in the left part, 99..51 in the right one
+        AVLTree[] parts=tree.split(50);
+        AVLTree left=parts[0];
+        left.join(left.new AVLNode(50,"v50",true),parts[1]);
+        left.setCapacity(99,AVLTree.EVICT_LEAST_RECENT);
+        boolean ok=left.size()==99 && Arrays.binarySearch(left.keysToArray(),49)<0;
+        left.applyBatch(new AVLTree.BatchOp[]{new AVLTree.BatchOp(AVLTree.BatchOp.INSERT,200,"v200"),
+                new AVLTree.BatchOp(AVLTree.BatchOp.INSERT,201,"v201")});
+        int[] keys=left.keysToArray();
+        ok&=keys.length==99 && Arrays.binarySearch(keys,48)<0 && Arrays.binarySearch(keys,47)<0 && Arrays.binarySearch(keys,201)>=0;
+        // a batch big enough to rebuild the tree
+        AVLTree.BatchOp[] updates=new AVLTree.BatchOp[47];
+        for(int key=0;key<47;key++)
+            updates[key]=new AVLTree.BatchOp(AVLTree.BatchOp.UPDATE,key,"u"+key);
+        left.applyBatch(updates);
+        left.insert(300,"v300");
+        keys=left.keysToArray();
+        ok&=keys.length==99 && Arrays.binarySearch(keys,46)<0 && Arrays.binarySearch(keys,45)>=0 && Objects.equals(left.search(0),"u0");
+        System.out.println("access order through split/join/batch? "+ok+", evictions "+left.evictions());
+
+        // a bounded least recent tree changes on search, so the stamped wrapper must not search it
+        // under the shared lock: concurrent searches would corrupt the access list
+        AVLTree lru=new AVLTree();
+        lru.setCapacity(1000,AVLTree.EVICT_LEAST_RECENT);
+        StampedAVLTree stamped=new StampedAVLTree(lru);
+        AtomicInteger failures=new AtomicInteger();
+        Thread[] workers=new Thread[4];
+        for(int t=0;t<workers.length;t++){
+            int id=t;
+            workers[t]=new Thread(() -> {
+                Random rand=new Random(id);
+                try {
+                    for(int i=0;i<200000;i++){
+                        int key=rand.nextInt(4000);
+                        if(rand.nextInt(10)==0)
+                            stamped.insert(key,"v"+key);
+                        else
+                            stamped.search(key);
+                    }
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker:workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // every key of the access list is evicted by the next 1000 inserts if the list is intact
+        for(int key=10000;key<11000;key++)
+            stamped.insert(key,"v"+key);
+        int[] survivors=stamped.keysToArray();
+        ok=failures.get()==0 && survivors.length==1000 && survivors[0]==10000 && lru.validate().isValid();
+        System.out.println("stamped wrapper keeps the access list under concurrent searches? "+ok);
+
+        // cost of an insert that evicts, against delete + insert on an unbounded tree of the same
+        // steady-state size; both trees are filled to the capacity before the clock starts
+        int size=1<<20;
+        int capacity=size>>4;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        for(int round=0;round<2;round++){
+            StringBuilder line=new StringBuilder("ns per insert at "+capacity+" keys:");
+            for(int policy=0;policy<=AVLTree.EVICT_LEAST_RECENT;policy++){
+                AVLTree bounded=new AVLTree();
+                if(policy>0)
+                    bounded.setCapacity(capacity,policy);
+                for(int i=0;i<capacity;i++)
+                    bounded.insert(keysArr[i],"num "+keysArr[i]);
+                long before=System.nanoTime();
+                for(int i=capacity;i<size;i++){
+                    if(policy==0)
+                        bounded.delete(keysArr[i-capacity]);
+                    bounded.insert(keysArr[i],"num "+keysArr[i]);
+                }
+                long time=System.nanoTime()-before;
+                line.append(" ").append(policy==0?"delete+insert":names[policy-1]).append(" ").append(time/(size-capacity));
+            }
+            if(round==1)
+                System.out.println(line);
+        }
+    }
+
+    public static void checkHybridAVLTree(){
+        // random operations against a TreeMap, with a split and a join now and then
+        HybridAVLTree tree=new HybridAVLTree();
+        TreeMap<Integer,String> expected=new TreeMap<>();
+        Random rnd=new Random(42);
+        boolean ok=true;
+        for(int i=0;i<200000;i++){
+            int key=rnd.nextInt(20000)-10000;
+            int op=rnd.nextInt(100);
+            if(op<50){
+                ok&=Objects.equals(tree.search(key),expected.get(key));
+            }
+            else if(op<75){
+                ok&=(tree.insert(key,"v"+key)!=-1)!=expected.containsKey(key);
+                expected.putIfAbsent(key,"v"+key);
+            }
+            else if(op<99){
+                ok&=(tree.delete(key)!=-1)==(expected.remove(key)!=null);
+            }
+            else if(expected.size()>2){
+                // split at a present key and join the parts back around it
+                Integer x=expected.ceilingKey(key);
+                if(x==null)
+                    x=expected.firstKey();
+                HybridAVLTree[] parts=tree.split(x);
+                ok&=parts[0].size()+parts[1].size()==expected.size()-1 && parts[1].search(x)==null;
+                tree=parts[0];
+                tree.join(new AVLTree().new AVLNode(x,"v"+x,true),parts[1]);
+                expected.put(x,"v"+x);
+            }
+            ok&=tree.size()==expected.size();
+        }
+        ok&=Arrays.equals(tree.keysToArray(),expected.keySet().stream().mapToInt(Integer::intValue).toArray());
+        ok&=Arrays.equals(tree.keysInRange(-100,100),expected.subMap(-100,true,100,true).keySet().stream().mapToInt(Integer::intValue).toArray());
+        ok&=Objects.equals(tree.min(),expected.firstEntry().getValue()) && Objects.equals(tree.max(),expected.lastEntry().getValue());
+        System.out.println("operations agree? "+ok);
+
+        // inserts through the index would skip eviction, metrics and the trace
+        AVLTree bounded=new AVLTree();
+        bounded.setCapacity(3,AVLTree.EVICT_LOWEST_KEY);
+        AVLTree measured=new AVLTree();
+        measured.enableMetrics();
+        int rejected=0;
+        for(AVLTree wrapped:new AVLTree[]{bounded,measured}){
+            try {
+                new HybridAVLTree(wrapped);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+        }
+        System.out.println("bounded and measured trees rejected? "+(rejected==2));
+
+        // 80% exact lookups, 20% range queries of 10 keys, side by side with a plain tree
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).map(k->2*k).toArray();
+        shuffle(keysArr);
+        int[] probes=new int[1<<20];
+        for(int j=0;j<probes.length;j++)
+            probes[j]=rnd.nextInt(2*size);
+        Runtime runtime=Runtime.getRuntime();
+        for(int round=0;round<2;round++){
+            System.gc();
+            long memoryBefore=runtime.totalMemory()-runtime.freeMemory();
+            AVLTree plain=new AVLTree();
+            for(int key:keysArr)
+                plain.insert(key,"num "+key);
+            System.gc();
+            long plainMemory=runtime.totalMemory()-runtime.freeMemory()-memoryBefore;
+            HybridAVLTree hybrid=new HybridAVLTree();
+            for(int key:keysArr)
+                hybrid.insert(key,"num "+key);
+            System.gc();
+            long hybridMemory=runtime.totalMemory()-runtime.freeMemory()-memoryBefore-plainMemory;
+
+            long before=System.nanoTime();
+            long found=0;
+            for(int j=0;j<probes.length;j++){
+                if(j%5==0)
+                    found+=plain.keysInRange(probes[j],probes[j]+20).length;
+                else if(plain.search(probes[j])!=null)
+                    found++;
+            }
+            long plainTime=System.nanoTime()-before;
+            before=System.nanoTime();
+            for(int j=0;j<probes.length;j++){
+                if(j%5==0)
+                    found-=hybrid.keysInRange(probes[j],probes[j]+20).length;
+                else if(hybrid.search(probes[j])!=null)
+                    found--;
+            }
+            long hybridTime=System.nanoTime()-before;
+            if(round==1){
+                System.out.println("same results? "+(found==0));
+                System.out.println("plain tree:  "+plainTime/probes.length+" ns per operation, "+plainMemory/size+" bytes per key");
+                System.out.println("hybrid tree: "+hybridTime/probes.length+" ns per operation, "+hybridMemory/size+" bytes per key, "
+                        +String.format("%.2f",(double)plainTime/hybridTime)+"x faster");
+            }
+        }
+    }
+
+    // benchmarkOperations: tree sizes, distributions of the operation keys, and iterations per measurement
+    private static final int[] BENCHMARK_SIZES={1000,10000,100000,1000000,10000000};
+    private static final String[] DISTRIBUTIONS={"sequential","random","zipfian"};
+    private static final int WARMUP_ITERATIONS=3;
+    private static final int MEASURED_ITERATIONS=5;
+    private static final int BATCH=10000;
+    private static final int SPLITS=100;
+    private static volatile long sink;
+
+    public static void benchmarkOperations(){
+        System.out.println(String.format("%-12s %-10s %9s %12s %18s %9s %9s","operation","keys","size","ops/s","ns/op","B/op","MB/s"));
+        for(int size:BENCHMARK_SIZES){
+            // a tree takes about 160 bytes per key, leave room for the garbage of the benchmark
+            if(300L*size>Runtime.getRuntime().maxMemory()){
+                System.out.println("size "+size+" skipped, needs -Xmx"+((300L*size>>30)+1)+"g");
+                continue;
+            }
+            // the tree holds the even keys, the odd ones are free to insert
+            int[] keysArr=IntStream.range(0,size).map(k->2*k).toArray();
+            shuffle(keysArr);
+            AVLTree[] tree={new AVLTree()};
+            for(int key:keysArr)
+                tree[0].insert(key,"num "+key);
+
+            int perIteration=Math.max(1,1000000/size);
+            measure("min/max","-",size,BATCH,watch->{
+                watch.start();
+                for(int j=0;j<BATCH;j++)
+                    sink+=tree[0].min().length()+tree[0].max().length();
+                watch.stop();
+            });
+            measure("keysToArray","-",size,perIteration,watch->{
+                watch.start();
+                for(int j=0;j<perIteration;j++)
+                    sink+=tree[0].keysToArray().length;
+                watch.stop();
+            });
+
+            for(String distribution:DISTRIBUTIONS){
+                int[] keys=benchmarkKeys(distribution,size,BATCH,new Random(43));
+                measure("search",distribution,size,BATCH,watch->{
+                    watch.start();
+                    for(int key:keys)
+                        sink+=tree[0].search(2*key)==null?0:1;
+                    watch.stop();
+                });
+                // a repeated key would be a failed insert or delete, which only costs a search
+                int[] distinct=distinctKeys(keys);
+                measure("insert",distribution,size,distinct.length,watch->{
+                    watch.start();
+                    for(int key:distinct)
+                        sink+=tree[0].insert(2*key+1,"new");
+                    watch.stop();
+                    for(int key:distinct)
+                        tree[0].delete(2*key+1);
+                });
+                measure("delete",distribution,size,distinct.length,watch->{
+                    watch.start();
+                    for(int key:distinct)
+                        sink+=tree[0].delete(2*key);
+                    watch.stop();
+                    for(int key:distinct)
+                        tree[0].insert(2*key,"num "+2*key);
+                });
+                // each split is joined back (and each measured join split off) outside of the measurement
+                measure("split",distribution,size,SPLITS,watch->{
+                    for(int j=0;j<SPLITS;j++){
+                        int x=2*keys[j];
+                        watch.start();
+                        AVLTree[] parts=tree[0].split(x);
+                        watch.stop();
+                        parts[0].join(parts[0].new AVLNode(x,"num "+x,true),parts[1]);
+                        tree[0]=parts[0];
+                    }
+                });
+                measure("join",distribution,size,SPLITS,watch->{
+                    for(int j=0;j<SPLITS;j++){
+                        int x=2*keys[j];
+                        AVLTree[] parts=tree[0].split(x);
+                        AVLTree.IAVLNode node=parts[0].new AVLNode(x,"num "+x,true);
+                        watch.start();
+                        sink+=parts[0].join(node,parts[1]);
+                        watch.stop();
+                        tree[0]=parts[0];
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * count keys in [0,size): in order, uniform, or Zipfian (theta 0.99, YCSB's generator)
+     * with the popular ranks scattered over the key range.
+     * Package-private for the JMH benchmarks under jmh/.
+     */
+    static int[] benchmarkKeys(String distribution,int size,int count,Random rnd){
+        int[] keys=new int[count];
+        if(distribution.equals("sequential")){
+            for(int j=0;j<count;j++)
+                keys[j]=j%size;
+        }
+        else if(distribution.equals("random")){
+            for(int j=0;j<count;j++)
+                keys[j]=rnd.nextInt(size);
+        }
+        else{
+            double theta=0.99;
+            double zetan=0;
+            for(int i=1;i<=size;i++)
+                zetan+=1/Math.pow(i,theta);
+            double zeta2=1+1/Math.pow(2,theta);
+            double alpha=1/(1-theta);
+            double eta=(1-Math.pow(2.0/size,1-theta))/(1-zeta2/zetan);
+            for(int j=0;j<count;j++){
+                double u=rnd.nextDouble();
+                double uz=u*zetan;
+                long rank=uz<1?0:uz<zeta2?1:(long)(size*Math.pow(eta*u-eta+1,alpha));
+                // 1000003 is a prime, so this is a permutation of [0,size) for sizes of 2^a*5^b
+                keys[j]=(int)(Math.min(rank,size-1)*1000003L%size);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * keys without the repetitions, in the order of their first occurrence.
+     */
+    static int[] distinctKeys(int[] keys){
+        Set<Integer> seen=new HashSet<>();
+        return Arrays.stream(keys).filter(seen::add).toArray();
+    }
+
+    private interface Iteration {
+        void run(Stopwatch watch);
+    }
+
+    /**
+     * Sums the time and the bytes allocated by the current thread between start() and stop().
+     */
+    private static class Stopwatch {
+        private static final com.sun.management.ThreadMXBean THREADS=
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        private long nanos, bytes, startNanos, startBytes;
+
+        private void start(){
+            startBytes=THREADS.getCurrentThreadAllocatedBytes();
+            startNanos=System.nanoTime();
+        }
+
+        private void stop(){
+            nanos+=System.nanoTime()-startNanos;
+            bytes+=THREADS.getCurrentThreadAllocatedBytes()-startBytes;
+        }
+    }
+
+    /**
+     * Runs WARMUP_ITERATIONS unmeasured and MEASURED_ITERATIONS measured iterations of ops operations,
+     * and prints the throughput, the mean time per operation with its standard deviation between
+     * iterations, and the allocation per operation and per second.
+     */
+    private static void measure(String operation,String distribution,int size,int ops,Iteration iteration){
+        for(int i=0;i<WARMUP_ITERATIONS;i++)
+            iteration.run(new Stopwatch());
+        double[] nsPerOp=new double[MEASURED_ITERATIONS];
+        long nanos=0, bytes=0;
+        for(int i=0;i<MEASURED_ITERATIONS;i++){
+            Stopwatch watch=new Stopwatch();
+            iteration.run(watch);
+            nsPerOp[i]=(double)watch.nanos/ops;
+            nanos+=watch.nanos;
+            bytes+=watch.bytes;
+        }
+        double mean=Arrays.stream(nsPerOp).average().orElse(0);
+        double deviation=Math.sqrt(Arrays.stream(nsPerOp).map(t->(t-mean)*(t-mean)).sum()/(MEASURED_ITERATIONS-1));
+        System.out.println(String.format("%-12s %-10s %9d %12.0f %10.1f +- %5.1f %9.1f %9.1f",operation,distribution,size,
+                1e9/mean,mean,deviation,(double)bytes/((long)ops*MEASURED_ITERATIONS),bytes*1e3/Math.max(1,nanos)));
+    }
+
+    public static void checkMetrics(){
+        AVLTree tree=new AVLTree();
+        tree.enableMetrics();
+        TreeMap<Integer,String> expected=new TreeMap<>();
+        Random rnd=new Random(44);
+        long searches=0, inserts=0, deletes=0;
+        for(int i=0;i<200000;i++){
+            int key=rnd.nextInt(50000);
+            int op=rnd.nextInt(3);
+            if(op==0){
+                tree.search(key);
+                searches++;
+            }
+            else if(op==1){
+                tree.insert(key,"v"+key);
+                inserts++;
+                expected.putIfAbsent(key,"v"+key);
+            }
+            else{
+                tree.delete(key);
+                deletes++;
+                expected.remove(key);
+            }
+        }
+        MetricsSnapshot metrics=tree.metrics();
+        boolean ok=metrics.count(Metrics.SEARCH)==searches && metrics.count(Metrics.INSERT)==inserts
+                && metrics.count(Metrics.DELETE)==deletes && metrics.rotations()>0 && metrics.demotions()>0;
+        System.out.println("counts agree? "+ok);
+
+        // ascending inserts of 1..7 rotate at 3, 5, 6 and 7
+        AVLTree ascending=new AVLTree();
+        ascending.enableMetrics();
+        for(int key=1;key<=7;key++)
+            ascending.insert(key,"v"+key);
+        System.out.println("4 rotations for 1..7? "+(ascending.metrics().rotations()==4)+", promotions "+ascending.metrics().promotions());
+        double log=Math.log(expected.size())/Math.log(2);
+        System.out.println("mean search path "+String.format("%.1f",metrics.meanSearchPathLength())+" for log2(n) "+String.format("%.1f",log)
+                +", insert p50 "+metrics.latencyPercentile(Metrics.INSERT,0.5)+" ns, p99 "+metrics.latencyPercentile(Metrics.INSERT,0.99)+" ns");
+
+        // split and join are counted too, and join's cost summed
+        AVLTree[] parts=tree.split(expected.firstKey());
+        metrics=tree.metrics();
+        ok=metrics.count(Metrics.SPLIT)==1;
+        AVLTree.AVLNode x=parts[1].new AVLNode(-5,"x",true);
+        parts[1].enableMetrics();
+        int cost=parts[1].join(x,parts[0]);
+        ok&=parts[1].metrics().count(Metrics.JOIN)==1 && parts[1].metrics().joinCost()==cost;
+        System.out.println("split/join counted? "+ok);
+
+        // the same numbers over JMX
+        try {
+            javax.management.ObjectName name=tree.registerMetrics("checkMetrics");
+            javax.management.MBeanServer server=java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            ok=server.getAttribute(name,"Inserts").equals(inserts) && server.getAttribute(name,"Searches").equals(searches);
+            javax.management.openmbean.TabularData table=(javax.management.openmbean.TabularData)server.getAttribute(name,"LatencyNanos");
+            ok&=table.size()==25;
+            tree.disableMetrics();
+            ok&=!server.isRegistered(name) && tree.metrics()==null;
+            System.out.println("JMX agrees? "+ok);
+        } catch (javax.management.JMException e) {
+            System.out.println("JMX failed: "+e);
+        }
+
+        // disabled metrics cost nothing measurable: the same work with them off, on and off again
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        AVLTree big=new AVLTree();
+        for(int key:keysArr)
+            big.insert(2*key,"num "+key);
+        for(int round=0;round<2;round++){
+            StringBuilder line=new StringBuilder("ns per search+insert+delete:");
+            for(int mode=0;mode<3;mode++){
+                if(mode==1)
+                    big.enableMetrics();
+                else
+                    big.disableMetrics();
+                long before=System.nanoTime();
+                for(int j=0;j<size;j+=2){
+                    big.search(2*keysArr[j]);
+                    big.insert(2*keysArr[j]+1,"new");
+                    big.delete(2*keysArr[j]+1);
+                }
+                long time=System.nanoTime()-before;
+                line.append(mode==1?" enabled ":" disabled ").append(2*time/size);
+            }
+            if(round==1)
+                System.out.println(line);
+        }
+        big=null;
+        // 64K keys: with both trees in memory at once a bigger tree mostly measures cache misses
+        compareWithBaseline(Arrays.copyOf(keysArr,1<<16));
+    }
+
+    // tolerance of compareWithBaseline, as a fraction of the baseline time
+    private static final double METRICS_TOLERANCE=0.05;
+
+    // the timed loop, compiled once per side so each gets its own JIT profile and inlines its own AVLTree
+    private static final String BASELINE_WORKLOAD="""
+            public class Workload {
+                public static Object build(int[] keys){
+                    AVLTree tree=new AVLTree();
+                    for(int key:keys)
+                        tree.insert(2*key,"num "+key);
+                    return tree;
+                }
+                public static long time(Object tree,int[] keys){
+                    AVLTree t=(AVLTree)tree;
+                    long sink=0, before=System.nanoTime();
+                    for(int j=0;j<keys.length;j+=2){
+                        sink+=t.search(2*keys[j])==null?0:1;
+                        sink+=t.insert(2*keys[j]+1,"new");
+                        sink+=t.delete(2*keys[j]+1);
+                    }
+                    return sink==Long.MIN_VALUE?0:System.nanoTime()-before;
+                }
+            }
+            """;
+
+    /**
+     * Times search+insert+delete on the current tree with metrics disabled against the tree from
+     * before the metrics, compiled from -Dbaseline=<file>, e.g. the parent of the commit that added them:
+     *   git show ee98853~1:AVLTree.java > /tmp/AVLTree-before-metrics.java
+     * Each side is loaded by its own class loader, with its own copy of the loop, and they run
+     * in alternating rounds; the medians are compared.
+     */
+    private static void compareWithBaseline(int[] keysArr){
+        String source=System.getProperty("baseline");
+        if(source==null){
+            System.out.println("baseline comparison skipped, run with -Dbaseline=<AVLTree.java from before the metrics>");
+            return;
+        }
+        Path dir=null;
+        try {
+            dir=Files.createTempDirectory("avl-baseline");
+            Path current=Path.of(AVLTree.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            Path[] classes={dir.resolve("current"),dir.resolve("baseline")};
+            javax.tools.JavaCompiler compiler=javax.tools.ToolProvider.getSystemJavaCompiler();
+            for(int side=0;side<2;side++){
+                Files.createDirectories(classes[side]);
+                Path workload=Files.writeString(classes[side].resolve("Workload.java"),BASELINE_WORKLOAD);
+                int status;
+                if(side==0){
+                    status=compiler.run(null,null,null,"-cp",current.toString(),"-d",classes[0].toString(),workload.toString());
+                }
+                else{
+                    Path copy=Files.copy(Path.of(source),classes[1].resolve("AVLTree.java"));
+                    status=compiler.run(null,null,null,"-encoding","UTF-8","-nowarn","-d",classes[1].toString(),copy.toString(),workload.toString());
+                }
+                if(status!=0){
+                    System.out.println("baseline comparison failed to compile");
+                    return;
+                }
+            }
+
+            // the platform loader as parent, so AVLTree is not found on the class path first
+            java.lang.reflect.Method[] time=new java.lang.reflect.Method[2];
+            Object[] trees=new Object[2];
+            java.net.URL[][] locations={{classes[0].toUri().toURL(),current.toUri().toURL()},{classes[1].toUri().toURL()}};
+            for(int side=0;side<2;side++){
+                java.net.URLClassLoader loader=new java.net.URLClassLoader(locations[side],ClassLoader.getPlatformClassLoader());
+                Class<?> type=loader.loadClass("Workload");
+                trees[side]=type.getMethod("build",int[].class).invoke(null,(Object)keysArr);
+                time[side]=type.getMethod("time",Object.class,int[].class);
+            }
+
+            // the ratio of each pair of back to back rounds, so drifts of the machine cancel out
+            int rounds=31;
+            long[][] nanos=new long[2][rounds];
+            double[] ratios=new double[rounds];
+            for(int round=-5;round<rounds;round++){
+                long[] elapsed=new long[2];
+                for(int side=0;side<2;side++)
+                    elapsed[side]=(long)time[side].invoke(null,trees[side],keysArr);
+                if(round>=0){
+                    nanos[0][round]=elapsed[0];
+                    nanos[1][round]=elapsed[1];
+                    ratios[round]=(double)elapsed[0]/elapsed[1];
+                }
+            }
+            Arrays.sort(nanos[0]);
+            Arrays.sort(nanos[1]);
+            Arrays.sort(ratios);
+            double ratio=ratios[rounds/2];
+            System.out.println(String.format("ns per search+insert+delete: disabled %d, before the metrics %d, median ratio %.3f, within %.0f%%? %b",
+                    2*nanos[0][rounds/2]/keysArr.length,2*nanos[1][rounds/2]/keysArr.length,ratio,
+                    100*METRICS_TOLERANCE,ratio<=1+METRICS_TOLERANCE));
+        } catch (IOException | ReflectiveOperationException | java.net.URISyntaxException e) {
+            System.out.println("baseline comparison failed: "+e);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public static void checkFlightRecorder(){
+        try {
+            Path file=Files.createTempFile("avl",".jfr");
+            jdk.jfr.Recording recording=new jdk.jfr.Recording();
+            recording.enable("AVLTree.Split");
+            recording.enable("AVLTree.Join");
+            recording.enable("AVLTree.Export");
+            recording.enable("AVLTree.SlowUpdate").withThreshold(java.time.Duration.ofMillis(1));
+            recording.enable("AVLTree.LargeRebalance").with("rebalancing","4");
+            recording.start();
+
+            AVLTree tree=new AVLTree();
+            Random rnd=new Random(45);
+            int bigRebalances=0;
+            for(int i=0;i<100000;i++){
+                int key=rnd.nextInt(20000);
+                int result=rnd.nextBoolean()?tree.insert(key,"v"+key):tree.delete(key);
+                if(result>=4)
+                    bigRebalances++;
+            }
+            int[] keys=tree.keysToArray();
+            AVLTree[] parts=tree.split(keys[keys.length/3]);
+            parts[0].join(parts[0].new AVLNode(keys[keys.length/3],"x",true),parts[1]);
+            recording.stop();
+            recording.dump(file);
+            recording.close();
+
+            Map<String,Integer> counts=new TreeMap<>();
+            boolean ok=true;
+            for(jdk.jfr.consumer.RecordedEvent event:jdk.jfr.consumer.RecordingFile.readAllEvents(file)){
+                String name=event.getEventType().getName();
+                counts.merge(name,1,Integer::sum);
+                if(name.equals("AVLTree.LargeRebalance"))
+                    ok&=event.getInt("rebalancing")>=4;
+                if(name.equals("AVLTree.Split"))
+                    ok&=event.getInt("treeSize")==keys.length && event.getInt("smallerSize")==keys.length/3
+                            && event.getInt("joins")>0;
+                if(name.equals("AVLTree.Export"))
+                    ok&=event.getString("operation").equals("keysToArray") && event.getInt("items")==keys.length;
+            }
+            Files.delete(file);
+            ok&=counts.getOrDefault("AVLTree.LargeRebalance",0)==bigRebalances && counts.get("AVLTree.Split")==1
+                    && counts.get("AVLTree.Join")==1 && counts.get("AVLTree.Export")==1;
+            System.out.println("events "+counts+", as expected? "+ok);
+        } catch (IOException e) {
+            System.out.println("recording failed: "+e);
+        }
+
+        // insert + delete without a recording, in one that disables the tree's events, and in one that enables them
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        AVLTree big=new AVLTree();
+        for(int key:keysArr)
+            big.insert(2*key,"num "+key);
+        String[] modes={"no recording","events disabled","events enabled"};
+        for(int round=0;round<2;round++){
+            StringBuilder line=new StringBuilder("ns per insert+delete:");
+            for(int mode=0;mode<3;mode++){
+                jdk.jfr.Recording recording=new jdk.jfr.Recording();
+                if(mode==1){
+                    recording.disable("AVLTree.SlowUpdate");
+                    recording.disable("AVLTree.LargeRebalance");
+                }
+                if(mode>0)
+                    recording.start();
+                long before=System.nanoTime();
+                for(int j=0;j<size;j+=2){
+                    big.insert(2*keysArr[j]+1,"new");
+                    big.delete(2*keysArr[j]+1);
+                }
+                long time=System.nanoTime()-before;
+                recording.close();
+                line.append(" ").append(modes[mode]).append(" ").append(2*time/size);
+            }
+            if(round==1)
+                System.out.println(line);
+        }
+    }
+
+    public static void checkWorkloadReplay(){
+        try {
+            Path file=Files.createTempFile("avl",".trace");
+            AVLTree tree=new AVLTree();
+            for(int i=0;i<10000;i++)
+                tree.insert(2*i,"v"+i);
+            tree.recordWorkload(file);
+            Random rnd=new Random(46);
+            long[] counts=new long[5];
+            long hits=0;
+            for(int i=0;i<200000;i++){
+                int key=rnd.nextInt(40000);
+                int op=rnd.nextInt(4);
+                if(op<2){
+                    counts[Metrics.SEARCH]++;
+                    if(tree.search(key)!=null)
+                        hits++;
+                }
+                else if(op==2){
+                    counts[Metrics.INSERT]++;
+                    tree.insert(key,rnd.nextBoolean()?null:"value "+key);
+                }
+                else{
+                    counts[Metrics.DELETE]++;
+                    tree.delete(key);
+                }
+            }
+            int[] keys=tree.keysToArray();
+            int x=keys[keys.length/2];
+            AVLTree[] parts=tree.split(x);
+            parts[1].insert(Integer.MAX_VALUE,"last");
+            parts[0].join(parts[0].new AVLNode(x,"x",true),parts[1]);
+            counts[Metrics.SPLIT]++;
+            counts[Metrics.INSERT]++;
+            counts[Metrics.JOIN]++;
+            parts[0].delete(Integer.MAX_VALUE);
+            counts[Metrics.DELETE]++;
+            // the searches find the keys of the joined tree only if the replay rebuilt it
+            for(int key=0;key<40000;key++){
+                counts[Metrics.SEARCH]++;
+                if(parts[0].search(key)!=null)
+                    hits++;
+            }
+            parts[0].stopRecordingWorkload();
+            System.out.println("trace of "+Arrays.stream(counts).sum()+" calls, "+Files.size(file)+" bytes");
+
+            ReplayResult result=WorkloadReplay.replay(file,()->WorkloadReplay.target(new AVLTree()),1);
+            boolean ok=result.searchHits()==hits;
+            for(int op=0;op<counts.length;op++)
+                ok&=result.count(op)==counts[op];
+            System.out.println("replay matches the recording? "+ok);
+            try {
+                WorkloadReplay.replay(file,()->WorkloadReplay.target(new AVLTree()),2);
+                System.out.println("split trace rejected on 2 threads? false");
+            } catch (IllegalArgumentException e) {
+                System.out.println("split trace rejected on 2 threads? true");
+            }
+            // rejected before the first call, not by the first split the target can't do
+            ConcurrentAVLTree[] pointTree={null};
+            try {
+                WorkloadReplay.replay(file,()->WorkloadReplay.target(pointTree[0]=new ConcurrentAVLTree()),1);
+                System.out.println("split trace rejected for a tree without split? false");
+            } catch (IllegalArgumentException e) {
+                System.out.println("split trace rejected for a tree without split? "+(pointTree[0].size()==0));
+            }
+
+            // changes made by polls, batches and evictions are in the trace too
+            AVLTree bounded=new AVLTree();
+            for(int i=0;i<1000;i++)
+                bounded.insert(i,"v"+i);
+            Path boundedFile=Files.createTempFile("avl-bounded",".trace");
+            bounded.recordWorkload(boundedFile);
+            bounded.setCapacity(800,AVLTree.EVICT_LOWEST_KEY);
+            long boundedHits=0;
+            for(int i=0;i<300;i++){
+                int key=rnd.nextInt(4000);
+                bounded.insert(key,"b"+key);
+                if(bounded.search(rnd.nextInt(4000))!=null)
+                    boundedHits++;
+                if(i%10==0){
+                    bounded.pollMin();
+                    bounded.pollMax();
+                }
+                if(i%50==0){
+                    int from=rnd.nextInt(3000);
+                    bounded.applyBatch(new AVLTree.BatchOp[]{new AVLTree.BatchOp(AVLTree.BatchOp.INSERT,from,"in"),
+                            new AVLTree.BatchOp(AVLTree.BatchOp.UPDATE,from+1,"updated"),new AVLTree.BatchOp(AVLTree.BatchOp.DELETE,from+2,null)});
+                }
+                if(i==150)
+                    bounded.setCapacity(500,AVLTree.EVICT_LEAST_RECENT);
+            }
+            for(int key=0;key<4000;key++)
+                if(bounded.search(key)!=null)
+                    boundedHits++;
+            bounded.stopRecordingWorkload();
+            AVLTree[] replayed={null};
+            ReplayResult boundedResult=WorkloadReplay.replay(boundedFile,
+                    ()->WorkloadReplay.target(replayed[0]=new AVLTree()),1);
+            System.out.println("polls, batches and evictions replayed? "+(boundedResult.searchHits()==boundedHits
+                    && Arrays.equals(replayed[0].keysToArray(),bounded.keysToArray())));
+            Files.delete(boundedFile);
+
+            for(int round=0;round<2;round++){
+                ReplayResult plain=WorkloadReplay.replay(file,()->WorkloadReplay.target(new AVLTree()),1);
+                ReplayResult hybrid=WorkloadReplay.replay(file,
+                        ()->WorkloadReplay.target(new HybridAVLTree()),1);
+                if(round==1){
+                    System.out.println("AVLTree:       "+plain);
+                    System.out.println("HybridAVLTree: "+hybrid);
+                }
+            }
+            Files.delete(file);
+
+            // a point-operation trace replayed by several threads
+            Path points=Files.createTempFile("avl",".trace");
+            AVLTree recorded=new AVLTree();
+            for(int i=0;i<100000;i++)
+                recorded.insert(rnd.nextInt(1<<20),"v");
+            recorded.recordWorkload(points);
+            for(int i=0;i<1000000;i++){
+                int key=rnd.nextInt(1<<20);
+                int op=rnd.nextInt(4);
+                if(op<2)
+                    recorded.search(key);
+                else if(op==2)
+                    recorded.insert(key,"v");
+                else
+                    recorded.delete(key);
+            }
+            recorded.stopRecordingWorkload();
+            for(int threads:new int[]{1,2,4}){
+                ReplayResult concurrent=WorkloadReplay.replay(points,
+                        ()->WorkloadReplay.target(new ConcurrentAVLTree()),threads);
+                ReplayResult stamped=WorkloadReplay.replay(points,
+                        ()->WorkloadReplay.target(new StampedAVLTree()),threads);
+                System.out.println(threads+" threads, ConcurrentAVLTree: "+concurrent);
+                System.out.println(threads+" threads, StampedAVLTree:    "+stamped);
+            }
+            Files.delete(points);
+        } catch (IOException e) {
+            System.out.println("replay failed: "+e);
+        }
+    }
+
+    // benchmarkMemoryFootprint: infos stored per key
+    private static final String[] INFO_KINDS={"null","shared","distinct"};
+
+    public static void benchmarkMemoryFootprint(){
+        System.out.println(String.format("%9s %-9s %10s %10s %7s %7s %7s %7s %7s","keys","infos","estimate","measured",
+                "nodes","virtual","infos","other","error"));
+        boolean accurate=true;
+        // the first trees load and initialize classes whose objects would count as theirs
+        for(String kind:INFO_KINDS)
+            footprintAndHeap(IntStream.range(0,1000).toArray(),kind);
+        for(int size:BENCHMARK_SIZES){
+            if(300L*size>Runtime.getRuntime().maxMemory()){
+                System.out.println("size "+size+" skipped, needs -Xmx"+((300L*size>>30)+1)+"g");
+                continue;
+            }
+            int[] keysArr=IntStream.range(0,size).toArray();
+            shuffle(keysArr);
+            for(String kind:INFO_KINDS){
+                long[] bytes=footprintAndHeap(keysArr,kind);
+                long estimate=bytes[0];
+                long measured=bytes[5];
+                double error=(double)(estimate-measured)/measured;
+                accurate&=Math.abs(error)<0.05;
+                System.out.println(String.format("%9d %-9s %10.1f %10.1f %7.1f %7.1f %7.1f %7.1f %6.1f%%",size,kind,
+                        (double)estimate/size,(double)measured/size,(double)bytes[1]/size,(double)bytes[2]/size,
+                        (double)bytes[3]/size,(double)bytes[4]/size,100*error));
+            }
+        }
+        System.out.println("estimates within 5% of the measured heap? "+accurate);
+    }
+
+    /**
+     * Builds trees of keys with infos of kind, as many as make a million keys so that small trees
+     * are above the resolution of the heap usage. Returns the estimated total, node, virtual node,
+     * info and other bytes of one tree, and the heap one tree retains. The trees are local here so
+     * that they are unreachable once the method returns.
+     */
+    private static long[] footprintAndHeap(int[] keys,String kind){
+        AVLTree[] trees=new AVLTree[Math.max(1,1000000/keys.length)];
+        long before=usedHeap();
+        for(int t=0;t<trees.length;t++){
+            trees[t]=new AVLTree();
+            for(int key:keys)
+                trees[t].insert(key,kind.equals("null")?null:kind.equals("shared")?"value":"num "+key);
+        }
+        long measured=(usedHeap()-before)/trees.length;
+        AVLTree.MemoryFootprint footprint=trees[0].memoryFootprint();
+        return new long[]{footprint.totalBytes(),footprint.nodeBytes(),
+                footprint.virtualNodeBytes(),footprint.infoBytes(),footprint.auxiliaryBytes(),measured};
+    }
+
+    private static long usedHeap(){
+        Runtime runtime=Runtime.getRuntime();
+        long used=Long.MAX_VALUE;
+        // collect until a collection frees nothing more
+        for(int j=0;j<10;j++){
+            System.gc();
+            long now=runtime.totalMemory()-runtime.freeMemory();
+            if(now>=used)
+                break;
+            used=now;
+        }
+        return used;
+    }
+
+    public static void checkValidate(){
+        AVLTree tree=new AVLTree();
+        Random rnd=new Random(49);
+        for(int i=0;i<300000;i++){
+            int key=rnd.nextInt(100000);
+            if(rnd.nextBoolean())
+                tree.insert(key,"num "+key);
+            else
+                tree.delete(key);
+        }
+        int[] keys=tree.keysToArray();
+        boolean ok=tree.validate().isValid();
+        AVLTree[] parts=tree.split(keys[keys.length/3]);
+        ok&=parts[0].validate().isValid() && parts[1].validate().isValid();
+        parts[0].join(parts[0].new AVLNode(keys[keys.length/3],"x",true),parts[1]);
+        ok&=parts[0].validate().nodesChecked()==keys.length && new AVLTree().validate().isValid();
+        System.out.println("valid trees pass? "+ok);
+
+        // break a node at a time and expect the report to name it
+        AVLTree small=new AVLTree();
+        for(int key=1;key<=1000;key++)
+            small.insert(key,"num "+key);
+        AVLTree.IAVLNode node=small.getRoot().getLeft();
+        node.setHeight(node.getHeight()+1);
+        AVLTree.ValidationReport report=small.validate();
+        ok=!report.isValid() && report.violations().get(0).startsWith("key "+node.getKey()+": height");
+        node.setHeight(node.getHeight()-1);
+        AVLTree.IAVLNode left=node.getLeft();
+        node.setLeft(node.getRight());
+        node.setRight(left);
+        ok&=small.validate().violations().stream().anyMatch(v->v.contains("out of order"));
+        node.setRight(node.getLeft());
+        node.setLeft(left);
+        ok&=small.validate().isValid();
+        System.out.println("broken nodes reported? "+ok);
+
+        // a chain of a million nodes below the max must not overflow the stack, a cycle must not loop
+        AVLTree.IAVLNode max=small.getRoot();
+        while(max.getRight().isRealNode())
+            max=max.getRight();
+        AVLTree.IAVLNode last=max;
+        for(int key=1001;key<=1000000;key++){
+            AVLTree.IAVLNode next=small.new AVLNode(key,null,true);
+            last.setRight(next);
+            next.setParent(last);
+            last=next;
+        }
+        // without this the walk would stop at the depth of the tree's size, 1000
+        small.getRoot().setSize(2000000);
+        report=small.validate(10);
+        ok=report.nodesChecked()==1000000 && report.violationCount()>1000000 && report.violations().size()==10;
+        // the back link from the max to the root is reported, and the tree is walked only once more from there
+        int cyclicSize=1<<20;
+        AVLTree cyclic=new AVLTree();
+        for(int key=1;key<=cyclicSize;key++)
+            cyclic.insert(key,null);
+        AVLTree.IAVLNode leaf=cyclic.getRoot();
+        while(leaf.getRight().isRealNode())
+            leaf=leaf.getRight();
+        leaf.setRight(cyclic.getRoot());
+        int rootKey=cyclic.getRoot().getKey();
+        report=cyclic.validate();
+        ok&=report.violations().contains("key "+rootKey+": out of order, the key must lie between "+leaf.getKey()
+                +" and "+Long.MAX_VALUE) && report.nodesChecked()==cyclicSize+1 && report.seconds()<5;
+        System.out.println("degenerate trees reported? "+ok+", the cycle in "+String.format("%.3f",report.seconds())+" s");
+
+        int size=1<<22;
+        int[] keysArr=IntStream.range(0,size).toArray();
+        shuffle(keysArr);
+        AVLTree big=new AVLTree();
+        for(int key:keysArr)
+            big.insert(key,null);
+        big.validate();
+        report=big.validate();
+        System.out.println(report+", "+ForkJoinPool.getCommonPoolParallelism()+" threads");
+    }
+
+    // checkAgainstTreeMap: seeds and steps of the differential runs, and steps between full comparisons
+    private static final int FUZZ_SEEDS=20;
+    private static final int FUZZ_STEPS=200000;
+    private static final int FULL_CHECK_EVERY=500;
+
+    /**
+     * Runs AVLTree and TreeMap through the same random sequences of insert, delete, search, min/max,
+     * split and join and compares them after every step, then compares their throughput.
+     */
+    public static void checkAgainstTreeMap(){
+        int failures=0;
+        for(int seed=0;seed<FUZZ_SEEDS;seed++){
+            String failure=fuzz(seed,FUZZ_STEPS);
+            if(failure!=null){
+                failures++;
+                System.out.println("seed "+seed+": "+failure);
+            }
+        }
+        System.out.println(FUZZ_SEEDS+" seeds of "+FUZZ_STEPS+" steps, all agree with TreeMap? "+(failures==0));
+
+        int size=1<<20;
+        int[] keysArr=IntStream.range(0,size).map(k->2*k).toArray();
+        shuffle(keysArr,new Random(50));
+        AVLTree[] tree={new AVLTree()};
+        TreeMap<Integer,String> map=new TreeMap<>();
+        for(int key:keysArr){
+            tree[0].insert(key,"num "+key);
+            map.put(key,"num "+key);
+        }
+        int[] probes=new Random(51).ints(BATCH,0,2*size).toArray();
+        System.out.println(String.format("%-14s %12s %12s %8s","ns per op","AVLTree","TreeMap","ratio"));
+        compare("search",BATCH,()->{
+            for(int key:probes)
+                sink+=tree[0].search(key)==null?0:1;
+        },()->{
+            for(int key:probes)
+                sink+=map.get(key)==null?0:1;
+        });
+        compare("insert+delete",BATCH,()->{
+            for(int key:probes){
+                sink+=tree[0].insert(2*key+1,"new");
+                sink+=tree[0].delete(2*key+1);
+            }
+        },()->{
+            for(int key:probes){
+                map.put(2*key+1,"new");
+                sink+=map.remove(2*key+1).length();
+            }
+        });
+        compare("min+max",BATCH,()->{
+            for(int j=0;j<BATCH;j++)
+                sink+=tree[0].min().length()+tree[0].max().length();
+        },()->{
+            for(int j=0;j<BATCH;j++)
+                sink+=map.firstEntry().getValue().length()+map.lastEntry().getValue().length();
+        });
+        compare("keysToArray",1,()->sink+=tree[0].keysToArray().length,()->{
+            int[] keys=new int[map.size()];
+            int j=0;
+            for(int key:map.keySet())
+                keys[j++]=key;
+            sink+=keys.length;
+        });
+        // TreeMap has no O(log n) split or join: copying its views would be O(n), and the views
+        // themselves can't be joined, so there is nothing fair to compare with
+        double splitJoin=nanosPerOp(SPLITS,()->{
+            for(int j=0;j<SPLITS;j++){
+                int x=keysArr[j];
+                AVLTree[] parts=tree[0].split(x);
+                sink+=parts[0].join(parts[0].new AVLNode(x,"num "+x,true),parts[1]);
+                tree[0]=parts[0];
+            }
+        });
+        System.out.println(String.format("%-14s %12.1f %12s %8s","split+join",splitJoin,"-","-"));
+    }
+
+    /**
+     * Returns a description of the first difference between AVLTree and TreeMap in a run of steps
+     * random operations from seed, or null if they agree throughout.
+     */
+    private static String fuzz(int seed,int steps){
+        Random rnd=new Random(seed);
+        // small ranges make hits, duplicates and deletes of present keys common
+        int range=10<<rnd.nextInt(12);
+        AVLTree tree=new AVLTree();
+        TreeMap<Integer,String> map=new TreeMap<>();
+        for(int step=0;step<steps;step++){
+            int key=fuzzKey(rnd,range);
+            String info=rnd.nextInt(10)==0?null:"s"+step;
+            int op=rnd.nextInt(100);
+            String done;
+            Object expected, actual;
+            if(op<30){
+                done="insert("+key+")";
+                expected=map.containsKey(key)?-1:0;
+                int result=tree.insert(key,info);
+                actual=result<0?-1:0;
+                // not putIfAbsent, which replaces a null info
+                if(!map.containsKey(key))
+                    map.put(key,info);
+            }
+            else if(op<55){
+                done="delete("+key+")";
+                expected=map.containsKey(key)?0:-1;
+                int result=tree.delete(key);
+                actual=result<0?-1:0;
+                map.remove(key);
+            }
+            else if(op<80){
+                done="search("+key+")";
+                expected=map.get(key);
+                actual=tree.search(key);
+            }
+            else if(op<85){
+                done="min/max";
+                expected=map.isEmpty()?"null null":map.firstEntry().getValue()+" "+map.lastEntry().getValue();
+                actual=tree.min()+" "+tree.max();
+            }
+            else if(op<95){
+                if(map.isEmpty())
+                    continue;
+                Integer x=map.ceilingKey(key);
+                x=x==null?map.firstKey():x;
+                done="split("+x+")";
+                AVLTree[] parts=tree.split(x);
+                SortedMap<Integer,String> smaller=map.headMap(x);
+                SortedMap<Integer,String> bigger=map.tailMap(x,false);
+                expected=describe(smaller)+" | "+describe(bigger);
+                actual=describe(parts[0])+" | "+describe(parts[1]);
+                int what=rnd.nextInt(4);
+                if(what<2){
+                    // join back, joining either part into the other
+                    AVLTree into=parts[what];
+                    AVLTree other=parts[1-what];
+                    int cost=into.join(into.new AVLNode(x,info,true),other);
+                    map.put(x,info);
+                    tree=into;
+                    done+=", join back with cost "+cost;
+                }
+                else{
+                    tree=parts[what-2];
+                    map=new TreeMap<>(what==2?smaller:bigger);
+                    done+=", keep the "+(what==2?"smaller":"bigger")+" part";
+                }
+            }
+            else{
+                // join a new tree of keys all below or all above the tree's
+                int count=rnd.nextInt(20);
+                boolean above=rnd.nextBoolean();
+                long pivot=map.isEmpty()?key:above?map.lastKey()+1L:map.firstKey()-1L;
+                long end=above?pivot+1+3L*count:pivot-1-3L*count;
+                if(end<Integer.MIN_VALUE || end>Integer.MAX_VALUE)
+                    continue;
+                AVLTree t=new AVLTree();
+                TreeMap<Integer,String> added=new TreeMap<>();
+                for(int j=0;j<count;j++){
+                    int k=(int)(above?pivot+1+rnd.nextInt(3*count):pivot-1-rnd.nextInt(3*count));
+                    t.insert(k,"j"+k);
+                    added.put(k,"j"+k);
+                }
+                int treeHeight=tree.empty()?-1:tree.getRoot().getHeight();
+                int tHeight=t.empty()?-1:t.getRoot().getHeight();
+                done="join("+pivot+", "+count+" keys "+(above?"above":"below")+")";
+                expected=Math.abs(treeHeight-tHeight)+1;
+                if(rnd.nextBoolean())
+                    actual=tree.join(tree.new AVLNode((int)pivot,info,true),t);
+                else{
+                    actual=t.join(t.new AVLNode((int)pivot,info,true),tree);
+                    tree=t;
+                }
+                map.put((int)pivot,info);
+                map.putAll(added);
+            }
+            if(!Objects.equals(expected,actual))
+                return "step "+step+" "+done+": expected "+expected+", got "+actual;
+            if(tree.size()!=map.size() || tree.empty()!=map.isEmpty())
+                return "step "+step+" "+done+": size "+tree.size()+", expected "+map.size();
+            if(!Objects.equals(tree.min(),map.isEmpty()?null:map.firstEntry().getValue())
+                    || !Objects.equals(tree.max(),map.isEmpty()?null:map.lastEntry().getValue()))
+                return "step "+step+" "+done+": min/max "+tree.min()+" "+tree.max()+", expected "+describe(map);
+            if(step%FULL_CHECK_EVERY==0 || step==steps-1){
+                if(!Arrays.equals(tree.keysToArray(),map.keySet().stream().mapToInt(Integer::intValue).toArray())
+                        || !Arrays.equals(tree.infoToArray(),map.values().toArray(new String[0])))
+                    return "step "+step+" "+done+": the keys or infos differ";
+                AVLTree.ValidationReport report=tree.validate(1);
+                if(!report.isValid())
+                    return "step "+step+" "+done+": "+report.violations().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static int fuzzKey(Random rnd,int range){
+        int kind=rnd.nextInt(100);
+        if(kind==0)
+            return rnd.nextBoolean()?Integer.MIN_VALUE+rnd.nextInt(3):Integer.MAX_VALUE-rnd.nextInt(3);
+        // keys around -1, the key of the virtual nodes
+        if(kind<5)
+            return rnd.nextInt(5)-3;
+        return rnd.nextInt(range)-range/2;
+    }
+
+    private static String describe(SortedMap<Integer,String> map){
+        return map.size()+" keys, "+(map.isEmpty()?"null null":map.get(map.firstKey())+" "+map.get(map.lastKey()));
+    }
+
+    private static String describe(AVLTree tree){
+        return tree.size()+" keys, "+tree.min()+" "+tree.max();
+    }
+
+    private static void compare(String operation,int ops,Runnable avl,Runnable treeMap){
+        double avlNanos=nanosPerOp(ops,avl);
+        double treeMapNanos=nanosPerOp(ops,treeMap);
+        System.out.println(String.format("%-14s %12.1f %12.1f %7.2fx",operation,avlNanos,treeMapNanos,treeMapNanos/avlNanos));
+    }
 
+    /**
+     * Returns the median time per op of MEASURED_ITERATIONS runs of batch, which makes ops operations.
+     */
+    private static double nanosPerOp(int ops,Runnable batch){
+        for(int i=0;i<WARMUP_ITERATIONS;i++)
+            batch.run();
+        double[] nanos=new double[MEASURED_ITERATIONS];
+        for(int i=0;i<MEASURED_ITERATIONS;i++){
+            long before=System.nanoTime();
+            batch.run();
+            nanos[i]=(double)(System.nanoTime()-before)/ops;
         }
+        Arrays.sort(nanos);
+        return nanos[MEASURED_ITERATIONS/2];
     }
 }
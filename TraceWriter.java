@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * class TraceWriter
+ *
+ * Writer of a workload trace, shared by the recorded tree and the trees split from it.
+ * The first write error closes the file, the following calls are not written and close()
+ * throws the error.
+ */
+class TraceWriter {
+	private final FileChannel channel;
+	private final AVLTree.BinaryWriter out;
+	private int lastKey;
+	private int nextTreeId = 1;
+	private boolean closed;
+	private IOException failure;
+
+	TraceWriter(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.out = new AVLTree.BinaryWriter(channel);
+		try {
+			out.writeInt(WorkloadReplay.MAGIC);
+			out.writeInt(WorkloadReplay.VERSION);
+		}
+		catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	synchronized void writePreload(int[] keys, String[] info) throws IOException {
+		try {
+			out.writeVarLong(WorkloadReplay.PRELOAD);
+			out.writeVarLong(keys.length);
+			for(int j = 0; j < keys.length; j++) {
+				writeKey(keys[j]);
+				writeInfo(info[j]);
+			}
+		}
+		catch(IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	synchronized void write(int tree, int operation, int key, String info, int other) {
+		if(closed) {
+			return;
+		}
+		try {
+			out.writeVarLong((long) tree << 3 | operation);
+			writeKey(key);
+			if(operation == WorkloadReplay.INSERT || operation == WorkloadReplay.JOIN) {
+				writeInfo(info);
+			}
+			if(operation == WorkloadReplay.JOIN) {
+				out.writeVarLong(other + 1L);
+			}
+		}
+		catch(IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes a split and returns the id of the smaller part, the bigger part gets the next one.
+	 */
+	synchronized int writeSplit(int tree, int x) {
+		write(tree, WorkloadReplay.SPLIT, x, null, 0);
+		int first = nextTreeId;
+		nextTreeId += 2;
+		return first;
+	}
+
+	private void writeKey(int key) throws IOException {
+		out.writeVarLong(AVLTree.zigzag(key - lastKey));
+		lastKey = key;
+	}
+
+	private void writeInfo(String info) throws IOException {
+		out.writeVarLong(info == null ? 0 : info.length() + 1L);
+	}
+
+	private void fail(IOException e) {
+		failure = e;
+		closed = true;
+		try {
+			channel.close();
+		}
+		catch(IOException suppressed) {
+			e.addSuppressed(suppressed);
+		}
+	}
+
+	synchronized void close() throws IOException {
+		if(!closed) {
+			closed = true;
+			try {
+				out.flush();
+			}
+			finally {
+				channel.close();
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+@Category("AVLTree")
+abstract class UpdateEvent extends Event {
+	@Label("Operation")
+	String operation;
+	@Label("Key")
+	int key;
+	@Label("Re-balancing Operations")
+	@Description("The value insert/delete returned, -1 if the key was already in / not in the tree")
+	int rebalancing;
+	@Label("Tree Size")
+	int treeSize;
+	@Label("Tree Height")
+	int treeHeight;
+}
@@ -0,0 +1,487 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * public class WorkloadReplay
+ *
+ * Replays a trace written by AVLTree.recordWorkload(path) against a tree implementation,
+ * on one thread or on several, and measures the throughput and the latency of every call.
+ * The trees of the trace are created by a factory of Targets, adapters of the trees of this
+ * file are returned by the target methods. The first tree gets the keys the recorded tree
+ * had when the recording started before the measuring starts. Infos are strings of the
+ * recorded lengths.
+ * With several threads the calls are dealt round robin, so the threads run the trace in about
+ * the recorded order but not in the recorded interleaving. This is only possible for traces
+ * without split and join.
+ * A latency includes the two System.nanoTime() calls around the call, about 20-30 ns.
+ */
+public class WorkloadReplay {
+	final static int MAGIC = 0x41564C57; // "AVLW"
+	final static int VERSION = 1;
+	// operations of a trace record, Metrics.SEARCH...JOIN + 1
+	final static int PRELOAD = 0;
+	final static int SEARCH = Metrics.SEARCH + 1;
+	final static int INSERT = Metrics.INSERT + 1;
+	final static int DELETE = Metrics.DELETE + 1;
+	final static int SPLIT = Metrics.SPLIT + 1;
+	final static int JOIN = Metrics.JOIN + 1;
+
+	private WorkloadReplay() {
+	}
+
+	/**
+	 * public interface Target
+	 *
+	 * A tree a trace is replayed against. split returns the smaller and the bigger part,
+	 * join(x, i, t) joins t and a new node of key x and info i into this tree.
+	 * A Target whose supportsSplitJoin() is false is only given traces without split and join.
+	 */
+	public interface Target {
+		String search(int k);
+		void insert(int k, String i);
+		void delete(int k);
+		boolean supportsSplitJoin();
+		Target[] split(int x);
+		void join(int x, String i, Target t);
+	}
+
+	/**
+	 * public static Target target(AVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree.
+	 * Complexity - O(1)
+	 */
+	public static Target target(AVLTree tree) {
+		return new TreeTarget(tree);
+	}
+
+	/**
+	 * public static Target target(HybridAVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree.
+	 * Complexity - O(1)
+	 */
+	public static Target target(HybridAVLTree tree) {
+		return new HybridTarget(tree);
+	}
+
+	/**
+	 * public static Target target(StampedAVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree, split and join are not supported.
+	 * Complexity - O(1)
+	 */
+	public static Target target(StampedAVLTree tree) {
+		return new PointTarget() {
+			public String search(int k) {
+				return tree.search(k);
+			}
+
+			public void insert(int k, String i) {
+				tree.insert(k, i);
+			}
+
+			public void delete(int k) {
+				tree.delete(k);
+			}
+		};
+	}
+
+	/**
+	 * public static Target target(ConcurrentAVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree, split and join are not supported.
+	 * Complexity - O(1)
+	 */
+	public static Target target(ConcurrentAVLTree tree) {
+		return new PointTarget() {
+			public String search(int k) {
+				return tree.search(k);
+			}
+
+			public void insert(int k, String i) {
+				tree.insert(k, i);
+			}
+
+			public void delete(int k) {
+				tree.delete(k);
+			}
+		};
+	}
+
+	/**
+	 * public static Target target(ShardedAVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree, split and join are not supported.
+	 * Complexity - O(1)
+	 */
+	public static Target target(ShardedAVLTree tree) {
+		return new PointTarget() {
+			public String search(int k) {
+				return tree.search(k);
+			}
+
+			public void insert(int k, String i) {
+				tree.insert(k, i);
+			}
+
+			public void delete(int k) {
+				tree.delete(k);
+			}
+		};
+	}
+
+	/**
+	 * public static Target target(FlatCombiningAVLTree tree)
+	 *
+	 * Returns a Target running the calls on tree, split and join are not supported.
+	 * Complexity - O(1)
+	 */
+	public static Target target(FlatCombiningAVLTree tree) {
+		return new PointTarget() {
+			public String search(int k) {
+				return tree.search(k);
+			}
+
+			public void insert(int k, String i) {
+				tree.insert(k, i);
+			}
+
+			public void delete(int k) {
+				tree.delete(k);
+			}
+		};
+	}
+
+	/**
+	 * public static ReplayResult replay(Path path, Supplier<Target> factory, int threads)
+	 *
+	 * Reads the trace at path and replays it on trees created by factory, with threads threads.
+	 * Throws IOException for a file which isn't a trace of this version, and
+	 * IllegalArgumentException for a trace with split or join and threads > 1 or a Target
+	 * without split and join, before any call is replayed.
+	 * An exception thrown by a Target stops the replay and is thrown as an IllegalStateException.
+	 * @pre threads >= 1
+	 * Complexity - O(trace length) calls
+	 */
+	public static ReplayResult replay(Path path, Supplier<Target> factory, int threads) throws IOException {
+		Trace trace = Trace.read(path);
+		if(threads > 1 && !trace.pointOnly) {
+			throw new IllegalArgumentException("a trace with split or join can only be replayed on one thread");
+		}
+		Target first = factory.get();
+		if(!trace.pointOnly && !first.supportsSplitJoin()) {
+			throw new IllegalArgumentException("a trace with split or join needs a Target that supports them");
+		}
+
+		List<Target> trees = new ArrayList<>();
+		trees.add(first);
+		for(int j = 0; j < trace.preloadKeys.length; j++) {
+			trees.get(0).insert(trace.preloadKeys[j], trace.preloadInfo[j]);
+		}
+
+		Replayer[] replayers = new Replayer[threads];
+		for(int t = 0; t < threads; t++) {
+			replayers[t] = new Replayer(trace, trees, factory, t, threads);
+		}
+		long start;
+		long end;
+		if(threads == 1) {
+			start = System.nanoTime();
+			replayers[0].run();
+			end = System.nanoTime();
+		}
+		else {
+			CountDownLatch ready = new CountDownLatch(threads);
+			CountDownLatch go = new CountDownLatch(1);
+			Thread[] workers = new Thread[threads];
+			for(int t = 0; t < threads; t++) {
+				Replayer replayer = replayers[t];
+				workers[t] = new Thread(() -> {
+					ready.countDown();
+					try {
+						go.await();
+					}
+					catch(InterruptedException e) {
+						replayer.error = e;
+						return;
+					}
+					replayer.run();
+				}, "WorkloadReplay-" + t);
+				workers[t].start();
+			}
+			try {
+				ready.await();
+				start = System.nanoTime();
+				go.countDown();
+				for(Thread worker : workers) {
+					worker.join();
+				}
+				end = System.nanoTime();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while replaying", e);
+			}
+		}
+		for(Replayer replayer : replayers) {
+			if(replayer.error != null) {
+				throw new IllegalStateException("replay failed", replayer.error);
+			}
+		}
+		return new ReplayResult(replayers, end - start);
+	}
+
+	/**
+	 * private static class Trace
+	 *
+	 * A trace read into arrays, one entry per call.
+	 */
+	private static class Trace {
+		private int[] preloadKeys;
+		private String[] preloadInfo;
+		private int length;
+		private byte[] operations = new byte[1024];
+		private int[] trees = new int[1024];
+		private int[] keys = new int[1024];
+		private String[] info = new String[1024];
+		private int[] others = new int[1024];
+		private boolean pointOnly = true;
+		// one string per recorded info length, shared by the calls
+		private final Map<Integer, String> infoOfLength = new HashMap<>();
+
+		private static Trace read(Path path) throws IOException {
+			Trace trace = new Trace();
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				AVLTree.MappedReader in = new AVLTree.MappedReader(channel);
+				if(in.readInt() != MAGIC) {
+					throw new IOException(path + " is not a workload trace");
+				}
+				int version = in.readInt();
+				if(version != VERSION) {
+					throw new IOException("unsupported workload trace version " + version);
+				}
+				if(in.readVarLong() != PRELOAD) {
+					throw new IOException("malformed workload trace at " + in.position());
+				}
+				int size = (int) in.readVarLong();
+				trace.preloadKeys = new int[size];
+				trace.preloadInfo = new String[size];
+				int key = 0;
+				for(int j = 0; j < size; j++) {
+					key += AVLTree.unzigzag(in.readVarLong());
+					trace.preloadKeys[j] = key;
+					trace.preloadInfo[j] = trace.info(in.readVarLong());
+				}
+
+				int treeCount = 1;
+				while(in.hasRemaining()) {
+					long position = in.position();
+					long header = in.readVarLong();
+					int operation = (int) (header & 7);
+					long tree = header >>> 3;
+					if(operation < SEARCH || operation > JOIN || tree >= treeCount) {
+						throw new IOException("malformed workload trace at " + position);
+					}
+					key += AVLTree.unzigzag(in.readVarLong());
+					String info = null;
+					int other = -1;
+					if(operation == INSERT || operation == JOIN) {
+						info = trace.info(in.readVarLong());
+					}
+					if(operation == JOIN) {
+						other = (int) in.readVarLong() - 1;
+						if(other >= treeCount) {
+							throw new IOException("malformed workload trace at " + position);
+						}
+					}
+					if(operation == SPLIT) {
+						treeCount += 2;
+					}
+					trace.add(operation, (int) tree, key, info, other);
+				}
+			}
+			return trace;
+		}
+
+		private String info(long length) {
+			if(length == 0) {
+				return null;
+			}
+			return infoOfLength.computeIfAbsent((int) (length - 1), n -> "i".repeat(n));
+		}
+
+		private void add(int operation, int tree, int key, String info, int other) {
+			if(length == operations.length) {
+				int capacity = 2 * length;
+				operations = Arrays.copyOf(operations, capacity);
+				trees = Arrays.copyOf(trees, capacity);
+				keys = Arrays.copyOf(keys, capacity);
+				this.info = Arrays.copyOf(this.info, capacity);
+				others = Arrays.copyOf(others, capacity);
+			}
+			operations[length] = (byte) operation;
+			trees[length] = tree;
+			keys[length] = key;
+			this.info[length] = info;
+			others[length] = other;
+			pointOnly &= operation != SPLIT && operation != JOIN && tree == 0;
+			length++;
+		}
+	}
+
+	/**
+	 * static class Replayer
+	 *
+	 * Runs every step-th call of a trace from first on, with a latency histogram per operation.
+	 */
+	static class Replayer implements Runnable {
+		private final Trace trace;
+		private final List<Target> trees;
+		private final Supplier<Target> factory;
+		private final int first;
+		private final int step;
+		final long[][] latencies = new long[Metrics.OPERATIONS.length][Metrics.BUCKETS];
+		long searchHits;
+		private Throwable error;
+
+		private Replayer(Trace trace, List<Target> trees, Supplier<Target> factory, int first, int step) {
+			this.trace = trace;
+			this.trees = trees;
+			this.factory = factory;
+			this.first = first;
+			this.step = step;
+		}
+
+		public void run() {
+			try {
+				for(int j = first; j < trace.length; j += step) {
+					int operation = trace.operations[j];
+					Target tree = trees.get(trace.trees[j]);
+					int key = trace.keys[j];
+					long start = System.nanoTime();
+					switch(operation) {
+					case SEARCH:
+						if(tree.search(key) != null) {
+							searchHits++;
+						}
+						break;
+					case INSERT:
+						tree.insert(key, trace.info[j]);
+						break;
+					case DELETE:
+						tree.delete(key);
+						break;
+					case SPLIT:
+						Target[] parts = tree.split(key);
+						trees.add(parts[0]);
+						trees.add(parts[1]);
+						break;
+					default:
+						int other = trace.others[j];
+						tree.join(key, trace.info[j], other < 0 ? factory.get() : trees.get(other));
+					}
+					long nanos = System.nanoTime() - start;
+					latencies[operation - 1][Metrics.bucketOf(nanos)]++;
+				}
+			}
+			catch(RuntimeException | Error e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * private abstract static class PointTarget
+	 *
+	 * Target of a tree without split and join.
+	 */
+	private abstract static class PointTarget implements Target {
+		public boolean supportsSplitJoin() {
+			return false;
+		}
+
+		public Target[] split(int x) {
+			throw new UnsupportedOperationException("split");
+		}
+
+		public void join(int x, String i, Target t) {
+			throw new UnsupportedOperationException("join");
+		}
+	}
+
+	private static class TreeTarget implements Target {
+		private final AVLTree tree;
+
+		private TreeTarget(AVLTree tree) {
+			this.tree = tree;
+		}
+
+		public String search(int k) {
+			return tree.search(k);
+		}
+
+		public void insert(int k, String i) {
+			tree.insert(k, i);
+		}
+
+		public void delete(int k) {
+			tree.delete(k);
+		}
+
+		public boolean supportsSplitJoin() {
+			return true;
+		}
+
+		public Target[] split(int x) {
+			AVLTree[] parts = tree.split(x);
+			return new Target[] {new TreeTarget(parts[0]), new TreeTarget(parts[1])};
+		}
+
+		public void join(int x, String i, Target t) {
+			tree.join(tree.new AVLNode(x, i, true), ((TreeTarget) t).tree);
+		}
+	}
+
+	private static class HybridTarget implements Target {
+		private final HybridAVLTree tree;
+
+		private HybridTarget(HybridAVLTree tree) {
+			this.tree = tree;
+		}
+
+		public String search(int k) {
+			return tree.search(k);
+		}
+
+		public void insert(int k, String i) {
+			tree.insert(k, i);
+		}
+
+		public void delete(int k) {
+			tree.delete(k);
+		}
+
+		public boolean supportsSplitJoin() {
+			return true;
+		}
+
+		public Target[] split(int x) {
+			HybridAVLTree[] parts = tree.split(x);
+			return new Target[] {new HybridTarget(parts[0]), new HybridTarget(parts[1])};
+		}
+
+		public void join(int x, String i, Target t) {
+			tree.join(tree.tree.new AVLNode(x, i, true), ((HybridTarget) t).tree);
+		}
+	}
+}
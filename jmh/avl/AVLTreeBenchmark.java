@@ -0,0 +1,189 @@
+package avl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * The cases of Tester.benchmarkOperations as JMH benchmarks.
+ *
+ * The tree holds the even keys 0, 2, .., 2*(size-1), the odd ones are free to insert.
+ * Operation keys come from Tester.benchmarkKeys. Searches follow the draws, repetitions included;
+ * insert, delete and splitJoin take the first MUTATIONS / SPLITS distinct keys of the draws, so
+ * every measured mutation succeeds. min/max and keysToArray don't depend on the distribution.
+ * The forks get -Xmx4g for the 10M trees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AVLTreeBenchmark {
+
+    private static final int DRAWS = 10000;
+    // at most the smallest size, every key of the tree is distinct
+    private static final int MUTATIONS = 1000;
+    private static final int SPLITS = 100;
+
+    @State(Scope.Thread)
+    public static class Sized {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        int size;
+
+        AVLTree tree;
+
+        @Setup(Level.Trial)
+        public void build() {
+            int[] keysArr = IntStream.range(0, size).map(k -> 2 * k).toArray();
+            Tester.shuffle(keysArr, new Random(42));
+            tree = new AVLTree();
+            for(int key : keysArr)
+                tree.insert(key, "num " + key);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tree extends Sized {
+        @Param({"sequential", "random", "zipfian"})
+        String distribution;
+
+        int[] keys;
+        int next;
+
+        @Setup(Level.Trial)
+        public void drawKeys() {
+            keys = Tester.benchmarkKeys(distribution, size, DRAWS, new Random(43));
+        }
+
+        /**
+         * The first count distinct keys of the draws.
+         */
+        int[] distinct(int count) {
+            int[] result = null;
+            // skewed draws repeat keys, draw more until there are enough distinct ones
+            for(int draws = DRAWS; result == null || result.length < count; draws *= 2)
+                result = Tester.distinctKeys(Tester.benchmarkKeys(distribution, size, draws, new Random(43)));
+            return Arrays.copyOf(result, count);
+        }
+    }
+
+    /**
+     * The tree of Tree, put back as it was after every batch of inserts or deletes.
+     */
+    @State(Scope.Thread)
+    public static class Mutated extends Tree {
+        int[] distinct;
+
+        @Setup(Level.Trial)
+        public void drawDistinct() {
+            distinct = distinct(MUTATIONS);
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore() {
+            // undoes whichever of insert and delete just ran, the other half fails without changes
+            for(int key : distinct) {
+                tree.delete(2 * key + 1);
+                tree.insert(2 * key, "num " + 2 * key);
+            }
+        }
+    }
+
+    /**
+     * A copy of the tree of Tree for every batch of splits. A split and join back changes the
+     * shape of the tree, so batches on the same tree would measure another tree each time.
+     * The copies are loaded from a snapshot, so they are balanced bottom-up.
+     */
+    @State(Scope.Thread)
+    public static class Splittable extends Tree {
+        int[] splitKeys;
+        Path snapshot;
+
+        @Setup(Level.Trial)
+        public void writeSnapshot() throws IOException {
+            splitKeys = distinct(SPLITS);
+            snapshot = Files.createTempFile("avl-bench", ".snapshot");
+            tree.writeSnapshot(snapshot);
+        }
+
+        @Setup(Level.Invocation)
+        public void copy() throws IOException {
+            // drop the previous copy before loading the next one, and collect it here
+            // instead of in the middle of the measured splits
+            tree = null;
+            tree = AVLTree.readSnapshot(snapshot);
+            System.gc();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteSnapshot() throws IOException {
+            Files.delete(snapshot);
+        }
+    }
+
+    @Benchmark
+    public String search(Tree state) {
+        int key = state.keys[state.next];
+        state.next = state.next + 1 == state.keys.length ? 0 : state.next + 1;
+        return state.tree.search(2 * key);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MUTATIONS)
+    public void insert(Mutated state, Blackhole blackhole) {
+        for(int key : state.distinct)
+            blackhole.consume(state.tree.insert(2 * key + 1, "new"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MUTATIONS)
+    public void delete(Mutated state, Blackhole blackhole) {
+        for(int key : state.distinct)
+            blackhole.consume(state.tree.delete(2 * key));
+    }
+
+    @Benchmark
+    public void minMax(Sized state, Blackhole blackhole) {
+        blackhole.consume(state.tree.min());
+        blackhole.consume(state.tree.max());
+    }
+
+    @Benchmark
+    public int[] keysToArray(Sized state) {
+        return state.tree.keysToArray();
+    }
+
+    /**
+     * Splits at a key of the tree and joins the parts back around it, for SPLITS distinct keys.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SPLITS)
+    public void splitJoin(Splittable state, Blackhole blackhole) {
+        for(int key : state.splitKeys) {
+            int x = 2 * key;
+            AVLTree[] parts = state.tree.split(x);
+            blackhole.consume(parts[0].join(parts[0].new AVLNode(x, "num " + x, true), parts[1]));
+            state.tree = parts[0];
+        }
+    }
+}